@@ -0,0 +1,156 @@
+package com.example.filemanager.config;
+
+import jakarta.annotation.PostConstruct;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+/**
+ * Creates the database objects that JPA annotations cannot express (partial and
+ * expression indexes), moves id sequences past ids that were assigned before
+ * the tables switched from identity columns, gives rows created before
+ * optimistic locking an initial version, sorts storage keys by byte value,
+ * computes the totals of folders created before folder totals existed and
+ * drops columns the schema update leaves behind. Runs once the Hibernate schema
+ * has been generated.
+ */
+@Component
+@DependsOn("entityManagerFactory")
+public class DatabaseConstraintInitializer {
+
+    /**
+     * Name of the index that keeps names unique among the live (not soft-deleted)
+     * children of a folder. Root items share the parent key 0.
+     */
+    public static final String UNIQUE_LIVE_NAME_INDEX = "uk_files_live_name";
+
+    private static final Logger logger = LoggerFactory.getLogger(DatabaseConstraintInitializer.class);
+
+    /** Id sequences and the tables they number. */
+    private static final Map<String, String> ID_SEQUENCES = Map.of(
+            "files_seq", "files",
+            "file_history_seq", "file_history",
+            "users_seq", "users",
+            "groups_seq", "groups");
+
+    /**
+     * The schema update adds the version column as nullable; a null version would
+     * make Spring Data treat an existing row as new.
+     */
+    private static final String INITIAL_ROW_VERSION = "UPDATE files SET row_version = 0 WHERE row_version IS NULL";
+
+    /**
+     * Locks moved to the file_leases table. The old lock flag is NOT NULL, so it
+     * would reject every new row; locks held at upgrade time are released.
+     */
+    private static final String DROP_FILE_LOCK_COLUMNS = "ALTER TABLE files DROP COLUMN IF EXISTS is_locked, "
+            + "DROP COLUMN IF EXISTS locked_by_user_id, DROP COLUMN IF EXISTS locked_at";
+
+    /**
+     * Computes the totals of folders that have none yet, i.e. that existed before
+     * folder totals were kept, with one recursive query over the tree. A live
+     * folder counts its live content; a folder in the trash counts the content
+     * deleted together with it. Skipped once every folder has totals.
+     */
+    private static final String BACKFILL_FOLDER_STATS = """
+            DO $$ BEGIN
+            IF EXISTS (SELECT 1 FROM files d WHERE d.is_directory
+                    AND NOT EXISTS (SELECT 1 FROM folder_stats s WHERE s.folder_id = d.id)) THEN
+                INSERT INTO folder_stats (folder_id, total_bytes, file_count, folder_count)
+                WITH RECURSIVE below (folder_id, item_id) AS (
+                    SELECT p.id, c.id FROM files p JOIN files c ON c.parent_folder_id = p.id
+                    WHERE p.is_directory AND ((p.deleted_at IS NULL AND c.deleted_at IS NULL)
+                        OR c.deletion_batch_id = p.deletion_batch_id)
+                    UNION ALL
+                    SELECT b.folder_id, c.id FROM below b
+                    JOIN files p ON p.id = b.item_id JOIN files c ON c.parent_folder_id = p.id
+                    WHERE (p.deleted_at IS NULL AND c.deleted_at IS NULL) OR c.deletion_batch_id = p.deletion_batch_id)
+                SELECT d.id,
+                    COALESCE(SUM(CASE WHEN i.is_directory THEN 0 ELSE COALESCE(i.file_size, 0) END), 0),
+                    COUNT(CASE WHEN NOT i.is_directory THEN 1 END),
+                    COUNT(CASE WHEN i.is_directory THEN 1 END)
+                FROM files d LEFT JOIN below b ON b.folder_id = d.id LEFT JOIN files i ON i.id = b.item_id
+                WHERE d.is_directory AND NOT EXISTS (SELECT 1 FROM folder_stats s WHERE s.folder_id = d.id)
+                GROUP BY d.id;
+            END IF;
+            END $$""";
+
+    /** Tables whose storage keys are compared with S3 listings by the reconciler. */
+    private static final List<String> STORAGE_KEY_TABLES = List.of("files", "file_history");
+
+    private static final List<String> POSTGRES_STATEMENTS = Stream.of(
+            Stream.of("CREATE UNIQUE INDEX IF NOT EXISTS " + UNIQUE_LIVE_NAME_INDEX
+                    + " ON files (COALESCE(parent_folder_id, 0), name) WHERE deleted_at IS NULL",
+                    INITIAL_ROW_VERSION, DROP_FILE_LOCK_COLUMNS),
+            ID_SEQUENCES.entrySet().stream().map(e -> alignSequence(e.getKey(), e.getValue())),
+            STORAGE_KEY_TABLES.stream().map(DatabaseConstraintInitializer::byteOrderStorageKey),
+            Stream.of(BACKFILL_FOLDER_STATS))
+            .flatMap(statements -> statements)
+            .toList();
+
+    // H2 has no partial indexes, so a generated key that is NULL for deleted rows is
+    // indexed instead (NULLs never collide in a unique index).
+    private static final List<String> H2_STATEMENTS = List.of(
+            "ALTER TABLE files ADD COLUMN IF NOT EXISTS live_name_key VARCHAR(1300) GENERATED ALWAYS AS "
+                    + "(CASE WHEN deleted_at IS NULL THEN CAST(COALESCE(parent_folder_id, 0) AS VARCHAR) || '/' || name END)",
+            "CREATE UNIQUE INDEX IF NOT EXISTS " + UNIQUE_LIVE_NAME_INDEX + " ON files (live_name_key)",
+            INITIAL_ROW_VERSION);
+
+    private final JdbcTemplate jdbcTemplate;
+
+    /**
+     * Ids are handed out in pooled blocks whose upper end is the sequence value, so
+     * setting the sequence to the largest existing id makes the next block start
+     * right after it. Sequences that are already ahead are left alone.
+     */
+    private static String alignSequence(String sequence, String table) {
+        return "SELECT setval('" + sequence + "', (SELECT MAX(id) FROM " + table + ")) WHERE (SELECT MAX(id) FROM "
+                + table + ") >= (SELECT last_value FROM " + sequence + ")";
+    }
+
+    /**
+     * S3 lists keys in UTF-8 byte order, which PostgreSQL only uses with the "C"
+     * collation; the default (locale) collation would make the storage key index
+     * useless for merging with a listing. Indexes on the column are rebuilt once.
+     */
+    private static String byteOrderStorageKey(String table) {
+        return "DO $$ BEGIN IF EXISTS (SELECT 1 FROM information_schema.columns WHERE table_name = '" + table
+                + "' AND column_name = 'storage_key' AND collation_name IS DISTINCT FROM 'C') THEN ALTER TABLE "
+                + table + " ALTER COLUMN storage_key TYPE VARCHAR(255) COLLATE \"C\"; END IF; END $$";
+    }
+
+    public DatabaseConstraintInitializer(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @PostConstruct
+    public void createConstraints() {
+        String product = jdbcTemplate.execute(
+                (ConnectionCallback<String>) connection -> connection.getMetaData().getDatabaseProductName());
+        List<String> statements;
+        if ("PostgreSQL".equalsIgnoreCase(product)) {
+            statements = POSTGRES_STATEMENTS;
+        } else if ("H2".equalsIgnoreCase(product)) {
+            statements = H2_STATEMENTS;
+        } else {
+            logger.warn("No extra constraints defined for database '{}'.", product);
+            return;
+        }
+
+        for (String statement : statements) {
+            try {
+                jdbcTemplate.execute(statement);
+            } catch (Exception e) {
+                // Typically caused by pre-existing duplicate data; the application still starts
+                // but the affected constraint is not enforced until the data is cleaned up.
+                logger.error("Failed to apply database constraint: {}", statement, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.example.filemanager.config;
+
+import com.example.filemanager.domain.User;
+import com.example.filemanager.exception.QuotaExceededException;
+import com.example.filemanager.service.StorageQuotaService;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.springframework.http.HttpStatus;
+import org.springframework.lang.NonNull;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+/**
+ * Rejects file uploads to the REST API that cannot fit into the owner's quota
+ * from their Content-Length, before the multipart body is read. Runs after
+ * authentication. The length includes the multipart framing, so it slightly
+ * overstates the file; uploads without a length are left to the service.
+ */
+@Component
+public class UploadQuotaFilter extends OncePerRequestFilter {
+
+    // POST /api/files uploads a new file, PUT /api/files/{id} replaces content
+    private static final Pattern FILE_CONTENT = Pattern.compile("/api/files(?:/(\\d{1,18}))?");
+
+    private final StorageQuotaService storageQuotaService;
+
+    public UploadQuotaFilter(StorageQuotaService storageQuotaService) {
+        this.storageQuotaService = storageQuotaService;
+    }
+
+    @Override
+    protected boolean shouldNotFilter(@NonNull HttpServletRequest request) {
+        Matcher matcher = match(request);
+        if (!matcher.matches() || request.getContentLengthLong() <= 0) {
+            return true;
+        }
+        boolean newFile = matcher.group(1) == null;
+        return !(newFile ? "POST" : "PUT").equals(request.getMethod());
+    }
+
+    @Override
+    protected void doFilterInternal(@NonNull HttpServletRequest request, @NonNull HttpServletResponse response,
+            @NonNull FilterChain filterChain) throws ServletException, IOException {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        if (authentication != null && authentication.getPrincipal() instanceof User uploader) {
+            Matcher matcher = match(request);
+            matcher.matches();
+            Long fileId = matcher.group(1) == null ? null : Long.valueOf(matcher.group(1));
+            try {
+                storageQuotaService.checkUpload(uploader, fileId, request.getContentLengthLong());
+            } catch (QuotaExceededException e) {
+                response.sendError(HttpStatus.INSUFFICIENT_STORAGE.value(), e.getMessage());
+                return;
+            }
+        }
+        filterChain.doFilter(request, response);
+    }
+
+    private static Matcher match(HttpServletRequest request) {
+        return FILE_CONTENT.matcher(request.getRequestURI().substring(request.getContextPath().length()));
+    }
+}
@@ -0,0 +1,39 @@
+package com.example.filemanager.controller;
+
+import com.example.filemanager.controller.dto.ChangeFeedResponse;
+import com.example.filemanager.service.ChangeFeedService;
+import com.example.filemanager.service.ChangeNotificationService;
+import java.util.Set;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+@RestController
+@RequestMapping("/api/changes")
+public class ChangeController {
+
+    private final ChangeFeedService changeFeedService;
+    private final ChangeNotificationService changeNotificationService;
+
+    public ChangeController(ChangeFeedService changeFeedService,
+            ChangeNotificationService changeNotificationService) {
+        this.changeFeedService = changeFeedService;
+        this.changeNotificationService = changeNotificationService;
+    }
+
+    @GetMapping
+    public ResponseEntity<ChangeFeedResponse> getChanges(
+            @RequestParam(value = "since", defaultValue = "0") long since,
+            @RequestParam(value = "limit", defaultValue = "500") int limit) {
+        return ResponseEntity.ok(changeFeedService.getChanges(since, limit));
+    }
+
+    @GetMapping(value = "/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamChanges(@RequestParam("folders") Set<Long> folderIds) {
+        return changeNotificationService.subscribe(folderIds);
+    }
+}
@@ -2,24 +2,40 @@ package com.example.filemanager.controller;
 
 import com.example.filemanager.controller.dto.FileResponse;
 import com.example.filemanager.controller.dto.FolderRequest;
+import com.example.filemanager.controller.dto.FolderStatsResponse;
 import com.example.filemanager.controller.dto.FileHistoryResponse;
 import com.example.filemanager.controller.dto.MoveRequest;
+import com.example.filemanager.controller.dto.LeaseResponse;
 import com.example.filemanager.controller.dto.LockRequest;
 import com.example.filemanager.controller.dto.RenameRequest;
+import com.example.filemanager.controller.dto.RetentionPolicyRequest;
+import com.example.filemanager.controller.dto.TrashSummaryResponse;
 import com.example.filemanager.controller.dto.VersioningRequest;
 import com.example.filemanager.controller.dto.ChangeOwnerRequest;
 import com.example.filemanager.domain.FileEntity;
 import com.example.filemanager.domain.FileHistory;
+import com.example.filemanager.domain.FileLease;
+import com.example.filemanager.domain.FileListItem;
+import com.example.filemanager.domain.FileRendition;
+import com.example.filemanager.exception.FileModifiedException;
 import com.example.filemanager.service.FileService;
+import com.example.filemanager.service.RenditionService;
+import com.example.filemanager.service.StorageCodecService.StoredContent;
 import jakarta.validation.Valid;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.List;
 import java.util.stream.Collectors;
 import org.springframework.core.io.ByteArrayResource;
 import org.springframework.core.io.Resource;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.http.CacheControl;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
@@ -27,6 +43,7 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 import java.util.Objects;
@@ -35,10 +52,16 @@ import java.util.Objects;
 @RequestMapping("/api/files")
 public class FileController {
 
+  // Renditions requested with the current row version never change
+  private static final Duration RENDITION_MAX_AGE = Duration.ofDays(365);
+  private static final int MAX_TRASH_PAGE_SIZE = 200;
+
   private final FileService fileService;
+  private final RenditionService renditionService;
 
-  public FileController(FileService fileService) {
+  public FileController(FileService fileService, RenditionService renditionService) {
     this.fileService = fileService;
+    this.renditionService = renditionService;
   }
 
   @PostMapping("/folders")
@@ -50,7 +73,7 @@ public class FileController {
         .buildAndExpand(newDirectory.getId())
         .toUri();
 
-    return ResponseEntity.created(location).body(new FileResponse(newDirectory));
+    return ResponseEntity.created(location).eTag(eTag(newDirectory)).body(new FileResponse(newDirectory));
   }
 
   @GetMapping
@@ -76,88 +99,198 @@ public class FileController {
         .buildAndExpand(newFile.getId())
         .toUri();
 
-    return ResponseEntity.created(location).body(new FileResponse(newFile));
+    return ResponseEntity.created(location).eTag(eTag(newFile)).body(new FileResponse(newFile));
   }
 
   @PutMapping("/{id}")
   public ResponseEntity<FileResponse> updateFile(
-      @PathVariable Long id, @RequestParam("file") MultipartFile file) throws IOException {
-    FileEntity updatedFile = fileService.updateFile(Objects.requireNonNull(id), Objects.requireNonNull(file));
-    return ResponseEntity.ok(new FileResponse(updatedFile));
+      @PathVariable Long id, @RequestParam("file") MultipartFile file,
+      @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch) throws IOException {
+    FileEntity updatedFile = fileService.updateFile(Objects.requireNonNull(id), Objects.requireNonNull(file),
+        expectedVersion(ifMatch));
+    return withETag(updatedFile);
   }
 
+  /**
+   * Downloads a file. Content stored compressed is sent as it is, with its
+   * Content-Encoding, to clients that accept that encoding, and decoded for all
+   * others.
+   */
   @GetMapping("/{id}")
-  public ResponseEntity<Resource> downloadFile(@PathVariable Long id) throws IOException {
+  public ResponseEntity<Resource> downloadFile(@PathVariable Long id,
+      @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding)
+      throws IOException {
     FileEntity fileEntity = fileService.findFileById(Objects.requireNonNull(id));
-    byte[] data = Objects.requireNonNull(fileService.downloadFile(Objects.requireNonNull(fileEntity)));
-    ByteArrayResource resource = new ByteArrayResource(data);
+    StoredContent content = fileService.downloadFile(Objects.requireNonNull(fileEntity), acceptEncoding);
+    ByteArrayResource resource = new ByteArrayResource(Objects.requireNonNull(content.data()));
 
     String encodedFilename = URLEncoder.encode(fileEntity.getName(), StandardCharsets.UTF_8).replaceAll("\\+", "%20");
 
-    return ResponseEntity.ok()
+    ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+        // Which representation is sent depends on Accept-Encoding, also for shared caches
+        .varyBy(HttpHeaders.ACCEPT_ENCODING);
+    if (content.contentEncoding() != null) {
+      // Each encoding of the content is a representation of its own with its own ETag
+      response.header(HttpHeaders.CONTENT_ENCODING, content.contentEncoding())
+          .eTag("\"" + fileEntity.getRowVersion() + "-" + content.contentEncoding() + "\"");
+    } else {
+      response.eTag(eTag(fileEntity));
+    }
+    return response
         .contentType(Objects.requireNonNull(MediaType.APPLICATION_OCTET_STREAM))
         .header(
             HttpHeaders.CONTENT_DISPOSITION, "attachment; filename*=UTF-8''" + encodedFilename)
         .body(resource);
   }
 
+  /**
+   * Returns a thumbnail of an image, or 404 while there is none (yet). With
+   * {@code v} set to the file's current row version, the response may be cached
+   * for good; the next change of the file changes the URL.
+   */
+  @GetMapping("/{id}/thumbnail")
+  public ResponseEntity<byte[]> getThumbnail(@PathVariable Long id,
+      @RequestParam(value = "v", required = false) Long version, WebRequest request) {
+    return rendition(Objects.requireNonNull(id), FileRendition.Kind.THUMBNAIL, version, request);
+  }
+
+  /** Returns the beginning of a text file as UTF-8; cached like {@link #getThumbnail}. */
+  @GetMapping("/{id}/preview")
+  public ResponseEntity<byte[]> getPreview(@PathVariable Long id,
+      @RequestParam(value = "v", required = false) Long version, WebRequest request) {
+    return rendition(Objects.requireNonNull(id), FileRendition.Kind.PREVIEW, version, request);
+  }
+
+  private ResponseEntity<byte[]> rendition(Long id, FileRendition.Kind kind, Long version, WebRequest request) {
+    FileEntity fileEntity = fileService.findFileById(id);
+    FileRendition rendition = renditionService.findReady(fileEntity, kind).orElse(null);
+    if (rendition == null) {
+      return ResponseEntity.notFound().cacheControl(CacheControl.noStore()).build();
+    }
+    String eTag = "\"r" + rendition.getId() + "\"";
+    CacheControl cacheControl = version != null && version.equals(fileEntity.getRowVersion())
+        ? CacheControl.maxAge(RENDITION_MAX_AGE).cachePrivate().immutable()
+        : CacheControl.noCache().cachePrivate();
+    if (request.checkNotModified(eTag)) {
+      // The ETag header is already set
+      return ResponseEntity.status(HttpStatus.NOT_MODIFIED).cacheControl(cacheControl).build();
+    }
+    return ResponseEntity.ok()
+        .eTag(eTag)
+        .cacheControl(cacheControl)
+        .contentType(MediaType.parseMediaType(rendition.getContentType()))
+        .body(renditionService.read(rendition));
+  }
+
   @DeleteMapping("/{id}")
   @ResponseStatus(HttpStatus.NO_CONTENT)
-  public void deleteFile(@PathVariable Long id) {
-    fileService.softDeleteFile(Objects.requireNonNull(id));
+  public void deleteFile(@PathVariable Long id,
+      @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch) {
+    fileService.softDeleteFile(Objects.requireNonNull(id), expectedVersion(ifMatch));
   }
 
   @PutMapping("/{id}/name")
   public ResponseEntity<FileResponse> renameFile(
-      @PathVariable Long id, @Valid @RequestBody RenameRequest request) {
+      @PathVariable Long id, @Valid @RequestBody RenameRequest request,
+      @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch) {
     FileEntity updatedFile = fileService.renameFile(Objects.requireNonNull(id),
-        Objects.requireNonNull(request.getNewName()));
-    return ResponseEntity.ok(new FileResponse(updatedFile));
+        Objects.requireNonNull(request.getNewName()), expectedVersion(ifMatch));
+    return withETag(updatedFile);
   }
 
   @PutMapping("/{id}/lock")
-  public ResponseEntity<Void> updateLockStatus(@PathVariable Long id, @RequestBody LockRequest lockRequest,
+  public ResponseEntity<LeaseResponse> updateLockStatus(@PathVariable Long id, @RequestBody LockRequest lockRequest,
+      @AuthenticationPrincipal UserDetails userDetails,
+      @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch) {
+    FileLease lease = fileService.updateLockStatus(Objects.requireNonNull(id), lockRequest.isLocked(),
+        Objects.requireNonNull(userDetails.getUsername()), expectedVersion(ifMatch));
+    if (lease == null) {
+      return ResponseEntity.noContent().build();
+    }
+    return ResponseEntity.ok(new LeaseResponse(lease));
+  }
+
+  @PostMapping("/{id}/lock/renew")
+  public ResponseEntity<LeaseResponse> renewLock(@PathVariable Long id,
       @AuthenticationPrincipal UserDetails userDetails) {
-    fileService.updateLockStatus(Objects.requireNonNull(id), lockRequest.isLocked(),
+    FileLease lease = fileService.renewLock(Objects.requireNonNull(id),
         Objects.requireNonNull(userDetails.getUsername()));
-    return ResponseEntity.noContent().build();
+    return ResponseEntity.ok(new LeaseResponse(lease));
   }
 
   @GetMapping("/trash")
-  public ResponseEntity<List<FileResponse>> getTrash() {
-    List<FileEntity> deletedFiles = fileService.listDeletedFiles();
-    List<FileResponse> response = deletedFiles.stream().map(FileResponse::new).collect(Collectors.toList());
+  public ResponseEntity<List<FileResponse>> getTrash(
+      @RequestParam(defaultValue = "0") int page,
+      @RequestParam(defaultValue = "50") int size,
+      @RequestParam(defaultValue = "desc") String direction) {
+    Page<FileEntity> deletedFiles = fileService.listDeletedFiles(trashPage(page, size, direction));
+    List<FileResponse> response = deletedFiles.getContent().stream().map(FileResponse::new)
+        .collect(Collectors.toList());
     return ResponseEntity.ok(response);
   }
 
+  @GetMapping("/trash/summary")
+  public ResponseEntity<TrashSummaryResponse> getTrashSummary() {
+    return ResponseEntity.ok(fileService.getTrashSummary());
+  }
+
+  /**
+   * Trash pages are sorted by deletion time, with the ID as a tie-breaker, and
+   * hold at most {@value #MAX_TRASH_PAGE_SIZE} items.
+   */
+  static Pageable trashPage(int page, int size, String direction) {
+    Sort.Direction sortDirection = Sort.Direction.fromOptionalString(direction).orElse(Sort.Direction.DESC);
+    int pageSize = Math.max(1, Math.min(size, MAX_TRASH_PAGE_SIZE));
+    return PageRequest.of(Math.max(page, 0), pageSize,
+        Sort.by(sortDirection, "deletedAt").and(Sort.by(sortDirection, "id")));
+  }
+
   @PostMapping("/{id}/restore")
-  public ResponseEntity<FileResponse> restoreFile(@PathVariable Long id) {
-    FileEntity restoredFile = fileService.restoreFile(Objects.requireNonNull(id));
-    return ResponseEntity.ok(new FileResponse(restoredFile));
+  public ResponseEntity<FileResponse> restoreFile(@PathVariable Long id,
+      @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch) {
+    FileEntity restoredFile = fileService.restoreFile(Objects.requireNonNull(id), expectedVersion(ifMatch));
+    return withETag(restoredFile);
   }
 
   @GetMapping("/search")
   public ResponseEntity<List<FileResponse>> searchFiles(
       @RequestParam(value = "name", required = false) String name,
       @RequestParam(value = "tags", required = false) String tags) {
-    List<FileEntity> files = fileService.searchFiles(name, tags);
+    List<FileListItem> files = fileService.searchFiles(name, tags);
     List<FileResponse> response = files.stream().map(FileResponse::new).collect(Collectors.toList());
     return ResponseEntity.ok(response);
   }
 
   @PutMapping("/{id}/parent")
   public ResponseEntity<FileResponse> moveFile(
-      @PathVariable Long id, @Valid @RequestBody MoveRequest request) {
+      @PathVariable Long id, @Valid @RequestBody MoveRequest request,
+      @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch) {
     FileEntity movedFile = fileService.moveFile(Objects.requireNonNull(id),
-        Objects.requireNonNull(request.getNewParentId()));
-    return ResponseEntity.ok(new FileResponse(movedFile));
+        Objects.requireNonNull(request.getNewParentId()), expectedVersion(ifMatch));
+    return withETag(movedFile);
   }
 
   @PutMapping("/folders/{id}/versioning")
   public ResponseEntity<FileResponse> toggleVersioning(
-      @PathVariable Long id, @Valid @RequestBody VersioningRequest request) {
-    FileEntity updatedFolder = fileService.toggleVersioning(Objects.requireNonNull(id), request.getEnabled());
-    return ResponseEntity.ok(new FileResponse(updatedFolder));
+      @PathVariable Long id, @Valid @RequestBody VersioningRequest request,
+      @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch) {
+    FileEntity updatedFolder = fileService.toggleVersioning(Objects.requireNonNull(id), request.getEnabled(),
+        expectedVersion(ifMatch));
+    return withETag(updatedFolder);
+  }
+
+  @GetMapping("/folders/{id}/stats")
+  public ResponseEntity<FolderStatsResponse> getFolderStats(@PathVariable Long id) {
+    return ResponseEntity.ok(new FolderStatsResponse(fileService.getFolderStats(Objects.requireNonNull(id))));
+  }
+
+  @PutMapping("/folders/{id}/retention")
+  public ResponseEntity<FileResponse> updateRetentionPolicy(
+      @PathVariable Long id, @Valid @RequestBody RetentionPolicyRequest request,
+      @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch) {
+    FileEntity updatedFolder = fileService.updateRetentionPolicy(Objects.requireNonNull(id),
+        request.getKeepLast(), request.getKeepWithinDays(), request.getThinning(), expectedVersion(ifMatch));
+    return withETag(updatedFolder);
   }
 
   @GetMapping("/{id}/versions")
@@ -169,26 +302,68 @@ public class FileController {
 
   @PostMapping("/{id}/restore/{versionId}")
   public ResponseEntity<FileResponse> restoreFileVersion(
-      @PathVariable Long id, @PathVariable Long versionId) {
+      @PathVariable Long id, @PathVariable Long versionId,
+      @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch) {
     FileEntity restoredFile = fileService.restoreFileVersion(Objects.requireNonNull(id),
-        Objects.requireNonNull(versionId));
-    return ResponseEntity.ok(new FileResponse(restoredFile));
+        Objects.requireNonNull(versionId), expectedVersion(ifMatch));
+    return withETag(restoredFile);
   }
 
   @PutMapping("/{id}/owner")
   public ResponseEntity<FileResponse> changeOwner(
-      @PathVariable Long id, @Valid @RequestBody ChangeOwnerRequest request) {
-    FileEntity updatedFile = fileService.changeOwner(Objects.requireNonNull(id),
+      @PathVariable Long id, @Valid @RequestBody ChangeOwnerRequest request,
+      @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch) {
+    FileService.OwnerChange change = fileService.changeOwner(Objects.requireNonNull(id),
         Objects.requireNonNull(request.getOwnerUserId()), Objects.requireNonNull(request.getOwnerGroupId()),
-        request.isRecursive());
-    return ResponseEntity.ok(new FileResponse(updatedFile));
+        request.isRecursive(), expectedVersion(ifMatch));
+    if (change.job() == null) {
+      return withETag(change.file());
+    }
+    // The folder's contents follow in the background
+    return ResponseEntity.accepted()
+        .location(URI.create("/api/jobs/" + change.job().getId()))
+        .eTag(eTag(change.file()))
+        .body(new FileResponse(change.file()));
   }
 
   @PutMapping("/{id}/tags")
   public ResponseEntity<FileResponse> updateTags(
-      @PathVariable Long id, @Valid @RequestBody com.example.filemanager.controller.dto.TagsRequest request) {
+      @PathVariable Long id, @Valid @RequestBody com.example.filemanager.controller.dto.TagsRequest request,
+      @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch) {
     FileEntity updatedFile = fileService.updateTags(Objects.requireNonNull(id),
-        Objects.requireNonNull(request.getTags()));
-    return ResponseEntity.ok(new FileResponse(updatedFile));
+        Objects.requireNonNull(request.getTags()), expectedVersion(ifMatch));
+    return withETag(updatedFile);
+  }
+
+  private static ResponseEntity<FileResponse> withETag(FileEntity file) {
+    return ResponseEntity.ok().eTag(eTag(file)).body(new FileResponse(file));
+  }
+
+  /** The ETag of a file is its row version, e.g. {@code "3"}. */
+  static String eTag(FileEntity file) {
+    return "\"" + file.getRowVersion() + "\"";
+  }
+
+  /**
+   * Reads the version a client expects from an If-Match header. A missing header
+   * and {@code *} impose no condition. The ETag of a compressed download, e.g.
+   * {@code "3-gzip"}, stands for the same version. Anything else that is not one
+   * of our ETags (including weak ones, which If-Match never matches) cannot match.
+   */
+  static Long expectedVersion(String ifMatch) {
+    if (ifMatch == null || ifMatch.isBlank() || "*".equals(ifMatch.trim())) {
+      return null;
+    }
+    String tag = ifMatch.trim();
+    if (tag.length() > 2 && tag.startsWith("\"") && tag.endsWith("\"")) {
+      try {
+        String version = tag.substring(1, tag.length() - 1);
+        int encoding = version.indexOf('-');
+        return Long.valueOf(encoding > 0 ? version.substring(0, encoding) : version);
+      } catch (NumberFormatException e) {
+        // Not one of ours; falls through to the mismatch below
+      }
+    }
+    throw new FileModifiedException("If-Match " + tag + " does not match the current version of the file.");
   }
 }
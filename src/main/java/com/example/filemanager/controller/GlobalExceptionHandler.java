@@ -1,7 +1,14 @@
 package com.example.filemanager.controller;
 
+import com.example.filemanager.exception.ChangeCursorExpiredException;
+import com.example.filemanager.exception.FileLockedException;
+import com.example.filemanager.exception.FileModifiedException;
 import com.example.filemanager.exception.GroupNotFoundException;
+import com.example.filemanager.exception.LockNotHeldException;
+import com.example.filemanager.exception.QuotaExceededException;
+import com.example.filemanager.exception.SubscriptionLimitException;
 import com.example.filemanager.exception.UserNotFoundException;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.ControllerAdvice;
@@ -21,6 +28,44 @@ public class GlobalExceptionHandler {
         return new ResponseEntity<>(ex.getMessage(), HttpStatus.NOT_FOUND);
     }
 
+    @ExceptionHandler(FileModifiedException.class)
+    public ResponseEntity<?> fileModifiedException(FileModifiedException ex, WebRequest request) {
+        return new ResponseEntity<>(ex.getMessage(), HttpStatus.PRECONDITION_FAILED);
+    }
+
+    @ExceptionHandler(FileLockedException.class)
+    public ResponseEntity<?> fileLockedException(FileLockedException ex, WebRequest request) {
+        return new ResponseEntity<>(ex.getMessage(), HttpStatus.LOCKED);
+    }
+
+    @ExceptionHandler(LockNotHeldException.class)
+    public ResponseEntity<?> lockNotHeldException(LockNotHeldException ex, WebRequest request) {
+        return new ResponseEntity<>(ex.getMessage(), HttpStatus.CONFLICT);
+    }
+
+    @ExceptionHandler(QuotaExceededException.class)
+    public ResponseEntity<?> quotaExceededException(QuotaExceededException ex, WebRequest request) {
+        return new ResponseEntity<>(ex.getMessage(), HttpStatus.INSUFFICIENT_STORAGE);
+    }
+
+    @ExceptionHandler(SubscriptionLimitException.class)
+    public ResponseEntity<?> subscriptionLimitException(SubscriptionLimitException ex, WebRequest request) {
+        return new ResponseEntity<>(ex.getMessage(), HttpStatus.SERVICE_UNAVAILABLE);
+    }
+
+    @ExceptionHandler(ChangeCursorExpiredException.class)
+    public ResponseEntity<?> changeCursorExpiredException(ChangeCursorExpiredException ex, WebRequest request) {
+        return new ResponseEntity<>(ex.getMessage(), HttpStatus.GONE);
+    }
+
+    // Another transaction updated the same row between our read and our write
+    @ExceptionHandler(OptimisticLockingFailureException.class)
+    public ResponseEntity<?> optimisticLockingFailureException(OptimisticLockingFailureException ex,
+            WebRequest request) {
+        return new ResponseEntity<>("The resource was modified concurrently. Reload it and try again.",
+                HttpStatus.CONFLICT);
+    }
+
     @ExceptionHandler(Exception.class)
     public ResponseEntity<?> globalExceptionHandler(Exception ex, WebRequest request) {
         return new ResponseEntity<>(ex.getMessage(), HttpStatus.INTERNAL_SERVER_ERROR);
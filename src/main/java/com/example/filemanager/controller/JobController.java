@@ -0,0 +1,39 @@
+package com.example.filemanager.controller;
+
+import com.example.filemanager.controller.dto.JobResponse;
+import com.example.filemanager.service.BackgroundJobService;
+import java.util.List;
+import java.util.Objects;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+@RestController
+@RequestMapping("/api/jobs")
+public class JobController {
+
+    private final BackgroundJobService backgroundJobService;
+
+    public JobController(BackgroundJobService backgroundJobService) {
+        this.backgroundJobService = backgroundJobService;
+    }
+
+    @GetMapping
+    public List<JobResponse> listJobs(@RequestParam(value = "limit", defaultValue = "20") int limit) {
+        return backgroundJobService.listJobs(limit).stream().map(JobResponse::new).toList();
+    }
+
+    @GetMapping("/{id}")
+    public ResponseEntity<JobResponse> getJob(@PathVariable Long id) {
+        return ResponseEntity.ok(new JobResponse(backgroundJobService.getJob(Objects.requireNonNull(id))));
+    }
+
+    @PostMapping("/{id}/cancel")
+    public ResponseEntity<JobResponse> cancelJob(@PathVariable Long id) {
+        return ResponseEntity.ok(new JobResponse(backgroundJobService.cancelJob(Objects.requireNonNull(id))));
+    }
+}
@@ -2,6 +2,7 @@ package com.example.filemanager.controller;
 
 import com.example.filemanager.controller.dto.FolderRequest;
 import com.example.filemanager.domain.FileEntity;
+import com.example.filemanager.domain.FileListItem;
 import com.example.filemanager.domain.Group;
 import com.example.filemanager.domain.User;
 import com.example.filemanager.service.FileService;
@@ -21,6 +22,7 @@ import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.servlet.mvc.support.RedirectAttributes;
 import com.example.filemanager.exception.DuplicateFileException;
 import com.example.filemanager.exception.FileLockedException;
+import com.example.filemanager.exception.FileModifiedException;
 import com.example.filemanager.exception.InvalidPermissionFormatException;
 import com.example.filemanager.exception.ParentNotDirectoryException;
 import com.example.filemanager.exception.ResourceNotFoundException;
@@ -51,7 +53,7 @@ public class WebController {
             @AuthenticationPrincipal User currentUser,
             Model model) {
         Pageable pageable = PageRequest.of(page, size);
-        Page<FileEntity> filesPage = fileService.listFiles(folderId, pageable);
+        Page<FileListItem> filesPage = fileService.listFiles(folderId, pageable);
 
         model.addAttribute("files", filesPage.getContent());
         model.addAttribute("currentPage", page);
@@ -130,7 +132,7 @@ public class WebController {
             @RequestParam(value = "currentFolderId", required = false) Long currentFolderId,
             RedirectAttributes redirectAttributes) {
         try {
-            fileService.softDeleteFile(Objects.requireNonNull(id));
+            fileService.softDeleteFile(Objects.requireNonNull(id), null);
             redirectAttributes.addFlashAttribute("message", "File deleted successfully!");
         } catch (AccessDeniedException e) {
             redirectAttributes.addFlashAttribute("error",
@@ -146,16 +148,27 @@ public class WebController {
     }
 
     @GetMapping("/trash")
-    public String trash(Model model) {
-        List<FileEntity> deletedFiles = fileService.listDeletedFiles();
-        model.addAttribute("files", deletedFiles);
+    public String trash(
+            @RequestParam(defaultValue = "0") int page,
+            @RequestParam(defaultValue = "20") int size,
+            @RequestParam(defaultValue = "desc") String direction,
+            Model model) {
+        Page<FileEntity> filesPage = fileService.listDeletedFiles(FileController.trashPage(page, size, direction));
+
+        model.addAttribute("files", filesPage.getContent());
+        model.addAttribute("currentPage", page);
+        model.addAttribute("totalPages", filesPage.getTotalPages());
+        model.addAttribute("totalItems", filesPage.getTotalElements());
+        model.addAttribute("pageSize", size);
+        model.addAttribute("direction", direction);
+        model.addAttribute("summary", fileService.getTrashSummary());
         return "trash";
     }
 
     @PostMapping("/restore/{id}")
     public String restoreFile(@PathVariable Long id, RedirectAttributes redirectAttributes) {
         try {
-            fileService.restoreFile(Objects.requireNonNull(id));
+            fileService.restoreFile(Objects.requireNonNull(id), null);
             redirectAttributes.addFlashAttribute("message", "File restored successfully!");
         } catch (AccessDeniedException e) {
             redirectAttributes.addFlashAttribute("error", "Permission denied: " + e.getMessage());
@@ -172,7 +185,7 @@ public class WebController {
             @RequestParam(value = "query", required = false) String query,
             @RequestParam(value = "tags", required = false) String tags,
             Model model) {
-        List<FileEntity> files = fileService.searchFiles(query, tags);
+        List<FileListItem> files = fileService.searchFiles(query, tags);
         model.addAttribute("files", files);
         model.addAttribute("query", query);
         model.addAttribute("tags", tags);
@@ -186,7 +199,7 @@ public class WebController {
             @RequestParam(value = "currentFolderId", required = false) Long currentFolderId,
             RedirectAttributes redirectAttributes) {
         try {
-            fileService.renameFile(Objects.requireNonNull(id), Objects.requireNonNull(name));
+            fileService.renameFile(Objects.requireNonNull(id), Objects.requireNonNull(name), null);
             redirectAttributes.addFlashAttribute("message", "File renamed successfully!");
         } catch (AccessDeniedException e) {
             redirectAttributes.addFlashAttribute("error",
@@ -209,7 +222,7 @@ public class WebController {
             @RequestParam("enabled") boolean enabled,
             RedirectAttributes redirectAttributes) {
         try {
-            fileService.toggleVersioning(Objects.requireNonNull(id), enabled);
+            fileService.toggleVersioning(Objects.requireNonNull(id), enabled, null);
             String status = enabled ? "enabled" : "disabled";
             redirectAttributes.addFlashAttribute("message", "Versioning " + status + " successfully!");
         } catch (AccessDeniedException e) {
@@ -232,7 +245,7 @@ public class WebController {
             @RequestParam(value = "currentFolderId", required = false) Long currentFolderId,
             RedirectAttributes redirectAttributes) {
         try {
-            fileService.restoreFileVersion(Objects.requireNonNull(id), Objects.requireNonNull(versionId));
+            fileService.restoreFileVersion(Objects.requireNonNull(id), Objects.requireNonNull(versionId), null);
             redirectAttributes.addFlashAttribute("message", "File version restored successfully!");
         } catch (Exception e) {
             redirectAttributes.addFlashAttribute("error", e.getMessage());
@@ -244,15 +257,21 @@ public class WebController {
     public String changePermissions(
             @PathVariable Long id,
             @RequestParam("permissions") String permissions,
+            @RequestParam(value = "rowVersion", required = false) Long rowVersion,
             @RequestParam(value = "currentFolderId", required = false) Long currentFolderId,
             RedirectAttributes redirectAttributes) {
         try {
-            fileService.changePermissions(Objects.requireNonNull(id), Objects.requireNonNull(permissions));
+            fileService.changePermissions(Objects.requireNonNull(id), Objects.requireNonNull(permissions), rowVersion);
             redirectAttributes.addFlashAttribute("message", "Permissions changed successfully!");
         } catch (AccessDeniedException e) {
             redirectAttributes.addFlashAttribute("error", "Permission denied: Only the owner can change permissions.");
         } catch (InvalidPermissionFormatException e) {
             redirectAttributes.addFlashAttribute("error", "Invalid permissions: " + e.getMessage());
+        } catch (FileModifiedException e) {
+            redirectAttributes.addFlashAttribute("error",
+                    "The file was changed by someone else. Reload and try again: " + e.getMessage());
+        } catch (FileLockedException e) {
+            redirectAttributes.addFlashAttribute("error", "Cannot change permissions: " + e.getMessage());
         } catch (ResourceNotFoundException e) {
             redirectAttributes.addFlashAttribute("error", "File not found: " + e.getMessage());
         } catch (Exception e) {
@@ -268,7 +287,7 @@ public class WebController {
             @RequestParam(value = "currentFolderId", required = false) Long currentFolderId,
             RedirectAttributes redirectAttributes) {
         try {
-            fileService.moveFile(Objects.requireNonNull(id), Objects.requireNonNull(destinationFolderId));
+            fileService.moveFile(Objects.requireNonNull(id), Objects.requireNonNull(destinationFolderId), null);
             redirectAttributes.addFlashAttribute("message", "File moved successfully!");
         } catch (AccessDeniedException e) {
             redirectAttributes.addFlashAttribute("error", "Permission denied: " + e.getMessage());
@@ -295,7 +314,7 @@ public class WebController {
             RedirectAttributes redirectAttributes) {
         try {
             fileService.updateLockStatus(Objects.requireNonNull(id), locked,
-                    Objects.requireNonNull(currentUser.getUsername()));
+                    Objects.requireNonNull(currentUser.getUsername()), null);
             String status = locked ? "locked" : "unlocked";
             redirectAttributes.addFlashAttribute("message", "File " + status + " successfully!");
         } catch (AccessDeniedException e) {
@@ -351,9 +370,10 @@ public class WebController {
             @RequestParam(value = "currentFolderId", required = false) Long currentFolderId,
             RedirectAttributes redirectAttributes) {
         try {
-            fileService.changeOwner(Objects.requireNonNull(id), Objects.requireNonNull(ownerUserId),
-                    Objects.requireNonNull(ownerGroupId), recursive);
-            redirectAttributes.addFlashAttribute("message", "Owner/Group changed successfully!");
+            FileService.OwnerChange change = fileService.changeOwner(Objects.requireNonNull(id),
+                    Objects.requireNonNull(ownerUserId), Objects.requireNonNull(ownerGroupId), recursive, null);
+            redirectAttributes.addFlashAttribute("message", change.job() == null ? "Owner/Group changed successfully!"
+                    : "Owner/Group changed. The folder contents are being updated in the background.");
         } catch (AccessDeniedException e) {
             redirectAttributes.addFlashAttribute("error", "Permission denied: " + e.getMessage());
         } catch (ResourceNotFoundException e) {
@@ -371,7 +391,7 @@ public class WebController {
             @RequestParam(value = "currentFolderId", required = false) Long currentFolderId,
             RedirectAttributes redirectAttributes) {
         try {
-            fileService.updateTags(Objects.requireNonNull(id), Objects.requireNonNull(tags));
+            fileService.updateTags(Objects.requireNonNull(id), Objects.requireNonNull(tags), null);
             redirectAttributes.addFlashAttribute("message", "Tags updated successfully!");
         } catch (AccessDeniedException e) {
             redirectAttributes.addFlashAttribute("error", "Permission denied: " + e.getMessage());
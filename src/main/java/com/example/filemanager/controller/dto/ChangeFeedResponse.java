@@ -0,0 +1,30 @@
+package com.example.filemanager.controller.dto;
+
+import java.util.List;
+
+public class ChangeFeedResponse {
+
+    private final List<ChangeResponse> changes;
+    private final long cursor;
+    private final boolean hasMore;
+
+    public ChangeFeedResponse(List<ChangeResponse> changes, long cursor, boolean hasMore) {
+        this.changes = changes;
+        this.cursor = cursor;
+        this.hasMore = hasMore;
+    }
+
+    public List<ChangeResponse> getChanges() {
+        return changes;
+    }
+
+    /** Value of {@code since} for the next request. */
+    public long getCursor() {
+        return cursor;
+    }
+
+    /** Whether more changes may be available right away. */
+    public boolean isHasMore() {
+        return hasMore;
+    }
+}
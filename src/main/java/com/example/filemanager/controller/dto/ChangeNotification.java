@@ -0,0 +1,28 @@
+package com.example.filemanager.controller.dto;
+
+import java.util.Set;
+
+/**
+ * Payload of a pushed change event. It only names the folders; clients fetch
+ * the changes themselves from the change feed.
+ */
+public class ChangeNotification {
+
+    private final long cursor;
+    private final Set<Long> folderIds;
+
+    public ChangeNotification(long cursor, Set<Long> folderIds) {
+        this.cursor = cursor;
+        this.folderIds = folderIds;
+    }
+
+    /** Sequence number of the latest change covered by the event. */
+    public long getCursor() {
+        return cursor;
+    }
+
+    /** Subscribed folders with changes, 0 standing for the root. */
+    public Set<Long> getFolderIds() {
+        return folderIds;
+    }
+}
@@ -0,0 +1,57 @@
+package com.example.filemanager.controller.dto;
+
+import com.example.filemanager.domain.FileChange;
+import com.example.filemanager.domain.FileEntity;
+import java.time.Instant;
+
+public class ChangeResponse {
+
+    private final long seq;
+    private final FileChange.Type type;
+    private final Long fileId;
+    private final Long parentFolderId;
+    private final Long previousParentFolderId;
+    private final Instant changedAt;
+    private final FileResponse file;
+
+    public ChangeResponse(FileChange change, FileEntity file) {
+        this.seq = change.getSeq();
+        this.type = change.getType();
+        this.fileId = change.getFileId();
+        this.parentFolderId = change.getParentFolderId();
+        this.previousParentFolderId = change.getPreviousParentFolderId();
+        this.changedAt = change.getChangedAt();
+        this.file = file == null ? null : new FileResponse(file);
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    public FileChange.Type getType() {
+        return type;
+    }
+
+    public Long getFileId() {
+        return fileId;
+    }
+
+    /** Parent folder after the change. */
+    public Long getParentFolderId() {
+        return parentFolderId;
+    }
+
+    /** Parent folder before a move, or {@code null} for other changes. */
+    public Long getPreviousParentFolderId() {
+        return previousParentFolderId;
+    }
+
+    public Instant getChangedAt() {
+        return changedAt;
+    }
+
+    /** Current state of the item, or {@code null} if it is in the trash or purged. */
+    public FileResponse getFile() {
+        return file;
+    }
+}
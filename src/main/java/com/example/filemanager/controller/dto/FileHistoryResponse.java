@@ -8,12 +8,14 @@ public class FileHistoryResponse {
   private final Long id;
   private final int version;
   private final String modifier;
+  private final Long size;
   private final LocalDateTime createdAt;
 
   public FileHistoryResponse(FileHistory history) {
     this.id = history.getId();
     this.version = history.getVersion();
     this.modifier = history.getModifier().getUsername(); // Avoid exposing full user object
+    this.size = history.getSize();
     this.createdAt = history.getCreatedAt();
   }
 
@@ -29,6 +31,10 @@ public class FileHistoryResponse {
     return modifier;
   }
 
+  public Long getSize() {
+    return size;
+  }
+
   public LocalDateTime getCreatedAt() {
     return createdAt;
   }
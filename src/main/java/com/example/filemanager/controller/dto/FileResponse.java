@@ -1,6 +1,7 @@
 package com.example.filemanager.controller.dto;
 
 import com.example.filemanager.domain.FileEntity;
+import com.example.filemanager.domain.FileListItem;
 import java.time.LocalDateTime;
 
 public class FileResponse {
@@ -9,11 +10,13 @@ public class FileResponse {
     private String name;
     private boolean isDirectory;
     private Long parentFolderId;
+    private Long size;
     private Integer permissions;
     private Long ownerId;
     private Long groupId;
     private LocalDateTime createdAt;
     private LocalDateTime updatedAt;
+    private Long rowVersion;
 
     public FileResponse(FileEntity entity) {
         this.id = entity.getId();
@@ -22,11 +25,27 @@ public class FileResponse {
         if (entity.getParent() != null) {
             this.parentFolderId = entity.getParent().getId();
         }
+        this.size = entity.getSize();
         this.permissions = entity.getPermissions();
         this.ownerId = entity.getOwner().getId();
         this.groupId = entity.getGroup().getId();
         this.createdAt = entity.getCreatedAt();
         this.updatedAt = entity.getUpdatedAt();
+        this.rowVersion = entity.getRowVersion();
+    }
+
+    public FileResponse(FileListItem item) {
+        this.id = item.getId();
+        this.name = item.getName();
+        this.isDirectory = item.isDirectory();
+        this.parentFolderId = item.getParentId();
+        this.size = item.getSize();
+        this.permissions = item.getPermissions();
+        this.ownerId = item.getOwnerId();
+        this.groupId = item.getGroupId();
+        this.createdAt = item.getCreatedAt();
+        this.updatedAt = item.getUpdatedAt();
+        this.rowVersion = item.getRowVersion();
     }
 
     // Getters
@@ -46,6 +65,10 @@ public class FileResponse {
         return parentFolderId;
     }
 
+    public Long getSize() {
+        return size;
+    }
+
     public Integer getPermissions() {
         return permissions;
     }
@@ -65,4 +88,9 @@ public class FileResponse {
     public LocalDateTime getUpdatedAt() {
         return updatedAt;
     }
+
+    /** Current version of the file; send it back as {@code If-Match: "<rowVersion>"} to detect conflicts. */
+    public Long getRowVersion() {
+        return rowVersion;
+    }
 }
@@ -0,0 +1,31 @@
+package com.example.filemanager.controller.dto;
+
+import com.example.filemanager.domain.FolderStats;
+
+public class FolderStatsResponse {
+
+    private final long bytes;
+    private final long fileCount;
+    private final long folderCount;
+
+    public FolderStatsResponse(FolderStats stats) {
+        this.bytes = stats.getBytes();
+        this.fileCount = stats.getFiles();
+        this.folderCount = stats.getFolders();
+    }
+
+    /** Bytes of current file content below the folder, at any depth. Stored versions are not included. */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /** Number of files below the folder, at any depth. */
+    public long getFileCount() {
+        return fileCount;
+    }
+
+    /** Number of folders below the folder, at any depth. */
+    public long getFolderCount() {
+        return folderCount;
+    }
+}
@@ -0,0 +1,80 @@
+package com.example.filemanager.controller.dto;
+
+import com.example.filemanager.domain.BackgroundJob;
+import java.time.Instant;
+
+public class JobResponse {
+
+    private final Long id;
+    private final BackgroundJob.Type type;
+    private final BackgroundJob.Status status;
+    private final Long targetFileId;
+    private final long processedItems;
+    private final Long totalItems;
+    private final boolean cancelRequested;
+    private final String error;
+    private final Instant createdAt;
+    private final Instant startedAt;
+    private final Instant finishedAt;
+
+    public JobResponse(BackgroundJob job) {
+        this.id = job.getId();
+        this.type = job.getType();
+        this.status = job.getStatus();
+        this.targetFileId = job.getTargetFileId();
+        this.processedItems = job.getProcessedItems();
+        this.totalItems = job.getTotalItems();
+        this.cancelRequested = job.isCancelRequested();
+        this.error = job.getError();
+        this.createdAt = job.getCreatedAt();
+        this.startedAt = job.getStartedAt();
+        this.finishedAt = job.getFinishedAt();
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public BackgroundJob.Type getType() {
+        return type;
+    }
+
+    public BackgroundJob.Status getStatus() {
+        return status;
+    }
+
+    public Long getTargetFileId() {
+        return targetFileId;
+    }
+
+    public long getProcessedItems() {
+        return processedItems;
+    }
+
+    /** Estimated number of items when the job was queued, or {@code null} if unknown. */
+    public Long getTotalItems() {
+        return totalItems;
+    }
+
+    /** A running job stops before its next step. */
+    public boolean isCancelRequested() {
+        return cancelRequested;
+    }
+
+    /** Message of the last failed step, if any. */
+    public String getError() {
+        return error;
+    }
+
+    public Instant getCreatedAt() {
+        return createdAt;
+    }
+
+    public Instant getStartedAt() {
+        return startedAt;
+    }
+
+    public Instant getFinishedAt() {
+        return finishedAt;
+    }
+}
@@ -0,0 +1,36 @@
+package com.example.filemanager.controller.dto;
+
+import com.example.filemanager.domain.FileLease;
+import java.time.Instant;
+
+public class LeaseResponse {
+
+  private final Long fileId;
+  private final String holder;
+  private final Instant acquiredAt;
+  private final Instant expiresAt;
+
+  public LeaseResponse(FileLease lease) {
+    this.fileId = lease.getFileId();
+    this.holder = lease.getHolder().getUsername();
+    this.acquiredAt = lease.getAcquiredAt();
+    this.expiresAt = lease.getExpiresAt();
+  }
+
+  public Long getFileId() {
+    return fileId;
+  }
+
+  public String getHolder() {
+    return holder;
+  }
+
+  public Instant getAcquiredAt() {
+    return acquiredAt;
+  }
+
+  /** The lock is released at this time unless it is renewed before. */
+  public Instant getExpiresAt() {
+    return expiresAt;
+  }
+}
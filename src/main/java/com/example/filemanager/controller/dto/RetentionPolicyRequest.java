@@ -0,0 +1,43 @@
+package com.example.filemanager.controller.dto;
+
+import com.example.filemanager.domain.VersionThinning;
+import jakarta.validation.constraints.Min;
+
+/**
+ * Version retention policy of a folder. Omitted rules are disabled; omitting all
+ * of them keeps every version.
+ */
+public class RetentionPolicyRequest {
+
+  @Min(value = 1, message = "keepLast must be at least 1")
+  private Integer keepLast;
+
+  @Min(value = 1, message = "keepWithinDays must be at least 1")
+  private Integer keepWithinDays;
+
+  private VersionThinning thinning;
+
+  public Integer getKeepLast() {
+    return keepLast;
+  }
+
+  public void setKeepLast(Integer keepLast) {
+    this.keepLast = keepLast;
+  }
+
+  public Integer getKeepWithinDays() {
+    return keepWithinDays;
+  }
+
+  public void setKeepWithinDays(Integer keepWithinDays) {
+    this.keepWithinDays = keepWithinDays;
+  }
+
+  public VersionThinning getThinning() {
+    return thinning;
+  }
+
+  public void setThinning(VersionThinning thinning) {
+    this.thinning = thinning;
+  }
+}
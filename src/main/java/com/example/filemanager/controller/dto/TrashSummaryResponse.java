@@ -0,0 +1,22 @@
+package com.example.filemanager.controller.dto;
+
+public class TrashSummaryResponse {
+
+    private final long itemCount;
+    private final long bytes;
+
+    public TrashSummaryResponse(long itemCount, long bytes) {
+        this.itemCount = itemCount;
+        this.bytes = bytes;
+    }
+
+    /** Number of soft-deleted rows pending purge, including the contents of deleted folders. */
+    public long getItemCount() {
+        return itemCount;
+    }
+
+    /** Bytes pending purge: current content plus stored versions. */
+    public long getBytes() {
+        return bytes;
+    }
+}
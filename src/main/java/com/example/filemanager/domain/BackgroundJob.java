@@ -0,0 +1,212 @@
+package com.example.filemanager.domain;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.EnumType;
+import jakarta.persistence.Enumerated;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.SequenceGenerator;
+import jakarta.persistence.Table;
+import java.time.Instant;
+
+/**
+ * A long-running operation that workers run in the background as a series of
+ * short transactions. Each step commits its work together with the job's
+ * checkpoint and progress, so a job interrupted by a restart continues where
+ * its last step ended.
+ */
+@Entity
+@Table(name = "background_jobs", indexes = {
+        @Index(name = "idx_background_jobs_status", columnList = "status, id"),
+        @Index(name = "idx_background_jobs_requested_by", columnList = "requested_by_id, id") })
+public class BackgroundJob {
+
+    public enum Type {
+        /** Hands the subtree below a folder to a new owner and group. */
+        CHANGE_OWNER
+    }
+
+    public enum Status {
+        QUEUED, RUNNING, SUCCEEDED, FAILED, CANCELLED;
+
+        public boolean isFinished() {
+            return this == SUCCEEDED || this == FAILED || this == CANCELLED;
+        }
+    }
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "background_job_seq")
+    @SequenceGenerator(name = "background_job_seq", sequenceName = "background_job_seq", allocationSize = 1)
+    private Long id;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false, length = 32)
+    private Type type;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false, length = 16)
+    private Status status;
+
+    @Column(name = "requested_by_id", nullable = false)
+    private Long requestedById;
+
+    @Column(name = "target_file_id")
+    private Long targetFileId;
+
+    // Parameters of the job, written by whoever enqueues it (JSON)
+    @Column(columnDefinition = "TEXT")
+    private String parameters;
+
+    // Where the next step continues, written by the job's handler (JSON)
+    @Column(columnDefinition = "TEXT")
+    private String checkpoint;
+
+    @Column(name = "processed_items", nullable = false)
+    private long processedItems;
+
+    // Estimate; null if unknown
+    @Column(name = "total_items")
+    private Long totalItems;
+
+    @Column(name = "cancel_requested", nullable = false)
+    private boolean cancelRequested;
+
+    @Column(nullable = false)
+    private int attempts;
+
+    @Column(length = 1000)
+    private String error;
+
+    // Identifies the worker that claimed the job; a worker stops when it no longer matches
+    @Column(name = "claim_token", length = 36)
+    private String claimToken;
+
+    @Column(name = "lease_expires_at")
+    private Instant leaseExpiresAt;
+
+    @Column(name = "created_at", nullable = false)
+    private Instant createdAt;
+
+    @Column(name = "started_at")
+    private Instant startedAt;
+
+    @Column(name = "finished_at")
+    private Instant finishedAt;
+
+    protected BackgroundJob() {
+    }
+
+    public BackgroundJob(Type type, Long requestedById, Long targetFileId, String parameters, Long totalItems,
+            Instant createdAt) {
+        this.type = type;
+        this.status = Status.QUEUED;
+        this.requestedById = requestedById;
+        this.targetFileId = targetFileId;
+        this.parameters = parameters;
+        this.totalItems = totalItems;
+        this.createdAt = createdAt;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public void setStatus(Status status) {
+        this.status = status;
+    }
+
+    public Long getRequestedById() {
+        return requestedById;
+    }
+
+    public Long getTargetFileId() {
+        return targetFileId;
+    }
+
+    public String getParameters() {
+        return parameters;
+    }
+
+    public String getCheckpoint() {
+        return checkpoint;
+    }
+
+    public void setCheckpoint(String checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    public long getProcessedItems() {
+        return processedItems;
+    }
+
+    public void addProcessedItems(long count) {
+        this.processedItems += count;
+    }
+
+    public Long getTotalItems() {
+        return totalItems;
+    }
+
+    public boolean isCancelRequested() {
+        return cancelRequested;
+    }
+
+    public void setCancelRequested(boolean cancelRequested) {
+        this.cancelRequested = cancelRequested;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+
+    public String getClaimToken() {
+        return claimToken;
+    }
+
+    public void setClaimToken(String claimToken) {
+        this.claimToken = claimToken;
+    }
+
+    public Instant getLeaseExpiresAt() {
+        return leaseExpiresAt;
+    }
+
+    public void setLeaseExpiresAt(Instant leaseExpiresAt) {
+        this.leaseExpiresAt = leaseExpiresAt;
+    }
+
+    public Instant getCreatedAt() {
+        return createdAt;
+    }
+
+    public Instant getStartedAt() {
+        return startedAt;
+    }
+
+    public Instant getFinishedAt() {
+        return finishedAt;
+    }
+
+    public void setFinishedAt(Instant finishedAt) {
+        this.finishedAt = finishedAt;
+    }
+}
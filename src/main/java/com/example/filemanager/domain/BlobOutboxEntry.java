@@ -0,0 +1,82 @@
+package com.example.filemanager.domain;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.EnumType;
+import jakarta.persistence.Enumerated;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.SequenceGenerator;
+import jakarta.persistence.Table;
+import java.time.Instant;
+
+/**
+ * A pending operation on a storage object, written in the same transaction as
+ * the metadata change it belongs to. The outbox worker completes it once that
+ * transaction has committed, so S3 and the database stay consistent even if a
+ * request fails halfway.
+ */
+@Entity
+@Table(name = "blob_outbox", indexes = @Index(name = "idx_blob_outbox_operation_created_at", columnList = "operation, created_at"))
+public class BlobOutboxEntry {
+
+    public enum Operation {
+        /**
+         * An upload in progress. The uploading transaction removes the entry when it
+         * commits; an entry that outlives the upload timeout belongs to a transaction
+         * that failed, and its object is deleted.
+         */
+        UPLOAD,
+        /** An object that is no longer referenced and is deleted by the worker. */
+        DELETE
+    }
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "blob_outbox_seq")
+    @SequenceGenerator(name = "blob_outbox_seq", sequenceName = "blob_outbox_seq", allocationSize = 50)
+    private Long id;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false, length = 16)
+    private Operation operation;
+
+    @Column(name = "storage_key", nullable = false)
+    private String storageKey;
+
+    @Column(name = "created_at", nullable = false)
+    private Instant createdAt;
+
+    @Column(nullable = false)
+    private int attempts;
+
+    protected BlobOutboxEntry() {
+    }
+
+    public BlobOutboxEntry(Operation operation, String storageKey, Instant createdAt) {
+        this.operation = operation;
+        this.storageKey = storageKey;
+        this.createdAt = createdAt;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public Operation getOperation() {
+        return operation;
+    }
+
+    public String getStorageKey() {
+        return storageKey;
+    }
+
+    public Instant getCreatedAt() {
+        return createdAt;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+}
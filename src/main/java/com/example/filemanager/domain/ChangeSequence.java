@@ -0,0 +1,60 @@
+package com.example.filemanager.domain;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.PostLoad;
+import jakarta.persistence.PostPersist;
+import jakarta.persistence.Table;
+import jakarta.persistence.Transient;
+import org.springframework.data.domain.Persistable;
+
+/**
+ * The last sequence number handed to a {@link FileChange}. A single row that
+ * committing transactions advance by the number of changes they record; its
+ * lock orders the commits of all transactions that change files.
+ */
+@Entity
+@Table(name = "change_sequence")
+public class ChangeSequence implements Persistable<Integer> {
+
+    public static final int ID = 1;
+
+    @Id
+    private Integer id;
+
+    @Column(name = "last_value", nullable = false)
+    private long lastValue;
+
+    // The id is assigned, so save() must insert instead of merging
+    @Transient
+    private boolean isNew = true;
+
+    protected ChangeSequence() {
+    }
+
+    public ChangeSequence(long lastValue) {
+        this.id = ID;
+        this.lastValue = lastValue;
+    }
+
+    @PostLoad
+    @PostPersist
+    void markNotNew() {
+        isNew = false;
+    }
+
+    @Override
+    public Integer getId() {
+        return id;
+    }
+
+    @Override
+    public boolean isNew() {
+        return isNew;
+    }
+
+    public long getLastValue() {
+        return lastValue;
+    }
+}
@@ -0,0 +1,108 @@
+package com.example.filemanager.domain;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.EnumType;
+import jakarta.persistence.Enumerated;
+import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.PostLoad;
+import jakarta.persistence.PostPersist;
+import jakarta.persistence.Table;
+import jakarta.persistence.Transient;
+import java.time.Instant;
+import org.springframework.data.domain.Persistable;
+
+/**
+ * One entry of the change feed: a file or folder that was created, changed,
+ * moved, deleted or restored. Sequence numbers are handed out at commit from
+ * {@link ChangeSequence}, so they increase in commit order without gaps and a
+ * client that has read up to a number will never see a smaller one appear.
+ */
+@Entity
+@Table(name = "file_changes", indexes = {
+        @Index(name = "idx_file_changes_changed_at", columnList = "changed_at") })
+public class FileChange implements Persistable<Long> {
+
+    public enum Type {
+        CREATED, UPDATED, MOVED, DELETED, RESTORED, PERMISSIONS_CHANGED
+    }
+
+    @Id
+    private Long seq;
+
+    @Column(name = "file_id", nullable = false)
+    private Long fileId;
+
+    // Parent folder after the change
+    @Column(name = "parent_folder_id")
+    private Long parentFolderId;
+
+    // Parent folder before a move; null for other changes
+    @Column(name = "previous_parent_folder_id")
+    private Long previousParentFolderId;
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "change_type", nullable = false, length = 24)
+    private Type type;
+
+    @Column(name = "changed_at", nullable = false)
+    private Instant changedAt;
+
+    // The id is assigned, so save() must insert instead of merging
+    @Transient
+    private boolean isNew = true;
+
+    protected FileChange() {
+    }
+
+    public FileChange(Long seq, Long fileId, Long parentFolderId, Long previousParentFolderId, Type type,
+            Instant changedAt) {
+        this.seq = seq;
+        this.fileId = fileId;
+        this.parentFolderId = parentFolderId;
+        this.previousParentFolderId = previousParentFolderId;
+        this.type = type;
+        this.changedAt = changedAt;
+    }
+
+    @PostLoad
+    @PostPersist
+    void markNotNew() {
+        isNew = false;
+    }
+
+    @Override
+    public Long getId() {
+        return seq;
+    }
+
+    @Override
+    public boolean isNew() {
+        return isNew;
+    }
+
+    public Long getSeq() {
+        return seq;
+    }
+
+    public Long getFileId() {
+        return fileId;
+    }
+
+    public Long getParentFolderId() {
+        return parentFolderId;
+    }
+
+    public Long getPreviousParentFolderId() {
+        return previousParentFolderId;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public Instant getChangedAt() {
+        return changedAt;
+    }
+}
@@ -1,24 +1,56 @@
 package com.example.filemanager.domain;
 
+import jakarta.persistence.Cacheable;
 import jakarta.persistence.Column;
 import jakarta.persistence.Entity;
+import jakarta.persistence.EnumType;
+import jakarta.persistence.Enumerated;
 import jakarta.persistence.FetchType;
 import jakarta.persistence.GeneratedValue;
 import jakarta.persistence.GenerationType;
 import jakarta.persistence.Id;
+import jakarta.persistence.Index;
 import jakarta.persistence.JoinColumn;
 import jakarta.persistence.ManyToOne;
+import jakarta.persistence.NamedAttributeNode;
+import jakarta.persistence.NamedEntityGraph;
+import jakarta.persistence.SequenceGenerator;
 import jakarta.persistence.Table;
+import jakarta.persistence.Version;
 import java.time.LocalDateTime;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 import org.hibernate.annotations.CreationTimestamp;
 import org.hibernate.annotations.UpdateTimestamp;
 
 @Entity
-@Table(name = "files")
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "files")
+@NamedEntityGraph(name = FileEntity.LISTING_GRAPH, attributeNodes = {
+        @NamedAttributeNode("owner"),
+        @NamedAttributeNode("group"),
+        @NamedAttributeNode("parent") })
+@Table(name = "files", indexes = {
+        @Index(name = "idx_files_deleted_at", columnList = "deleted_at"),
+        @Index(name = "idx_files_owner_deleted_at", columnList = "owner_user_id, deleted_at"),
+        @Index(name = "idx_files_group_deleted_at", columnList = "owner_group_id, deleted_at"),
+        @Index(name = "idx_files_storage_key", columnList = "storage_key"),
+        @Index(name = "idx_files_parent_folder_id", columnList = "parent_folder_id"),
+        @Index(name = "idx_files_deletion_batch_id", columnList = "deletion_batch_id") })
 public class FileEntity {
 
+    /**
+     * Fetches the associations shown in file lists (owner, group, parent) with
+     * the rows themselves instead of one select per row. Locks are kept in
+     * {@link FileLease}.
+     */
+    public static final String LISTING_GRAPH = "FileEntity.listing";
+
+    // Pooled sequence ids are assigned without a round trip per row, which lets
+    // Hibernate batch inserts (IDENTITY ids force one INSERT per persist).
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "files_seq")
+    @SequenceGenerator(name = "files_seq", sequenceName = "files_seq", allocationSize = 50)
     private Long id;
 
     @Column(nullable = false)
@@ -45,6 +77,10 @@ public class FileEntity {
     @Column(name = "storage_key")
     private String storageKey;
 
+    // Size of the current content in bytes; NULL for directories and files uploaded before sizes were recorded
+    @Column(name = "file_size")
+    private Long size;
+
     @Column(name = "custom_tags", columnDefinition = "TEXT")
     private String customTags;
 
@@ -62,18 +98,35 @@ public class FileEntity {
     @Column(name = "deleted_at")
     private LocalDateTime deletedAt;
 
+    // Shared by all rows that were moved to the trash by the same delete operation
+    @Column(name = "deletion_batch_id", length = 36)
+    private String deletionBatchId;
+
     @Column(name = "versioning_enabled")
     private Boolean versioningEnabled;
 
-    @Column(name = "is_locked")
-    private boolean isLocked = false;
+    // Version retention policy of a folder. A version is kept if any configured rule
+    // selects it; folders without any rule keep all versions.
+    @Column(name = "retention_keep_last")
+    private Integer retentionKeepLast;
 
-    @ManyToOne(fetch = FetchType.LAZY)
-    @JoinColumn(name = "locked_by_user_id")
-    private User lockedBy;
+    @Column(name = "retention_keep_within_days")
+    private Integer retentionKeepWithinDays;
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "retention_thinning")
+    private VersionThinning retentionThinning;
+
+    // Highest version number handed out in file_history for this file. Only ever
+    // changed by FileRepository.incrementLatestVersion so concurrent writers serialize on the row.
+    @Column(name = "latest_version", updatable = false)
+    private Integer latestVersion;
 
-    @Column(name = "locked_at")
-    private LocalDateTime lockedAt;
+    // Optimistic lock: every update checks and increments it, so concurrent writers cannot
+    // silently overwrite each other. Clients see it as the ETag of the file.
+    @Version
+    @Column(name = "row_version")
+    private Long rowVersion;
 
     // Getters and Setters
 
@@ -141,6 +194,14 @@ public class FileEntity {
         this.storageKey = storageKey;
     }
 
+    public Long getSize() {
+        return size;
+    }
+
+    public void setSize(Long size) {
+        this.size = size;
+    }
+
     public String getCustomTags() {
         return customTags;
     }
@@ -181,6 +242,14 @@ public class FileEntity {
         this.deletedAt = deletedAt;
     }
 
+    public String getDeletionBatchId() {
+        return deletionBatchId;
+    }
+
+    public void setDeletionBatchId(String deletionBatchId) {
+        this.deletionBatchId = deletionBatchId;
+    }
+
     public Boolean getVersioningEnabled() {
         return versioningEnabled;
     }
@@ -189,27 +258,47 @@ public class FileEntity {
         this.versioningEnabled = versioningEnabled;
     }
 
-    public boolean isLocked() {
-        return isLocked;
+    public Integer getRetentionKeepLast() {
+        return retentionKeepLast;
+    }
+
+    public void setRetentionKeepLast(Integer retentionKeepLast) {
+        this.retentionKeepLast = retentionKeepLast;
+    }
+
+    public Integer getRetentionKeepWithinDays() {
+        return retentionKeepWithinDays;
+    }
+
+    public void setRetentionKeepWithinDays(Integer retentionKeepWithinDays) {
+        this.retentionKeepWithinDays = retentionKeepWithinDays;
+    }
+
+    public VersionThinning getRetentionThinning() {
+        return retentionThinning;
+    }
+
+    public void setRetentionThinning(VersionThinning retentionThinning) {
+        this.retentionThinning = retentionThinning;
     }
 
-    public void setLocked(boolean locked) {
-        isLocked = locked;
+    public boolean hasRetentionPolicy() {
+        return retentionKeepLast != null || retentionKeepWithinDays != null || retentionThinning != null;
     }
 
-    public User getLockedBy() {
-        return lockedBy;
+    public Integer getLatestVersion() {
+        return latestVersion;
     }
 
-    public void setLockedBy(User lockedBy) {
-        this.lockedBy = lockedBy;
+    public void setLatestVersion(Integer latestVersion) {
+        this.latestVersion = latestVersion;
     }
 
-    public LocalDateTime getLockedAt() {
-        return lockedAt;
+    public Long getRowVersion() {
+        return rowVersion;
     }
 
-    public void setLockedAt(LocalDateTime lockedAt) {
-        this.lockedAt = lockedAt;
+    public void setRowVersion(Long rowVersion) {
+        this.rowVersion = rowVersion;
     }
 }
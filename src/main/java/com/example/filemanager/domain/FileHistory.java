@@ -6,18 +6,23 @@ import jakarta.persistence.FetchType;
 import jakarta.persistence.GeneratedValue;
 import jakarta.persistence.GenerationType;
 import jakarta.persistence.Id;
+import jakarta.persistence.Index;
 import jakarta.persistence.JoinColumn;
 import jakarta.persistence.ManyToOne;
+import jakarta.persistence.SequenceGenerator;
 import jakarta.persistence.Table;
+import jakarta.persistence.UniqueConstraint;
 import java.time.LocalDateTime;
 import org.hibernate.annotations.CreationTimestamp;
 
 @Entity
-@Table(name = "file_history")
+@Table(name = "file_history", indexes = @Index(name = "idx_file_history_storage_key", columnList = "storage_key"), uniqueConstraints = @UniqueConstraint(name = "uk_file_history_file_version", columnNames = {
+        "file_entity_id", "version" }))
 public class FileHistory {
 
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "file_history_seq")
+    @SequenceGenerator(name = "file_history_seq", sequenceName = "file_history_seq", allocationSize = 50)
     private Long id;
 
     @ManyToOne(fetch = FetchType.LAZY, optional = false)
@@ -30,6 +35,9 @@ public class FileHistory {
     @Column(name = "storage_key", nullable = false)
     private String storageKey;
 
+    @Column(name = "file_size")
+    private Long size;
+
     @ManyToOne(fetch = FetchType.LAZY, optional = false)
     @JoinColumn(name = "modifier_user_id", nullable = false)
     private User modifier;
@@ -72,6 +80,14 @@ public class FileHistory {
         this.storageKey = storageKey;
     }
 
+    public Long getSize() {
+        return size;
+    }
+
+    public void setSize(Long size) {
+        this.size = size;
+    }
+
     public User getModifier() {
         return modifier;
     }
@@ -0,0 +1,105 @@
+package com.example.filemanager.domain;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.FetchType;
+import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.JoinColumn;
+import jakarta.persistence.ManyToOne;
+import jakarta.persistence.PostLoad;
+import jakarta.persistence.PostPersist;
+import jakarta.persistence.Table;
+import jakarta.persistence.Transient;
+import java.time.Instant;
+import org.springframework.data.domain.Persistable;
+
+/**
+ * An exclusive, time-limited lock on a file. A lease is only valid until
+ * {@code expiresAt}; its holder extends it by renewing, and anyone may take
+ * over a lease that has expired. Expired rows are removed in the background.
+ * <p>
+ * The row is keyed by the file id without a foreign key, so locking never
+ * touches the (cached) file row and a purged file's lease simply expires.
+ */
+@Entity
+@Table(name = "file_leases", indexes = @Index(name = "idx_file_leases_expires_at", columnList = "expires_at"))
+public class FileLease implements Persistable<Long> {
+
+    @Id
+    @Column(name = "file_id")
+    private Long fileId;
+
+    @ManyToOne(fetch = FetchType.LAZY, optional = false)
+    @JoinColumn(name = "holder_user_id", nullable = false)
+    private User holder;
+
+    @Column(name = "acquired_at", nullable = false)
+    private Instant acquiredAt;
+
+    @Column(name = "expires_at", nullable = false)
+    private Instant expiresAt;
+
+    // The id is assigned, so save() must insert (and fail on a concurrent insert)
+    // instead of merging into another user's lease.
+    @Transient
+    private boolean isNew = true;
+
+    protected FileLease() {
+    }
+
+    public FileLease(Long fileId, User holder, Instant acquiredAt, Instant expiresAt) {
+        this.fileId = fileId;
+        this.holder = holder;
+        this.acquiredAt = acquiredAt;
+        this.expiresAt = expiresAt;
+    }
+
+    @PostLoad
+    @PostPersist
+    void markNotNew() {
+        isNew = false;
+    }
+
+    @Override
+    public Long getId() {
+        return fileId;
+    }
+
+    @Override
+    public boolean isNew() {
+        return isNew;
+    }
+
+    public Long getFileId() {
+        return fileId;
+    }
+
+    public User getHolder() {
+        return holder;
+    }
+
+    public void setHolder(User holder) {
+        this.holder = holder;
+    }
+
+    public Instant getAcquiredAt() {
+        return acquiredAt;
+    }
+
+    public void setAcquiredAt(Instant acquiredAt) {
+        this.acquiredAt = acquiredAt;
+    }
+
+    public Instant getExpiresAt() {
+        return expiresAt;
+    }
+
+    public void setExpiresAt(Instant expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    public boolean isExpired(Instant now) {
+        return !expiresAt.isAfter(now);
+    }
+}
@@ -0,0 +1,132 @@
+package com.example.filemanager.domain;
+
+import java.time.LocalDateTime;
+
+/**
+ * Read-only row of a file list (folder listing or search result). Built directly
+ * by JPQL constructor expressions, so only the displayed columns are selected and
+ * nothing is attached to the persistence context.
+ */
+public class FileListItem {
+
+    private final Long id;
+    private final String name;
+    private final boolean directory;
+    private final Integer permissions;
+    private final Long size;
+    private final String customTags;
+    private final LocalDateTime createdAt;
+    private final LocalDateTime updatedAt;
+    private final boolean locked;
+    private final Boolean versioningEnabled;
+    private final Long ownerId;
+    private final String ownerUsername;
+    private final Long groupId;
+    private final String groupName;
+    private final Long lockedById;
+    private final String lockedByUsername;
+    private final Long parentId;
+    private final String parentName;
+    private final Long rowVersion;
+
+    public FileListItem(Long id, String name, boolean directory, Integer permissions, Long size, String customTags,
+            LocalDateTime createdAt, LocalDateTime updatedAt, boolean locked, Boolean versioningEnabled,
+            Long ownerId, String ownerUsername, Long groupId, String groupName, Long lockedById,
+            String lockedByUsername, Long parentId, String parentName, Long rowVersion) {
+        this.id = id;
+        this.name = name;
+        this.directory = directory;
+        this.permissions = permissions;
+        this.size = size;
+        this.customTags = customTags;
+        this.createdAt = createdAt;
+        this.updatedAt = updatedAt;
+        this.locked = locked;
+        this.versioningEnabled = versioningEnabled;
+        this.ownerId = ownerId;
+        this.ownerUsername = ownerUsername;
+        this.groupId = groupId;
+        this.groupName = groupName;
+        this.lockedById = lockedById;
+        this.lockedByUsername = lockedByUsername;
+        this.parentId = parentId;
+        this.parentName = parentName;
+        this.rowVersion = rowVersion;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    public Integer getPermissions() {
+        return permissions;
+    }
+
+    public Long getSize() {
+        return size;
+    }
+
+    public String getCustomTags() {
+        return customTags;
+    }
+
+    public LocalDateTime getCreatedAt() {
+        return createdAt;
+    }
+
+    public LocalDateTime getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public boolean isLocked() {
+        return locked;
+    }
+
+    public Boolean getVersioningEnabled() {
+        return versioningEnabled;
+    }
+
+    public Long getOwnerId() {
+        return ownerId;
+    }
+
+    public String getOwnerUsername() {
+        return ownerUsername;
+    }
+
+    public Long getGroupId() {
+        return groupId;
+    }
+
+    public String getGroupName() {
+        return groupName;
+    }
+
+    public Long getLockedById() {
+        return lockedById;
+    }
+
+    public String getLockedByUsername() {
+        return lockedByUsername;
+    }
+
+    public Long getParentId() {
+        return parentId;
+    }
+
+    public String getParentName() {
+        return parentName;
+    }
+
+    public Long getRowVersion() {
+        return rowVersion;
+    }
+}
@@ -0,0 +1,160 @@
+package com.example.filemanager.domain;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.EnumType;
+import jakarta.persistence.Enumerated;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.SequenceGenerator;
+import jakarta.persistence.Table;
+import java.time.Instant;
+
+/**
+ * A small rendition of one content version (storage key) of a file: a
+ * thumbnail of an image or the beginning of a text file. Renditions are
+ * generated in the background after the content is committed and stored next
+ * to it in S3. Content versions never change, so neither do their renditions.
+ */
+@Entity
+@Table(name = "file_renditions", indexes = {
+        @Index(name = "idx_file_renditions_storage_key", columnList = "storage_key", unique = true),
+        @Index(name = "idx_file_renditions_status_created_at", columnList = "status, created_at") })
+public class FileRendition {
+
+    /** Prefix of the S3 keys of all renditions. */
+    public static final String KEY_PREFIX = "renditions/";
+
+    public enum Kind {
+        /** A JPEG image that fits into a square of {@code renditions.thumbnail-size} pixels. */
+        THUMBNAIL("thumbnail.jpg"),
+        /** The first {@code renditions.preview-bytes} of a text file, as UTF-8. */
+        PREVIEW("preview.txt");
+
+        private final String fileName;
+
+        Kind(String fileName) {
+            this.fileName = fileName;
+        }
+    }
+
+    public enum Status {
+        PENDING, READY, FAILED
+    }
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "file_rendition_seq")
+    @SequenceGenerator(name = "file_rendition_seq", sequenceName = "file_rendition_seq", allocationSize = 50)
+    private Long id;
+
+    // Content version the rendition is made from
+    @Column(name = "storage_key", nullable = false)
+    private String storageKey;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false, length = 16)
+    private Kind kind;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false, length = 16)
+    private Status status;
+
+    @Column(name = "content_type", length = 64)
+    private String contentType;
+
+    @Column(name = "rendition_size")
+    private Long size;
+
+    @Column(nullable = false)
+    private int attempts;
+
+    @Column(length = 1000)
+    private String error;
+
+    @Column(name = "created_at", nullable = false)
+    private Instant createdAt;
+
+    @Column(name = "generated_at")
+    private Instant generatedAt;
+
+    protected FileRendition() {
+    }
+
+    public FileRendition(String storageKey, Kind kind, Instant createdAt) {
+        this.storageKey = storageKey;
+        this.kind = kind;
+        this.status = Status.PENDING;
+        this.createdAt = createdAt;
+    }
+
+    /** The S3 key of the rendition, derived from the key of its content version. */
+    public String getRenditionKey() {
+        return KEY_PREFIX + storageKey + "/" + kind.fileName;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public String getStorageKey() {
+        return storageKey;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public void setStatus(Status status) {
+        this.status = status;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public void setContentType(String contentType) {
+        this.contentType = contentType;
+    }
+
+    public Long getSize() {
+        return size;
+    }
+
+    public void setSize(Long size) {
+        this.size = size;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public void incrementAttempts() {
+        this.attempts++;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+
+    public Instant getCreatedAt() {
+        return createdAt;
+    }
+
+    public Instant getGeneratedAt() {
+        return generatedAt;
+    }
+
+    public void setGeneratedAt(Instant generatedAt) {
+        this.generatedAt = generatedAt;
+    }
+}
@@ -0,0 +1,81 @@
+package com.example.filemanager.domain;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.PostLoad;
+import jakarta.persistence.PostPersist;
+import jakarta.persistence.Table;
+import jakarta.persistence.Transient;
+import org.springframework.data.domain.Persistable;
+
+/**
+ * Running totals of the live content below a folder (all levels): bytes of
+ * current file content, files and subfolders. They are adjusted along the
+ * ancestor chain whenever content is added, resized, moved, deleted or
+ * restored, so reading a folder's size is a primary key lookup.
+ * <p>
+ * The totals live outside the {@code files} row so that changes below a folder
+ * neither bump its version (ETag) nor evict it from the cache. A folder in the
+ * trash keeps the totals of the content that was deleted with it.
+ */
+@Entity
+@Table(name = "folder_stats")
+public class FolderStats implements Persistable<Long> {
+
+    @Id
+    @Column(name = "folder_id")
+    private Long folderId;
+
+    @Column(name = "total_bytes", nullable = false)
+    private long bytes;
+
+    @Column(name = "file_count", nullable = false)
+    private long files;
+
+    @Column(name = "folder_count", nullable = false)
+    private long folders;
+
+    // The id is assigned, so save() must insert instead of merging
+    @Transient
+    private boolean isNew = true;
+
+    protected FolderStats() {
+    }
+
+    public FolderStats(Long folderId) {
+        this.folderId = folderId;
+    }
+
+    @PostLoad
+    @PostPersist
+    void markNotNew() {
+        isNew = false;
+    }
+
+    @Override
+    public Long getId() {
+        return folderId;
+    }
+
+    @Override
+    public boolean isNew() {
+        return isNew;
+    }
+
+    public Long getFolderId() {
+        return folderId;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getFiles() {
+        return files;
+    }
+
+    public long getFolders() {
+        return folders;
+    }
+}
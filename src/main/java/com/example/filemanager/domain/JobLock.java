@@ -0,0 +1,81 @@
+package com.example.filemanager.domain;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.PostLoad;
+import jakarta.persistence.PostPersist;
+import jakarta.persistence.Table;
+import jakarta.persistence.Transient;
+import java.time.Instant;
+import org.springframework.data.domain.Persistable;
+
+/**
+ * Cluster-wide lock of a scheduled job (or of one partition of it). A node owns
+ * the lock until {@code lockedUntil}; the row is kept after a run so the next
+ * run only has to update it.
+ */
+@Entity
+@Table(name = "job_locks")
+public class JobLock implements Persistable<String> {
+
+    @Id
+    @Column(length = 128)
+    private String name;
+
+    @Column(name = "locked_by", nullable = false)
+    private String lockedBy;
+
+    @Column(name = "locked_at", nullable = false)
+    private Instant lockedAt;
+
+    @Column(name = "locked_until", nullable = false)
+    private Instant lockedUntil;
+
+    // The id is assigned, so save() must insert (and fail if another node created
+    // the row first) instead of merging into its lock.
+    @Transient
+    private boolean isNew = true;
+
+    protected JobLock() {
+    }
+
+    public JobLock(String name, String lockedBy, Instant lockedAt, Instant lockedUntil) {
+        this.name = name;
+        this.lockedBy = lockedBy;
+        this.lockedAt = lockedAt;
+        this.lockedUntil = lockedUntil;
+    }
+
+    @PostLoad
+    @PostPersist
+    void markNotNew() {
+        isNew = false;
+    }
+
+    @Override
+    public String getId() {
+        return name;
+    }
+
+    @Override
+    public boolean isNew() {
+        return isNew;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getLockedBy() {
+        return lockedBy;
+    }
+
+    public Instant getLockedAt() {
+        return lockedAt;
+    }
+
+    public Instant getLockedUntil() {
+        return lockedUntil;
+    }
+}
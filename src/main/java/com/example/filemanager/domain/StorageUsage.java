@@ -0,0 +1,112 @@
+package com.example.filemanager.domain;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.EnumType;
+import jakarta.persistence.Enumerated;
+import jakarta.persistence.Id;
+import jakarta.persistence.IdClass;
+import jakarta.persistence.PostLoad;
+import jakarta.persistence.PostPersist;
+import jakarta.persistence.Table;
+import jakarta.persistence.Transient;
+import java.io.Serializable;
+import java.util.Objects;
+import org.springframework.data.domain.Persistable;
+
+/**
+ * Bytes of file content charged to a user or a group: the current content of
+ * every file they own, including files in the trash until they are purged.
+ * Stored versions are not charged.
+ * <p>
+ * The counter is adjusted in the transaction that changes the content, with a
+ * conditional UPDATE that also enforces the quota, so checking a quota never
+ * sums the owner's files.
+ */
+@Entity
+@Table(name = "storage_usage")
+@IdClass(StorageUsage.Key.class)
+public class StorageUsage implements Persistable<StorageUsage.Key> {
+
+    public enum OwnerType {
+        USER, GROUP
+    }
+
+    @Id
+    @Enumerated(EnumType.STRING)
+    @Column(name = "owner_type", length = 8)
+    private OwnerType ownerType;
+
+    @Id
+    @Column(name = "owner_id")
+    private Long ownerId;
+
+    @Column(name = "used_bytes", nullable = false)
+    private long usedBytes;
+
+    // The id is assigned, so save() must insert instead of merging
+    @Transient
+    private boolean isNew = true;
+
+    protected StorageUsage() {
+    }
+
+    public StorageUsage(OwnerType ownerType, Long ownerId, long usedBytes) {
+        this.ownerType = ownerType;
+        this.ownerId = ownerId;
+        this.usedBytes = usedBytes;
+    }
+
+    @PostLoad
+    @PostPersist
+    void markNotNew() {
+        isNew = false;
+    }
+
+    @Override
+    public Key getId() {
+        return new Key(ownerType, ownerId);
+    }
+
+    @Override
+    public boolean isNew() {
+        return isNew;
+    }
+
+    public OwnerType getOwnerType() {
+        return ownerType;
+    }
+
+    public Long getOwnerId() {
+        return ownerId;
+    }
+
+    public long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /** Primary key: the kind of owner and its ID. */
+    public static class Key implements Serializable {
+
+        private OwnerType ownerType;
+        private Long ownerId;
+
+        protected Key() {
+        }
+
+        public Key(OwnerType ownerType, Long ownerId) {
+            this.ownerType = ownerType;
+            this.ownerId = ownerId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key other && ownerType == other.ownerType && Objects.equals(ownerId, other.ownerId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(ownerType, ownerId);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.example.filemanager.domain;
+
+import java.time.DayOfWeek;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.TemporalAdjusters;
+
+/**
+ * Thinning schedule of a folder's version retention policy. The newest version in
+ * each hour, day or week is kept.
+ */
+public enum VersionThinning {
+    HOURLY,
+    DAILY,
+    WEEKLY;
+
+    /**
+     * Returns the start of the period the given timestamp falls into.
+     */
+    public LocalDateTime periodStart(LocalDateTime timestamp) {
+        switch (this) {
+            case HOURLY:
+                return timestamp.truncatedTo(ChronoUnit.HOURS);
+            case DAILY:
+                return timestamp.truncatedTo(ChronoUnit.DAYS);
+            default:
+                return timestamp.truncatedTo(ChronoUnit.DAYS)
+                        .with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package com.example.filemanager.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(HttpStatus.PRECONDITION_FAILED)
+public class FileModifiedException extends RuntimeException {
+    public FileModifiedException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,11 @@
+package com.example.filemanager.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(HttpStatus.CONFLICT)
+public class LockNotHeldException extends RuntimeException {
+    public LockNotHeldException(String message) {
+        super(message);
+    }
+}
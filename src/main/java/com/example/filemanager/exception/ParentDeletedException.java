@@ -0,0 +1,11 @@
+package com.example.filemanager.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(HttpStatus.CONFLICT)
+public class ParentDeletedException extends RuntimeException {
+    public ParentDeletedException(String message) {
+        super(message);
+    }
+}
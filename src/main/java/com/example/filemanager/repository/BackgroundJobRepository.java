@@ -0,0 +1,58 @@
+package com.example.filemanager.repository;
+
+import com.example.filemanager.domain.BackgroundJob;
+import jakarta.persistence.LockModeType;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface BackgroundJobRepository extends JpaRepository<BackgroundJob, Long> {
+
+    /**
+     * Locks the next jobs that a worker may take: queued jobs, and running jobs
+     * whose worker stopped renewing its lease. Rows locked by another worker are
+     * skipped instead of waited for, so workers on several nodes claim different
+     * jobs without blocking each other.
+     *
+     * @return The IDs of the locked jobs, oldest first.
+     */
+    @Query(value = "SELECT id FROM background_jobs"
+            + " WHERE status = 'QUEUED' OR (status = 'RUNNING' AND lease_expires_at < :now)"
+            + " ORDER BY id FETCH FIRST :limit ROWS ONLY FOR UPDATE SKIP LOCKED", nativeQuery = true)
+    List<Long> lockClaimable(@Param("now") Instant now, @Param("limit") int limit);
+
+    /** Hands jobs locked by {@link #lockClaimable} to a worker. */
+    @Modifying
+    @Query("UPDATE BackgroundJob j SET j.status = com.example.filemanager.domain.BackgroundJob.Status.RUNNING,"
+            + " j.claimToken = :claimToken, j.leaseExpiresAt = :leaseExpiresAt, j.attempts = j.attempts + 1,"
+            + " j.startedAt = COALESCE(j.startedAt, :now) WHERE j.id IN :ids")
+    int claim(@Param("ids") Collection<Long> ids, @Param("claimToken") String claimToken,
+            @Param("leaseExpiresAt") Instant leaseExpiresAt, @Param("now") Instant now);
+
+    /** Loads a job and locks its row until the end of the transaction. */
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT j FROM BackgroundJob j WHERE j.id = :id")
+    Optional<BackgroundJob> findForUpdate(@Param("id") Long id);
+
+    List<BackgroundJob> findByRequestedByIdOrderByIdDesc(Long requestedById, Pageable pageable);
+
+    List<BackgroundJob> findAllByOrderByIdDesc(Pageable pageable);
+
+    /**
+     * Deletes finished jobs older than the given time.
+     *
+     * @return The number of deleted jobs.
+     */
+    @Modifying
+    @Query("DELETE FROM BackgroundJob j WHERE j.finishedAt < :cutoff")
+    int deleteFinishedBefore(@Param("cutoff") Instant cutoff);
+}
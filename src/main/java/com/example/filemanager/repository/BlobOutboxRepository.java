@@ -0,0 +1,51 @@
+package com.example.filemanager.repository;
+
+import com.example.filemanager.domain.BlobOutboxEntry;
+import java.time.Instant;
+import java.util.List;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface BlobOutboxRepository extends JpaRepository<BlobOutboxEntry, Long> {
+
+    /**
+     * Removes the entry of a finished upload, unless the worker has already given
+     * up on it.
+     *
+     * @return The number of removed entries (0 or 1).
+     */
+    @Modifying
+    @Query("DELETE FROM BlobOutboxEntry e WHERE e.id = :id"
+            + " AND e.operation = com.example.filemanager.domain.BlobOutboxEntry.Operation.UPLOAD")
+    int completeUpload(@Param("id") Long id);
+
+    /**
+     * Turns an unfinished upload into a deletion of its object. Takes the same row
+     * lock as {@link #completeUpload}, so exactly one of the two succeeds.
+     *
+     * @return The number of abandoned uploads (0 or 1).
+     */
+    @Modifying
+    @Query("UPDATE BlobOutboxEntry e SET e.operation = com.example.filemanager.domain.BlobOutboxEntry.Operation.DELETE"
+            + " WHERE e.id = :id AND e.operation = com.example.filemanager.domain.BlobOutboxEntry.Operation.UPLOAD")
+    int abandonUpload(@Param("id") Long id);
+
+    /**
+     * Finds the next entries of an operation created at or before the given time,
+     * in ID order after {@code afterId} so that entries left in place are not read
+     * again.
+     */
+    @Query("SELECT e FROM BlobOutboxEntry e WHERE e.operation = :operation AND e.createdAt <= :before"
+            + " AND e.id > :afterId ORDER BY e.id")
+    List<BlobOutboxEntry> findPending(@Param("operation") BlobOutboxEntry.Operation operation,
+            @Param("before") Instant before, @Param("afterId") long afterId, Pageable pageable);
+
+    @Modifying
+    @Query("UPDATE BlobOutboxEntry e SET e.attempts = e.attempts + 1 WHERE e.id = :id")
+    int incrementAttempts(@Param("id") Long id);
+}
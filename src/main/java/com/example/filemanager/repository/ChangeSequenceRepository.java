@@ -0,0 +1,28 @@
+package com.example.filemanager.repository;
+
+import com.example.filemanager.domain.ChangeSequence;
+import java.util.Optional;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface ChangeSequenceRepository extends JpaRepository<ChangeSequence, Integer> {
+
+    /**
+     * Reserves the next {@code count} sequence numbers. The row stays locked until
+     * commit, so the reserved numbers become visible in order.
+     *
+     * @return 1, or 0 if the sequence row does not exist yet.
+     */
+    @Modifying
+    @Query("UPDATE ChangeSequence s SET s.lastValue = s.lastValue + :count WHERE s.id = "
+            + ChangeSequence.ID)
+    int advance(@Param("count") long count);
+
+    /** Reads the last handed out number from the row rather than from a cached entity. */
+    @Query("SELECT s.lastValue FROM ChangeSequence s WHERE s.id = " + ChangeSequence.ID)
+    Optional<Long> findLastValue();
+}
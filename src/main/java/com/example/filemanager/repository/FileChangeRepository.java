@@ -0,0 +1,42 @@
+package com.example.filemanager.repository;
+
+import com.example.filemanager.domain.FileChange;
+import java.time.Instant;
+import java.util.List;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface FileChangeRepository extends JpaRepository<FileChange, Long> {
+
+    /**
+     * Finds the changes after a sequence number, in sequence order (keyset
+     * pagination on the primary key).
+     *
+     * @param afterSeq Only changes with a greater sequence number are returned.
+     * @param pageable Page size (the page number should be 0).
+     * @return A list of changes.
+     */
+    @Query("SELECT c FROM FileChange c WHERE c.seq > :afterSeq ORDER BY c.seq")
+    List<FileChange> findAfter(@Param("afterSeq") long afterSeq, Pageable pageable);
+
+    /**
+     * @return The smallest retained sequence number, or {@code null} if the feed
+     *         is empty.
+     */
+    @Query("SELECT MIN(c.seq) FROM FileChange c")
+    Long findMinSeq();
+
+    /**
+     * Deletes the changes recorded before a point in time.
+     *
+     * @return The number of deleted changes.
+     */
+    @Modifying
+    @Query("DELETE FROM FileChange c WHERE c.changedAt < :cutoff")
+    int deleteChangedBefore(@Param("cutoff") Instant cutoff);
+}
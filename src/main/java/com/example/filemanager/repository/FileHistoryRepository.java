@@ -1,11 +1,104 @@
 package com.example.filemanager.repository;
 
 import com.example.filemanager.domain.FileHistory;
+import com.example.filemanager.domain.Group;
+import com.example.filemanager.domain.User;
+import com.example.filemanager.repository.FileRepository.OwnerBytes;
+import java.util.Collection;
 import java.util.List;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 @Repository
 public interface FileHistoryRepository extends JpaRepository<FileHistory, Long> {
     List<FileHistory> findByFileEntityIdOrderByVersionDesc(Long fileEntityId);
+
+    /**
+     * Finds the IDs of files in a folder that have at least one history entry, in
+     * ascending order starting after the given ID (keyset pagination).
+     *
+     * @param folderId The ID of the parent folder.
+     * @param afterId  Only files with a greater ID are returned.
+     * @param pageable Page size (the page number should be 0).
+     * @return A list of file IDs.
+     */
+    @Query("SELECT DISTINCT h.fileEntity.id FROM FileHistory h WHERE h.fileEntity.parent.id = :folderId "
+            + "AND h.fileEntity.id > :afterId ORDER BY h.fileEntity.id")
+    List<Long> findVersionedFileIds(@Param("folderId") Long folderId, @Param("afterId") Long afterId,
+            Pageable pageable);
+
+    /**
+     * Sums the size of the stored versions of all soft-deleted files owned by a user
+     * or one of the user's groups.
+     */
+    @Query("SELECT COALESCE(SUM(h.size), 0) FROM FileHistory h WHERE h.fileEntity.deletedAt IS NOT NULL "
+            + "AND (h.fileEntity.owner = :owner OR h.fileEntity.group IN :groups)")
+    long sumTrashedVersionBytes(@Param("owner") User owner, @Param("groups") Collection<Group> groups);
+
+    List<FileHistory> findAllByFileEntityIdIn(Collection<Long> fileIds);
+
+    /**
+     * Sums the size of the stored versions of every file (including soft-deleted
+     * ones) owned by a user. Versions are charged to the quota of their file's
+     * owner and group.
+     */
+    @Query("SELECT COALESCE(SUM(h.size), 0) FROM FileHistory h WHERE h.fileEntity.owner.id = :ownerId")
+    long sumSizeByOwnerId(@Param("ownerId") Long ownerId);
+
+    /** Sums the size of the stored versions of every file of a group. */
+    @Query("SELECT COALESCE(SUM(h.size), 0) FROM FileHistory h WHERE h.fileEntity.group.id = :groupId")
+    long sumSizeByGroupId(@Param("groupId") Long groupId);
+
+    /** Sums the size of the stored versions of the given files per owner. */
+    @Query("SELECT h.fileEntity.owner.id AS ownerId, SUM(h.size) AS bytes FROM FileHistory h "
+            + "WHERE h.fileEntity.id IN :fileIds AND h.size IS NOT NULL GROUP BY h.fileEntity.owner.id")
+    List<OwnerBytes> sumSizeByOwnerIn(@Param("fileIds") Collection<Long> fileIds);
+
+    /** Sums the size of the stored versions of the given files per group. */
+    @Query("SELECT h.fileEntity.group.id AS ownerId, SUM(h.size) AS bytes FROM FileHistory h "
+            + "WHERE h.fileEntity.id IN :fileIds AND h.size IS NOT NULL GROUP BY h.fileEntity.group.id")
+    List<OwnerBytes> sumSizeByGroupIn(@Param("fileIds") Collection<Long> fileIds);
+
+    /** Sums the size of the given versions per owner of their file. */
+    @Query("SELECT h.fileEntity.owner.id AS ownerId, SUM(h.size) AS bytes FROM FileHistory h "
+            + "WHERE h.id IN :ids AND h.size IS NOT NULL GROUP BY h.fileEntity.owner.id")
+    List<OwnerBytes> sumSizeOfVersionsByOwner(@Param("ids") Collection<Long> ids);
+
+    /** Sums the size of the given versions per group of their file. */
+    @Query("SELECT h.fileEntity.group.id AS ownerId, SUM(h.size) AS bytes FROM FileHistory h "
+            + "WHERE h.id IN :ids AND h.size IS NOT NULL GROUP BY h.fileEntity.group.id")
+    List<OwnerBytes> sumSizeOfVersionsByGroup(@Param("ids") Collection<Long> ids);
+
+    /** Whether a stored version uses the given object, via the storage key index. */
+    boolean existsByStorageKey(String storageKey);
+
+    /**
+     * Finds the distinct storage keys of stored versions that sort after the given
+     * key, in ascending order (keyset pagination on the storage key index).
+     */
+    @Query("SELECT DISTINCT h.storageKey FROM FileHistory h WHERE h.storageKey > :afterKey ORDER BY h.storageKey")
+    List<String> findStorageKeysAfter(@Param("afterKey") String afterKey, Pageable pageable);
+
+    @Query("SELECT h.storageKey FROM FileHistory h WHERE h.storageKey IN :keys")
+    List<String> findStorageKeysIn(@Param("keys") Collection<String> keys);
+
+    @Modifying
+    @Query("DELETE FROM FileHistory h WHERE h.fileEntity.id IN :fileIds")
+    int deleteAllByFileEntityIds(@Param("fileIds") Collection<Long> fileIds);
+
+    /**
+     * Attributes every history entry modified by a user to another user in one
+     * statement, without loading the rows.
+     *
+     * @param modifier    The current modifier.
+     * @param newModifier The new modifier.
+     * @return The number of updated rows.
+     */
+    @Modifying(flushAutomatically = true)
+    @Query("UPDATE FileHistory h SET h.modifier = :newModifier WHERE h.modifier = :modifier")
+    int transferModifier(@Param("modifier") User modifier, @Param("newModifier") User newModifier);
 }
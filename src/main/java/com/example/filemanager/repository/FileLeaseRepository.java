@@ -0,0 +1,64 @@
+package com.example.filemanager.repository;
+
+import com.example.filemanager.domain.FileLease;
+import com.example.filemanager.domain.User;
+import jakarta.persistence.LockModeType;
+import java.time.Instant;
+import java.util.Optional;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface FileLeaseRepository extends JpaRepository<FileLease, Long> {
+
+    /**
+     * Finds the ID of the user holding an unexpired lease on a file: a primary key
+     * lookup that neither loads the file nor the holder.
+     *
+     * @param fileId The ID of the file.
+     * @param now    The current time; leases expiring at or before it are ignored.
+     * @return The holder's ID, or empty if the file is not locked.
+     */
+    @Query("SELECT l.holder.id FROM FileLease l WHERE l.fileId = :fileId AND l.expiresAt > :now")
+    Optional<Long> findActiveHolderId(@Param("fileId") Long fileId, @Param("now") Instant now);
+
+    /**
+     * Finds the lease of a file, expired or not, and locks its row so concurrent
+     * acquisitions and renewals of the same file are serialized.
+     */
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT l FROM FileLease l WHERE l.fileId = :fileId")
+    Optional<FileLease> findForUpdate(@Param("fileId") Long fileId);
+
+    /**
+     * Releases the lease of a file if it is held by the given user.
+     *
+     * @return The number of released leases (0 or 1).
+     */
+    @Modifying
+    @Query("DELETE FROM FileLease l WHERE l.fileId = :fileId AND l.holder = :holder")
+    int release(@Param("fileId") Long fileId, @Param("holder") User holder);
+
+    /**
+     * Releases every lease held by a user in one statement.
+     *
+     * @return The number of released leases.
+     */
+    @Modifying(flushAutomatically = true)
+    @Query("DELETE FROM FileLease l WHERE l.holder = :holder")
+    int releaseAllHeldBy(@Param("holder") User holder);
+
+    /**
+     * Deletes the leases that expired at or before the given time, using the index
+     * on the expiry column.
+     *
+     * @return The number of deleted leases.
+     */
+    @Modifying
+    @Query("DELETE FROM FileLease l WHERE l.expiresAt <= :now")
+    int deleteExpired(@Param("now") Instant now);
+}
@@ -0,0 +1,37 @@
+package com.example.filemanager.repository;
+
+import com.example.filemanager.domain.FileRendition;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface FileRenditionRepository extends JpaRepository<FileRendition, Long> {
+
+    Optional<FileRendition> findByStorageKey(String storageKey);
+
+    boolean existsByStorageKey(String storageKey);
+
+    /**
+     * Finds the next renditions still to be generated that were requested at or
+     * before the given time, in ID order after {@code afterId}.
+     */
+    @Query("SELECT r FROM FileRendition r WHERE r.status = com.example.filemanager.domain.FileRendition.Status.PENDING"
+            + " AND r.createdAt <= :before AND r.id > :afterId ORDER BY r.id")
+    List<FileRendition> findPending(@Param("before") Instant before, @Param("afterId") long afterId,
+            Pageable pageable);
+
+    /**
+     * Finds the next renditions whose content version no file or stored version
+     * references any more, in ID order after {@code afterId}.
+     */
+    @Query("SELECT r FROM FileRendition r WHERE r.id > :afterId"
+            + " AND NOT EXISTS (SELECT 1 FROM FileEntity f WHERE f.storageKey = r.storageKey)"
+            + " AND NOT EXISTS (SELECT 1 FROM FileHistory h WHERE h.storageKey = r.storageKey) ORDER BY r.id")
+    List<FileRendition> findUnreferenced(@Param("afterId") long afterId, Pageable pageable);
+}
@@ -1,13 +1,28 @@
 package com.example.filemanager.repository;
 
 import com.example.filemanager.domain.FileEntity;
+import com.example.filemanager.domain.FileListItem;
+import com.example.filemanager.domain.Group;
+import com.example.filemanager.domain.User;
+import jakarta.persistence.LockModeType;
+import jakarta.persistence.QueryHint;
+import org.hibernate.jpa.HibernateHints;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.EntityGraph;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.JpaSpecificationExecutor;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
+import org.springframework.lang.NonNull;
 import org.springframework.stereotype.Repository;
 
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -15,24 +30,42 @@ import java.util.Optional;
 public interface FileRepository extends JpaRepository<FileEntity, Long>, JpaSpecificationExecutor<FileEntity> {
 
     /**
-     * Finds a file by its ID, only if it has not been soft-deleted.
-     *
-     * @param id The ID of the file.
-     * @return An Optional containing the FileEntity if found and not deleted, or
-     *         empty otherwise.
+     * Selects a {@link FileListItem} for {@code f} with its owner, group, lock holder and parent.
+     * Leases are compared with {@code :now}, the application clock that also sets and
+     * checks them, so expired ones show as unlocked before they are reaped.
      */
-    Optional<FileEntity> findByIdAndDeletedAtIsNull(Long id);
+    String LIST_ITEM = "SELECT new com.example.filemanager.domain.FileListItem(f.id, f.name, f.isDirectory, "
+            + "f.permissions, f.size, f.customTags, f.createdAt, f.updatedAt, "
+            + "CASE WHEN l.id IS NULL THEN false ELSE true END, f.versioningEnabled, "
+            + "o.id, o.username, g.id, g.name, l.id, l.username, p.id, p.name, f.rowVersion) "
+            + "FROM FileEntity f JOIN f.owner o JOIN f.group g "
+            + "LEFT JOIN FileLease fl ON fl.fileId = f.id AND fl.expiresAt > :now "
+            + "LEFT JOIN fl.holder l LEFT JOIN f.parent p ";
 
     /**
-     * Finds a file by its parent folder and name, only if it has not been
-     * soft-deleted.
+     * Bulk updates bypass the {@code @Version} check, so they bump the version
+     * themselves; clients holding the old ETag then get a conflict.
+     */
+    String NEXT_ROW_VERSION = "f.rowVersion = f.rowVersion + 1 ";
+
+    /** Soft-deleted rows owned by {@code :owner} or one of {@code :groups}. */
+    String TRASH_SCOPE = "f.deletedAt IS NOT NULL AND (f.owner = :owner OR f.group IN :groups)";
+
+    /** Excludes rows that were moved to the trash together with their parent {@code p}. */
+    String TRASH_ROOT = "(p IS NULL OR f.deletionBatchId IS NULL OR p.deletionBatchId IS NULL "
+            + "OR p.deletionBatchId <> f.deletionBatchId)";
+
+    /**
+     * Finds a file by its ID, only if it has not been soft-deleted. Loads by primary
+     * key so that cached rows are served from the second-level cache.
      *
-     * @param parent The parent folder entity.
-     * @param name   The name of the file or folder.
+     * @param id The ID of the file.
      * @return An Optional containing the FileEntity if found and not deleted, or
      *         empty otherwise.
      */
-    Optional<FileEntity> findByParentAndNameAndDeletedAtIsNull(FileEntity parent, String name);
+    default Optional<FileEntity> findByIdAndDeletedAtIsNull(@NonNull Long id) {
+        return findById(id).filter(file -> file.getDeletedAt() == null);
+    }
 
     /**
      * Finds all files in a specific parent folder, only if they have not been
@@ -41,6 +74,7 @@ public interface FileRepository extends JpaRepository<FileEntity, Long>, JpaSpec
      * @param parent The parent folder entity.
      * @return A list of FileEntity objects in the specified folder.
      */
+    @EntityGraph(FileEntity.LISTING_GRAPH)
     List<FileEntity> findAllByParentAndDeletedAtIsNull(FileEntity parent);
 
     /**
@@ -55,11 +89,155 @@ public interface FileRepository extends JpaRepository<FileEntity, Long>, JpaSpec
     Page<FileEntity> findAllByParentAndDeletedAtIsNull(FileEntity parent, Pageable pageable);
 
     /**
-     * Finds all files that have been soft-deleted.
+     * Finds the next live children of a folder in ID order, for walking a large
+     * folder in pages.
+     *
+     * @param parentId The ID of the parent folder.
+     * @param afterId  Only children with a greater ID are returned.
+     * @param pageable Page size (the page number should be 0).
+     */
+    @EntityGraph(FileEntity.LISTING_GRAPH)
+    @Query("SELECT f FROM FileEntity f WHERE f.parent.id = :parentId AND f.deletedAt IS NULL AND f.id > :afterId"
+            + " ORDER BY f.id")
+    List<FileEntity> findLiveChildrenAfter(@Param("parentId") Long parentId, @Param("afterId") long afterId,
+            Pageable pageable);
+
+    /**
+     * Finds the IDs of the next live subfolders of a folder in ID order.
+     *
+     * @param parentId The ID of the parent folder.
+     * @param afterId  Only subfolders with a greater ID are returned.
+     * @param pageable Page size (the page number should be 0).
+     */
+    @Query("SELECT f.id FROM FileEntity f WHERE f.parent.id = :parentId AND f.isDirectory = true"
+            + " AND f.deletedAt IS NULL AND f.id > :afterId ORDER BY f.id")
+    List<Long> findLiveChildFolderIdsAfter(@Param("parentId") Long parentId, @Param("afterId") long afterId,
+            Pageable pageable);
+
+    /**
+     * Lists the live children of a folder as read-only rows.
+     *
+     * @param parentId The ID of the parent folder.
+     * @param now      The current time, for the lock holder.
+     * @param pageable Pagination information.
+     * @return A page of list rows in ID order.
+     */
+    @Query(value = LIST_ITEM + "WHERE p.id = :parentId AND f.deletedAt IS NULL ORDER BY f.id",
+            countQuery = "SELECT COUNT(f) FROM FileEntity f WHERE f.parent.id = :parentId AND f.deletedAt IS NULL")
+    @QueryHints({ @QueryHint(name = HibernateHints.HINT_READ_ONLY, value = "true"),
+            @QueryHint(name = HibernateHints.HINT_FLUSH_MODE, value = "MANUAL") })
+    Page<FileListItem> findListItemsByParentId(@Param("parentId") Long parentId, @Param("now") Instant now,
+            Pageable pageable);
+
+    /**
+     * Lists the live items at the root level as read-only rows.
+     *
+     * @param now      The current time, for the lock holder.
+     * @param pageable Pagination information.
+     * @return A page of list rows in ID order.
+     */
+    @Query(value = LIST_ITEM + "WHERE p IS NULL AND f.deletedAt IS NULL ORDER BY f.id",
+            countQuery = "SELECT COUNT(f) FROM FileEntity f WHERE f.parent IS NULL AND f.deletedAt IS NULL")
+    @QueryHints({ @QueryHint(name = HibernateHints.HINT_READ_ONLY, value = "true"),
+            @QueryHint(name = HibernateHints.HINT_FLUSH_MODE, value = "MANUAL") })
+    Page<FileListItem> findRootListItems(@Param("now") Instant now, Pageable pageable);
+
+    /**
+     * Searches live files by name and tags (case-insensitive substring match) and
+     * returns read-only rows. A {@code null} pattern matches everything.
+     *
+     * @param namePattern Lower-case LIKE pattern for the name, or {@code null}.
+     * @param tagsPattern Lower-case LIKE pattern for the tags, or {@code null}.
+     * @param now         The current time, for the lock holder.
+     * @return The matching rows in ID order.
+     */
+    @Query(LIST_ITEM + "WHERE f.deletedAt IS NULL "
+            + "AND (:namePattern IS NULL OR LOWER(f.name) LIKE :namePattern) "
+            + "AND (:tagsPattern IS NULL OR LOWER(f.customTags) LIKE :tagsPattern) ORDER BY f.id")
+    @QueryHints({ @QueryHint(name = HibernateHints.HINT_READ_ONLY, value = "true"),
+            @QueryHint(name = HibernateHints.HINT_FLUSH_MODE, value = "MANUAL") })
+    List<FileListItem> searchListItems(@Param("namePattern") String namePattern,
+            @Param("tagsPattern") String tagsPattern, @Param("now") Instant now);
+
+    /**
+     * Locks the row of a file until the end of the transaction. Lock changes and
+     * the writes that check the lock both take it first, so a write never commits
+     * under a lease acquired after its check, without leases writing the row.
+     *
+     * @param id The ID of the file.
+     * @return The ID, or empty if there is no such file.
+     */
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT f.id FROM FileEntity f WHERE f.id = :id")
+    Optional<Long> lockById(@Param("id") Long id);
+
+    /**
+     * Finds the soft-deleted items shown in a user's trash: items owned by the user
+     * or one of the user's groups that were not moved to the trash together with
+     * their parent folder.
      *
-     * @return A list of soft-deleted FileEntity objects.
+     * @param owner    The user whose trash is listed.
+     * @param groups   The groups of the user.
+     * @param pageable Page and sort (typically by deletedAt).
+     * @return A page of soft-deleted FileEntity objects.
+     */
+    @EntityGraph(FileEntity.LISTING_GRAPH)
+    @Query(value = "SELECT f FROM FileEntity f LEFT JOIN f.parent p WHERE " + TRASH_SCOPE + " AND " + TRASH_ROOT,
+            countQuery = "SELECT COUNT(f) FROM FileEntity f LEFT JOIN f.parent p WHERE " + TRASH_SCOPE + " AND "
+                    + TRASH_ROOT)
+    Page<FileEntity> findTrashRoots(@Param("owner") User owner, @Param("groups") Collection<Group> groups,
+            Pageable pageable);
+
+    /**
+     * Counts all soft-deleted rows (including the contents of deleted folders) owned
+     * by a user or one of the user's groups, i.e. everything pending purge.
      */
-    List<FileEntity> findAllByDeletedAtIsNotNull();
+    @Query("SELECT COUNT(f) FROM FileEntity f WHERE " + TRASH_SCOPE)
+    long countTrashedItems(@Param("owner") User owner, @Param("groups") Collection<Group> groups);
+
+    /**
+     * Sums the content size of all soft-deleted rows owned by a user or one of the
+     * user's groups. Versions are summed separately.
+     */
+    @Query("SELECT COALESCE(SUM(f.size), 0) FROM FileEntity f WHERE " + TRASH_SCOPE)
+    long sumTrashedBytes(@Param("owner") User owner, @Param("groups") Collection<Group> groups);
+
+    /**
+     * Moves the live children of every folder in a deletion batch to the trash
+     * under the same batch. Called once per tree level until it updates no rows.
+     *
+     * @param batchId   The deletion batch ID.
+     * @param deletedAt The deletion timestamp of the batch.
+     * @return The number of rows moved to the trash.
+     */
+    @Modifying(flushAutomatically = true)
+    @Query("UPDATE FileEntity f SET f.deletedAt = :deletedAt, f.deletionBatchId = :batchId, " + NEXT_ROW_VERSION
+            + "WHERE f.deletedAt IS NULL AND f.parent.id IN "
+            + "(SELECT p.id FROM FileEntity p WHERE p.deletionBatchId = :batchId AND p.isDirectory = true)")
+    int markChildrenDeleted(@Param("batchId") String batchId, @Param("deletedAt") LocalDateTime deletedAt);
+
+    /**
+     * Restores every row of a deletion batch.
+     *
+     * @param batchId The deletion batch ID.
+     * @return The number of restored rows.
+     */
+    @Modifying(flushAutomatically = true)
+    @Query("UPDATE FileEntity f SET f.deletedAt = NULL, f.deletionBatchId = NULL, " + NEXT_ROW_VERSION
+            + "WHERE f.deletionBatchId = :batchId")
+    int restoreDeletionBatch(@Param("batchId") String batchId);
+
+    /**
+     * Detaches soft-deleted children from the given folders so the folders can be
+     * purged before their children.
+     *
+     * @param parentIds The IDs of the folders about to be purged.
+     * @return The number of detached rows.
+     */
+    @Modifying
+    @Query("UPDATE FileEntity f SET f.parent = NULL, " + NEXT_ROW_VERSION
+            + "WHERE f.parent.id IN :parentIds AND f.deletedAt IS NOT NULL")
+    int detachDeletedChildren(@Param("parentIds") List<Long> parentIds);
 
     /**
      * Finds a file by its ID, only if it has been soft-deleted.
@@ -71,26 +249,145 @@ public interface FileRepository extends JpaRepository<FileEntity, Long>, JpaSpec
     Optional<FileEntity> findByIdAndDeletedAtIsNotNull(Long id);
 
     /**
-     * Finds all files that were soft-deleted before a specified date.
+     * Finds files that were soft-deleted before a specified date, in ascending ID
+     * order starting after the given ID (keyset pagination) up to an upper ID.
      *
      * @param dateTime The cutoff date and time.
+     * @param afterId  Only files with a greater ID are returned.
+     * @param maxId    Only files with this or a smaller ID are returned.
+     * @param pageable Page size (the page number should be 0).
      * @return A list of FileEntity objects soft-deleted before the given timestamp.
      */
-    List<FileEntity> findAllByDeletedAtBefore(LocalDateTime dateTime);
+    @Query("SELECT f FROM FileEntity f WHERE f.deletedAt < :dateTime AND f.id > :afterId AND f.id <= :maxId "
+            + "ORDER BY f.id")
+    List<FileEntity> findExpiredInRange(@Param("dateTime") LocalDateTime dateTime, @Param("afterId") Long afterId,
+            @Param("maxId") Long maxId, Pageable pageable);
+
+    /**
+     * Finds the largest ID of the files soft-deleted before a specified date.
+     *
+     * @return The ID, or {@code null} if there is no such file.
+     */
+    @Query("SELECT MAX(f.id) FROM FileEntity f WHERE f.deletedAt < :dateTime")
+    Long findMaxExpiredId(@Param("dateTime") LocalDateTime dateTime);
+
+    /**
+     * Sums the content size of every row (including soft-deleted ones) owned by
+     * a user, i.e. the bytes charged to the user's quota apart from stored versions
+     * ({@link FileHistoryRepository#sumSizeByOwnerId}).
+     */
+    @Query("SELECT COALESCE(SUM(f.size), 0) FROM FileEntity f WHERE f.owner.id = :ownerId")
+    long sumSizeByOwnerId(@Param("ownerId") Long ownerId);
+
+    /**
+     * Sums the content size of every row (including soft-deleted ones) of a
+     * group, i.e. the bytes charged to the group's quota apart from stored
+     * versions ({@link FileHistoryRepository#sumSizeByGroupId}).
+     */
+    @Query("SELECT COALESCE(SUM(f.size), 0) FROM FileEntity f WHERE f.group.id = :groupId")
+    long sumSizeByGroupId(@Param("groupId") Long groupId);
+
+    /** Sums the content size of the given rows per owner. */
+    @Query("SELECT f.owner.id AS ownerId, SUM(f.size) AS bytes FROM FileEntity f "
+            + "WHERE f.id IN :ids AND f.size IS NOT NULL GROUP BY f.owner.id")
+    List<OwnerBytes> sumSizeByOwnerIn(@Param("ids") Collection<Long> ids);
+
+    /** Sums the content size of the given rows per group. */
+    @Query("SELECT f.group.id AS ownerId, SUM(f.size) AS bytes FROM FileEntity f "
+            + "WHERE f.id IN :ids AND f.size IS NOT NULL GROUP BY f.group.id")
+    List<OwnerBytes> sumSizeByGroupIn(@Param("ids") Collection<Long> ids);
+
+    @Query("SELECT DISTINCT f.owner.id FROM FileEntity f")
+    List<Long> findOwnerIds();
+
+    @Query("SELECT DISTINCT f.group.id FROM FileEntity f")
+    List<Long> findGroupIds();
 
     /**
-     * Finds all files owned by a specific user (including soft-deleted ones).
+     * Transfers every file owned by a user (including soft-deleted ones) to another
+     * user in one statement, without loading the rows.
      *
-     * @param owner The owner user entity.
-     * @return A list of FileEntity objects owned by the specified user.
+     * @param owner    The current owner.
+     * @param newOwner The new owner.
+     * @return The number of transferred rows.
      */
-    List<FileEntity> findAllByOwner(com.example.filemanager.domain.User owner);
+    @Modifying(flushAutomatically = true)
+    @Query("UPDATE FileEntity f SET f.owner = :newOwner, " + NEXT_ROW_VERSION + "WHERE f.owner = :owner")
+    int transferOwner(@Param("owner") User owner, @Param("newOwner") User newOwner);
 
     /**
-     * Finds all files owned by a specific group (including soft-deleted ones).
+     * Transfers every file of a group (including soft-deleted ones) to another group
+     * in one statement, without loading the rows.
      *
-     * @param group The owner group entity.
-     * @return A list of FileEntity objects owned by the specified group.
+     * @param group    The current group.
+     * @param newGroup The new group.
+     * @return The number of transferred rows.
      */
-    List<FileEntity> findAllByGroup(com.example.filemanager.domain.Group group);
+    @Modifying(flushAutomatically = true)
+    @Query("UPDATE FileEntity f SET f.group = :newGroup, " + NEXT_ROW_VERSION + "WHERE f.group = :group")
+    int transferGroup(@Param("group") Group group, @Param("newGroup") Group newGroup);
+
+    /**
+     * Finds live folders that define a version retention policy, in ascending ID
+     * order starting after the given ID (keyset pagination).
+     *
+     * @param afterId  Only folders with a greater ID are returned.
+     * @param pageable Page size (the page number should be 0).
+     * @return A list of folders with a retention policy.
+     */
+    @Query("SELECT f FROM FileEntity f WHERE f.isDirectory = true AND f.deletedAt IS NULL "
+            + "AND (f.retentionKeepLast IS NOT NULL OR f.retentionKeepWithinDays IS NOT NULL "
+            + "OR f.retentionThinning IS NOT NULL) AND f.id > :afterId ORDER BY f.id")
+    List<FileEntity> findFoldersWithRetentionPolicy(@Param("afterId") Long afterId, Pageable pageable);
+
+    /**
+     * Atomically increments the latest history version of a file. The row lock
+     * taken by the update serializes concurrent versioned writes until commit.
+     * Files created before the counter existed are seeded from their history.
+     *
+     * @param id The ID of the file.
+     * @return The number of updated rows.
+     */
+    @Modifying(flushAutomatically = true)
+    @Query("UPDATE FileEntity f SET f.latestVersion = COALESCE(f.latestVersion, "
+            + "(SELECT MAX(h.version) FROM FileHistory h WHERE h.fileEntity.id = f.id), 0) + 1 "
+            + "WHERE f.id = :id")
+    int incrementLatestVersion(@Param("id") Long id);
+
+    /**
+     * Reads the latest history version of a file directly from the database.
+     *
+     * @param id The ID of the file.
+     * @return The latest allocated version, or null if none has been allocated.
+     */
+    @Query("SELECT f.latestVersion FROM FileEntity f WHERE f.id = :id")
+    Integer findLatestVersionById(@Param("id") Long id);
+
+    /**
+     * Whether a file, live or in the trash, uses the given object, via the storage
+     * key index.
+     */
+    boolean existsByStorageKey(String storageKey);
+
+    /**
+     * Finds the distinct storage keys of files, live or in the trash, that sort
+     * after the given key, in ascending order (keyset pagination on the storage key
+     * index).
+     *
+     * @param afterKey Only greater keys are returned; "" starts at the beginning.
+     * @param pageable Page size (the page number should be 0).
+     * @return A list of storage keys.
+     */
+    @Query("SELECT DISTINCT f.storageKey FROM FileEntity f WHERE f.storageKey > :afterKey ORDER BY f.storageKey")
+    List<String> findStorageKeysAfter(@Param("afterKey") String afterKey, Pageable pageable);
+
+    @Query("SELECT f.storageKey FROM FileEntity f WHERE f.storageKey IN :keys")
+    List<String> findStorageKeysIn(@Param("keys") Collection<String> keys);
+
+    /** Bytes of content per user or group. */
+    interface OwnerBytes {
+        Long getOwnerId();
+
+        Long getBytes();
+    }
 }
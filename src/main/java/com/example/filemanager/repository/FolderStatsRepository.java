@@ -0,0 +1,45 @@
+package com.example.filemanager.repository;
+
+import com.example.filemanager.domain.FolderStats;
+import java.util.Collection;
+import java.util.Optional;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface FolderStatsRepository extends JpaRepository<FolderStats, Long> {
+
+    /**
+     * Adds the given amounts (negative to subtract) to the totals of several
+     * folders in one statement. The row locks are held until commit, so
+     * concurrent changes below the same folder serialize on it.
+     *
+     * @return The number of updated folders.
+     */
+    @Modifying
+    @Query("UPDATE FolderStats s SET s.bytes = s.bytes + :bytes, s.files = s.files + :files, "
+            + "s.folders = s.folders + :folders WHERE s.folderId IN :folderIds")
+    int add(@Param("folderIds") Collection<Long> folderIds, @Param("bytes") long bytes, @Param("files") long files,
+            @Param("folders") long folders);
+
+    /**
+     * Reads the totals of a folder and locks them, so changes below the folder
+     * wait until the folder itself has been moved, deleted or restored. Reads
+     * the row rather than an entity, which {@link #add} may have left stale.
+     */
+    @Query(value = "SELECT total_bytes AS bytes, file_count AS files, folder_count AS folders "
+            + "FROM folder_stats WHERE folder_id = :folderId FOR UPDATE", nativeQuery = true)
+    Optional<Totals> findForUpdate(@Param("folderId") Long folderId);
+
+    /** Current totals of one folder. */
+    interface Totals {
+        long getBytes();
+
+        long getFiles();
+
+        long getFolders();
+    }
+}
@@ -0,0 +1,40 @@
+package com.example.filemanager.repository;
+
+import com.example.filemanager.domain.JobLock;
+import java.time.Instant;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface JobLockRepository extends JpaRepository<JobLock, String> {
+
+    /**
+     * Takes over a job lock that is free. The condition is checked by the UPDATE
+     * itself, so of several nodes trying at once exactly one succeeds.
+     *
+     * @param name        The job name.
+     * @param node        The ID of the calling node.
+     * @param now         The current time; locks held until then or earlier are free.
+     * @param lockedUntil When the lock is released at the latest.
+     * @return 1 if the lock was taken, 0 if another node holds it (or the row does
+     *         not exist yet).
+     */
+    @Modifying
+    @Query("UPDATE JobLock l SET l.lockedBy = :node, l.lockedAt = :now, l.lockedUntil = :lockedUntil "
+            + "WHERE l.name = :name AND l.lockedUntil <= :now")
+    int claim(@Param("name") String name, @Param("node") String node, @Param("now") Instant now,
+            @Param("lockedUntil") Instant lockedUntil);
+
+    /**
+     * Releases a lock taken by {@link #claim} at {@code lockedAt}, keeping it until
+     * {@code lockedUntil}. Does nothing if the lock has been taken over meanwhile.
+     */
+    @Modifying
+    @Query("UPDATE JobLock l SET l.lockedUntil = :lockedUntil "
+            + "WHERE l.name = :name AND l.lockedBy = :node AND l.lockedAt = :lockedAt")
+    int release(@Param("name") String name, @Param("node") String node, @Param("lockedAt") Instant lockedAt,
+            @Param("lockedUntil") Instant lockedUntil);
+}
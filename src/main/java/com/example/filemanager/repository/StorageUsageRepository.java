@@ -0,0 +1,56 @@
+package com.example.filemanager.repository;
+
+import com.example.filemanager.domain.StorageUsage;
+import com.example.filemanager.domain.StorageUsage.OwnerType;
+import java.util.List;
+import java.util.Optional;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface StorageUsageRepository extends JpaRepository<StorageUsage, StorageUsage.Key> {
+
+    /**
+     * Adds bytes (negative to release them) to an owner's usage, unless the
+     * result would exceed the limit. Check and update are one statement, and the
+     * row stays locked until commit, so concurrent uploads cannot overshoot the
+     * quota together.
+     *
+     * @param limit The quota in bytes, or a negative value for none.
+     * @return 1 if the usage was updated, 0 if the owner has no row yet or the
+     *         limit would be exceeded.
+     */
+    @Modifying
+    @Query("UPDATE StorageUsage u SET u.usedBytes = u.usedBytes + :bytes "
+            + "WHERE u.ownerType = :ownerType AND u.ownerId = :ownerId "
+            + "AND (:limit < 0 OR u.usedBytes + :bytes <= :limit)")
+    int add(@Param("ownerType") OwnerType ownerType, @Param("ownerId") Long ownerId, @Param("bytes") long bytes,
+            @Param("limit") long limit);
+
+    @Query("SELECT u.usedBytes FROM StorageUsage u WHERE u.ownerType = :ownerType AND u.ownerId = :ownerId")
+    Optional<Long> findUsedBytes(@Param("ownerType") OwnerType ownerType, @Param("ownerId") Long ownerId);
+
+    /**
+     * Reads an owner's usage and locks the row, so no upload of the owner can
+     * commit until the caller's transaction ends.
+     */
+    @Query(value = "SELECT used_bytes FROM storage_usage WHERE owner_type = :ownerType AND owner_id = :ownerId "
+            + "FOR UPDATE", nativeQuery = true)
+    Optional<Long> findUsedBytesForUpdate(@Param("ownerType") String ownerType, @Param("ownerId") Long ownerId);
+
+    @Modifying
+    @Query("UPDATE StorageUsage u SET u.usedBytes = :usedBytes "
+            + "WHERE u.ownerType = :ownerType AND u.ownerId = :ownerId")
+    int setUsedBytes(@Param("ownerType") OwnerType ownerType, @Param("ownerId") Long ownerId,
+            @Param("usedBytes") long usedBytes);
+
+    @Modifying
+    @Query("DELETE FROM StorageUsage u WHERE u.ownerType = :ownerType AND u.ownerId = :ownerId")
+    int deleteByOwner(@Param("ownerType") OwnerType ownerType, @Param("ownerId") Long ownerId);
+
+    @Query("SELECT u.ownerId FROM StorageUsage u WHERE u.ownerType = :ownerType")
+    List<Long> findOwnerIds(@Param("ownerType") OwnerType ownerType);
+}
@@ -0,0 +1,348 @@
+package com.example.filemanager.service;
+
+import com.example.filemanager.domain.BackgroundJob;
+import com.example.filemanager.domain.BackgroundJob.Status;
+import com.example.filemanager.domain.User;
+import com.example.filemanager.exception.ResourceNotFoundException;
+import com.example.filemanager.repository.BackgroundJobRepository;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Runs long operations as {@link BackgroundJob}s instead of inside the request
+ * that starts them.
+ * <p>
+ * Jobs are rows in {@code background_jobs}. Workers on every node claim them
+ * with {@code SELECT ... FOR UPDATE SKIP LOCKED}, so several nodes share the
+ * queue without handing out a job twice, and run them as a series of short
+ * transactions through the {@link JobHandler} of their type. A claimed job
+ * carries a lease that each step renews. When a node stops, its jobs are
+ * claimed again once their lease has expired and continue from their last
+ * checkpoint.
+ */
+@Service
+public class BackgroundJobService {
+
+    private static final Logger logger = LoggerFactory.getLogger(BackgroundJobService.class);
+
+    static final String PRUNE_JOB_NAME = "background-job-pruning";
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+
+    private final BackgroundJobRepository backgroundJobRepository;
+    private final ObjectProvider<JobHandler> jobHandlers;
+    private final TransactionTemplate transactionTemplate;
+    private final TransactionTemplate independentTransactionTemplate;
+    private final JobLockService jobLockService;
+    private final ExecutorService executor;
+    private final Semaphore idleWorkers;
+    private final Counter failedJobs;
+
+    private volatile Map<BackgroundJob.Type, JobHandler> handlersByType;
+    private volatile boolean running = true;
+
+    // Renewed by every step; a job whose lease expires is claimed again
+    @Value("${jobs.lease:PT5M}")
+    private Duration lease = Duration.ofMinutes(5);
+
+    // Failed steps are retried from the last checkpoint this many times in total
+    @Value("${jobs.max-attempts:3}")
+    private int maxAttempts = 3;
+
+    @Value("${jobs.retention:P7D}")
+    private Duration retention = Duration.ofDays(7);
+
+    public BackgroundJobService(BackgroundJobRepository backgroundJobRepository,
+            ObjectProvider<JobHandler> jobHandlers, PlatformTransactionManager transactionManager,
+            JobLockService jobLockService, MeterRegistry meterRegistry,
+            @Value("${jobs.workers:2}") int workers) {
+        this.backgroundJobRepository = backgroundJobRepository;
+        this.jobHandlers = jobHandlers;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        // Dispatching also runs after the commit of an enqueueing transaction
+        this.independentTransactionTemplate = new TransactionTemplate(transactionManager);
+        this.independentTransactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.jobLockService = jobLockService;
+        this.executor = Executors.newFixedThreadPool(Math.max(workers, 1));
+        this.idleWorkers = new Semaphore(Math.max(workers, 1));
+        this.failedJobs = Counter.builder("jobs.failed")
+                .description("Background jobs that failed after all attempts")
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        // Workers hand their jobs back after the current step
+        running = false;
+        executor.shutdown();
+    }
+
+    /**
+     * Queues a job in the current transaction. Workers pick it up right after the
+     * transaction commits.
+     *
+     * @param parameters  Parameters for the handler, stored as JSON.
+     * @param totalItems  Estimated number of items, or {@code null} if unknown.
+     */
+    @Transactional
+    public BackgroundJob enqueue(BackgroundJob.Type type, User requestedBy, Long targetFileId, Object parameters,
+            Long totalItems) {
+        BackgroundJob job = backgroundJobRepository.save(new BackgroundJob(type, requestedBy.getId(), targetFileId,
+                toJson(parameters), totalItems, Instant.now()));
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    dispatchQuietly();
+                }
+            });
+        }
+        return job;
+    }
+
+    /**
+     * Returns a job of the current user; admins see every job.
+     *
+     * @throws ResourceNotFoundException if there is no such job visible to the
+     *                                   user.
+     */
+    @Transactional(readOnly = true)
+    public BackgroundJob getJob(Long jobId) {
+        User currentUser = (User) SecurityContextHolder.getContext().getAuthentication().getPrincipal();
+        return backgroundJobRepository.findById(jobId)
+                .filter(job -> isVisibleTo(job, currentUser))
+                .orElseThrow(() -> new ResourceNotFoundException("Job not found with id: " + jobId));
+    }
+
+    /** Lists the most recent jobs of the current user; admins see every job. */
+    @Transactional(readOnly = true)
+    public List<BackgroundJob> listJobs(int limit) {
+        User currentUser = (User) SecurityContextHolder.getContext().getAuthentication().getPrincipal();
+        PageRequest page = PageRequest.of(0, Math.max(1, Math.min(limit, 100)));
+        return isAdmin(currentUser) ? backgroundJobRepository.findAllByOrderByIdDesc(page)
+                : backgroundJobRepository.findByRequestedByIdOrderByIdDesc(currentUser.getId(), page);
+    }
+
+    /**
+     * Cancels a job. A queued job is cancelled at once; a running job stops before
+     * its next step, keeping the work its finished steps have committed. Finished
+     * jobs are left as they are.
+     */
+    @Transactional
+    public BackgroundJob cancelJob(Long jobId) {
+        User currentUser = (User) SecurityContextHolder.getContext().getAuthentication().getPrincipal();
+        // Waits for a running step, which holds the row lock
+        BackgroundJob job = backgroundJobRepository.findForUpdate(jobId)
+                .filter(found -> isVisibleTo(found, currentUser))
+                .orElseThrow(() -> new ResourceNotFoundException("Job not found with id: " + jobId));
+        if (job.getStatus() == Status.QUEUED) {
+            finish(job, Status.CANCELLED);
+        } else if (job.getStatus() == Status.RUNNING) {
+            job.setCancelRequested(true);
+        }
+        return job;
+    }
+
+    /** Claims jobs for the idle workers and starts them. */
+    @Scheduled(initialDelayString = "${jobs.poll-interval:PT5S}", fixedDelayString = "${jobs.poll-interval:PT5S}")
+    public synchronized void dispatch() {
+        int idle = idleWorkers.drainPermits();
+        if (idle == 0 || !running) {
+            idleWorkers.release(idle);
+            return;
+        }
+        String claimToken = UUID.randomUUID().toString();
+        List<Long> jobIds;
+        try {
+            jobIds = Objects.requireNonNull(independentTransactionTemplate.execute(status -> {
+                Instant now = Instant.now();
+                List<Long> ids = backgroundJobRepository.lockClaimable(now, idle);
+                if (!ids.isEmpty()) {
+                    backgroundJobRepository.claim(ids, claimToken, now.plus(lease), now);
+                }
+                return ids;
+            }));
+        } catch (RuntimeException e) {
+            idleWorkers.release(idle);
+            throw e;
+        }
+        idleWorkers.release(idle - jobIds.size());
+        for (Long jobId : jobIds) {
+            try {
+                executor.execute(() -> {
+                    try {
+                        run(jobId, claimToken);
+                    } finally {
+                        idleWorkers.release();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Shutting down; the job is claimed again when its lease expires
+                idleWorkers.release();
+            }
+        }
+    }
+
+    @Scheduled(cron = "${jobs.prune-cron:0 45 3 * * *}") // Defaults to 3:45 AM daily
+    public void pruneJobs() {
+        jobLockService.runExclusively(PRUNE_JOB_NAME, Duration.ofHours(1), () -> {
+            Instant cutoff = Instant.now().minus(retention);
+            Integer pruned = transactionTemplate
+                    .execute(status -> backgroundJobRepository.deleteFinishedBefore(cutoff));
+            logger.info("Pruned {} background jobs finished before {}.", pruned, cutoff);
+        });
+    }
+
+    static String toJson(Object value) {
+        try {
+            return value == null ? null : JSON.writeValueAsString(value);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Cannot serialize " + value, e);
+        }
+    }
+
+    static <T> T fromJson(String json, Class<T> type) {
+        try {
+            return JSON.readValue(json, type);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Cannot read " + type.getSimpleName() + " from " + json, e);
+        }
+    }
+
+    private void dispatchQuietly() {
+        try {
+            dispatch();
+        } catch (RuntimeException e) {
+            // The next poll picks the job up
+            logger.warn("Failed to dispatch background jobs.", e);
+        }
+    }
+
+    /** Runs the steps of a claimed job until it ends, is claimed by someone else, or the node stops. */
+    private void run(Long jobId, String claimToken) {
+        try {
+            while (running) {
+                Boolean more = transactionTemplate.execute(status -> step(jobId, claimToken));
+                if (!Boolean.TRUE.equals(more)) {
+                    return;
+                }
+            }
+            transactionTemplate.executeWithoutResult(status -> release(jobId, claimToken));
+        } catch (RuntimeException e) {
+            logger.warn("Background job {} failed a step.", jobId, e);
+            transactionTemplate.executeWithoutResult(status -> fail(jobId, claimToken, e));
+        }
+    }
+
+    /** @return {@code true} if the job has more steps to run. */
+    private boolean step(Long jobId, String claimToken) {
+        BackgroundJob job = backgroundJobRepository.findForUpdate(jobId).orElse(null);
+        if (job == null || job.getStatus() != Status.RUNNING || !claimToken.equals(job.getClaimToken())) {
+            // Deleted, or the lease expired and another worker took over
+            return false;
+        }
+        if (job.isCancelRequested()) {
+            finish(job, Status.CANCELLED);
+            return false;
+        }
+        if (handler(job.getType()).step(job)) {
+            finish(job, Status.SUCCEEDED);
+            return false;
+        }
+        job.setLeaseExpiresAt(Instant.now().plus(lease));
+        return true;
+    }
+
+    /** Hands a job back to the queue, for a worker on another node to continue. */
+    private void release(Long jobId, String claimToken) {
+        backgroundJobRepository.findForUpdate(jobId)
+                .filter(job -> job.getStatus() == Status.RUNNING && claimToken.equals(job.getClaimToken()))
+                .ifPresent(job -> {
+                    job.setStatus(Status.QUEUED);
+                    job.setClaimToken(null);
+                    job.setLeaseExpiresAt(null);
+                });
+    }
+
+    /** Queues a job for another attempt from its last checkpoint, or fails it after the last attempt. */
+    private void fail(Long jobId, String claimToken, RuntimeException error) {
+        backgroundJobRepository.findForUpdate(jobId)
+                .filter(job -> job.getStatus() == Status.RUNNING && claimToken.equals(job.getClaimToken()))
+                .ifPresent(job -> {
+                    job.setError(abbreviate(String.valueOf(error.getMessage())));
+                    if (job.getAttempts() < maxAttempts && !job.isCancelRequested()) {
+                        job.setStatus(Status.QUEUED);
+                        job.setClaimToken(null);
+                        job.setLeaseExpiresAt(null);
+                    } else {
+                        finish(job, job.isCancelRequested() ? Status.CANCELLED : Status.FAILED);
+                        if (job.getStatus() == Status.FAILED) {
+                            failedJobs.increment();
+                        }
+                    }
+                });
+    }
+
+    private void finish(BackgroundJob job, Status status) {
+        job.setStatus(status);
+        job.setFinishedAt(Instant.now());
+        job.setClaimToken(null);
+        job.setLeaseExpiresAt(null);
+    }
+
+    private JobHandler handler(BackgroundJob.Type type) {
+        Map<BackgroundJob.Type, JobHandler> handlers = handlersByType;
+        if (handlers == null) {
+            handlers = new EnumMap<>(BackgroundJob.Type.class);
+            for (JobHandler handler : jobHandlers) {
+                handlers.put(handler.getType(), handler);
+            }
+            handlersByType = handlers;
+        }
+        JobHandler handler = handlers.get(type);
+        if (handler == null) {
+            throw new IllegalStateException("No handler for background jobs of type " + type);
+        }
+        return handler;
+    }
+
+    private static boolean isVisibleTo(BackgroundJob job, User user) {
+        return job.getRequestedById().equals(user.getId()) || isAdmin(user);
+    }
+
+    private static boolean isAdmin(User user) {
+        return user.getGroups().stream().anyMatch(group -> "admins".equals(group.getName()));
+    }
+
+    private static String abbreviate(String message) {
+        return message.length() <= 1000 ? message : message.substring(0, 1000);
+    }
+}
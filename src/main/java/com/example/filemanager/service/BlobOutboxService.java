@@ -0,0 +1,345 @@
+package com.example.filemanager.service;
+
+import com.example.filemanager.domain.BlobOutboxEntry;
+import com.example.filemanager.domain.BlobOutboxEntry.Operation;
+import com.example.filemanager.repository.BlobOutboxRepository;
+import com.example.filemanager.repository.FileHistoryRepository;
+import com.example.filemanager.repository.FileRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.lang.NonNull;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsResponse;
+import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
+import software.amazon.awssdk.services.s3.model.S3Error;
+
+/**
+ * Keeps S3 consistent with the metadata through the {@code blob_outbox} table.
+ * <p>
+ * An upload is announced and committed before any bytes are sent, before the
+ * request's transaction opens, and the announcement is removed again in that
+ * transaction together with the metadata change. If the transaction fails, the
+ * object is deleted right away; if it never commits at all, the announcement
+ * stays behind and, once older than {@code blob.outbox.upload-timeout}, is
+ * turned into a deletion of the orphaned object.
+ * <p>
+ * Objects that a committed change no longer needs are recorded as deletions in
+ * the same transaction and removed by a small worker pool right after the
+ * commit, so the request does not wait for S3. Deletions that fail, or whose
+ * node stopped before running them, are retried by a periodic sweep. An object
+ * that a file or a stored version still references is never deleted.
+ */
+@Service
+public class BlobOutboxService {
+
+    private static final Logger logger = LoggerFactory.getLogger(BlobOutboxService.class);
+
+    static final String JOB_NAME = "blob-outbox";
+    private static final Duration LOCK_AT_MOST_FOR = Duration.ofMinutes(10);
+    // Limit of the S3 DeleteObjects API
+    private static final int MAX_KEYS_PER_REQUEST = 1000;
+
+    private final BlobOutboxRepository blobOutboxRepository;
+    private final FileRepository fileRepository;
+    private final FileHistoryRepository fileHistoryRepository;
+    private final S3Client s3Client;
+    private final TransactionTemplate transactionTemplate;
+    private final TransactionTemplate announcementTransactionTemplate;
+    private final JobLockService jobLockService;
+    private final ExecutorService executor;
+    private final Counter deletedObjects;
+    private final Counter abandonedUploads;
+    private final Counter failedDeletions;
+
+    private final String bucketName;
+
+    // Longer than any upload can take; an older announcement belongs to a failed request
+    @Value("${blob.outbox.upload-timeout:PT1H}")
+    private Duration uploadTimeout = Duration.ofHours(1);
+
+    // Deletions younger than this are left to the worker that was handed them at commit
+    @Value("${blob.outbox.retry-delay:PT1M}")
+    private Duration retryDelay = Duration.ofMinutes(1);
+
+    @Value("${blob.outbox.batch-size:500}")
+    private int batchSize = 500;
+
+    public BlobOutboxService(BlobOutboxRepository blobOutboxRepository, FileRepository fileRepository,
+            FileHistoryRepository fileHistoryRepository, S3Client s3Client,
+            PlatformTransactionManager transactionManager, MeterRegistry meterRegistry,
+            JobLockService jobLockService, @Value("${blob.outbox.workers:2}") int workers,
+            @Value("${S3_BUCKET_NAME}") @NonNull String bucketName) {
+        this.blobOutboxRepository = blobOutboxRepository;
+        this.fileRepository = fileRepository;
+        this.fileHistoryRepository = fileHistoryRepository;
+        this.s3Client = s3Client;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        // Upload announcements must survive a rollback of the request, without a
+        // second connection while the request's transaction holds one
+        this.announcementTransactionTemplate = new TransactionTemplate(transactionManager);
+        this.announcementTransactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_NEVER);
+        this.jobLockService = jobLockService;
+        this.executor = Executors.newFixedThreadPool(Math.max(workers, 1));
+        this.deletedObjects = Counter.builder("blob.outbox.deleted")
+                .description("Storage objects deleted through the outbox")
+                .register(meterRegistry);
+        this.abandonedUploads = Counter.builder("blob.outbox.abandoned")
+                .description("Uploads whose transaction never committed; their objects are deleted")
+                .register(meterRegistry);
+        this.failedDeletions = Counter.builder("blob.outbox.failures")
+                .description("Outbox deletions that failed and are retried by the sweep")
+                .register(meterRegistry);
+        this.bucketName = bucketName;
+    }
+
+    @PreDestroy
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Announces an upload to the given key. Call before sending any bytes and
+     * outside of any transaction, and pass the returned ID to
+     * {@link #completeUpload} in the transaction that stores the key.
+     *
+     * @return The ID of the announcement.
+     * @throws org.springframework.transaction.IllegalTransactionStateException if
+     *         a transaction is active.
+     */
+    public Long beginUpload(String storageKey) {
+        return Objects.requireNonNull(announcementTransactionTemplate.execute(status -> blobOutboxRepository
+                .save(new BlobOutboxEntry(Operation.UPLOAD, storageKey, Instant.now())).getId()));
+    }
+
+    /**
+     * Gives up an upload whose transaction failed and deletes its object right
+     * away instead of after the upload timeout.
+     */
+    public void discardUpload(Long uploadId, String storageKey) {
+        Integer abandoned = transactionTemplate.execute(status -> blobOutboxRepository.abandonUpload(uploadId));
+        if (abandoned != null && abandoned > 0) {
+            submit(uploadId, storageKey);
+        }
+    }
+
+    /**
+     * Removes the announcement of a finished upload in the current transaction.
+     *
+     * @throws IllegalStateException if the upload took longer than the upload
+     *                               timeout and its object is being deleted; the
+     *                               transaction must not commit the key.
+     */
+    public void completeUpload(Long uploadId) {
+        if (blobOutboxRepository.completeUpload(uploadId) == 0) {
+            throw new IllegalStateException("Upload " + uploadId + " timed out and was discarded.");
+        }
+    }
+
+    /**
+     * Deletes an object once the current transaction has committed. Nothing is
+     * deleted if it rolls back.
+     */
+    public void deleteAfterCommit(String storageKey) {
+        BlobOutboxEntry entry = blobOutboxRepository.save(
+                new BlobOutboxEntry(Operation.DELETE, storageKey, Instant.now()));
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            submit(entry.getId(), storageKey);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                submit(entry.getId(), storageKey);
+            }
+        });
+    }
+
+    /**
+     * Deletes several objects once the current transaction has committed, with
+     * batched DeleteObjects requests. Nothing is deleted if it rolls back; keys
+     * that cannot be deleted are retried by the sweep one by one.
+     */
+    public void deleteAllAfterCommit(Collection<String> storageKeys) {
+        if (storageKeys.isEmpty()) {
+            return;
+        }
+        Map<Long, String> keysById = new LinkedHashMap<>();
+        for (BlobOutboxEntry entry : blobOutboxRepository.saveAll(storageKeys.stream()
+                .map(key -> new BlobOutboxEntry(Operation.DELETE, key, Instant.now()))
+                .toList())) {
+            keysById.put(entry.getId(), entry.getStorageKey());
+        }
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            submitAll(keysById);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                submitAll(keysById);
+            }
+        });
+    }
+
+    @Scheduled(initialDelayString = "${blob.outbox.sweep-interval:PT1M}",
+            fixedDelayString = "${blob.outbox.sweep-interval:PT1M}")
+    public void sweep() {
+        jobLockService.runExclusively(JOB_NAME, LOCK_AT_MOST_FOR, this::processPending);
+    }
+
+    private void processPending() {
+        Instant now = Instant.now();
+        long afterId = 0;
+        List<BlobOutboxEntry> page;
+        do {
+            page = blobOutboxRepository.findPending(Operation.UPLOAD, now.minus(uploadTimeout), afterId,
+                    PageRequest.of(0, batchSize));
+            for (BlobOutboxEntry upload : page) {
+                afterId = upload.getId();
+                abandon(upload);
+            }
+        } while (page.size() == batchSize);
+
+        // Includes the uploads abandoned above
+        afterId = 0;
+        do {
+            page = blobOutboxRepository.findPending(Operation.DELETE, now.minus(retryDelay), afterId,
+                    PageRequest.of(0, batchSize));
+            for (BlobOutboxEntry deletion : page) {
+                afterId = deletion.getId();
+                delete(deletion.getId(), deletion.getStorageKey());
+            }
+        } while (page.size() == batchSize);
+    }
+
+    private void abandon(BlobOutboxEntry upload) {
+        int abandoned = Objects.requireNonNull(
+                transactionTemplate.execute(status -> blobOutboxRepository.abandonUpload(upload.getId())));
+        if (abandoned > 0) {
+            abandonedUploads.increment();
+            logger.warn("Upload to key {} did not complete within {}; deleting its object.",
+                    upload.getStorageKey(), uploadTimeout);
+        }
+    }
+
+    private void submit(Long id, String storageKey) {
+        try {
+            executor.execute(() -> delete(id, storageKey));
+        } catch (RejectedExecutionException e) {
+            // Shutting down; the sweep picks the entry up
+            logger.debug("Outbox worker rejected deletion of key {}.", storageKey);
+        }
+    }
+
+    private void submitAll(Map<Long, String> keysById) {
+        try {
+            executor.execute(() -> deleteAll(keysById));
+        } catch (RejectedExecutionException e) {
+            // Shutting down; the sweep picks the entries up
+            logger.debug("Outbox worker rejected deletion of {} keys.", keysById.size());
+        }
+    }
+
+    /**
+     * Deletes the objects that are not referenced any more in batches, then the
+     * outbox entries of all keys but those S3 failed to delete.
+     */
+    private void deleteAll(Map<Long, String> keysById) {
+        try {
+            Set<String> referenced = new HashSet<>(fileRepository.findStorageKeysIn(keysById.values()));
+            referenced.addAll(fileHistoryRepository.findStorageKeysIn(keysById.values()));
+            List<String> deletable = keysById.values().stream().filter(key -> !referenced.contains(key)).toList();
+            Set<String> failedKeys = deleteObjects(deletable);
+
+            List<Long> done = new ArrayList<>();
+            List<Long> failed = new ArrayList<>();
+            keysById.forEach((id, key) -> (failedKeys.contains(key) ? failed : done).add(id));
+            transactionTemplate.executeWithoutResult(status -> {
+                blobOutboxRepository.deleteAllByIdInBatch(done);
+                failed.forEach(blobOutboxRepository::incrementAttempts);
+            });
+        } catch (Exception e) {
+            failedDeletions.increment(keysById.size());
+            logger.warn("Failed to delete {} keys; they will be retried.", keysById.size(), e);
+        }
+    }
+
+    /**
+     * Deletes the given objects with DeleteObjects requests of at most
+     * {@value #MAX_KEYS_PER_REQUEST} keys.
+     *
+     * @return The keys that could not be deleted.
+     */
+    private Set<String> deleteObjects(List<String> keys) {
+        List<ObjectIdentifier> objects = keys.stream()
+                .map(key -> ObjectIdentifier.builder().key(key).build())
+                .toList();
+        Set<String> failedKeys = new HashSet<>();
+        for (int from = 0; from < objects.size(); from += MAX_KEYS_PER_REQUEST) {
+            List<ObjectIdentifier> batch = objects.subList(from, Math.min(from + MAX_KEYS_PER_REQUEST, objects.size()));
+            try {
+                DeleteObjectsResponse response = s3Client.deleteObjects(
+                        b -> b.bucket(bucketName).delete(d -> d.objects(batch).quiet(true)));
+                for (S3Error error : response.errors()) {
+                    logger.warn("S3 could not delete key {}: {} {}", error.key(), error.code(), error.message());
+                    failedKeys.add(error.key());
+                }
+            } catch (Exception e) {
+                logger.warn("DeleteObjects request for {} keys failed; they will be retried.", batch.size(), e);
+                batch.forEach(object -> failedKeys.add(object.key()));
+            }
+        }
+        deletedObjects.increment(keys.size() - failedKeys.size());
+        failedDeletions.increment(failedKeys.size());
+        return failedKeys;
+    }
+
+    /**
+     * Deletes an object unless it is still referenced, then the outbox entry.
+     * Deleting an object twice is harmless, so a worker and the sweep may race.
+     */
+    private void delete(Long id, String storageKey) {
+        try {
+            if (isReferenced(storageKey)) {
+                logger.debug("Key {} is still referenced, keeping its object.", storageKey);
+            } else {
+                s3Client.deleteObject(b -> b.bucket(bucketName).key(storageKey));
+                deletedObjects.increment();
+            }
+            transactionTemplate.executeWithoutResult(status -> blobOutboxRepository.deleteAllByIdInBatch(List.of(id)));
+        } catch (Exception e) {
+            failedDeletions.increment();
+            logger.warn("Failed to delete key {}; it will be retried.", storageKey, e);
+            transactionTemplate.executeWithoutResult(status -> blobOutboxRepository.incrementAttempts(id));
+        }
+    }
+
+    private boolean isReferenced(String storageKey) {
+        return fileRepository.existsByStorageKey(storageKey) || fileHistoryRepository.existsByStorageKey(storageKey);
+    }
+}
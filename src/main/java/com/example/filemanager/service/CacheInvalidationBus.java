@@ -0,0 +1,338 @@
+package com.example.filemanager.service;
+
+import com.example.filemanager.domain.FileEntity;
+import com.example.filemanager.domain.User;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import org.hibernate.Cache;
+import org.hibernate.SessionFactory;
+import org.hibernate.action.spi.AfterTransactionCompletionProcess;
+import org.hibernate.action.spi.BeforeTransactionCompletionProcess;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.AbstractCollectionEvent;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.PostCollectionRecreateEvent;
+import org.hibernate.event.spi.PostCollectionRecreateEventListener;
+import org.hibernate.event.spi.PostCollectionRemoveEvent;
+import org.hibernate.event.spi.PostCollectionRemoveEventListener;
+import org.hibernate.event.spi.PostCollectionUpdateEvent;
+import org.hibernate.event.spi.PostCollectionUpdateEventListener;
+import org.hibernate.event.spi.PostDeleteEvent;
+import org.hibernate.event.spi.PostDeleteEventListener;
+import org.hibernate.event.spi.PostInsertEvent;
+import org.hibernate.event.spi.PostInsertEventListener;
+import org.hibernate.event.spi.PostUpdateEvent;
+import org.hibernate.event.spi.PostUpdateEventListener;
+import org.hibernate.persister.entity.EntityPersister;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+/**
+ * Keeps the second-level caches of several application nodes consistent through
+ * PostgreSQL {@code NOTIFY}/{@code LISTEN}, without a message broker.
+ * <p>
+ * Changes to cached entities are collected per transaction, both from Hibernate
+ * events (everything written through the session) and from services that run bulk
+ * JPQL updates. Just before commit they are sent with {@code pg_notify} on the
+ * transaction's own connection, so PostgreSQL delivers them only if the transaction
+ * commits. Every node listens on a dedicated connection and evicts the named rows
+ * from its local cache. After (re)connecting, a node evicts everything, since
+ * notifications sent while it was not listening are lost.
+ * <p>
+ * The bus is only active on PostgreSQL; on other databases (the single-node H2
+ * setup) publishing does nothing.
+ */
+@Service
+public class CacheInvalidationBus {
+
+    private static final Logger logger = LoggerFactory.getLogger(CacheInvalidationBus.class);
+
+    static final String CHANNEL = "filemanager_cache";
+
+    /** Marks a change to all rows of an entity type (bulk updates). */
+    static final String ALL = "*";
+
+    /** Above this many IDs per entity type, a notification evicts the whole type instead. */
+    static final int MAX_IDS_PER_NOTIFICATION = 100;
+
+    private static final long POLL_MILLIS = 1000;
+    private static final long RECONNECT_MILLIS = 5000;
+
+    private static final String GROUPS_ROLE = User.class.getName() + ".groups";
+
+    private final String nodeId = UUID.randomUUID().toString();
+    private final EntityManager entityManager;
+    private final EntityManagerFactory entityManagerFactory;
+    private final JdbcTemplate jdbcTemplate;
+    private final DataSourceProperties dataSourceProperties;
+    private final Map<SessionImplementor, Map<String, Set<Object>>> pending = new ConcurrentHashMap<>();
+
+    @Value("${cache.invalidation.enabled:true}")
+    private boolean enabled = true;
+
+    private volatile boolean running;
+    private Thread listenerThread;
+
+    public CacheInvalidationBus(EntityManager entityManager, EntityManagerFactory entityManagerFactory,
+            JdbcTemplate jdbcTemplate, DataSourceProperties dataSourceProperties) {
+        this.entityManager = entityManager;
+        this.entityManagerFactory = entityManagerFactory;
+        this.jdbcTemplate = jdbcTemplate;
+        this.dataSourceProperties = dataSourceProperties;
+    }
+
+    @PostConstruct
+    public void start() {
+        String product = jdbcTemplate.execute(
+                (ConnectionCallback<String>) connection -> connection.getMetaData().getDatabaseProductName());
+        if (!enabled || !"PostgreSQL".equalsIgnoreCase(product)) {
+            enabled = false;
+            logger.info("Cross-node cache invalidation is disabled (database: {}).", product);
+            return;
+        }
+        registerListeners();
+        running = true;
+        listenerThread = new Thread(this::listen, "cache-invalidation-listener");
+        listenerThread.setDaemon(true);
+        listenerThread.start();
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        if (listenerThread != null) {
+            listenerThread.interrupt();
+        }
+    }
+
+    /** Publishes a change to one row when the current transaction commits. */
+    public void entityChanged(Class<?> entityType, Object id) {
+        entitiesChanged(entityType, List.of(id));
+    }
+
+    /** Publishes a change to the given rows when the current transaction commits. */
+    public void entitiesChanged(Class<?> entityType, Collection<?> ids) {
+        if (enabled && !ids.isEmpty()) {
+            record(entityManager.unwrap(SessionImplementor.class), entityType.getName(), ids);
+        }
+    }
+
+    /** Publishes a change to every row of an entity type, e.g. after a bulk update. */
+    public void allChanged(Class<?> entityType) {
+        if (enabled) {
+            record(entityManager.unwrap(SessionImplementor.class), entityType.getName(), null);
+        }
+    }
+
+    /**
+     * Adds changes to the session's pending set. The first change of a transaction
+     * registers the processes that send and discard the set.
+     *
+     * @param ids The changed IDs, or {@code null} for all rows.
+     */
+    private void record(SessionImplementor session, String entityName, Collection<?> ids) {
+        Map<String, Set<Object>> changes = pending.computeIfAbsent(session, s -> {
+            s.getActionQueue().registerProcess((BeforeTransactionCompletionProcess) this::publish);
+            s.getActionQueue().registerProcess(
+                    (AfterTransactionCompletionProcess) (success, completed) -> pending.remove(completed));
+            return new LinkedHashMap<>();
+        });
+        Set<Object> changed = changes.computeIfAbsent(entityName, name -> new HashSet<>());
+        if (ids == null || changed.contains(ALL) || changed.size() + ids.size() > MAX_IDS_PER_NOTIFICATION) {
+            changed.clear();
+            changed.add(ALL);
+        } else {
+            changed.addAll(ids);
+        }
+    }
+
+    private void publish(SessionImplementor session) {
+        Map<String, Set<Object>> changes = pending.remove(session);
+        if (changes == null || changes.isEmpty()) {
+            return;
+        }
+        List<String> payloads = new ArrayList<>();
+        changes.forEach((entityName, ids) -> payloads.add(encode(nodeId, entityName, ids)));
+        session.doWork(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement("SELECT pg_notify(?, ?)")) {
+                for (String payload : payloads) {
+                    statement.setString(1, CHANNEL);
+                    statement.setString(2, payload);
+                    statement.execute();
+                }
+            }
+        });
+    }
+
+    /** Builds a notification payload: {@code node|entity|*} or {@code node|entity|id,id,...}. */
+    static String encode(String nodeId, String entityName, Set<Object> ids) {
+        String idList = ids.contains(ALL) ? ALL
+                : ids.stream().map(String::valueOf).sorted().collect(Collectors.joining(","));
+        return nodeId + "|" + entityName + "|" + idList;
+    }
+
+    /** Evicts the rows named by a notification from the local cache. */
+    void handle(String payload) {
+        String[] parts = payload.split("\\|", 3);
+        if (parts.length != 3) {
+            logger.warn("Ignoring malformed cache invalidation: {}", payload);
+            return;
+        }
+        if (nodeId.equals(parts[0])) {
+            return; // Hibernate already updated this node's cache
+        }
+        String entityName = parts[1];
+        Cache cache = entityManagerFactory.unwrap(SessionFactory.class).getCache();
+        if (ALL.equals(parts[2])) {
+            cache.evictEntityData(entityName);
+            if (User.class.getName().equals(entityName)) {
+                cache.evictCollectionData(GROUPS_ROLE);
+            }
+        } else {
+            for (String id : parts[2].split(",")) {
+                Long key = Long.valueOf(id);
+                cache.evictEntityData(entityName, key);
+                if (User.class.getName().equals(entityName)) {
+                    cache.evictCollectionData(GROUPS_ROLE, key);
+                }
+            }
+        }
+        if (!FileEntity.class.getName().equals(entityName)) {
+            // Cached user and group lookups (findByUsername, findByName) may now be stale
+            cache.evictQueryRegions();
+        }
+    }
+
+    private void listen() {
+        while (running) {
+            try (Connection connection = DriverManager.getConnection(dataSourceProperties.determineUrl(),
+                    dataSourceProperties.determineUsername(), dataSourceProperties.determinePassword())) {
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("LISTEN " + CHANNEL);
+                }
+                // Anything may have changed while this node was not listening
+                entityManagerFactory.unwrap(SessionFactory.class).getCache().evictAllRegions();
+                logger.info("Listening for cache invalidations on channel '{}'.", CHANNEL);
+
+                PGConnection pgConnection = connection.unwrap(PGConnection.class);
+                while (running) {
+                    PGNotification[] notifications = pgConnection.getNotifications((int) POLL_MILLIS);
+                    if (notifications != null) {
+                        for (PGNotification notification : notifications) {
+                            handle(notification.getParameter());
+                        }
+                    }
+                }
+            } catch (SQLException e) {
+                if (!running) {
+                    return;
+                }
+                logger.warn("Cache invalidation listener lost its connection; reconnecting in {} ms.",
+                        RECONNECT_MILLIS, e);
+                try {
+                    Thread.sleep(RECONNECT_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            } catch (RuntimeException e) {
+                logger.error("Failed to apply a cache invalidation.", e);
+            }
+        }
+    }
+
+    /** Records every insert, update and delete of a cached entity made through a session. */
+    private void registerListeners() {
+        SessionFactoryImplementor sessionFactory = entityManagerFactory.unwrap(SessionFactoryImplementor.class);
+        EventListenerRegistry registry = sessionFactory.getServiceRegistry().getService(EventListenerRegistry.class);
+
+        ChangeListener listener = new ChangeListener();
+        registry.appendListeners(EventType.POST_INSERT, listener);
+        registry.appendListeners(EventType.POST_UPDATE, listener);
+        registry.appendListeners(EventType.POST_DELETE, listener);
+        registry.appendListeners(EventType.POST_COLLECTION_UPDATE, listener);
+        registry.appendListeners(EventType.POST_COLLECTION_RECREATE, listener);
+        registry.appendListeners(EventType.POST_COLLECTION_REMOVE, listener);
+    }
+
+    private class ChangeListener implements PostInsertEventListener, PostUpdateEventListener,
+            PostDeleteEventListener, PostCollectionUpdateEventListener, PostCollectionRecreateEventListener,
+            PostCollectionRemoveEventListener {
+
+        @Override
+        public void onPostInsert(PostInsertEvent event) {
+            entityChanged(event.getSession(), event.getPersister(), event.getId());
+        }
+
+        @Override
+        public void onPostUpdate(PostUpdateEvent event) {
+            entityChanged(event.getSession(), event.getPersister(), event.getId());
+        }
+
+        @Override
+        public void onPostDelete(PostDeleteEvent event) {
+            entityChanged(event.getSession(), event.getPersister(), event.getId());
+        }
+
+        @Override
+        public void onPostUpdateCollection(PostCollectionUpdateEvent event) {
+            collectionChanged(event);
+        }
+
+        @Override
+        public void onPostRecreateCollection(PostCollectionRecreateEvent event) {
+            collectionChanged(event);
+        }
+
+        @Override
+        public void onPostRemoveCollection(PostCollectionRemoveEvent event) {
+            collectionChanged(event);
+        }
+
+        @Override
+        public boolean requiresPostCommitHandling(EntityPersister persister) {
+            return false;
+        }
+
+        private void entityChanged(SessionImplementor session, EntityPersister persister, Object id) {
+            if (persister.canWriteToCache()) {
+                record(session, persister.getEntityName(), List.of(id));
+            }
+        }
+
+        /** Only the cached {@code User.groups} collection matters; it is evicted with its owner. */
+        private void collectionChanged(AbstractCollectionEvent event) {
+            if (event.getAffectedOwnerIdOrNull() != null
+                    && User.class.getName().equals(event.getAffectedOwnerEntityName())) {
+                record(event.getSession(), event.getAffectedOwnerEntityName(),
+                        List.of(event.getAffectedOwnerIdOrNull()));
+            }
+        }
+    }
+}
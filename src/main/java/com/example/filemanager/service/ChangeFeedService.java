@@ -0,0 +1,254 @@
+package com.example.filemanager.service;
+
+import com.example.filemanager.controller.dto.ChangeFeedResponse;
+import com.example.filemanager.controller.dto.ChangeResponse;
+import com.example.filemanager.domain.ChangeSequence;
+import com.example.filemanager.domain.FileChange;
+import com.example.filemanager.domain.FileEntity;
+import com.example.filemanager.domain.User;
+import com.example.filemanager.exception.ChangeCursorExpiredException;
+import com.example.filemanager.repository.ChangeSequenceRepository;
+import com.example.filemanager.repository.FileChangeRepository;
+import com.example.filemanager.repository.FileRepository;
+import jakarta.annotation.PostConstruct;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Records every change of a file or folder in the {@code file_changes} feed, so
+ * sync clients can fetch what changed since their last cursor instead of
+ * listing every folder.
+ * <p>
+ * Changes are collected during the transaction and written right before it
+ * commits, after all other pending SQL has been flushed: the transaction
+ * advances the single {@link ChangeSequence} row by the number of its changes
+ * and inserts them under the reserved numbers. The row lock is held until
+ * commit, so sequence numbers become visible strictly in order and a reader
+ * never skips a change that commits later with a smaller number.
+ */
+@Service
+public class ChangeFeedService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChangeFeedService.class);
+
+    static final String JOB_NAME = "change-feed-pruning";
+
+    /** Largest number of changes returned by one request. */
+    public static final int MAX_PAGE_SIZE = 1000;
+
+    private final FileChangeRepository fileChangeRepository;
+    private final ChangeSequenceRepository changeSequenceRepository;
+    private final FileRepository fileRepository;
+    private final PermissionService permissionService;
+    private final TransactionTemplate transactionTemplate;
+    private final JobLockService jobLockService;
+    private final List<Runnable> commitListeners = new CopyOnWriteArrayList<>();
+
+    // Clients whose cursor is older must list their folders again
+    @Value("${changes.retention:P30D}")
+    private Duration retention = Duration.ofDays(30);
+
+    public ChangeFeedService(FileChangeRepository fileChangeRepository,
+            ChangeSequenceRepository changeSequenceRepository, FileRepository fileRepository,
+            PermissionService permissionService, PlatformTransactionManager transactionManager,
+            JobLockService jobLockService) {
+        this.fileChangeRepository = fileChangeRepository;
+        this.changeSequenceRepository = changeSequenceRepository;
+        this.fileRepository = fileRepository;
+        this.permissionService = permissionService;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.jobLockService = jobLockService;
+    }
+
+    /**
+     * Creates the sequence row at startup, so that the first transaction to record
+     * a change does not have to.
+     */
+    @PostConstruct
+    void createSequence() {
+        if (changeSequenceRepository.findLastValue().isPresent()) {
+            return;
+        }
+        try {
+            transactionTemplate.executeWithoutResult(
+                    status -> changeSequenceRepository.saveAndFlush(new ChangeSequence(0)));
+        } catch (DataIntegrityViolationException e) {
+            // Created by another node starting at the same time
+            logger.debug("Change sequence was created concurrently.");
+        }
+    }
+
+    /**
+     * Records a change of an item in the current transaction. It becomes visible
+     * in the feed when the transaction commits.
+     */
+    @Transactional(propagation = Propagation.MANDATORY)
+    public void record(FileEntity item, FileChange.Type type) {
+        pendingChanges().add(new PendingChange(item.getId(), idOf(item.getParent()), null, type));
+    }
+
+    /**
+     * Records a move of an item in the current transaction. The item must already
+     * have its new parent.
+     *
+     * @param previousParent The parent before the move, or {@code null} for the
+     *                       root.
+     */
+    @Transactional(propagation = Propagation.MANDATORY)
+    public void recordMove(FileEntity item, FileEntity previousParent) {
+        pendingChanges().add(
+                new PendingChange(item.getId(), idOf(item.getParent()), idOf(previousParent), FileChange.Type.MOVED));
+    }
+
+    /**
+     * Registers a callback that runs after every commit that recorded changes, on
+     * the committing thread. It must return quickly.
+     */
+    public void addCommitListener(Runnable listener) {
+        commitListeners.add(listener);
+    }
+
+    /**
+     * Returns the changes after a cursor that the current user may read. Changes
+     * of files that no longer exist are returned without details.
+     *
+     * @param since The cursor returned by the previous call, or 0 to start at the
+     *              oldest retained change.
+     * @param limit The number of changes to scan, at most
+     *              {@value #MAX_PAGE_SIZE}.
+     * @throws ChangeCursorExpiredException if changes after the cursor have been
+     *                                      pruned, or the cursor is unknown.
+     */
+    @Transactional(readOnly = true)
+    public ChangeFeedResponse getChanges(long since, int limit) {
+        User currentUser = (User) SecurityContextHolder.getContext().getAuthentication().getPrincipal();
+        checkCursor(since);
+
+        int pageSize = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+        List<FileChange> page = fileChangeRepository.findAfter(since, PageRequest.of(0, pageSize));
+        Map<Long, FileEntity> files = fileRepository
+                .findAllById(page.stream().map(FileChange::getFileId).distinct().toList())
+                .stream()
+                .collect(Collectors.toMap(FileEntity::getId, Function.identity()));
+
+        PermissionEvaluator permissions = permissionService.evaluatorFor(currentUser);
+        List<ChangeResponse> changes = new ArrayList<>();
+        for (FileChange change : page) {
+            FileEntity file = files.get(change.getFileId());
+            if (file != null && !permissions.canRead(file)) {
+                continue;
+            }
+            changes.add(new ChangeResponse(change, file != null && file.getDeletedAt() == null ? file : null));
+        }
+        // The cursor moves past changes the user may not see as well
+        long cursor = page.isEmpty() ? since : page.get(page.size() - 1).getSeq();
+        return new ChangeFeedResponse(changes, cursor, page.size() == pageSize);
+    }
+
+    @Scheduled(cron = "${changes.prune-cron:0 15 3 * * *}") // Defaults to 3:15 AM daily
+    public void pruneChanges() {
+        jobLockService.runExclusively(JOB_NAME, Duration.ofHours(1), () -> {
+            Instant cutoff = Instant.now().minus(retention);
+            Integer pruned = transactionTemplate.execute(status -> fileChangeRepository.deleteChangedBefore(cutoff));
+            logger.info("Pruned {} changes recorded before {}.", pruned, cutoff);
+        });
+    }
+
+    private void checkCursor(long since) {
+        long lastValue = changeSequenceRepository.findLastValue().orElse(0L);
+        Long minSeq = fileChangeRepository.findMinSeq();
+        // Numbers are gapless, so anything between the cursor and the oldest retained change was pruned
+        long oldestAvailable = minSeq != null ? minSeq : lastValue + 1;
+        if (since < 0 || since > lastValue || (since > 0 && since < oldestAvailable - 1)) {
+            throw new ChangeCursorExpiredException(
+                    "Changes after cursor " + since + " are no longer available. List the folders again.");
+        }
+    }
+
+    private List<PendingChange> pendingChanges() {
+        // Synchronizations are suspended with their transaction, so REQUIRES_NEW gets its own list
+        for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+            if (synchronization instanceof ChangeCollector collector && collector.owner() == this) {
+                return collector.changes;
+            }
+        }
+        ChangeCollector collector = new ChangeCollector();
+        TransactionSynchronizationManager.registerSynchronization(collector);
+        return collector.changes;
+    }
+
+    /**
+     * Writes the changes of the committing transaction under the next sequence
+     * numbers.
+     */
+    private void append(List<PendingChange> changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+        // Write everything else first; the sequence row stays locked from here to the commit
+        fileChangeRepository.flush();
+        if (changeSequenceRepository.advance(changes.size()) == 0) {
+            // Only if the row was removed after startup
+            changeSequenceRepository.saveAndFlush(new ChangeSequence(0));
+            changeSequenceRepository.advance(changes.size());
+        }
+        long seq = changeSequenceRepository.findLastValue().orElseThrow() - changes.size();
+        Instant now = Instant.now();
+        List<FileChange> rows = new ArrayList<>();
+        for (PendingChange change : changes) {
+            rows.add(new FileChange(++seq, change.fileId(), change.parentFolderId(), change.previousParentFolderId(),
+                    change.type(), now));
+        }
+        fileChangeRepository.saveAll(rows);
+    }
+
+    private static Long idOf(FileEntity folder) {
+        return folder == null ? null : folder.getId();
+    }
+
+    private record PendingChange(Long fileId, Long parentFolderId, Long previousParentFolderId,
+            FileChange.Type type) {
+    }
+
+    /** Collects the changes of one transaction and writes them when it commits. */
+    private class ChangeCollector implements TransactionSynchronization {
+
+        private final List<PendingChange> changes = new ArrayList<>();
+
+        ChangeFeedService owner() {
+            return ChangeFeedService.this;
+        }
+
+        @Override
+        public void beforeCommit(boolean readOnly) {
+            append(changes);
+        }
+
+        @Override
+        public void afterCommit() {
+            if (!changes.isEmpty()) {
+                commitListeners.forEach(Runnable::run);
+            }
+        }
+    }
+}
@@ -0,0 +1,486 @@
+package com.example.filemanager.service;
+
+import com.example.filemanager.controller.dto.ChangeNotification;
+import com.example.filemanager.domain.FileChange;
+import com.example.filemanager.domain.FileEntity;
+import com.example.filemanager.domain.User;
+import com.example.filemanager.exception.ParentNotDirectoryException;
+import com.example.filemanager.exception.ResourceNotFoundException;
+import com.example.filemanager.exception.SubscriptionLimitException;
+import com.example.filemanager.repository.ChangeSequenceRepository;
+import com.example.filemanager.repository.FileChangeRepository;
+import com.example.filemanager.repository.FileRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.security.access.AccessDeniedException;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+/**
+ * Pushes change notifications for folders to clients over Server-Sent Events,
+ * so sync clients do not have to poll the change feed.
+ * <p>
+ * One tail thread per node reads new rows of the change feed (see
+ * {@link ChangeFeedService}) in sequence order and fans them out to the
+ * subscriptions of the affected folders: a change notifies its parent folder,
+ * its previous parent after a move, and the item itself when it is a
+ * subscribed folder. The tail wakes up right after a local commit and polls
+ * every {@code changes.push.poll-interval} otherwise, so changes committed on
+ * other nodes are pushed as well. It only reads while someone is subscribed.
+ * <p>
+ * Each subscription has a bounded buffer that a small pool of sender threads
+ * writes to the connection. When a client reads too slowly and its buffer
+ * fills up, the buffered events are dropped and replaced by one
+ * {@code resync} event; the client then catches up through the change feed.
+ * A client that stops reading altogether blocks its sender thread in the write.
+ * Once a write has taken longer than {@code changes.push.write-timeout}, the
+ * subscription is dropped and the pool gets a thread in place of the blocked
+ * one, so other subscribers keep receiving events. The connection is closed
+ * when the write returns (at the latest when the server's write timeout fails
+ * it), and the client resyncs on reconnecting.
+ * Events only carry folder IDs and a cursor, never file details.
+ */
+@Service
+public class ChangeNotificationService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChangeNotificationService.class);
+
+    /** Folder ID standing for the root, whose items have no parent. */
+    public static final long ROOT = 0;
+
+    static final String READY = "ready";
+    static final String CHANGE = "change";
+    static final String RESYNC = "resync";
+
+    private static final int PAGE_SIZE = 1000;
+
+    private final FileChangeRepository fileChangeRepository;
+    private final ChangeSequenceRepository changeSequenceRepository;
+    private final FileRepository fileRepository;
+    private final PermissionService permissionService;
+    private final Executor senders;
+    private final Counter resyncs;
+    private final Counter stalledSubscribers;
+
+    private final Set<Subscription> subscriptions = ConcurrentHashMap.newKeySet();
+    private final Map<Long, Set<Subscription>> subscriptionsByFolder = new ConcurrentHashMap<>();
+    private final Semaphore wakeUp = new Semaphore(0);
+
+    // Last change handed to subscribers, or -1 while nobody is subscribed
+    private long lastSeq = -1;
+
+    @Value("${changes.push.poll-interval:PT1S}")
+    private Duration pollInterval = Duration.ofSeconds(1);
+
+    // Events a client may fall behind by before it has to resync
+    @Value("${changes.push.buffer-size:64}")
+    private int bufferSize = 64;
+
+    @Value("${changes.push.max-subscribers:10000}")
+    private int maxSubscribers = 10000;
+
+    // Clients reconnect after this; the connection is counted against the server's limits until then
+    @Value("${changes.push.timeout:PT30M}")
+    private Duration timeout = Duration.ofMinutes(30);
+
+    // A write blocked for longer means the client stopped reading
+    @Value("${changes.push.write-timeout:PT10S}")
+    private Duration writeTimeout = Duration.ofSeconds(10);
+
+    private volatile boolean running;
+    private Thread tailThread;
+
+    @Autowired
+    public ChangeNotificationService(FileChangeRepository fileChangeRepository,
+            ChangeSequenceRepository changeSequenceRepository, FileRepository fileRepository,
+            PermissionService permissionService, ChangeFeedService changeFeedService, MeterRegistry meterRegistry,
+            @Value("${changes.push.sender-threads:4}") int senderThreads) {
+        this(fileChangeRepository, changeSequenceRepository, fileRepository, permissionService, changeFeedService,
+                meterRegistry, new ThreadPoolExecutor(Math.max(senderThreads, 1), Math.max(senderThreads, 1), 0,
+                        TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>()));
+    }
+
+    ChangeNotificationService(FileChangeRepository fileChangeRepository,
+            ChangeSequenceRepository changeSequenceRepository, FileRepository fileRepository,
+            PermissionService permissionService, ChangeFeedService changeFeedService, MeterRegistry meterRegistry,
+            Executor senders) {
+        this.fileChangeRepository = fileChangeRepository;
+        this.changeSequenceRepository = changeSequenceRepository;
+        this.fileRepository = fileRepository;
+        this.permissionService = permissionService;
+        this.senders = senders;
+        this.resyncs = Counter.builder("changes.push.resyncs")
+                .description("Subscribers that fell behind and were told to resync from the change feed")
+                .register(meterRegistry);
+        this.stalledSubscribers = Counter.builder("changes.push.stalled")
+                .description("Subscribers dropped because a write to them did not finish in time")
+                .register(meterRegistry);
+        Gauge.builder("changes.push.subscribers", subscriptions, Set::size)
+                .description("Open change notification subscriptions")
+                .register(meterRegistry);
+        changeFeedService.addCommitListener(this::wakeUp);
+    }
+
+    @PostConstruct
+    public void start() {
+        running = true;
+        tailThread = new Thread(this::tail, "change-notification-tail");
+        tailThread.setDaemon(true);
+        tailThread.start();
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        if (tailThread != null) {
+            tailThread.interrupt();
+        }
+        if (senders instanceof ExecutorService executor) {
+            executor.shutdown();
+        }
+        subscriptions.forEach(subscription -> subscription.emitter.complete());
+    }
+
+    /**
+     * Subscribes the current user to changes in the given folders. The first
+     * event, {@code ready}, carries the current cursor of the change feed.
+     *
+     * @param folderIds Folders to watch; {@value #ROOT} watches the root.
+     * @throws ResourceNotFoundException   if a folder does not exist.
+     * @throws ParentNotDirectoryException if an ID is not a folder.
+     * @throws AccessDeniedException       if the user may not read a folder.
+     * @throws SubscriptionLimitException  if the server has no room for another
+     *                                     subscription.
+     */
+    @Transactional(readOnly = true)
+    public SseEmitter subscribe(Set<Long> folderIds) {
+        User currentUser = (User) SecurityContextHolder.getContext().getAuthentication().getPrincipal();
+        for (Long folderId : folderIds) {
+            if (folderId == ROOT) {
+                continue;
+            }
+            FileEntity folder = fileRepository.findByIdAndDeletedAtIsNull(folderId)
+                    .orElseThrow(() -> new ResourceNotFoundException("Folder not found with id: " + folderId));
+            if (!folder.isDirectory()) {
+                throw new ParentNotDirectoryException("Item with id " + folderId + " is not a directory.");
+            }
+            if (!permissionService.canRead(folder, currentUser)) {
+                throw new AccessDeniedException("You do not have permission to access this folder.");
+            }
+        }
+        if (subscriptions.size() >= maxSubscribers) {
+            throw new SubscriptionLimitException(
+                    "Too many open change subscriptions. Poll the change feed or try again later.");
+        }
+
+        long cursor = changeSequenceRepository.findLastValue().orElse(0L);
+        Subscription subscription = new Subscription(newEmitter(timeout), Set.copyOf(folderIds), bufferSize);
+        subscription.emitter.onCompletion(() -> unsubscribe(subscription));
+        subscription.emitter.onTimeout(subscription.emitter::complete);
+        subscription.emitter.onError(error -> unsubscribe(subscription));
+        // Clients read the feed to its end on "ready", which covers changes published before they are registered
+        offer(subscription, new Event(READY, cursor, Set.of()));
+        synchronized (this) {
+            subscriptions.add(subscription);
+            if (lastSeq < 0) {
+                lastSeq = cursor;
+            }
+        }
+        for (Long folderId : subscription.folderIds) {
+            subscriptionsByFolder.compute(folderId, (id, folderSubscriptions) -> {
+                Set<Subscription> result = folderSubscriptions != null ? folderSubscriptions
+                        : ConcurrentHashMap.newKeySet();
+                result.add(subscription);
+                return result;
+            });
+        }
+        return subscription.emitter;
+    }
+
+    SseEmitter newEmitter(Duration timeout) {
+        return new SseEmitter(timeout.toMillis());
+    }
+
+    /** Keeps idle connections open through proxies and finds clients that went away. */
+    @Scheduled(fixedDelayString = "${changes.push.heartbeat-interval:PT30S}",
+            initialDelayString = "${changes.push.heartbeat-interval:PT30S}")
+    public void sendHeartbeats() {
+        for (Subscription subscription : subscriptions) {
+            // A client with pending events is written to anyway
+            if (subscription.buffer.isEmpty()) {
+                offer(subscription, Event.HEARTBEAT);
+            }
+        }
+    }
+
+    /**
+     * Drops the subscribers whose current write has been blocked for longer than
+     * the write timeout, and lets the sender pool replace the blocked threads.
+     */
+    @Scheduled(fixedDelayString = "${changes.push.write-check-interval:PT1S}",
+            initialDelayString = "${changes.push.write-check-interval:PT1S}")
+    public void dropStalledSubscribers() {
+        long now = System.nanoTime();
+        for (Subscription subscription : subscriptions) {
+            if (subscription.markStalled(now, writeTimeout.toNanos())) {
+                logger.debug("Dropping change subscription whose client stopped reading.");
+                unsubscribe(subscription);
+                stalledSubscribers.increment();
+                resizeSenders(1);
+            }
+        }
+    }
+
+    int subscriberCount() {
+        return subscriptions.size();
+    }
+
+    private void wakeUp() {
+        if (!subscriptions.isEmpty()) {
+            wakeUp.release();
+        }
+    }
+
+    private void tail() {
+        while (running) {
+            try {
+                wakeUp.tryAcquire(pollInterval.toMillis(), TimeUnit.MILLISECONDS);
+                wakeUp.drainPermits();
+                poll();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                logger.warn("Failed to read the change feed for notifications.", e);
+            }
+        }
+    }
+
+    /**
+     * Hands the changes committed since the last call to the subscribers.
+     *
+     * @return The number of changes read.
+     */
+    int poll() {
+        long after;
+        synchronized (this) {
+            if (subscriptions.isEmpty()) {
+                lastSeq = -1;
+                return 0;
+            }
+            after = lastSeq;
+        }
+        int read = 0;
+        List<FileChange> page;
+        do {
+            page = fileChangeRepository.findAfter(after, PageRequest.of(0, PAGE_SIZE));
+            if (page.isEmpty()) {
+                break;
+            }
+            publish(page);
+            after = page.get(page.size() - 1).getSeq();
+            read += page.size();
+        } while (page.size() == PAGE_SIZE);
+        synchronized (this) {
+            lastSeq = subscriptions.isEmpty() ? -1 : after;
+        }
+        return read;
+    }
+
+    /** Sends each subscription one event naming its folders that changed. */
+    private void publish(List<FileChange> changes) {
+        Map<Subscription, Set<Long>> changedFolders = new HashMap<>();
+        for (FileChange change : changes) {
+            notify(changedFolders, change.getParentFolderId() == null ? ROOT : change.getParentFolderId());
+            if (change.getType() == FileChange.Type.MOVED) {
+                notify(changedFolders,
+                        change.getPreviousParentFolderId() == null ? ROOT : change.getPreviousParentFolderId());
+            }
+            notify(changedFolders, change.getFileId());
+        }
+        long cursor = changes.get(changes.size() - 1).getSeq();
+        changedFolders.forEach((subscription, folderIds) -> offer(subscription, new Event(CHANGE, cursor, folderIds)));
+    }
+
+    private void notify(Map<Subscription, Set<Long>> changedFolders, Long folderId) {
+        Set<Subscription> folderSubscriptions = subscriptionsByFolder.get(folderId);
+        if (folderSubscriptions != null) {
+            for (Subscription subscription : folderSubscriptions) {
+                changedFolders.computeIfAbsent(subscription, s -> new TreeSet<>()).add(folderId);
+            }
+        }
+    }
+
+    private void offer(Subscription subscription, Event event) {
+        synchronized (subscription) {
+            if (!subscription.buffer.offer(event)) {
+                // The client is too slow; it has to read the feed from its own cursor anyway
+                subscription.buffer.clear();
+                subscription.buffer.offer(new Event(RESYNC, event.cursor, Set.of()));
+                resyncs.increment();
+            }
+        }
+        schedule(subscription);
+    }
+
+    private void schedule(Subscription subscription) {
+        if (subscription.sending.compareAndSet(false, true)) {
+            try {
+                senders.execute(() -> send(subscription));
+            } catch (RuntimeException e) {
+                // Shutting down
+                subscription.sending.set(false);
+            }
+        }
+    }
+
+    /** Writes the buffered events of a subscription; at most one sender per subscription. */
+    private void send(Subscription subscription) {
+        boolean stalled = false;
+        try {
+            Event event;
+            while (!stalled && (event = subscription.buffer.poll()) != null) {
+                subscription.startWrite();
+                try {
+                    subscription.emitter.send(event.toSse());
+                } finally {
+                    stalled = subscription.endWrite();
+                }
+            }
+        } catch (IOException | IllegalStateException e) {
+            // The client went away or the emitter completed
+            logger.debug("Dropping change subscription: {}", e.getMessage());
+            unsubscribe(subscription);
+            subscription.emitter.completeWithError(e);
+            return;
+        } finally {
+            if (stalled) {
+                // This thread was replaced while it was blocked
+                resizeSenders(-1);
+            }
+            subscription.sending.set(false);
+        }
+        if (stalled) {
+            // Already dropped; the client resyncs when it reconnects
+            subscription.emitter.complete();
+        } else if (!subscription.buffer.isEmpty()) {
+            schedule(subscription);
+        }
+    }
+
+    /**
+     * Grows or shrinks the sender pool by the given number of threads. The
+     * maximum is raised before and lowered after the core size, which may never
+     * exceed it.
+     */
+    private void resizeSenders(int delta) {
+        if (!(senders instanceof ThreadPoolExecutor pool)) {
+            return;
+        }
+        synchronized (pool) {
+            if (delta > 0) {
+                pool.setMaximumPoolSize(pool.getMaximumPoolSize() + delta);
+                pool.setCorePoolSize(pool.getCorePoolSize() + delta);
+            } else {
+                pool.setCorePoolSize(pool.getCorePoolSize() + delta);
+                pool.setMaximumPoolSize(pool.getMaximumPoolSize() + delta);
+            }
+        }
+    }
+
+    private void unsubscribe(Subscription subscription) {
+        if (!subscriptions.remove(subscription)) {
+            return;
+        }
+        for (Long folderId : subscription.folderIds) {
+            subscriptionsByFolder.computeIfPresent(folderId, (id, folderSubscriptions) -> {
+                folderSubscriptions.remove(subscription);
+                return folderSubscriptions.isEmpty() ? null : folderSubscriptions;
+            });
+        }
+        subscription.buffer.clear();
+    }
+
+    private static final class Subscription {
+
+        private final SseEmitter emitter;
+        private final Set<Long> folderIds;
+        private final BlockingQueue<Event> buffer;
+        private final AtomicBoolean sending = new AtomicBoolean();
+
+        // Guarded by this
+        private boolean writing;
+        private long writeStartedAt;
+        private boolean stalled;
+
+        Subscription(SseEmitter emitter, Set<Long> folderIds, int bufferSize) {
+            this.emitter = emitter;
+            this.folderIds = folderIds;
+            this.buffer = new ArrayBlockingQueue<>(Math.max(bufferSize, 2));
+        }
+
+        synchronized void startWrite() {
+            writing = true;
+            writeStartedAt = System.nanoTime();
+        }
+
+        /** @return Whether the write was declared stalled while it ran. */
+        synchronized boolean endWrite() {
+            writing = false;
+            return stalled;
+        }
+
+        /** @return Whether the current write just became stalled. */
+        synchronized boolean markStalled(long now, long timeoutNanos) {
+            if (!writing || stalled || now - writeStartedAt < timeoutNanos) {
+                return false;
+            }
+            stalled = true;
+            return true;
+        }
+    }
+
+    private record Event(String name, long cursor, Set<Long> folderIds) {
+
+        static final Event HEARTBEAT = new Event(null, 0, Set.of());
+
+        SseEmitter.SseEventBuilder toSse() {
+            if (name == null) {
+                return SseEmitter.event().comment("heartbeat");
+            }
+            return SseEmitter.event()
+                    .id(Long.toString(cursor))
+                    .name(name)
+                    .data(new ChangeNotification(cursor, folderIds), MediaType.APPLICATION_JSON);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.example.filemanager.service;
+
+import com.example.filemanager.domain.BackgroundJob;
+import com.example.filemanager.domain.FileEntity;
+import com.example.filemanager.domain.Group;
+import com.example.filemanager.domain.User;
+import com.example.filemanager.exception.GroupNotFoundException;
+import com.example.filemanager.exception.UserNotFoundException;
+import com.example.filemanager.repository.FileRepository;
+import com.example.filemanager.repository.GroupRepository;
+import com.example.filemanager.repository.UserRepository;
+import java.util.ArrayList;
+import java.util.List;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+
+/**
+ * Hands the subtree below a folder to a new owner and group, one page of one
+ * folder's children per step. The tree is walked depth first: a folder's
+ * children are changed page by page, then its subfolders are visited in ID
+ * order. The checkpoint holds the path from the target to the current folder
+ * with a cursor per folder, so it grows with the depth of the tree rather than
+ * the number of folders, and the job continues where it stopped after a restart.
+ */
+@Service
+public class ChangeOwnerJobHandler implements JobHandler {
+
+    /** Parameters of a {@link BackgroundJob.Type#CHANGE_OWNER} job. */
+    public record Parameters(long ownerId, long groupId) {
+    }
+
+    /** Folders from the target down to the one being worked on; empty when done. */
+    record Checkpoint(List<Frame> path) {
+    }
+
+    /**
+     * A folder on the path.
+     *
+     * @param afterId       Children up to this ID have been changed.
+     * @param afterFolderId Subfolders up to this ID have been visited; {@code null}
+     *                      until all children have been changed.
+     */
+    record Frame(long folderId, long afterId, Long afterFolderId) {
+    }
+
+    private final FileService fileService;
+    private final FileRepository fileRepository;
+    private final UserRepository userRepository;
+    private final GroupRepository groupRepository;
+
+    @Value("${jobs.change-owner.chunk-size:500}")
+    private int chunkSize = 500;
+
+    public ChangeOwnerJobHandler(FileService fileService, FileRepository fileRepository,
+            UserRepository userRepository, GroupRepository groupRepository) {
+        this.fileService = fileService;
+        this.fileRepository = fileRepository;
+        this.userRepository = userRepository;
+        this.groupRepository = groupRepository;
+    }
+
+    @Override
+    public BackgroundJob.Type getType() {
+        return BackgroundJob.Type.CHANGE_OWNER;
+    }
+
+    @Override
+    public boolean step(BackgroundJob job) {
+        Parameters parameters = BackgroundJobService.fromJson(job.getParameters(), Parameters.class);
+        Checkpoint checkpoint = job.getCheckpoint() == null
+                ? new Checkpoint(List.of(new Frame(job.getTargetFileId(), 0, null)))
+                : BackgroundJobService.fromJson(job.getCheckpoint(), Checkpoint.class);
+        if (checkpoint.path().isEmpty()) {
+            return true;
+        }
+        User newOwner = userRepository.findById(parameters.ownerId())
+                .orElseThrow(() -> new UserNotFoundException("User not found with id: " + parameters.ownerId()));
+        Group newGroup = groupRepository.findById(parameters.groupId())
+                .orElseThrow(() -> new GroupNotFoundException("Group not found with id: " + parameters.groupId()));
+
+        List<Frame> path = new ArrayList<>(checkpoint.path());
+        // Moves down or up the tree until one page of children has been changed
+        while (!path.isEmpty()) {
+            int last = path.size() - 1;
+            Frame frame = path.get(last);
+            if (frame.afterFolderId() == null) {
+                List<FileEntity> children = fileService.changeOwnerOfChildren(frame.folderId(), frame.afterId(),
+                        chunkSize, newOwner, newGroup);
+                long afterId = children.isEmpty() ? frame.afterId() : children.get(children.size() - 1).getId();
+                // A short page means the folder's children are done
+                path.set(last, new Frame(frame.folderId(), afterId, children.size() < chunkSize ? 0L : null));
+                job.addProcessedItems(children.size());
+                break;
+            }
+            List<Long> next = fileRepository.findLiveChildFolderIdsAfter(frame.folderId(), frame.afterFolderId(),
+                    PageRequest.of(0, 1));
+            if (next.isEmpty()) {
+                path.remove(last);
+            } else {
+                path.set(last, new Frame(frame.folderId(), frame.afterId(), next.get(0)));
+                path.add(new Frame(next.get(0), 0, null));
+            }
+        }
+        job.setCheckpoint(BackgroundJobService.toJson(new Checkpoint(path)));
+        return path.isEmpty();
+    }
+}
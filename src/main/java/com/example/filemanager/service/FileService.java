@@ -1,36 +1,62 @@
 package com.example.filemanager.service;
 
+import com.example.filemanager.config.DatabaseConstraintInitializer;
 import com.example.filemanager.controller.dto.FolderRequest;
+import com.example.filemanager.controller.dto.TrashSummaryResponse;
+import com.example.filemanager.domain.BackgroundJob;
+import com.example.filemanager.domain.FileChange;
 import com.example.filemanager.domain.FileEntity;
 import com.example.filemanager.domain.Group;
 import com.example.filemanager.domain.User;
+import com.example.filemanager.domain.VersionThinning;
 import com.example.filemanager.exception.DuplicateFileException;
 import com.example.filemanager.exception.InvalidPermissionFormatException;
 import com.example.filemanager.domain.FileHistory;
+import com.example.filemanager.domain.FileLease;
+import com.example.filemanager.domain.FileListItem;
+import com.example.filemanager.domain.FolderStats;
+import com.example.filemanager.exception.ParentDeletedException;
 import com.example.filemanager.exception.ParentNotDirectoryException;
 import com.example.filemanager.exception.FileLockedException;
+import com.example.filemanager.exception.FileModifiedException;
+import com.example.filemanager.exception.LockNotHeldException;
 import com.example.filemanager.exception.ResourceNotFoundException;
 import com.example.filemanager.repository.FileHistoryRepository;
+import com.example.filemanager.repository.FileLeaseRepository;
 import com.example.filemanager.repository.FileRepository;
-import com.example.filemanager.repository.FileSpecification;
 import com.example.filemanager.repository.GroupRepository;
 import com.example.filemanager.repository.UserRepository;
+import com.example.filemanager.service.StorageCodecService.Codec;
+import com.example.filemanager.service.StorageCodecService.StoredContent;
+import io.awspring.cloud.s3.ObjectMetadata;
 import io.awspring.cloud.s3.S3Template;
 import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.UUID;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import org.hibernate.exception.ConstraintViolationException;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
-import org.springframework.data.jpa.domain.Specification;
 import org.springframework.security.access.AccessDeniedException;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.util.StringUtils;
 import org.springframework.web.multipart.MultipartFile;
 import org.springframework.lang.NonNull;
@@ -41,141 +67,256 @@ public class FileService {
 
   private final FileRepository fileRepository;
   private final FileHistoryRepository fileHistoryRepository;
+  private final FileLeaseRepository fileLeaseRepository;
   private final S3Template s3Template;
   private final PermissionService permissionService;
   private final UserRepository userRepository;
   private final GroupRepository groupRepository;
+  private final CacheInvalidationBus cacheInvalidationBus;
+  private final BlobOutboxService blobOutboxService;
+  private final FolderStatsService folderStatsService;
+  private final StorageQuotaService storageQuotaService;
+  private final ChangeFeedService changeFeedService;
+  private final BackgroundJobService backgroundJobService;
+  private final RenditionService renditionService;
+  private final StorageCodecService storageCodecService;
+  // Stores uploaded content, which is sent before the transaction opens
+  private final TransactionTemplate transactionTemplate;
 
   private final String bucketName;
 
+  // How long a lock lasts unless its holder renews it
+  @Value("${file.lock.lease-duration:PT5M}")
+  private Duration leaseDuration = Duration.ofMinutes(5);
+
   public FileService(
       FileRepository fileRepository,
       FileHistoryRepository fileHistoryRepository,
+      FileLeaseRepository fileLeaseRepository,
       S3Template s3Template,
       PermissionService permissionService,
       UserRepository userRepository,
       GroupRepository groupRepository,
+      CacheInvalidationBus cacheInvalidationBus,
+      BlobOutboxService blobOutboxService,
+      FolderStatsService folderStatsService,
+      StorageQuotaService storageQuotaService,
+      ChangeFeedService changeFeedService,
+      BackgroundJobService backgroundJobService,
+      RenditionService renditionService,
+      StorageCodecService storageCodecService,
+      PlatformTransactionManager transactionManager,
       @Value("${S3_BUCKET_NAME}") String bucketName) {
     this.fileRepository = fileRepository;
     this.fileHistoryRepository = fileHistoryRepository;
+    this.fileLeaseRepository = fileLeaseRepository;
     this.s3Template = s3Template;
     this.permissionService = permissionService;
     this.userRepository = userRepository;
     this.groupRepository = groupRepository;
+    this.cacheInvalidationBus = cacheInvalidationBus;
+    this.blobOutboxService = blobOutboxService;
+    this.folderStatsService = folderStatsService;
+    this.storageQuotaService = storageQuotaService;
+    this.changeFeedService = changeFeedService;
+    this.backgroundJobService = backgroundJobService;
+    this.renditionService = renditionService;
+    this.storageCodecService = storageCodecService;
+    this.transactionTemplate = new TransactionTemplate(transactionManager);
     this.bucketName = bucketName;
   }
 
-  @Transactional
+  /**
+   * Stores a new file. Its content is sent to S3 before the metadata transaction
+   * opens, so that the request neither holds a transaction open during the
+   * transfer nor needs a second connection; see {@link #uploadObject}.
+   */
   public FileEntity uploadFile(@NonNull MultipartFile file, Long parentFolderId, @NonNull String permissions)
       throws IOException {
     User currentUser = (User) SecurityContextHolder.getContext().getAuthentication().getPrincipal();
 
-    FileEntity parent = null;
-    if (parentFolderId != null) {
-      parent = fileRepository
-          .findByIdAndDeletedAtIsNull(parentFolderId)
-          .orElseThrow(
-              () -> new ResourceNotFoundException("Parent folder not found with id: " + parentFolderId));
-      if (!parent.isDirectory()) {
-        throw new ParentNotDirectoryException(
-            "Parent with id " + parentFolderId + " is not a directory.");
-      }
-    }
-
-    fileRepository
-        .findByParentAndNameAndDeletedAtIsNull(parent, file.getOriginalFilename())
-        .ifPresent(
-            f -> {
-              throw new DuplicateFileException(
-                  "A file or directory with the name '"
-                      + file.getOriginalFilename()
-                      + "' already exists in this location.");
-            });
-
     Group group = currentUser
         .getGroups()
         .stream()
         .findFirst()
         .orElseThrow(() -> new IllegalStateException("User does not belong to any group."));
 
-    FileEntity newFile = new FileEntity();
-    newFile.setName(file.getOriginalFilename());
-    newFile.setDirectory(false);
-    newFile.setParent(parent);
-    newFile.setOwner(currentUser);
-    newFile.setGroup(group);
+    int perm;
     try {
       // Store permissions as decimal integer (e.g., 755, 644)
-      int perm = Integer.parseInt(permissions);
+      perm = Integer.parseInt(permissions);
       // Validate each digit is 0-7
       if (perm < 0 || perm > 777 || !permissions.matches("[0-7]{3}")) {
         throw new InvalidPermissionFormatException(
             "Invalid permission format. Each digit must be 0-7 (e.g., '755').");
       }
-      newFile.setPermissions(perm);
     } catch (NumberFormatException e) {
       throw new InvalidPermissionFormatException(
           "Invalid permission format. Please use a 3-digit number (e.g., '755').");
     }
 
     String originalFilename = Objects.requireNonNull(file.getOriginalFilename());
+    // Rejects what can be rejected before any bytes reach S3; checked again in the transaction
+    findParentFolder(parentFolderId);
+    storageQuotaService.createCounters(currentUser, group);
+    storageQuotaService.checkAvailable(currentUser, group, file.getSize());
+
     String s3Key = UUID.randomUUID() + "/" + originalFilename;
-    s3Template.upload(Objects.requireNonNull(bucketName), s3Key, file.getInputStream());
-    newFile.setStorageKey(s3Key);
+    Long uploadId = uploadObject(s3Key, file);
+    return inUploadTransaction(uploadId, s3Key, () -> {
+      FileEntity parent = findParentFolder(parentFolderId);
+
+      FileEntity newFile = new FileEntity();
+      newFile.setName(originalFilename);
+      newFile.setDirectory(false);
+      newFile.setParent(parent);
+      newFile.setOwner(currentUser);
+      newFile.setGroup(group);
+      newFile.setPermissions(perm);
+      newFile.setStorageKey(s3Key);
+      newFile.setSize(file.getSize());
+
+      FileEntity savedFile = saveWithUniqueName(newFile, duplicateNameMessage(originalFilename));
+      folderStatsService.added(savedFile);
+      storageQuotaService.charge(currentUser, group, file.getSize());
+      changeFeedService.record(savedFile, FileChange.Type.CREATED);
+      renditionService.request(savedFile);
+      return savedFile;
+    });
+  }
 
-    return fileRepository.save(newFile);
+  private FileEntity findParentFolder(Long parentFolderId) {
+    if (parentFolderId == null) {
+      return null;
+    }
+    FileEntity parent = fileRepository
+        .findByIdAndDeletedAtIsNull(parentFolderId)
+        .orElseThrow(
+            () -> new ResourceNotFoundException("Parent folder not found with id: " + parentFolderId));
+    if (!parent.isDirectory()) {
+      throw new ParentNotDirectoryException(
+          "Parent with id " + parentFolderId + " is not a directory.");
+    }
+    return parent;
   }
 
-  @Transactional
-  public FileEntity updateFile(@NonNull Long fileId, @NonNull MultipartFile file) throws IOException {
+  /**
+   * Replaces the content of a file. Like {@link #uploadFile}, the new content is
+   * sent to S3 under a new key before the metadata transaction opens.
+   */
+  public FileEntity updateFile(@NonNull Long fileId, @NonNull MultipartFile file, Long expectedVersion)
+      throws IOException {
     User currentUser = (User) SecurityContextHolder.getContext().getAuthentication().getPrincipal();
-    FileEntity fileEntity = findFileById(fileId); // This already checks read permission
-
-    if (!permissionService.canWrite(fileEntity, currentUser)) {
-      throw new AccessDeniedException("You do not have permission to write to this file.");
-    }
+    FileEntity current = findFileById(fileId); // This already checks read permission
+    // Rejects what can be rejected before any bytes reach S3; checked again in the transaction
+    checkContentReplaceable(current, currentUser, file);
+    checkVersion(current, expectedVersion);
+    storageQuotaService.createCounters(current.getOwner(), current.getGroup());
+
+    String newS3Key = UUID.randomUUID() + "/" + Objects.requireNonNull(file.getOriginalFilename());
+    Long uploadId = uploadObject(newS3Key, file);
+    return inUploadTransaction(uploadId, newS3Key, () -> replaceContent(fileId, file, newS3Key, expectedVersion));
+  }
 
+  private FileEntity replaceContent(Long fileId, MultipartFile file, String newS3Key, Long expectedVersion) {
+    User currentUser = (User) SecurityContextHolder.getContext().getAuthentication().getPrincipal();
+    FileEntity fileEntity = findFileById(fileId);
+    checkContentReplaceable(fileEntity, currentUser, file);
+    checkVersion(fileEntity, expectedVersion);
     checkFileLock(fileEntity, currentUser);
 
-    if (fileEntity.isDirectory()) {
-      throw new IllegalArgumentException("Cannot upload content to a directory.");
-    }
+    // In a versioned folder the current content stays charged as the new version
+    long addedBytes = StorageQuotaService.replacementBytes(fileEntity, file.getSize());
 
+    // Both branches switch to the new key, so a failed update leaves the current content untouched
+    String oldS3Key = fileEntity.getStorageKey();
     FileEntity parent = fileEntity.getParent();
     // Check if versioning is enabled on the parent folder
     if (parent != null && parent.getVersioningEnabled() != null && parent.getVersioningEnabled()) {
       // Versioning is enabled, create a history record
-      int latestVersion = fileHistoryRepository
-          .findByFileEntityIdOrderByVersionDesc(fileId)
-          .stream()
-          .findFirst()
-          .map(FileHistory::getVersion)
-          .orElse(0);
-
       FileHistory history = new FileHistory();
       history.setFileEntity(fileEntity);
       history.setModifier(currentUser);
-      history.setStorageKey(fileEntity.getStorageKey()); // Old storage key
-      history.setVersion(latestVersion + 1);
+      history.setStorageKey(oldS3Key); // Old storage key
+      history.setSize(fileEntity.getSize());
+      history.setVersion(allocateNextVersion(fileEntity));
       fileHistoryRepository.save(history);
-
-      // Upload new file to S3 with a new key
-      String originalFilename = Objects.requireNonNull(file.getOriginalFilename());
-      String newS3Key = UUID.randomUUID() + "/" + originalFilename;
-      s3Template.upload(Objects.requireNonNull(bucketName), newS3Key, file.getInputStream());
-      fileEntity.setStorageKey(newS3Key); // Update entity with the new key
-    } else {
-      // Versioning is not enabled, just overwrite the file in S3
-      s3Template.upload(Objects.requireNonNull(bucketName), Objects.requireNonNull(fileEntity.getStorageKey()),
-          file.getInputStream());
+    } else if (oldS3Key != null) {
+      // Versioning is not enabled, so drop the old object after commit
+      blobOutboxService.deleteAfterCommit(oldS3Key);
     }
+    fileEntity.setStorageKey(newS3Key);
 
+    folderStatsService.resized(fileEntity, fileEntity.getSize(), file.getSize());
+    storageQuotaService.charge(fileEntity.getOwner(), fileEntity.getGroup(), addedBytes);
+    fileEntity.setSize(file.getSize());
     // Update the name in case it has changed
     fileEntity.setName(Objects.requireNonNull(file.getOriginalFilename()));
-    return fileRepository.save(fileEntity);
+    changeFeedService.record(fileEntity, FileChange.Type.UPDATED);
+    renditionService.request(fileEntity);
+    return saveWithUniqueName(fileEntity, duplicateNameMessage(fileEntity.getName()));
+  }
+
+  private void checkContentReplaceable(FileEntity fileEntity, User currentUser, MultipartFile file) {
+    if (!permissionService.canWrite(fileEntity, currentUser)) {
+      throw new AccessDeniedException("You do not have permission to write to this file.");
+    }
+    if (fileEntity.isDirectory()) {
+      throw new IllegalArgumentException("Cannot upload content to a directory.");
+    }
+    storageQuotaService.checkAvailable(fileEntity.getOwner(), fileEntity.getGroup(),
+        StorageQuotaService.replacementBytes(fileEntity, file.getSize()));
+  }
+
+  /**
+   * Uploads new content under a key that nothing references yet, announcing it
+   * in the outbox first. Call outside of any transaction, then store the key with
+   * {@link #inUploadTransaction}. Compressible content is compressed while it
+   * streams to S3, and the codec recorded as the object's Content-Encoding.
+   *
+   * @return The ID of the upload's announcement.
+   */
+  private Long uploadObject(String s3Key, MultipartFile file) throws IOException {
+    Long uploadId = blobOutboxService.beginUpload(s3Key);
+    Codec codec = storageCodecService.codecFor(file);
+    if (codec == null) {
+      s3Template.upload(Objects.requireNonNull(bucketName), s3Key, file.getInputStream());
+    } else {
+      try (InputStream encoded = storageCodecService.encode(codec, file.getInputStream())) {
+        s3Template.upload(Objects.requireNonNull(bucketName), s3Key, encoded,
+            ObjectMetadata.builder().contentEncoding(codec.getContentEncoding()).build());
+      }
+    }
+    return uploadId;
+  }
+
+  /**
+   * Stores the key of an uploaded object in a transaction that also completes
+   * its announcement. If the transaction fails, the object is deleted again.
+   */
+  private FileEntity inUploadTransaction(Long uploadId, String s3Key, Supplier<FileEntity> metadataChange) {
+    try {
+      return transactionTemplate.execute(status -> {
+        FileEntity saved = metadataChange.get();
+        blobOutboxService.completeUpload(uploadId);
+        return saved;
+      });
+    } catch (RuntimeException e) {
+      blobOutboxService.discardUpload(uploadId, s3Key);
+      throw e;
+    }
   }
 
   public byte[] downloadFile(@NonNull FileEntity fileEntity) throws IOException {
+    return downloadFile(fileEntity, null).data();
+  }
+
+  /**
+   * Reads the content of a file. Content stored compressed with a coding that
+   * {@code acceptEncoding} accepts is returned compressed, to be sent with that
+   * Content-Encoding; anything else is decoded.
+   */
+  public StoredContent downloadFile(@NonNull FileEntity fileEntity, String acceptEncoding) throws IOException {
     if (fileEntity.isDirectory()) {
       throw new IllegalArgumentException("Cannot download a directory.");
     }
@@ -183,9 +324,7 @@ public class FileService {
       // This case should ideally not happen for a file, but as a safeguard:
       throw new IllegalStateException("File entity is missing storage key.");
     }
-    return s3Template.download(Objects.requireNonNull(bucketName), Objects.requireNonNull(fileEntity.getStorageKey()))
-        .getInputStream()
-        .readAllBytes();
+    return storageCodecService.read(Objects.requireNonNull(fileEntity.getStorageKey()), acceptEncoding);
   }
 
   @Transactional(readOnly = true)
@@ -217,13 +356,18 @@ public class FileService {
     }
 
     List<FileEntity> files = fileRepository.findAllByParentAndDeletedAtIsNull(parent);
+    PermissionEvaluator permissions = permissionService.evaluatorFor(currentUser);
     return files.stream()
-        .filter(file -> permissionService.canRead(file, currentUser))
+        .filter(permissions::canRead)
         .collect(Collectors.toList());
   }
 
+  /**
+   * Lists a folder page as read-only rows. The read-only transaction runs the
+   * session read-only with flush mode MANUAL, and the rows are never managed.
+   */
   @Transactional(readOnly = true)
-  public Page<FileEntity> listFiles(Long parentId, @NonNull Pageable pageable) {
+  public Page<FileListItem> listFiles(Long parentId, @NonNull Pageable pageable) {
     User currentUser = (User) SecurityContextHolder.getContext().getAuthentication().getPrincipal();
     FileEntity parent = null;
     if (parentId != null) {
@@ -236,11 +380,14 @@ public class FileService {
       }
     }
 
-    Page<FileEntity> filesPage = fileRepository.findAllByParentAndDeletedAtIsNull(parent, pageable);
+    Page<FileListItem> filesPage = parent != null
+        ? fileRepository.findListItemsByParentId(parent.getId(), Instant.now(), pageable)
+        : fileRepository.findRootListItems(Instant.now(), pageable);
 
     // Filter files based on read permission
-    List<FileEntity> filteredFiles = filesPage.getContent().stream()
-        .filter(file -> permissionService.canRead(file, currentUser))
+    PermissionEvaluator permissions = permissionService.evaluatorFor(currentUser);
+    List<FileListItem> filteredFiles = filesPage.getContent().stream()
+        .filter(permissions::canRead)
         .collect(Collectors.toList());
 
     return new PageImpl<>(Objects.requireNonNull(filteredFiles), pageable, filesPage.getTotalElements());
@@ -263,16 +410,6 @@ public class FileService {
       }
     }
 
-    fileRepository
-        .findByParentAndNameAndDeletedAtIsNull(parent, request.getName())
-        .ifPresent(
-            f -> {
-              throw new DuplicateFileException(
-                  "A file or directory with the name '"
-                      + request.getName()
-                      + "' already exists in this location.");
-            });
-
     // The primary group of the user is used as the folder's group.
     // A more sophisticated implementation might allow selecting a group.
     Group group = currentUser
@@ -296,11 +433,14 @@ public class FileService {
     }
     newDirectory.setPermissions(perm);
 
-    return fileRepository.save(newDirectory);
+    FileEntity savedDirectory = saveWithUniqueName(newDirectory, duplicateNameMessage(request.getName()));
+    folderStatsService.added(savedDirectory);
+    changeFeedService.record(savedDirectory, FileChange.Type.CREATED);
+    return savedDirectory;
   }
 
   @Transactional
-  public void softDeleteFile(@NonNull Long fileId) {
+  public void softDeleteFile(@NonNull Long fileId, Long expectedVersion) {
     User currentUser = (User) SecurityContextHolder.getContext().getAuthentication().getPrincipal();
     FileEntity fileEntity = fileRepository
         .findByIdAndDeletedAtIsNull(fileId)
@@ -310,14 +450,32 @@ public class FileService {
       throw new AccessDeniedException("You do not have permission to delete this file.");
     }
 
+    checkVersion(fileEntity, expectedVersion);
     checkFileLock(fileEntity, currentUser);
 
-    fileEntity.setDeletedAt(LocalDateTime.now());
+    // The whole subtree goes to the trash under one batch ID so restore can reverse
+    // exactly this operation (items trashed earlier keep their own batch).
+    String batchId = UUID.randomUUID().toString();
+    LocalDateTime deletedAt = LocalDateTime.now();
+    fileEntity.setDeletedAt(deletedAt);
+    fileEntity.setDeletionBatchId(batchId);
     fileRepository.save(fileEntity);
+    folderStatsService.removed(fileEntity);
+    // One change for the whole subtree
+    changeFeedService.record(fileEntity, FileChange.Type.DELETED);
+
+    if (fileEntity.isDirectory()) {
+      // One set-based update per tree level
+      int marked;
+      do {
+        marked = fileRepository.markChildrenDeleted(batchId, deletedAt);
+      } while (marked > 0);
+      cacheInvalidationBus.allChanged(FileEntity.class);
+    }
   }
 
   @Transactional
-  public FileEntity renameFile(@NonNull Long fileId, @NonNull String newName) {
+  public FileEntity renameFile(@NonNull Long fileId, @NonNull String newName, Long expectedVersion) {
     User currentUser = (User) SecurityContextHolder.getContext().getAuthentication().getPrincipal();
     FileEntity fileEntity = fileRepository
         .findByIdAndDeletedAtIsNull(fileId)
@@ -327,43 +485,28 @@ public class FileService {
       throw new AccessDeniedException("You do not have permission to rename this file.");
     }
 
+    checkVersion(fileEntity, expectedVersion);
     checkFileLock(fileEntity, currentUser);
 
-    fileRepository
-        .findByParentAndNameAndDeletedAtIsNull(fileEntity.getParent(), newName)
-        .ifPresent(
-            f -> {
-              throw new DuplicateFileException(
-                  "A file or directory with the name '"
-                      + newName
-                      + "' already exists in this location.");
-            });
-
     fileEntity.setName(newName);
-    return fileRepository.save(fileEntity);
+    changeFeedService.record(fileEntity, FileChange.Type.UPDATED);
+    return saveWithUniqueName(fileEntity, duplicateNameMessage(newName));
   }
 
   @Transactional(readOnly = true)
-  public List<FileEntity> searchFiles(String name, String tags) {
+  public List<FileListItem> searchFiles(String name, String tags) {
     User currentUser = (User) SecurityContextHolder.getContext().getAuthentication().getPrincipal();
-    Specification<FileEntity> spec = FileSpecification.isNotDeleted();
-
-    if (StringUtils.hasText(name)) {
-      spec = spec.and(FileSpecification.nameContains(name));
-    }
-    if (StringUtils.hasText(tags)) {
-      spec = spec.and(FileSpecification.tagsContain(tags));
-    }
-
-    List<FileEntity> allFiles = fileRepository.findAll(spec);
+    List<FileListItem> allFiles = fileRepository.searchListItems(containsPattern(name), containsPattern(tags),
+        Instant.now());
 
+    PermissionEvaluator permissions = permissionService.evaluatorFor(currentUser);
     return allFiles.stream()
-        .filter(file -> permissionService.canRead(file, currentUser))
+        .filter(permissions::canRead)
         .collect(Collectors.toList());
   }
 
   @Transactional
-  public FileEntity moveFile(@NonNull Long fileId, @NonNull Long newParentId) {
+  public FileEntity moveFile(@NonNull Long fileId, @NonNull Long newParentId, Long expectedVersion) {
     User currentUser = (User) SecurityContextHolder.getContext().getAuthentication().getPrincipal();
     FileEntity fileToMove = fileRepository
         .findByIdAndDeletedAtIsNull(fileId)
@@ -373,6 +516,7 @@ public class FileService {
       throw new AccessDeniedException("You do not have permission to move this file.");
     }
 
+    checkVersion(fileToMove, expectedVersion);
     checkFileLock(fileToMove, currentUser);
 
     FileEntity destinationFolder = fileRepository
@@ -390,33 +534,58 @@ public class FileService {
           "You do not have permission to move files into the destination folder.");
     }
 
-    fileRepository
-        .findByParentAndNameAndDeletedAtIsNull(destinationFolder, fileToMove.getName())
-        .ifPresent(
-            f -> {
-              throw new DuplicateFileException(
-                  "A file or directory with the name '"
-                      + fileToMove.getName()
-                      + "' already exists in the destination folder.");
-            });
+    if (folderStatsService.ancestorIds(destinationFolder).contains(fileToMove.getId())) {
+      throw new IllegalArgumentException("Cannot move a folder into itself or one of its subfolders.");
+    }
 
+    FileEntity oldParent = fileToMove.getParent();
     fileToMove.setParent(destinationFolder);
-    return fileRepository.save(fileToMove);
+    FileEntity movedFile = saveWithUniqueName(fileToMove,
+        "A file or directory with the name '" + fileToMove.getName()
+            + "' already exists in the destination folder.");
+    folderStatsService.moved(movedFile, oldParent);
+    changeFeedService.recordMove(fileToMove, oldParent);
+    return movedFile;
   }
 
   @Transactional(readOnly = true)
-  public List<FileEntity> listDeletedFiles() {
+  public Page<FileEntity> listDeletedFiles(@NonNull Pageable pageable) {
     User currentUser = (User) SecurityContextHolder.getContext().getAuthentication().getPrincipal();
-    List<FileEntity> deletedFiles = fileRepository.findAllByDeletedAtIsNotNull();
+    Page<FileEntity> trashPage = fileRepository.findTrashRoots(currentUser, currentUser.getGroups(), pageable);
 
-    // Filter the list to only include files the user has permission to read
-    return deletedFiles.stream()
-        .filter(file -> permissionService.canRead(file, currentUser))
+    // Filter the page to only include files the user has permission to read
+    PermissionEvaluator permissions = permissionService.evaluatorFor(currentUser);
+    List<FileEntity> filteredFiles = trashPage.getContent().stream()
+        .filter(permissions::canRead)
         .collect(Collectors.toList());
+
+    return new PageImpl<>(Objects.requireNonNull(filteredFiles), pageable, trashPage.getTotalElements());
+  }
+
+  /**
+   * Returns the size and item counts of everything below a folder, read from its
+   * running totals.
+   */
+  @Transactional(readOnly = true)
+  public FolderStats getFolderStats(@NonNull Long folderId) {
+    FileEntity folder = findFileById(folderId); // Checks read permission
+    if (!folder.isDirectory()) {
+      throw new IllegalArgumentException("Sizes are only kept for directories.");
+    }
+    return folderStatsService.get(folderId);
+  }
+
+  @Transactional(readOnly = true)
+  public TrashSummaryResponse getTrashSummary() {
+    User currentUser = (User) SecurityContextHolder.getContext().getAuthentication().getPrincipal();
+    long items = fileRepository.countTrashedItems(currentUser, currentUser.getGroups());
+    long bytes = fileRepository.sumTrashedBytes(currentUser, currentUser.getGroups())
+        + fileHistoryRepository.sumTrashedVersionBytes(currentUser, currentUser.getGroups());
+    return new TrashSummaryResponse(items, bytes);
   }
 
   @Transactional
-  public FileEntity restoreFile(@NonNull Long fileId) {
+  public FileEntity restoreFile(@NonNull Long fileId, Long expectedVersion) {
     User currentUser = (User) SecurityContextHolder.getContext().getAuthentication().getPrincipal();
     FileEntity fileEntity = fileRepository
         .findByIdAndDeletedAtIsNotNull(fileId)
@@ -428,12 +597,30 @@ public class FileService {
       throw new AccessDeniedException("You do not have permission to restore this file.");
     }
 
+    checkVersion(fileEntity, expectedVersion);
+
+    FileEntity parent = fileEntity.getParent();
+    if (parent != null && parent.getDeletedAt() != null) {
+      throw new ParentDeletedException(
+          "The parent folder '" + parent.getName() + "' is in the trash. Restore the folder instead.");
+    }
+
+    String batchId = fileEntity.getDeletionBatchId();
     fileEntity.setDeletedAt(null);
-    return fileRepository.save(fileEntity);
+    fileEntity.setDeletionBatchId(null);
+    FileEntity restored = saveWithUniqueName(fileEntity, duplicateNameMessage(fileEntity.getName()));
+    if (batchId != null) {
+      // Restores the rest of the subtree that was deleted together with this item
+      fileRepository.restoreDeletionBatch(batchId);
+      cacheInvalidationBus.allChanged(FileEntity.class);
+    }
+    folderStatsService.added(restored);
+    changeFeedService.record(fileEntity, FileChange.Type.RESTORED);
+    return restored;
   }
 
   @Transactional
-  public FileEntity toggleVersioning(@NonNull Long folderId, boolean enable) {
+  public FileEntity toggleVersioning(@NonNull Long folderId, boolean enable, Long expectedVersion) {
     User currentUser = (User) SecurityContextHolder.getContext().getAuthentication().getPrincipal();
     FileEntity folder = findFileById(folderId); // This checks for existence and read permission
 
@@ -445,7 +632,31 @@ public class FileService {
       throw new AccessDeniedException("You do not have permission to modify this folder.");
     }
 
+    checkVersion(folder, expectedVersion);
     folder.setVersioningEnabled(enable);
+    changeFeedService.record(folder, FileChange.Type.UPDATED);
+    return fileRepository.save(folder);
+  }
+
+  @Transactional
+  public FileEntity updateRetentionPolicy(@NonNull Long folderId, Integer keepLast, Integer keepWithinDays,
+      VersionThinning thinning, Long expectedVersion) {
+    User currentUser = (User) SecurityContextHolder.getContext().getAuthentication().getPrincipal();
+    FileEntity folder = findFileById(folderId); // This checks for existence and read permission
+
+    if (!folder.isDirectory()) {
+      throw new IllegalArgumentException("Retention policies can only be set on directories.");
+    }
+
+    if (!permissionService.canWrite(folder, currentUser)) {
+      throw new AccessDeniedException("You do not have permission to modify this folder.");
+    }
+
+    checkVersion(folder, expectedVersion);
+    folder.setRetentionKeepLast(keepLast);
+    folder.setRetentionKeepWithinDays(keepWithinDays);
+    folder.setRetentionThinning(thinning);
+    changeFeedService.record(folder, FileChange.Type.UPDATED);
     return fileRepository.save(folder);
   }
 
@@ -462,7 +673,7 @@ public class FileService {
   }
 
   @Transactional
-  public FileEntity restoreFileVersion(@NonNull Long fileId, @NonNull Long versionId) {
+  public FileEntity restoreFileVersion(@NonNull Long fileId, @NonNull Long versionId, Long expectedVersion) {
     User currentUser = (User) SecurityContextHolder.getContext().getAuthentication().getPrincipal();
     FileEntity fileEntity = findFileById(fileId); // Checks read permission
 
@@ -470,33 +681,43 @@ public class FileService {
       throw new AccessDeniedException("You do not have permission to write to this file.");
     }
 
+    checkVersion(fileEntity, expectedVersion);
+    checkFileLock(fileEntity, currentUser);
+
     FileHistory history = fileHistoryRepository
         .findById(versionId)
         .orElseThrow(
             () -> new ResourceNotFoundException("File version not found with id: " + versionId));
 
     // Create a new history entry for the current state before restoring
-    int latestVersion = fileHistoryRepository
-        .findByFileEntityIdOrderByVersionDesc(fileId)
-        .stream()
-        .findFirst()
-        .map(FileHistory::getVersion)
-        .orElse(0);
-
     FileHistory currentVersionHistory = new FileHistory();
     currentVersionHistory.setFileEntity(fileEntity);
     currentVersionHistory.setModifier(currentUser);
     currentVersionHistory.setStorageKey(fileEntity.getStorageKey());
-    currentVersionHistory.setVersion(latestVersion + 1);
+    currentVersionHistory.setSize(fileEntity.getSize());
+    currentVersionHistory.setVersion(allocateNextVersion(fileEntity));
     fileHistoryRepository.save(currentVersionHistory);
 
     // Restore the old storage key
     fileEntity.setStorageKey(history.getStorageKey());
+    folderStatsService.resized(fileEntity, fileEntity.getSize(), history.getSize());
+    // The current content stays charged as the new version
+    storageQuotaService.charge(fileEntity.getOwner(), fileEntity.getGroup(), sizeOf(history.getSize()));
+    fileEntity.setSize(history.getSize());
+    changeFeedService.record(fileEntity, FileChange.Type.UPDATED);
+    renditionService.request(fileEntity);
     return fileRepository.save(fileEntity);
   }
 
+  /**
+   * Locks or unlocks a file. A lock is a lease that expires after the configured
+   * duration unless it is renewed; locking a file again also renews it.
+   *
+   * @return The lease when locking, {@code null} when unlocking.
+   */
   @Transactional
-  public void updateLockStatus(@NonNull Long fileId, boolean lock, @NonNull String username) {
+  public FileLease updateLockStatus(@NonNull Long fileId, boolean lock, @NonNull String username,
+      Long expectedVersion) {
     User currentUser = userRepository.findByUsername(username)
         .orElseThrow(() -> new ResourceNotFoundException("User not found: " + username));
     FileEntity fileEntity = findFileById(fileId);
@@ -514,33 +735,70 @@ public class FileService {
       throw new AccessDeniedException("You do not have permission to change the lock status of this file.");
     }
 
+    checkVersion(fileEntity, expectedVersion);
+
+    Instant now = Instant.now();
     if (lock) {
-      if (fileEntity.isLocked() && !fileEntity.getLockedBy().equals(currentUser)) {
+      return acquireLease(fileId, currentUser, now);
+    }
+    // Unlocking a file that is not locked (or whose lease expired) is a no-op
+    if (fileLeaseRepository.release(fileId, currentUser) == 0
+        && fileLeaseRepository.findActiveHolderId(fileId, now).isPresent()) {
+      throw new AccessDeniedException("You cannot unlock a file locked by another user.");
+    }
+    return null;
+  }
+
+  /**
+   * Extends the lease the current user holds on a file. An expired lease cannot be
+   * renewed, since someone else may have locked and changed the file meanwhile.
+   */
+  @Transactional
+  public FileLease renewLock(@NonNull Long fileId, @NonNull String username) {
+    User currentUser = userRepository.findByUsername(username)
+        .orElseThrow(() -> new ResourceNotFoundException("User not found: " + username));
+    Instant now = Instant.now();
+    FileLease lease = fileLeaseRepository.findForUpdate(fileId)
+        .filter(l -> isHeldBy(l, currentUser) && !l.isExpired(now))
+        .orElseThrow(() -> new LockNotHeldException(
+            "You do not hold a lock on file with id " + fileId + ". Lock it again."));
+    lease.setExpiresAt(now.plus(leaseDuration));
+    return lease;
+  }
+
+  private FileLease acquireLease(Long fileId, User currentUser, Instant now) {
+    // Waits for writes that already passed checkFileLock to commit
+    fileRepository.lockById(fileId);
+    Instant expiresAt = now.plus(leaseDuration);
+    Optional<FileLease> existing = fileLeaseRepository.findForUpdate(fileId);
+    if (existing.isEmpty()) {
+      try {
+        return fileLeaseRepository.saveAndFlush(new FileLease(fileId, currentUser, now, expiresAt));
+      } catch (DataIntegrityViolationException e) {
+        // Another user inserted a lease after our lookup
         throw new FileLockedException("File is already locked by another user.");
       }
-      fileEntity.setLocked(true);
-      fileEntity.setLockedBy(currentUser);
-      fileEntity.setLockedAt(LocalDateTime.now());
-    } else {
-      if (!fileEntity.isLocked()) {
-        // Optionally, handle the case where an unlock is attempted on an already
-        // unlocked file.
-        // For now, we'll just let it proceed silently.
-        return;
-      }
-      if (!fileEntity.getLockedBy().equals(currentUser)) {
-        throw new AccessDeniedException("You cannot unlock a file locked by another user.");
+    }
+
+    FileLease lease = existing.get();
+    if (!isHeldBy(lease, currentUser) || lease.isExpired(now)) {
+      if (!lease.isExpired(now)) {
+        throw new FileLockedException("File is already locked by another user.");
       }
-      fileEntity.setLocked(false);
-      fileEntity.setLockedBy(null);
-      fileEntity.setLockedAt(null);
+      // Take over the expired lease
+      lease.setHolder(currentUser);
+      lease.setAcquiredAt(now);
     }
+    lease.setExpiresAt(expiresAt);
+    return lease;
+  }
 
-    fileRepository.save(fileEntity);
+  private static boolean isHeldBy(FileLease lease, User user) {
+    return lease.getHolder().getId().equals(user.getId());
   }
 
   @Transactional
-  public FileEntity changePermissions(@NonNull Long fileId, @NonNull String newPermissions) {
+  public FileEntity changePermissions(@NonNull Long fileId, @NonNull String newPermissions, Long expectedVersion) {
     User currentUser = (User) SecurityContextHolder.getContext().getAuthentication().getPrincipal();
     FileEntity fileEntity = fileRepository
         .findByIdAndDeletedAtIsNull(fileId)
@@ -550,6 +808,8 @@ public class FileService {
     if (!fileEntity.getOwner().getId().equals(currentUser.getId())) {
       throw new AccessDeniedException("Only the owner can change permissions.");
     }
+    checkVersion(fileEntity, expectedVersion);
+    checkFileLock(fileEntity, currentUser);
 
     try {
       // Parse as decimal integer (e.g., 755, 644)
@@ -564,6 +824,7 @@ public class FileService {
           "Invalid permission format. Please use a 3-digit number (e.g., '755').");
     }
 
+    changeFeedService.record(fileEntity, FileChange.Type.PERMISSIONS_CHANGED);
     return fileRepository.save(fileEntity);
   }
 
@@ -584,15 +845,102 @@ public class FileService {
     return breadcrumbs;
   }
 
+  /** Lower-case LIKE pattern matching values that contain the text, or null for no filter. */
+  private static String containsPattern(String text) {
+    return StringUtils.hasText(text) ? "%" + text.toLowerCase() + "%" : null;
+  }
+
+  /**
+   * Allocates the next history version number with a single-row update instead of
+   * scanning the file's history. The returned number is unique for the file.
+   */
+  private int allocateNextVersion(FileEntity fileEntity) {
+    fileRepository.incrementLatestVersion(fileEntity.getId());
+    cacheInvalidationBus.entityChanged(FileEntity.class, fileEntity.getId());
+    Integer version = fileRepository.findLatestVersionById(fileEntity.getId());
+    if (version == null) {
+      throw new IllegalStateException("Failed to allocate a version for file id: " + fileEntity.getId());
+    }
+    fileEntity.setLatestVersion(version);
+    return version;
+  }
+
+  /**
+   * Saves and flushes the entity so that the unique live-name index is checked
+   * immediately, translating a violation into a {@link DuplicateFileException}.
+   */
+  private FileEntity saveWithUniqueName(FileEntity fileEntity, String duplicateMessage) {
+    try {
+      return fileRepository.saveAndFlush(fileEntity);
+    } catch (DataIntegrityViolationException e) {
+      if (isUniqueNameViolation(e)) {
+        throw new DuplicateFileException(duplicateMessage);
+      }
+      throw e;
+    }
+  }
+
+  private boolean isUniqueNameViolation(DataIntegrityViolationException e) {
+    // H2 reports the index as "PUBLIC.UK_FILES_LIVE_NAME ON ...", PostgreSQL as the bare name.
+    // Failed JDBC batches carry no constraint name, only the driver's message.
+    if (!(e.getCause() instanceof ConstraintViolationException violation)) {
+      return false;
+    }
+    String constraint = violation.getConstraintName() != null ? violation.getConstraintName()
+        : violation.getSQLException().getMessage();
+    return constraint != null
+        && constraint.toLowerCase().contains(DatabaseConstraintInitializer.UNIQUE_LIVE_NAME_INDEX);
+  }
+
+  private String duplicateNameMessage(String name) {
+    return "A file or directory with the name '" + name + "' already exists in this location.";
+  }
+
+  /**
+   * Rejects a change made against an outdated copy of the file, when the client
+   * sent the version it last saw (If-Match). Changes committed by others after
+   * this check are caught by the {@code @Version} column when this transaction
+   * flushes.
+   */
+  private void checkVersion(FileEntity fileEntity, Long expectedVersion) {
+    if (expectedVersion != null && !expectedVersion.equals(fileEntity.getRowVersion())) {
+      throw new FileModifiedException("File with id " + fileEntity.getId()
+          + " has been modified by someone else. Reload it and try again.");
+    }
+  }
+
+  // Files uploaded before sizes were recorded count as empty
+  private static long sizeOf(Long size) {
+    return size == null ? 0 : size;
+  }
+
+  /**
+   * Rejects a change to a file leased by another user. The file's row stays
+   * locked until the change commits, so no lease can be acquired in between.
+   */
   private void checkFileLock(FileEntity fileEntity, User currentUser) {
-    if (fileEntity.isLocked() && (fileEntity.getLockedBy() == null || !fileEntity.getLockedBy().equals(currentUser))) {
+    fileRepository.lockById(fileEntity.getId());
+    Optional<Long> holderId = fileLeaseRepository.findActiveHolderId(fileEntity.getId(), Instant.now());
+    if (holderId.isPresent() && !holderId.get().equals(currentUser.getId())) {
       throw new FileLockedException("File is locked by another user and cannot be modified.");
     }
   }
 
+  /**
+   * The outcome of an ownership change: the changed item, and the job that
+   * changes its subtree if the change is recursive.
+   */
+  public record OwnerChange(FileEntity file, BackgroundJob job) {
+  }
+
+  /**
+   * Hands an item to a new owner and group. For a recursive change of a folder,
+   * the folder itself is changed right away and its subtree by a background job
+   * queued in the same transaction.
+   */
   @Transactional
-  public FileEntity changeOwner(@NonNull Long fileId, @NonNull Long newOwnerId, @NonNull Long newGroupId,
-      boolean recursive) {
+  public OwnerChange changeOwner(@NonNull Long fileId, @NonNull Long newOwnerId, @NonNull Long newGroupId,
+      boolean recursive, Long expectedVersion) {
     User currentUser = (User) SecurityContextHolder.getContext().getAuthentication().getPrincipal();
 
     // Check if current user is admin
@@ -606,6 +954,7 @@ public class FileService {
     FileEntity fileEntity = fileRepository
         .findByIdAndDeletedAtIsNull(fileId)
         .orElseThrow(() -> new ResourceNotFoundException("File not found with id: " + fileId));
+    checkVersion(fileEntity, expectedVersion);
 
     User newOwner = userRepository.findById(newOwnerId)
         .orElseThrow(() -> new ResourceNotFoundException("User not found with id: " + newOwnerId));
@@ -613,32 +962,58 @@ public class FileService {
     Group newGroup = groupRepository.findById(newGroupId)
         .orElseThrow(() -> new ResourceNotFoundException("Group not found with id: " + newGroupId));
 
-    fileEntity.setOwner(newOwner);
-    fileEntity.setGroup(newGroup);
+    // Bytes handed over, per previous owner and group
+    Map<Long, Long> bytesByOwner = new HashMap<>();
+    Map<Long, Long> bytesByGroup = new HashMap<>();
+    storageQuotaService.addVersionBytes(List.of(fileEntity.getId()), bytesByOwner, bytesByGroup);
+    changeOwner(fileEntity, newOwner, newGroup, bytesByOwner, bytesByGroup);
 
     FileEntity savedFile = fileRepository.save(fileEntity);
+    storageQuotaService.transfer(bytesByOwner, bytesByGroup, newOwner, newGroup);
 
+    BackgroundJob job = null;
     if (recursive && fileEntity.isDirectory()) {
-      changeOwnerRecursive(fileEntity, newOwner, newGroup);
+      FolderStats stats = folderStatsService.get(fileEntity.getId());
+      job = backgroundJobService.enqueue(BackgroundJob.Type.CHANGE_OWNER, currentUser, fileEntity.getId(),
+          new ChangeOwnerJobHandler.Parameters(newOwnerId, newGroupId), stats.getFiles() + stats.getFolders());
     }
+    return new OwnerChange(savedFile, job);
+  }
 
-    return savedFile;
+  private void changeOwner(FileEntity item, User newOwner, Group newGroup, Map<Long, Long> bytesByOwner,
+      Map<Long, Long> bytesByGroup) {
+    if (item.getSize() != null) {
+      bytesByOwner.merge(item.getOwner().getId(), item.getSize(), Long::sum);
+      bytesByGroup.merge(item.getGroup().getId(), item.getSize(), Long::sum);
+    }
+    item.setOwner(newOwner);
+    item.setGroup(newGroup);
+    changeFeedService.record(item, FileChange.Type.PERMISSIONS_CHANGED);
   }
 
-  private void changeOwnerRecursive(FileEntity parent, User newOwner, Group newGroup) {
-    List<FileEntity> children = fileRepository.findAllByParentAndDeletedAtIsNull(parent);
+  /**
+   * Hands the next page of a folder's live children to the new owner and group,
+   * in the caller's transaction. Used by {@link ChangeOwnerJobHandler}.
+   *
+   * @return The changed children, in ID order.
+   */
+  @Transactional(propagation = Propagation.MANDATORY)
+  public List<FileEntity> changeOwnerOfChildren(Long folderId, long afterId, int limit, User newOwner,
+      Group newGroup) {
+    List<FileEntity> children = fileRepository.findLiveChildrenAfter(folderId, afterId, PageRequest.of(0, limit));
+    Map<Long, Long> bytesByOwner = new HashMap<>();
+    Map<Long, Long> bytesByGroup = new HashMap<>();
+    storageQuotaService.addVersionBytes(children.stream().map(FileEntity::getId).toList(), bytesByOwner,
+        bytesByGroup);
     for (FileEntity child : children) {
-      child.setOwner(newOwner);
-      child.setGroup(newGroup);
-      fileRepository.save(child);
-      if (child.isDirectory()) {
-        changeOwnerRecursive(child, newOwner, newGroup);
-      }
+      changeOwner(child, newOwner, newGroup, bytesByOwner, bytesByGroup);
     }
+    storageQuotaService.transfer(bytesByOwner, bytesByGroup, newOwner, newGroup);
+    return children;
   }
 
   @Transactional
-  public FileEntity updateTags(@NonNull Long fileId, @NonNull String tags) {
+  public FileEntity updateTags(@NonNull Long fileId, @NonNull String tags, Long expectedVersion) {
     User currentUser = (User) SecurityContextHolder.getContext().getAuthentication().getPrincipal();
     FileEntity fileEntity = fileRepository
         .findByIdAndDeletedAtIsNull(fileId)
@@ -648,9 +1023,11 @@ public class FileService {
       throw new AccessDeniedException("You do not have permission to modify tags for this file.");
     }
 
+    checkVersion(fileEntity, expectedVersion);
     checkFileLock(fileEntity, currentUser);
 
     fileEntity.setCustomTags(tags);
+    changeFeedService.record(fileEntity, FileChange.Type.UPDATED);
     return fileRepository.save(fileEntity);
   }
 }
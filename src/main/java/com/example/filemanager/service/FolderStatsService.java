@@ -0,0 +1,121 @@
+package com.example.filemanager.service;
+
+import com.example.filemanager.domain.FileEntity;
+import com.example.filemanager.domain.FolderStats;
+import com.example.filemanager.repository.FolderStatsRepository;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Keeps the {@link FolderStats} of every folder up to date. Each method is
+ * called in the transaction of the change it describes and adjusts all
+ * ancestors of the changed item with one UPDATE, so the totals commit (or roll
+ * back) together with the change.
+ */
+@Service
+@Transactional(propagation = Propagation.MANDATORY)
+public class FolderStatsService {
+
+    private final FolderStatsRepository folderStatsRepository;
+
+    public FolderStatsService(FolderStatsRepository folderStatsRepository) {
+        this.folderStatsRepository = folderStatsRepository;
+    }
+
+    /**
+     * Counts a new or restored item, including the content of a folder, in the
+     * totals of its ancestors.
+     */
+    public void added(FileEntity item) {
+        if (item.isDirectory() && !folderStatsRepository.existsById(item.getId())) {
+            folderStatsRepository.save(new FolderStats(item.getId()));
+        }
+        apply(ancestorIds(item.getParent()), contribution(item), 1);
+    }
+
+    /**
+     * Removes an item that moved to the trash, including the content of a folder,
+     * from the totals of its ancestors. A folder keeps its own totals for a
+     * restore.
+     */
+    public void removed(FileEntity item) {
+        apply(ancestorIds(item.getParent()), contribution(item), -1);
+    }
+
+    /**
+     * Records a change of a file's content size.
+     */
+    public void resized(FileEntity file, Long oldSize, Long newSize) {
+        long delta = sizeOf(newSize) - sizeOf(oldSize);
+        if (delta != 0) {
+            folderStatsRepository.add(ancestorIds(file.getParent()), delta, 0, 0);
+        }
+    }
+
+    /**
+     * Moves an item's contribution from its old ancestors to its new ones (the
+     * item's parent must already be set to the destination). Folders above both
+     * locations are left alone.
+     */
+    public void moved(FileEntity item, FileEntity oldParent) {
+        Set<Long> oldAncestors = ancestorIds(oldParent);
+        Set<Long> newAncestors = ancestorIds(item.getParent());
+        Set<Long> common = new HashSet<>(oldAncestors);
+        common.retainAll(newAncestors);
+        oldAncestors.removeAll(common);
+        newAncestors.removeAll(common);
+
+        long[] contribution = contribution(item);
+        apply(oldAncestors, contribution, -1);
+        apply(newAncestors, contribution, 1);
+    }
+
+    /**
+     * Returns the IDs of a folder and all folders above it, nearest first.
+     *
+     * @throws IllegalStateException if the parent chain contains a cycle.
+     */
+    public Set<Long> ancestorIds(FileEntity folder) {
+        Set<Long> ids = new LinkedHashSet<>();
+        for (FileEntity current = folder; current != null; current = current.getParent()) {
+            if (!ids.add(current.getId())) {
+                throw new IllegalStateException("Folder " + folder.getId() + " is its own ancestor.");
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Returns the totals of a folder. Folders created before the totals existed
+     * and never backfilled read as empty.
+     */
+    @Transactional(readOnly = true, propagation = Propagation.REQUIRED)
+    public FolderStats get(Long folderId) {
+        return folderStatsRepository.findById(folderId).orElseGet(() -> new FolderStats(folderId));
+    }
+
+    /** Bytes, files and folders an item adds to each of its ancestors. */
+    private long[] contribution(FileEntity item) {
+        if (!item.isDirectory()) {
+            return new long[] { sizeOf(item.getSize()), 1, 0 };
+        }
+        return folderStatsRepository.findForUpdate(item.getId())
+                .map(stats -> new long[] { stats.getBytes(), stats.getFiles(), stats.getFolders() + 1 })
+                .orElse(new long[] { 0, 0, 1 });
+    }
+
+    private void apply(Set<Long> folderIds, long[] contribution, int sign) {
+        if (!folderIds.isEmpty()) {
+            folderStatsRepository.add(folderIds, sign * contribution[0], sign * contribution[1],
+                    sign * contribution[2]);
+        }
+    }
+
+    private static long sizeOf(Long size) {
+        return size == null ? 0 : size;
+    }
+}
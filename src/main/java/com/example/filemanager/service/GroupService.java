@@ -2,6 +2,7 @@ package com.example.filemanager.service;
 
 import com.example.filemanager.domain.FileEntity;
 import com.example.filemanager.domain.Group;
+import com.example.filemanager.domain.User;
 import com.example.filemanager.exception.GroupNotFoundException;
 import com.example.filemanager.repository.FileRepository;
 import com.example.filemanager.repository.GroupRepository;
@@ -18,10 +19,13 @@ public class GroupService {
 
     private final GroupRepository groupRepository;
     private final FileRepository fileRepository;
+    private final CacheInvalidationBus cacheInvalidationBus;
 
-    public GroupService(GroupRepository groupRepository, FileRepository fileRepository) {
+    public GroupService(GroupRepository groupRepository, FileRepository fileRepository,
+            CacheInvalidationBus cacheInvalidationBus) {
         this.groupRepository = groupRepository;
         this.fileRepository = fileRepository;
+        this.cacheInvalidationBus = cacheInvalidationBus;
     }
 
     public Group createGroup(@NonNull Group group) {
@@ -59,11 +63,11 @@ public class GroupService {
         Group adminsGroup = groupRepository.findByName("admins")
                 .orElseThrow(() -> new GroupNotFoundException("Admins group not found"));
 
-        List<FileEntity> ownedFiles = fileRepository.findAllByGroup(group);
-        for (FileEntity file : ownedFiles) {
-            file.setGroup(adminsGroup);
-            fileRepository.save(file);
-        }
+        // Set-based update, so the number of files does not matter
+        fileRepository.transferGroup(group, adminsGroup);
+        // Files moved by the bulk update, and memberships that referenced the group
+        cacheInvalidationBus.allChanged(FileEntity.class);
+        cacheInvalidationBus.allChanged(User.class);
 
         groupRepository.deleteById(id);
     }
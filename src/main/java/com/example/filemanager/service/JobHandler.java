@@ -0,0 +1,23 @@
+package com.example.filemanager.service;
+
+import com.example.filemanager.domain.BackgroundJob;
+
+/**
+ * Runs one type of {@link BackgroundJob}, a chunk at a time. Implementations are
+ * Spring beans; {@link BackgroundJobService} finds them by their type.
+ */
+public interface JobHandler {
+
+    BackgroundJob.Type getType();
+
+    /**
+     * Processes the next chunk of a job in the caller's transaction. The chunk
+     * commits together with the job, so the handler records where the next step
+     * continues with {@link BackgroundJob#setCheckpoint} and its progress with
+     * {@link BackgroundJob#addProcessedItems}. A chunk should finish well within
+     * the job lease ({@code jobs.lease}).
+     *
+     * @return {@code true} if the job is complete.
+     */
+    boolean step(BackgroundJob job);
+}
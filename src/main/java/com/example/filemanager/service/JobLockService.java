@@ -0,0 +1,107 @@
+package com.example.filemanager.service;
+
+import com.example.filemanager.domain.JobLock;
+import com.example.filemanager.repository.JobLockRepository;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Objects;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Makes sure a scheduled job runs on only one node when several replicas share
+ * the database. Locks are rows of the {@code job_locks} table, taken with a
+ * conditional UPDATE (or an INSERT on the first run), so it works the same on
+ * PostgreSQL and H2.
+ * <p>
+ * A lock is held until the job finishes, but at least
+ * {@code scheduling.lock.hold-at-least} so that a node whose clock is slightly
+ * behind does not run the same cron trigger again, and at most the duration
+ * passed by the job so that a crashed node does not block the job forever.
+ * Nodes compare lock times with their own clocks, which must be synchronized.
+ */
+@Service
+public class JobLockService {
+
+    private static final Logger logger = LoggerFactory.getLogger(JobLockService.class);
+
+    private final JobLockRepository jobLockRepository;
+    private final TransactionTemplate transactionTemplate;
+    // e.g. "4711@host-1"; stored with the lock to see which node ran a job
+    private final String nodeId = ManagementFactory.getRuntimeMXBean().getName();
+
+    @Value("${scheduling.lock.hold-at-least:PT30S}")
+    private Duration holdAtLeast = Duration.ofSeconds(30);
+
+    public JobLockService(JobLockRepository jobLockRepository, PlatformTransactionManager transactionManager) {
+        this.jobLockRepository = jobLockRepository;
+        // Lock changes must be visible to other nodes immediately, whatever the caller does
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+    }
+
+    /**
+     * Runs a task if no other node holds the lock of the same name.
+     *
+     * @param name          The lock name, e.g. the job name.
+     * @param lockAtMostFor Upper bound of the run time; a node that crashes keeps
+     *                      the lock this long.
+     * @param task          The job to run.
+     * @return {@code true} if the task ran on this node.
+     */
+    public boolean runExclusively(String name, Duration lockAtMostFor, Runnable task) {
+        // Stored timestamps have (at least) millisecond precision and are compared on release
+        Instant lockedAt = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+        if (!tryLock(name, lockedAt, lockedAt.plus(lockAtMostFor))) {
+            logger.debug("Job '{}' is locked by another node, skipping.", name);
+            return false;
+        }
+        try {
+            task.run();
+        } finally {
+            unlock(name, lockedAt);
+        }
+        return true;
+    }
+
+    private boolean tryLock(String name, Instant now, Instant lockedUntil) {
+        int claimed = Objects.requireNonNull(
+                transactionTemplate.execute(status -> jobLockRepository.claim(name, nodeId, now, lockedUntil)));
+        if (claimed > 0) {
+            return true;
+        }
+        if (jobLockRepository.existsById(name)) {
+            return false;
+        }
+        // First run of this job anywhere
+        try {
+            transactionTemplate.executeWithoutResult(
+                    status -> jobLockRepository.saveAndFlush(new JobLock(name, nodeId, now, lockedUntil)));
+            return true;
+        } catch (DataIntegrityViolationException e) {
+            // Another node created the row first
+            return false;
+        }
+    }
+
+    private void unlock(String name, Instant lockedAt) {
+        Instant earliest = lockedAt.plus(holdAtLeast);
+        Instant now = Instant.now();
+        Instant lockedUntil = now.isAfter(earliest) ? now : earliest;
+        try {
+            transactionTemplate.executeWithoutResult(
+                    status -> jobLockRepository.release(name, nodeId, lockedAt, lockedUntil));
+        } catch (Exception e) {
+            // The lock then expires at its lockAtMostFor time
+            logger.error("Failed to release lock of job '{}'.", name, e);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.example.filemanager.service;
+
+import com.example.filemanager.repository.FileLeaseRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Objects;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Removes file locks whose lease has expired, e.g. because the client holding
+ * it crashed. Expired leases no longer block anyone, so this only keeps the
+ * lease table small; it deletes them with one statement on the expiry index.
+ * With several nodes, only the node holding the job's lock reaps.
+ */
+@Service
+public class LeaseReaperService {
+
+    private static final Logger logger = LoggerFactory.getLogger(LeaseReaperService.class);
+
+    static final String JOB_NAME = "lease-reaper";
+    private static final Duration LOCK_AT_MOST_FOR = Duration.ofMinutes(5);
+
+    private final FileLeaseRepository fileLeaseRepository;
+    private final TransactionTemplate transactionTemplate;
+    private final JobLockService jobLockService;
+    private final Counter expiredLeases;
+
+    public LeaseReaperService(FileLeaseRepository fileLeaseRepository, PlatformTransactionManager transactionManager,
+            MeterRegistry meterRegistry, JobLockService jobLockService) {
+        this.fileLeaseRepository = fileLeaseRepository;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.jobLockService = jobLockService;
+        this.expiredLeases = Counter.builder("file.leases.expired")
+                .description("Expired file locks removed by the lease reaper")
+                .register(meterRegistry);
+    }
+
+    @Scheduled(fixedDelayString = "${file.lock.reap-interval:PT1M}")
+    public void reapExpiredLeases() {
+        jobLockService.runExclusively(JOB_NAME, LOCK_AT_MOST_FOR, this::deleteExpiredLeases);
+    }
+
+    private void deleteExpiredLeases() {
+        Instant now = Instant.now();
+        int reaped = Objects.requireNonNull(
+                transactionTemplate.execute(status -> fileLeaseRepository.deleteExpired(now)));
+        if (reaped > 0) {
+            expiredLeases.increment(reaped);
+            logger.info("Removed {} expired file locks.", reaped);
+        }
+    }
+}
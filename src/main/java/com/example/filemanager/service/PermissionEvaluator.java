@@ -0,0 +1,104 @@
+package com.example.filemanager.service;
+
+import com.example.filemanager.domain.FileEntity;
+import com.example.filemanager.domain.FileListItem;
+import com.example.filemanager.domain.Group;
+import com.example.filemanager.domain.Permission;
+import com.example.filemanager.domain.User;
+import java.util.Arrays;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Permission checks for one user, prepared once so that filtering large lists
+ * costs no allocation and no division per file. The user's group IDs are kept
+ * in a sorted primitive array, and the decimal-encoded permissions (e.g. 755)
+ * are translated to a Unix-style bit mask through a lookup table.
+ * <p>
+ * An evaluator reflects the user's groups at the time it was created, so it is
+ * meant to live for one request. Obtain it from
+ * {@link PermissionService#evaluatorFor(User)}.
+ */
+public class PermissionEvaluator {
+
+    private static final Logger logger = LoggerFactory.getLogger(PermissionEvaluator.class);
+
+    private static final int OWNER_SHIFT = 6;
+    private static final int GROUP_SHIFT = 3;
+    private static final int OTHER_SHIFT = 0;
+
+    /** Bit mask (owner, group, other; three bits each) for every decimal value 0-999. */
+    private static final short[] MODES = new short[1000];
+
+    static {
+        for (int permissions = 0; permissions < MODES.length; permissions++) {
+            MODES[permissions] = (short) decode(permissions);
+        }
+    }
+
+    private final Long userId;
+    private final long[] groupIds;
+
+    PermissionEvaluator(User user) {
+        this.userId = user.getId();
+        this.groupIds = user.getGroups().stream()
+                .map(Group::getId)
+                .filter(id -> id != null)
+                .mapToLong(Long::longValue)
+                .sorted()
+                .distinct()
+                .toArray();
+    }
+
+    public boolean canRead(FileEntity fileEntity) {
+        return isAllowed(fileEntity, Permission.READ);
+    }
+
+    public boolean canWrite(FileEntity fileEntity) {
+        return isAllowed(fileEntity, Permission.WRITE);
+    }
+
+    public boolean canRead(FileListItem item) {
+        return isAllowed(item.getPermissions(), item.getOwnerId(), item.getGroupId(), Permission.READ);
+    }
+
+    public boolean isAllowed(FileEntity fileEntity, Permission requiredPermission) {
+        return isAllowed(fileEntity.getPermissions(), fileEntity.getOwner().getId(),
+                fileEntity.getGroup().getId(), requiredPermission);
+    }
+
+    public boolean isAllowed(int permissions, Long ownerId, Long groupId, Permission requiredPermission) {
+        // The owner digit applies to the owner even if the group digit is more generous
+        int shift;
+        if (ownerId.equals(userId)) {
+            shift = OWNER_SHIFT;
+        } else if (groupId != null && Arrays.binarySearch(groupIds, groupId) >= 0) {
+            shift = GROUP_SHIFT;
+        } else {
+            shift = OTHER_SHIFT;
+        }
+        int granted = (mode(permissions) >>> shift) & 7;
+        boolean allowed = (granted & requiredPermission.value) == requiredPermission.value;
+        if (logger.isDebugEnabled()) {
+            logger.debug("Permission check (permissions: {}): user={}, class={}, required={}, allowed={}",
+                    permissions, userId, shift == OWNER_SHIFT ? "owner" : shift == GROUP_SHIFT ? "group" : "other",
+                    requiredPermission, allowed);
+        }
+        return allowed;
+    }
+
+    private static int mode(int permissions) {
+        return permissions >= 0 && permissions < MODES.length ? MODES[permissions] : decode(permissions);
+    }
+
+    /**
+     * Translates decimal digits to three bits each (755 -> rwxr-xr-x). Digits
+     * above 7 keep only their low three bits, as a bitwise check of the digit would.
+     */
+    private static int decode(int permissions) {
+        int owner = (permissions / 100) & 7;
+        int group = (permissions / 10 % 10) & 7;
+        int other = (permissions % 10) & 7;
+        return owner << OWNER_SHIFT | group << GROUP_SHIFT | other;
+    }
+}
@@ -0,0 +1,439 @@
+package com.example.filemanager.service;
+
+import com.example.filemanager.domain.FileEntity;
+import com.example.filemanager.domain.FileRendition;
+import com.example.filemanager.domain.FileRendition.Kind;
+import com.example.filemanager.domain.FileRendition.Status;
+import com.example.filemanager.repository.FileRenditionRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.lang.NonNull;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.unit.DataSize;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+/**
+ * Generates and serves {@link FileRendition}s, so that browsing a folder
+ * transfers thumbnails of a few kilobytes instead of the originals.
+ * <p>
+ * Uploads request a rendition in the transaction that writes the file, so the
+ * request exists exactly when the upload does. A small worker pool generates
+ * it once that transaction commits, outside of any transaction, and stores it
+ * in S3 under a key derived from the content version. Requests the pool
+ * cannot take, and renditions whose node stopped before generating them, are
+ * picked up by a periodic sweep. Renditions of content versions that nothing
+ * references any more are deleted by a nightly job.
+ */
+@Service
+public class RenditionService {
+
+    private static final Logger logger = LoggerFactory.getLogger(RenditionService.class);
+
+    static final String SWEEP_JOB_NAME = "rendition-sweep";
+    static final String PRUNE_JOB_NAME = "rendition-pruning";
+    private static final Duration LOCK_AT_MOST_FOR = Duration.ofMinutes(10);
+
+    private static final String THUMBNAIL_CONTENT_TYPE = "image/jpeg";
+    private static final String PREVIEW_CONTENT_TYPE = "text/plain;charset=UTF-8";
+
+    // Formats the JDK can decode, and text formats worth a preview
+    private static final Map<String, Kind> KINDS_BY_EXTENSION = Map.ofEntries(
+            Map.entry("jpg", Kind.THUMBNAIL), Map.entry("jpeg", Kind.THUMBNAIL), Map.entry("png", Kind.THUMBNAIL),
+            Map.entry("gif", Kind.THUMBNAIL), Map.entry("bmp", Kind.THUMBNAIL), Map.entry("tif", Kind.THUMBNAIL),
+            Map.entry("tiff", Kind.THUMBNAIL),
+            Map.entry("txt", Kind.PREVIEW), Map.entry("md", Kind.PREVIEW), Map.entry("csv", Kind.PREVIEW),
+            Map.entry("log", Kind.PREVIEW), Map.entry("json", Kind.PREVIEW), Map.entry("xml", Kind.PREVIEW),
+            Map.entry("yml", Kind.PREVIEW), Map.entry("yaml", Kind.PREVIEW), Map.entry("properties", Kind.PREVIEW),
+            Map.entry("sql", Kind.PREVIEW), Map.entry("sh", Kind.PREVIEW), Map.entry("java", Kind.PREVIEW),
+            Map.entry("js", Kind.PREVIEW), Map.entry("ts", Kind.PREVIEW), Map.entry("py", Kind.PREVIEW),
+            Map.entry("html", Kind.PREVIEW), Map.entry("css", Kind.PREVIEW));
+
+    private final FileRenditionRepository fileRenditionRepository;
+    private final S3Client s3Client;
+    private final TransactionTemplate transactionTemplate;
+    private final JobLockService jobLockService;
+    private final ExecutorService executor;
+    private final Counter generatedRenditions;
+    private final Counter failedRenditions;
+
+    private final String bucketName;
+
+    // Longest edge of a thumbnail in pixels
+    @Value("${renditions.thumbnail-size:256}")
+    private int thumbnailSize = 256;
+
+    @Value("${renditions.preview-bytes:4096}")
+    private int previewBytes = 4096;
+
+    // Larger images are not downloaded, and images with more pixels are not decoded
+    @Value("${renditions.max-source-size:20MB}")
+    private DataSize maxSourceSize = DataSize.ofMegabytes(20);
+
+    @Value("${renditions.max-pixels:50000000}")
+    private long maxPixels = 50_000_000;
+
+    @Value("${renditions.max-attempts:3}")
+    private int maxAttempts = 3;
+
+    // Requests younger than this are left to the worker that was handed them at commit
+    @Value("${renditions.retry-delay:PT1M}")
+    private Duration retryDelay = Duration.ofMinutes(1);
+
+    @Value("${renditions.batch-size:500}")
+    private int batchSize = 500;
+
+    public RenditionService(FileRenditionRepository fileRenditionRepository, S3Client s3Client,
+            PlatformTransactionManager transactionManager, MeterRegistry meterRegistry,
+            JobLockService jobLockService, @Value("${renditions.workers:2}") int workers,
+            @Value("${renditions.queue-size:1000}") int queueSize,
+            @Value("${S3_BUCKET_NAME}") @NonNull String bucketName) {
+        this.fileRenditionRepository = fileRenditionRepository;
+        this.s3Client = s3Client;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.jobLockService = jobLockService;
+        // A burst of uploads beyond the queue is left to the sweep
+        this.executor = new ThreadPoolExecutor(Math.max(workers, 1), Math.max(workers, 1), 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(queueSize, 1)));
+        this.generatedRenditions = Counter.builder("renditions.generated")
+                .description("Thumbnails and previews generated")
+                .register(meterRegistry);
+        this.failedRenditions = Counter.builder("renditions.failed")
+                .description("Thumbnails and previews that could not be generated")
+                .register(meterRegistry);
+        this.bucketName = bucketName;
+    }
+
+    @PreDestroy
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Returns the kind of rendition made for a file name, or {@code null} if its
+     * type has none.
+     */
+    public static Kind kindOf(String fileName) {
+        int dot = fileName == null ? -1 : fileName.lastIndexOf('.');
+        return dot < 0 ? null : KINDS_BY_EXTENSION.get(fileName.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Requests a rendition of the current content of a file in the current
+     * transaction. It is generated once the transaction has committed; nothing
+     * happens if it rolls back. Content versions that already have one, such as
+     * a restored version, are left as they are.
+     */
+    public void request(FileEntity file) {
+        Kind kind = kindOf(file.getName());
+        String storageKey = file.getStorageKey();
+        if (kind == null || file.isDirectory() || storageKey == null
+                || fileRenditionRepository.existsByStorageKey(storageKey)) {
+            return;
+        }
+        if (file.getSize() != null && (file.getSize() == 0
+                || kind == Kind.THUMBNAIL && file.getSize() > maxSourceSize.toBytes())) {
+            return;
+        }
+        FileRendition rendition = fileRenditionRepository.save(new FileRendition(storageKey, kind, Instant.now()));
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            submit(rendition.getId());
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                submit(rendition.getId());
+            }
+        });
+    }
+
+    /** Finds the rendition of the current content of a file, if it has been generated. */
+    @Transactional(readOnly = true)
+    public Optional<FileRendition> findReady(FileEntity file, Kind kind) {
+        if (file.isDirectory() || file.getStorageKey() == null) {
+            return Optional.empty();
+        }
+        return fileRenditionRepository.findByStorageKey(file.getStorageKey())
+                .filter(rendition -> rendition.getKind() == kind && rendition.getStatus() == Status.READY);
+    }
+
+    public byte[] read(FileRendition rendition) {
+        return s3Client.getObjectAsBytes(b -> b.bucket(bucketName).key(rendition.getRenditionKey())).asByteArray();
+    }
+
+    @Scheduled(initialDelayString = "${renditions.sweep-interval:PT1M}",
+            fixedDelayString = "${renditions.sweep-interval:PT1M}")
+    public void sweep() {
+        jobLockService.runExclusively(SWEEP_JOB_NAME, LOCK_AT_MOST_FOR, this::generatePending);
+    }
+
+    @Scheduled(cron = "${renditions.prune-cron:0 50 3 * * *}") // Defaults to 3:50 AM daily
+    public void pruneRenditions() {
+        jobLockService.runExclusively(PRUNE_JOB_NAME, LOCK_AT_MOST_FOR, this::deleteUnreferenced);
+    }
+
+    private void generatePending() {
+        Instant before = Instant.now().minus(retryDelay);
+        long afterId = 0;
+        List<FileRendition> page;
+        do {
+            page = fileRenditionRepository.findPending(before, afterId, PageRequest.of(0, batchSize));
+            for (FileRendition rendition : page) {
+                afterId = rendition.getId();
+                generate(rendition.getId());
+            }
+        } while (page.size() == batchSize);
+    }
+
+    private void deleteUnreferenced() {
+        long afterId = 0;
+        long pruned = 0;
+        List<FileRendition> page;
+        do {
+            page = fileRenditionRepository.findUnreferenced(afterId, PageRequest.of(0, batchSize));
+            for (FileRendition rendition : page) {
+                afterId = rendition.getId();
+                try {
+                    // Also for pending ones, whose worker may be uploading right now
+                    s3Client.deleteObject(b -> b.bucket(bucketName).key(rendition.getRenditionKey()));
+                    transactionTemplate.executeWithoutResult(
+                            status -> fileRenditionRepository.deleteAllByIdInBatch(List.of(rendition.getId())));
+                    pruned++;
+                } catch (Exception e) {
+                    logger.warn("Failed to delete rendition {}; it will be retried.", rendition.getRenditionKey(), e);
+                }
+            }
+        } while (page.size() == batchSize);
+        logger.info("Pruned {} renditions of unreferenced content.", pruned);
+    }
+
+    private void submit(Long id) {
+        try {
+            executor.execute(() -> generate(id));
+        } catch (RejectedExecutionException e) {
+            // Busy or shutting down; the sweep picks the rendition up
+            logger.debug("Rendition worker rejected rendition {}.", id);
+        }
+    }
+
+    /**
+     * Generates a pending rendition. Generating one twice is harmless, so a
+     * worker and the sweep may race.
+     */
+    void generate(Long id) {
+        FileRendition rendition = fileRenditionRepository.findById(id)
+                .filter(found -> found.getStatus() == Status.PENDING)
+                .orElse(null);
+        if (rendition == null) {
+            return;
+        }
+        try {
+            byte[] data;
+            String contentType;
+            if (rendition.getKind() == Kind.THUMBNAIL) {
+                data = thumbnail(rendition.getStorageKey());
+                contentType = THUMBNAIL_CONTENT_TYPE;
+            } else {
+                data = preview(rendition.getStorageKey());
+                contentType = PREVIEW_CONTENT_TYPE;
+            }
+            s3Client.putObject(b -> b.bucket(bucketName).key(rendition.getRenditionKey()).contentType(contentType),
+                    RequestBody.fromBytes(data));
+            boolean stored = Boolean.TRUE.equals(transactionTemplate.execute(status -> fileRenditionRepository
+                    .findById(id)
+                    .map(found -> {
+                        found.setStatus(Status.READY);
+                        found.setContentType(contentType);
+                        found.setSize((long) data.length);
+                        found.setGeneratedAt(Instant.now());
+                        found.setError(null);
+                        return true;
+                    })
+                    .orElse(false)));
+            if (!stored) {
+                // Pruned while it was generated
+                s3Client.deleteObject(b -> b.bucket(bucketName).key(rendition.getRenditionKey()));
+                return;
+            }
+            generatedRenditions.increment();
+        } catch (UnrenderableContentException e) {
+            logger.debug("No rendition for key {}: {}", rendition.getStorageKey(), e.getMessage());
+            fail(id, e, true);
+        } catch (Exception e) {
+            logger.warn("Failed to generate rendition for key {}.", rendition.getStorageKey(), e);
+            fail(id, e, false);
+        }
+    }
+
+    private void fail(Long id, Exception error, boolean permanent) {
+        transactionTemplate.executeWithoutResult(status -> fileRenditionRepository.findById(id)
+                .ifPresent(rendition -> {
+                    rendition.incrementAttempts();
+                    String message = String.valueOf(error.getMessage());
+                    rendition.setError(message.length() > 1000 ? message.substring(0, 1000) : message);
+                    if (permanent || rendition.getAttempts() >= maxAttempts) {
+                        rendition.setStatus(Status.FAILED);
+                        failedRenditions.increment();
+                    }
+                }));
+    }
+
+    private byte[] thumbnail(String storageKey) throws IOException {
+        try (ResponseInputStream<GetObjectResponse> in = s3Client
+                .getObject(b -> b.bucket(bucketName).key(storageKey))) {
+            Long length = in.response().contentLength();
+            if (length != null && length > maxSourceSize.toBytes()) {
+                in.abort();
+                throw new UnrenderableContentException("Image of " + length + " bytes is too large");
+            }
+            return renderThumbnail(StorageCodecService.decode(in.response(), in), thumbnailSize, maxPixels);
+        }
+    }
+
+    private byte[] preview(String storageKey) throws IOException {
+        try (ResponseInputStream<GetObjectResponse> in = s3Client
+                .getObject(b -> b.bucket(bucketName).key(storageKey).range("bytes=0-" + (previewBytes - 1)))) {
+            if (StorageCodecService.isEncoded(in.response())) {
+                // The range is one of the compressed bytes; decode the beginning of the whole object instead
+                in.abort();
+                return compressedPreview(storageKey);
+            }
+            // Servers that ignore the range send everything; stop reading after the preview
+            byte[] head = in.readNBytes(previewBytes + 1);
+            if (head.length > previewBytes) {
+                in.abort();
+            }
+            String contentRange = in.response().contentRange();
+            boolean truncated = head.length > previewBytes
+                    || contentRange != null && !contentRange.endsWith("/" + head.length);
+            return renderPreview(head, Math.min(head.length, previewBytes), truncated);
+        }
+    }
+
+    private byte[] compressedPreview(String storageKey) throws IOException {
+        try (ResponseInputStream<GetObjectResponse> in = s3Client
+                .getObject(b -> b.bucket(bucketName).key(storageKey))) {
+            byte[] head = StorageCodecService.decode(in.response(), in).readNBytes(previewBytes + 1);
+            if (head.length > previewBytes) {
+                in.abort();
+            }
+            return renderPreview(head, Math.min(head.length, previewBytes), head.length > previewBytes);
+        }
+    }
+
+    /**
+     * Scales an image down to fit into a square of {@code size} pixels and
+     * encodes it as JPEG. Large images are subsampled while they are decoded, so
+     * the full image is never held in memory.
+     */
+    static byte[] renderThumbnail(InputStream source, int size, long maxPixels) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(source)) {
+            Iterator<ImageReader> readers = input == null ? null : ImageIO.getImageReaders(input);
+            if (readers == null || !readers.hasNext()) {
+                throw new UnrenderableContentException("Unsupported image format");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                if ((long) width * height > maxPixels) {
+                    throw new UnrenderableContentException("Image of " + width + "x" + height + " pixels is too large");
+                }
+                // Decode at twice the thumbnail size at most, then scale smoothly
+                int subsampling = Math.max(1, Math.max(width, height) / (2 * size));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                BufferedImage image = reader.read(0, param);
+
+                double scale = Math.min(1.0, (double) size / Math.max(image.getWidth(), image.getHeight()));
+                int thumbnailWidth = Math.max(1, (int) Math.round(image.getWidth() * scale));
+                int thumbnailHeight = Math.max(1, (int) Math.round(image.getHeight() * scale));
+                BufferedImage thumbnail = new BufferedImage(thumbnailWidth, thumbnailHeight,
+                        BufferedImage.TYPE_INT_RGB);
+                Graphics2D graphics = thumbnail.createGraphics();
+                try {
+                    graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                            RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                    graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+                    // JPEG has no transparency
+                    graphics.setColor(Color.WHITE);
+                    graphics.fillRect(0, 0, thumbnailWidth, thumbnailHeight);
+                    graphics.drawImage(image, 0, 0, thumbnailWidth, thumbnailHeight, null);
+                } finally {
+                    graphics.dispose();
+                }
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                ImageIO.write(thumbnail, "jpg", out);
+                return out.toByteArray();
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Returns the first {@code length} bytes of a text as UTF-8. A character cut
+     * off by a truncated source is dropped; invalid bytes become U+FFFD.
+     */
+    static byte[] renderPreview(byte[] head, int length, boolean truncated) {
+        int end = length;
+        if (truncated && end > 0) {
+            int start = end - 1;
+            while (start > 0 && end - start < 4 && (head[start] & 0xC0) == 0x80) {
+                start--;
+            }
+            int lead = head[start] & 0xFF;
+            int sequenceLength = lead >= 0xF0 ? 4 : lead >= 0xE0 ? 3 : lead >= 0xC0 ? 2 : 1;
+            if (start + sequenceLength > end) {
+                end = start;
+            }
+        }
+        return new String(head, 0, end, StandardCharsets.UTF_8).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** Content that can never be rendered, so it is not retried. */
+    static class UnrenderableContentException extends RuntimeException {
+        UnrenderableContentException(String message) {
+            super(message);
+        }
+    }
+}
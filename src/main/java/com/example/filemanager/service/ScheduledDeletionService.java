@@ -1,74 +1,296 @@
 package com.example.filemanager.service;
 
 import com.example.filemanager.domain.FileEntity;
+import com.example.filemanager.domain.FileHistory;
+import com.example.filemanager.repository.FileHistoryRepository;
 import com.example.filemanager.repository.FileRepository;
-import io.awspring.cloud.s3.S3Template;
+import com.example.filemanager.repository.FolderStatsRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.lang.NonNull;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
-import org.springframework.lang.NonNull;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsResponse;
+import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
+import software.amazon.awssdk.services.s3.model.S3Error;
 
+/**
+ * Permanently deletes files whose soft-delete retention period has expired.
+ * Expired rows are read page by page; each page is handed to a worker that
+ * removes its objects (including stored versions) with multi-object deletes and
+ * then deletes the rows in a short transaction. Rows are only deleted once their object is gone,
+ * so an interrupted run simply continues with the remaining rows next time.
+ * <p>
+ * With several nodes, a run holds a {@link JobLockService} lock so only one
+ * node purges. If {@code file.deletion.partition-size} is set, the IDs are split
+ * into ranges of that size with one lock each instead, and every node purges the
+ * ranges no other node has claimed.
+ */
 @Service
 public class ScheduledDeletionService {
 
     private static final Logger logger = LoggerFactory.getLogger(ScheduledDeletionService.class);
 
+    /** Maximum number of keys accepted by one S3 DeleteObjects request. */
+    static final int MAX_KEYS_PER_REQUEST = 1000;
+
+    /** Lock name of the job; partitions append {@code #<n>}. */
+    static final String JOB_NAME = "file-deletion";
+
     private final FileRepository fileRepository;
-    private final S3Template s3Template;
+    private final FileHistoryRepository fileHistoryRepository;
+    private final FolderStatsRepository folderStatsRepository;
+    private final StorageQuotaService storageQuotaService;
+    private final S3Client s3Client;
+    private final TransactionTemplate transactionTemplate;
+    private final CacheInvalidationBus cacheInvalidationBus;
+    private final JobLockService jobLockService;
+    private final Counter deletedFiles;
+    private final Counter deletedObjects;
+    private final Counter failedObjects;
+    private final Timer chunkTimer;
 
     private final String bucketName;
 
     @Value("${file.deletion.retention-period-days:7}")
-    private int retentionPeriodDays;
+    private int retentionPeriodDays = 7;
+
+    @Value("${file.deletion.batch-size:1000}")
+    private int batchSize = MAX_KEYS_PER_REQUEST;
 
-    public ScheduledDeletionService(FileRepository fileRepository, S3Template s3Template,
+    @Value("${file.deletion.workers:4}")
+    private int workers = 4;
+
+    @Value("${file.deletion.lock-at-most-for:PT6H}")
+    private Duration lockAtMostFor = Duration.ofHours(6);
+
+    @Value("${file.deletion.partition-size:0}")
+    private long partitionSize = 0;
+
+    public ScheduledDeletionService(FileRepository fileRepository, FileHistoryRepository fileHistoryRepository,
+            FolderStatsRepository folderStatsRepository, StorageQuotaService storageQuotaService, S3Client s3Client,
+            PlatformTransactionManager transactionManager, MeterRegistry meterRegistry,
+            CacheInvalidationBus cacheInvalidationBus, JobLockService jobLockService,
             @Value("${S3_BUCKET_NAME}") @NonNull String bucketName) {
         this.fileRepository = fileRepository;
-        this.s3Template = s3Template;
+        this.fileHistoryRepository = fileHistoryRepository;
+        this.folderStatsRepository = folderStatsRepository;
+        this.storageQuotaService = storageQuotaService;
+        this.s3Client = s3Client;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.cacheInvalidationBus = cacheInvalidationBus;
+        this.jobLockService = jobLockService;
+        this.deletedFiles = Counter.builder("file.purge.deleted")
+                .description("File metadata rows permanently deleted")
+                .register(meterRegistry);
+        this.deletedObjects = Counter.builder("file.purge.objects")
+                .description("Storage objects deleted by the permanent deletion job")
+                .register(meterRegistry);
+        this.failedObjects = Counter.builder("file.purge.failures")
+                .description("Storage objects that could not be deleted and are retried on the next run")
+                .register(meterRegistry);
+        this.chunkTimer = Timer.builder("file.purge.chunk")
+                .description("Time spent deleting one chunk of expired files")
+                .register(meterRegistry);
         this.bucketName = bucketName;
     }
 
     @Scheduled(cron = "${file.deletion.cron:0 0 2 * * *}") // Defaults to 2 AM daily
-    @Transactional
     public void performScheduledDeletion() {
         LocalDateTime cutoff = LocalDateTime.now().minusDays(retentionPeriodDays);
         logger.info("Running scheduled deletion job. Deleting files soft-deleted before {}", cutoff);
 
-        List<FileEntity> filesToDelete = fileRepository.findAllByDeletedAtBefore(cutoff);
+        if (partitionSize <= 0) {
+            jobLockService.runExclusively(JOB_NAME, lockAtMostFor, () -> purgeExpired(cutoff, 0, Long.MAX_VALUE));
+            return;
+        }
+        // Partition n covers the IDs (n * size, (n + 1) * size]
+        Long maxExpiredId = fileRepository.findMaxExpiredId(cutoff);
+        for (long afterId = 0; maxExpiredId != null && afterId < maxExpiredId; afterId += partitionSize) {
+            long from = afterId;
+            long to = afterId + partitionSize;
+            jobLockService.runExclusively(JOB_NAME + "#" + afterId / partitionSize, lockAtMostFor,
+                    () -> purgeExpired(cutoff, from, to));
+        }
+    }
+
+    /**
+     * Purges the expired files with IDs in {@code (afterId, maxId]}.
+     */
+    private void purgeExpired(LocalDateTime cutoff, long afterId, long maxId) {
+        int pageSize = Math.min(batchSize, MAX_KEYS_PER_REQUEST);
+        long started = System.nanoTime();
+        long deleted = 0;
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(workers, 1));
+        Deque<Future<Integer>> inFlight = new ArrayDeque<>();
+        try {
+            long lastId = afterId;
+            List<FileEntity> page;
+            do {
+                page = fileRepository.findExpiredInRange(cutoff, lastId, maxId, PageRequest.of(0, pageSize));
+                if (!page.isEmpty()) {
+                    lastId = page.get(page.size() - 1).getId();
+                    List<FileEntity> chunk = page;
+                    inFlight.add(executor.submit(() -> chunkTimer.recordCallable(() -> deleteChunk(chunk))));
+                }
+                // Bound the number of pages held in memory to the number of workers
+                while (inFlight.size() >= Math.max(workers, 1)) {
+                    deleted += await(inFlight.poll());
+                }
+            } while (page.size() == pageSize);
+            while (!inFlight.isEmpty()) {
+                deleted += await(inFlight.poll());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
 
-        if (filesToDelete.isEmpty()) {
-            logger.info("No files found for permanent deletion.");
+        if (deleted == 0) {
+            logger.info("No files were permanently deleted.");
             return;
         }
+        Duration elapsed = Duration.ofNanos(System.nanoTime() - started);
+        logger.info("Scheduled deletion job finished. Deleted {} files in {} ms ({} files/s).", deleted,
+                elapsed.toMillis(), Math.round(deleted / Math.max(elapsed.toNanos() / 1e9, 0.001)));
+    }
 
-        logger.info("Found {} files to delete permanently.", filesToDelete.size());
-
-        for (FileEntity file : filesToDelete) {
-            // Delete from S3 only if it's a file and has a storage key
-            if (!file.isDirectory() && file.getStorageKey() != null && !file.getStorageKey().isEmpty()) {
-                try {
-                    s3Template.deleteObject(java.util.Objects.requireNonNull(bucketName),
-                            java.util.Objects.requireNonNull(file.getStorageKey()));
-                    logger.info("Successfully deleted file '{}' from S3 with key: {}", file.getName(),
-                            file.getStorageKey());
-                } catch (Exception e) {
-                    logger.error("Failed to delete file '{}' (key: {}) from S3. Skipping database deletion.",
-                            file.getName(), file.getStorageKey(), e);
-                    // If S3 deletion fails, we skip DB deletion to retry later
-                    continue;
+    private int await(Future<Integer> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Scheduled deletion job was interrupted", e);
+        } catch (ExecutionException e) {
+            // Rows of a failed chunk stay in place and are picked up by the next run
+            logger.error("Failed to delete a chunk of expired files.", e.getCause());
+            return 0;
+        }
+    }
+
+    /**
+     * Deletes the objects of one chunk (current content and all stored versions),
+     * then the rows whose objects are all gone (or that never had one).
+     */
+    private int deleteChunk(List<FileEntity> chunk) {
+        Map<Long, Set<String>> keysByFile = new HashMap<>();
+        for (FileEntity file : chunk) {
+            Set<String> keys = keysByFile.computeIfAbsent(file.getId(), id -> new HashSet<>());
+            if (hasObject(file)) {
+                keys.add(file.getStorageKey());
+            }
+        }
+        for (FileHistory version : fileHistoryRepository.findAllByFileEntityIdIn(keysByFile.keySet())) {
+            keysByFile.get(version.getFileEntity().getId()).add(version.getStorageKey());
+        }
+
+        Set<String> keys = new HashSet<>();
+        keysByFile.values().forEach(keys::addAll);
+        Set<String> failedKeys = deleteObjects(keys);
+
+        List<Long> deletableIds = new ArrayList<>();
+        for (FileEntity file : chunk) {
+            if (keysByFile.get(file.getId()).stream().anyMatch(failedKeys::contains)) {
+                logger.error("Failed to delete objects of file '{}' (ID: {}) from S3. Skipping database deletion.",
+                        file.getName(), file.getId());
+                continue;
+            }
+            deletableIds.add(file.getId());
+        }
+        int deleted = deleteRows(deletableIds);
+        deletedFiles.increment(deleted);
+        return deleted;
+    }
+
+    private boolean hasObject(FileEntity file) {
+        return !file.isDirectory() && file.getStorageKey() != null && !file.getStorageKey().isEmpty();
+    }
+
+    /**
+     * Deletes the given objects with DeleteObjects requests of at most
+     * {@value #MAX_KEYS_PER_REQUEST} keys.
+     *
+     * @return The keys that could not be deleted.
+     */
+    private Set<String> deleteObjects(Set<String> keys) {
+        List<ObjectIdentifier> objects = keys.stream()
+                .map(key -> ObjectIdentifier.builder().key(key).build())
+                .toList();
+        Set<String> failedKeys = new HashSet<>();
+        for (int from = 0; from < objects.size(); from += MAX_KEYS_PER_REQUEST) {
+            List<ObjectIdentifier> batch = objects.subList(from, Math.min(from + MAX_KEYS_PER_REQUEST, objects.size()));
+            try {
+                DeleteObjectsResponse response = s3Client.deleteObjects(
+                        b -> b.bucket(bucketName).delete(d -> d.objects(batch).quiet(true)));
+                for (S3Error error : response.errors()) {
+                    logger.warn("S3 could not delete key {}: {} {}", error.key(), error.code(), error.message());
+                    failedKeys.add(error.key());
                 }
+            } catch (Exception e) {
+                logger.error("DeleteObjects request for {} keys failed.", batch.size(), e);
+                batch.forEach(object -> failedKeys.add(object.key()));
             }
-            // Delete from database
-            fileRepository.delete(file);
-            logger.info("Successfully deleted file metadata for '{}' (ID: {}) from database.", file.getName(),
-                    file.getId());
         }
+        deletedObjects.increment(keys.size() - failedKeys.size());
+        failedObjects.increment(failedKeys.size());
+        return failedKeys;
+    }
+
+    private int deleteRows(List<Long> ids) {
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        try {
+            transactionTemplate.executeWithoutResult(status -> purgeRows(ids));
+            return ids.size();
+        } catch (Exception e) {
+            // Typically a folder that still has live children; retry row by row so the
+            // rest of the chunk is not held back.
+            logger.warn("Bulk delete of {} files failed, retrying one by one.", ids.size(), e);
+        }
+        int deleted = 0;
+        for (Long id : ids) {
+            try {
+                transactionTemplate.executeWithoutResult(status -> purgeRows(List.of(id)));
+                deleted++;
+            } catch (Exception e) {
+                logger.error("Failed to delete file metadata with ID: {}. It will be retried on the next run.",
+                        id, e);
+            }
+        }
+        return deleted;
+    }
 
-        logger.info("Scheduled deletion job finished.");
+    private void purgeRows(List<Long> ids) {
+        storageQuotaService.releaseFiles(ids);
+        fileHistoryRepository.deleteAllByFileEntityIds(ids);
+        // Children of a purged folder may sit in a later chunk; detach them so the
+        // folder row can go first.
+        fileRepository.detachDeletedChildren(ids);
+        fileRepository.deleteAllByIdInBatch(ids);
+        // Totals of purged folders; their ancestors stopped counting them at deletion
+        folderStatsRepository.deleteAllByIdInBatch(ids);
+        cacheInvalidationBus.entitiesChanged(FileEntity.class, ids);
     }
 }
@@ -0,0 +1,348 @@
+package com.example.filemanager.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.GZIPInputStream;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.lang.NonNull;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.multipart.MultipartFile;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+/**
+ * Compresses stored content where it pays off and decodes it again on the way
+ * out. Whether an object is compressed is recorded in its own Content-Encoding
+ * in S3, so objects written before compression was enabled, and objects that
+ * were not worth compressing, are read as they are.
+ * <p>
+ * An upload is compressed if compression is enabled, it is not too small, its
+ * first bytes are not those of an already compressed format, and a sample of
+ * them shrinks enough when compressed.
+ */
+@Service
+public class StorageCodecService {
+
+    /** Encodings objects may be stored with, named by their HTTP content coding. */
+    public enum Codec {
+        GZIP("gzip");
+
+        private final String contentEncoding;
+
+        Codec(String contentEncoding) {
+            this.contentEncoding = contentEncoding;
+        }
+
+        public String getContentEncoding() {
+            return contentEncoding;
+        }
+
+        /**
+         * Returns the codec of a Content-Encoding, or null if the content is not
+         * encoded. The SDK's {@code aws-chunked} upload framing is not a coding of
+         * the content, though some S3 implementations store it.
+         */
+        static Codec of(String contentEncoding) {
+            if (contentEncoding == null) {
+                return null;
+            }
+            Codec result = null;
+            for (String coding : contentEncoding.split(",")) {
+                String name = coding.trim();
+                if (name.isEmpty() || "identity".equalsIgnoreCase(name) || "aws-chunked".equalsIgnoreCase(name)) {
+                    continue;
+                }
+                Codec codec = Arrays.stream(values())
+                        .filter(candidate -> candidate.contentEncoding.equalsIgnoreCase(name))
+                        .findFirst()
+                        .orElse(null);
+                if (codec == null || result != null) {
+                    throw new IllegalStateException("Unsupported content encoding: " + contentEncoding);
+                }
+                result = codec;
+            }
+            return result;
+        }
+
+        /** Compresses a stream while it is read. */
+        InputStream encode(InputStream content, int level) {
+            return new GzipEncodingInputStream(content, level);
+        }
+
+        InputStream decode(InputStream encoded) throws IOException {
+            return new GZIPInputStream(encoded, 8192);
+        }
+    }
+
+    /** Content read from S3, and the encoding it is still in (null if decoded). */
+    public record StoredContent(byte[] data, String contentEncoding) {
+    }
+
+    // Leading bytes of formats that are compressed already
+    private static final List<byte[]> COMPRESSED_SIGNATURES = List.of(
+            new byte[] { 0x1F, (byte) 0x8B }, // gzip
+            new byte[] { 0x28, (byte) 0xB5, 0x2F, (byte) 0xFD }, // zstd
+            new byte[] { 'P', 'K', 3, 4 }, // zip, docx, xlsx, jar, ...
+            new byte[] { 'B', 'Z', 'h' }, // bzip2
+            new byte[] { (byte) 0xFD, '7', 'z', 'X', 'Z', 0 }, // xz
+            new byte[] { '7', 'z', (byte) 0xBC, (byte) 0xAF, 0x27, 0x1C }, // 7z
+            new byte[] { 'R', 'a', 'r', '!' }, // rar
+            new byte[] { (byte) 0x89, 'P', 'N', 'G' }, // png
+            new byte[] { (byte) 0xFF, (byte) 0xD8, (byte) 0xFF }, // jpeg
+            new byte[] { 'G', 'I', 'F', '8' }, // gif
+            new byte[] { 'O', 'g', 'g', 'S' }, // ogg
+            new byte[] { 'f', 'L', 'a', 'C' }, // flac
+            new byte[] { 'I', 'D', '3' }); // mp3
+
+    private final S3Client s3Client;
+    private final Counter compressedUploads;
+
+    private final String bucketName;
+
+    @Value("${storage.compression.enabled:false}")
+    private boolean enabled = false;
+
+    // Smaller content saves too little to be worth a codec
+    @Value("${storage.compression.min-size:1KB}")
+    private DataSize minSize = DataSize.ofKilobytes(1);
+
+    @Value("${storage.compression.probe-size:64KB}")
+    private DataSize probeSize = DataSize.ofKilobytes(64);
+
+    // Compressed size of the probe relative to its original size, at most
+    @Value("${storage.compression.max-ratio:0.8}")
+    private double maxRatio = 0.8;
+
+    @Value("${storage.compression.level:6}")
+    private int level = 6;
+
+    public StorageCodecService(S3Client s3Client, MeterRegistry meterRegistry,
+            @Value("${S3_BUCKET_NAME}") @NonNull String bucketName) {
+        this.s3Client = s3Client;
+        this.compressedUploads = Counter.builder("storage.compression.uploads")
+                .description("Uploads stored compressed")
+                .register(meterRegistry);
+        this.bucketName = bucketName;
+    }
+
+    /**
+     * Decides how to store an upload: returns the codec to compress it with, or
+     * null to store it as it is.
+     */
+    public Codec codecFor(MultipartFile file) throws IOException {
+        if (!enabled || file.getSize() < minSize.toBytes()) {
+            return null;
+        }
+        byte[] probe;
+        try (InputStream in = file.getInputStream()) {
+            probe = in.readNBytes((int) Math.min(probeSize.toBytes(), Integer.MAX_VALUE));
+        }
+        if (isCompressedFormat(probe) || compressedSize(probe, level) > probe.length * maxRatio) {
+            return null;
+        }
+        compressedUploads.increment();
+        return Codec.GZIP;
+    }
+
+    /** Compresses content for {@link #codecFor} while it is uploaded. */
+    public InputStream encode(Codec codec, InputStream content) {
+        return codec.encode(content, level);
+    }
+
+    /**
+     * Reads an object. Content stored with an encoding the client accepts is
+     * returned as it is, to be sent with that Content-Encoding; anything else is
+     * decoded.
+     */
+    public StoredContent read(@NonNull String storageKey, String acceptEncoding) throws IOException {
+        try (ResponseInputStream<GetObjectResponse> in = s3Client
+                .getObject(b -> b.bucket(bucketName).key(storageKey))) {
+            Codec codec = Codec.of(in.response().contentEncoding());
+            if (codec == null) {
+                return new StoredContent(in.readAllBytes(), null);
+            }
+            if (accepts(acceptEncoding, codec.getContentEncoding())) {
+                return new StoredContent(in.readAllBytes(), codec.getContentEncoding());
+            }
+            try (InputStream decoded = codec.decode(in)) {
+                return new StoredContent(decoded.readAllBytes(), null);
+            }
+        }
+    }
+
+    /** Tells whether an object is stored compressed. */
+    public static boolean isEncoded(GetObjectResponse response) {
+        return Codec.of(response.contentEncoding()) != null;
+    }
+
+    /** Returns a stream of the stored content that decodes it if necessary. */
+    public static InputStream decode(GetObjectResponse response, InputStream in) throws IOException {
+        Codec codec = Codec.of(response.contentEncoding());
+        return codec == null ? in : codec.decode(in);
+    }
+
+    static boolean isCompressedFormat(byte[] head) {
+        for (byte[] signature : COMPRESSED_SIGNATURES) {
+            if (head.length >= signature.length
+                    && Arrays.equals(head, 0, signature.length, signature, 0, signature.length)) {
+                return true;
+            }
+        }
+        // Media in RIFF (webp, avi) or ISO base media (mp4, heic, mov) containers
+        return head.length >= 12 && (head[0] == 'R' && head[1] == 'I' && head[2] == 'F' && head[3] == 'F'
+                || head[4] == 'f' && head[5] == 't' && head[6] == 'y' && head[7] == 'p');
+    }
+
+    static long compressedSize(byte[] data, int level) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] buffer = new byte[8192];
+            long size = 0;
+            while (!deflater.finished()) {
+                size += deflater.deflate(buffer);
+            }
+            return size;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Tells whether an Accept-Encoding header accepts a content coding, either
+     * by name or through {@code *}, with a quality above zero.
+     */
+    static boolean accepts(String acceptEncoding, String contentEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        Boolean wildcard = null;
+        for (String entry : acceptEncoding.split(",")) {
+            String[] parts = entry.split(";");
+            String coding = parts[0].trim().toLowerCase(Locale.ROOT);
+            boolean accepted = true;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim().toLowerCase(Locale.ROOT);
+                if (parameter.startsWith("q=")) {
+                    try {
+                        accepted = Double.parseDouble(parameter.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        accepted = false;
+                    }
+                }
+            }
+            if (coding.equals(contentEncoding)) {
+                return accepted;
+            }
+            if (coding.equals("*")) {
+                wildcard = accepted;
+            }
+        }
+        return Boolean.TRUE.equals(wildcard);
+    }
+
+    /**
+     * Produces the gzip format (RFC 1952) of a stream while it is read: a fixed
+     * header, the deflated content, and a trailer of the content's CRC-32 and
+     * length, which are only known once the content has been read.
+     */
+    private static class GzipEncodingInputStream extends FilterInputStream {
+
+        private static final byte[] HEADER = { 0x1F, (byte) 0x8B, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xFF };
+
+        private final Deflater deflater;
+
+        GzipEncodingInputStream(InputStream content, int level) {
+            this(new CountingCheckedInputStream(content), new Deflater(level, true));
+        }
+
+        private GzipEncodingInputStream(CountingCheckedInputStream content, Deflater deflater) {
+            super(new SequenceInputStream(parts(content, deflater)));
+            this.deflater = deflater;
+        }
+
+        private static Enumeration<InputStream> parts(CountingCheckedInputStream content, Deflater deflater) {
+            return new Enumeration<>() {
+                private int next;
+
+                @Override
+                public boolean hasMoreElements() {
+                    return next < 3;
+                }
+
+                @Override
+                public InputStream nextElement() {
+                    switch (next++) {
+                        case 0:
+                            return new ByteArrayInputStream(HEADER);
+                        case 1:
+                            return new DeflaterInputStream(content, deflater);
+                        case 2:
+                            // Asked for only after the deflated content has been read to its end
+                            long crc = content.getChecksum().getValue();
+                            long length = content.count;
+                            return new ByteArrayInputStream(new byte[] {
+                                    (byte) crc, (byte) (crc >> 8), (byte) (crc >> 16), (byte) (crc >> 24),
+                                    (byte) length, (byte) (length >> 8), (byte) (length >> 16),
+                                    (byte) (length >> 24) });
+                        default:
+                            throw new NoSuchElementException();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                deflater.end();
+            }
+        }
+    }
+
+    private static class CountingCheckedInputStream extends CheckedInputStream {
+
+        private long count;
+
+        CountingCheckedInputStream(InputStream in) {
+            super(in, new CRC32());
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+    }
+}
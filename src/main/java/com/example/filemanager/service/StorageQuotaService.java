@@ -0,0 +1,365 @@
+package com.example.filemanager.service;
+
+import com.example.filemanager.domain.FileEntity;
+import com.example.filemanager.domain.Group;
+import com.example.filemanager.domain.StorageUsage;
+import com.example.filemanager.domain.StorageUsage.OwnerType;
+import com.example.filemanager.domain.User;
+import com.example.filemanager.exception.QuotaExceededException;
+import com.example.filemanager.repository.FileHistoryRepository;
+import com.example.filemanager.repository.FileRepository;
+import com.example.filemanager.repository.FileRepository.OwnerBytes;
+import com.example.filemanager.repository.StorageUsageRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * Enforces the storage quotas of users and groups. An owner is charged for the
+ * content of their files and for every stored version of it, each version
+ * counted by its size even where a restore made it share an object with the
+ * file. The bytes charged to each owner are kept in {@link StorageUsage}
+ * counters: uploads are checked against
+ * them before any bytes are transferred, and the counters are adjusted at the
+ * end of the transaction that changes the content with a conditional UPDATE,
+ * which rejects the change if a concurrent upload used up the quota meanwhile.
+ * <p>
+ * An owner's counter is created from the sum of their files by
+ * {@link #createCounters} before the first transaction that charges them opens,
+ * or else by the nightly reconciliation. Until then the owner's files are the
+ * count: releases and transfers leave a missing counter alone, and charges are
+ * checked against the files. Changes that bypass the counters (such as the
+ * bulk transfer of a deleted user's files) are corrected by the reconciliation.
+ */
+@Service
+public class StorageQuotaService {
+
+    private static final Logger logger = LoggerFactory.getLogger(StorageQuotaService.class);
+
+    static final String JOB_NAME = "storage-quota-reconciliation";
+
+    private final StorageUsageRepository storageUsageRepository;
+    private final FileRepository fileRepository;
+    private final FileHistoryRepository fileHistoryRepository;
+    private final TransactionTemplate transactionTemplate;
+    private final TransactionTemplate counterTransactionTemplate;
+    private final JobLockService jobLockService;
+    private final Counter correctedBytes;
+
+    // Negative for no quota
+    @Value("${storage.quota.per-user:-1B}")
+    private DataSize perUser = DataSize.ofBytes(-1);
+
+    @Value("${storage.quota.per-group:-1B}")
+    private DataSize perGroup = DataSize.ofBytes(-1);
+
+    @Value("${storage.quota.lock-at-most-for:PT1H}")
+    private Duration lockAtMostFor = Duration.ofHours(1);
+
+    public StorageQuotaService(StorageUsageRepository storageUsageRepository, FileRepository fileRepository,
+            FileHistoryRepository fileHistoryRepository, PlatformTransactionManager transactionManager,
+            MeterRegistry meterRegistry, JobLockService jobLockService) {
+        this.storageUsageRepository = storageUsageRepository;
+        this.fileRepository = fileRepository;
+        this.fileHistoryRepository = fileHistoryRepository;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        // A counter counts committed files only, so it is never created inside a transaction
+        this.counterTransactionTemplate = new TransactionTemplate(transactionManager);
+        this.counterTransactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_NEVER);
+        this.jobLockService = jobLockService;
+        this.correctedBytes = Counter.builder("storage.quota.corrected")
+                .description("Bytes by which the reconciliation corrected usage counters")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Creates the counters of an owner and a group that have none yet, from the
+     * sum of their files. Call outside of any transaction, before the one that
+     * charges them opens.
+     *
+     * @throws org.springframework.transaction.IllegalTransactionStateException if
+     *         a transaction is active.
+     */
+    public void createCounters(User owner, Group group) {
+        createCounter(OwnerType.USER, owner.getId());
+        createCounter(OwnerType.GROUP, group.getId());
+    }
+
+    /**
+     * Checks, without locking, that the given bytes fit into the quotas of an
+     * owner and a group. Call before transferring any content; the change itself
+     * is enforced by {@link #charge}.
+     *
+     * @throws QuotaExceededException if a quota would be exceeded.
+     */
+    @Transactional(readOnly = true)
+    public void checkAvailable(User owner, Group group, long bytes) {
+        if (bytes <= 0) {
+            return;
+        }
+        checkAvailable(OwnerType.USER, owner.getId(), bytes);
+        checkAvailable(OwnerType.GROUP, group.getId(), bytes);
+    }
+
+    /**
+     * Checks an upload of the given size before its content is read: a new file
+     * of the uploader, or new content for an existing file of its owner.
+     *
+     * @param fileId The file whose content is replaced, or {@code null} for a new
+     *               file.
+     * @throws QuotaExceededException if a quota would be exceeded.
+     */
+    @Transactional(readOnly = true)
+    public void checkUpload(User uploader, Long fileId, long bytes) {
+        if (fileId == null) {
+            uploader.getGroups().stream().findFirst()
+                    .ifPresent(group -> checkAvailable(uploader, group, bytes));
+            return;
+        }
+        // Unknown files are left to the request to report
+        Optional<FileEntity> file = fileRepository.findByIdAndDeletedAtIsNull(fileId);
+        if (file.isPresent()) {
+            checkAvailable(file.get().getOwner(), file.get().getGroup(), replacementBytes(file.get(), bytes));
+        }
+    }
+
+    /**
+     * The bytes charged for replacing a file's content with content of the given
+     * size. In a versioned folder the current content is kept as a version, so
+     * the new content is charged in full.
+     */
+    static long replacementBytes(FileEntity file, long newSize) {
+        FileEntity parent = file.getParent();
+        if (parent != null && Boolean.TRUE.equals(parent.getVersioningEnabled())) {
+            return newSize;
+        }
+        return newSize - (file.getSize() == null ? 0 : file.getSize());
+    }
+
+    /**
+     * Charges bytes to an owner and a group (negative to release them) in the
+     * current transaction. The counters stay locked until commit.
+     *
+     * @throws QuotaExceededException if a quota would be exceeded; the transaction
+     *                                must not commit.
+     */
+    @Transactional(propagation = Propagation.MANDATORY)
+    public void charge(User owner, Group group, long bytes) {
+        add(OwnerType.USER, owner.getId(), bytes, limit(OwnerType.USER));
+        add(OwnerType.GROUP, group.getId(), bytes, limit(OwnerType.GROUP));
+    }
+
+    /**
+     * Moves the bytes of files handed to a new owner and group, without
+     * enforcing the new owner's quota.
+     *
+     * @param bytesByOwner Bytes per previous owner ID.
+     * @param bytesByGroup Bytes per previous group ID.
+     */
+    @Transactional(propagation = Propagation.MANDATORY)
+    public void transfer(Map<Long, Long> bytesByOwner, Map<Long, Long> bytesByGroup, User newOwner,
+            Group newGroup) {
+        bytesByOwner.forEach((ownerId, bytes) -> add(OwnerType.USER, ownerId, -bytes, -1));
+        bytesByGroup.forEach((groupId, bytes) -> add(OwnerType.GROUP, groupId, -bytes, -1));
+        add(OwnerType.USER, newOwner.getId(), sum(bytesByOwner.values()), -1);
+        add(OwnerType.GROUP, newGroup.getId(), sum(bytesByGroup.values()), -1);
+    }
+
+    /**
+     * Releases the bytes of files that are about to be purged, together with
+     * their stored versions. Call before the rows are deleted.
+     */
+    @Transactional(propagation = Propagation.MANDATORY)
+    public void releaseFiles(Collection<Long> fileIds) {
+        release(fileRepository.sumSizeByOwnerIn(fileIds), fileRepository.sumSizeByGroupIn(fileIds));
+        release(fileHistoryRepository.sumSizeByOwnerIn(fileIds), fileHistoryRepository.sumSizeByGroupIn(fileIds));
+    }
+
+    /**
+     * Releases the bytes of stored versions that are about to be pruned. Call
+     * before the rows are deleted.
+     *
+     * @param historyIds IDs of the {@link com.example.filemanager.domain.FileHistory} rows.
+     */
+    @Transactional(propagation = Propagation.MANDATORY)
+    public void releaseVersions(Collection<Long> historyIds) {
+        release(fileHistoryRepository.sumSizeOfVersionsByOwner(historyIds),
+                fileHistoryRepository.sumSizeOfVersionsByGroup(historyIds));
+    }
+
+    /**
+     * Adds the bytes of the stored versions of files that are handed to a new
+     * owner to the bytes moved by {@link #transfer}. Call before the files'
+     * owners change.
+     */
+    @Transactional(propagation = Propagation.MANDATORY)
+    public void addVersionBytes(Collection<Long> fileIds, Map<Long, Long> bytesByOwner,
+            Map<Long, Long> bytesByGroup) {
+        if (fileIds.isEmpty()) {
+            return;
+        }
+        for (OwnerBytes owner : fileHistoryRepository.sumSizeByOwnerIn(fileIds)) {
+            bytesByOwner.merge(owner.getOwnerId(), owner.getBytes(), Long::sum);
+        }
+        for (OwnerBytes group : fileHistoryRepository.sumSizeByGroupIn(fileIds)) {
+            bytesByGroup.merge(group.getOwnerId(), group.getBytes(), Long::sum);
+        }
+    }
+
+    @Scheduled(cron = "${storage.quota.reconcile-cron:0 30 3 * * *}") // Defaults to 3:30 AM daily
+    public void reconcileUsage() {
+        jobLockService.runExclusively(JOB_NAME, lockAtMostFor, this::reconcile);
+    }
+
+    /**
+     * Recomputes every counter from the files and their versions, one owner per
+     * transaction.
+     *
+     * @return The number of corrected counters.
+     */
+    int reconcile() {
+        int corrected = 0;
+        for (OwnerType ownerType : OwnerType.values()) {
+            TreeSet<Long> ownerIds = new TreeSet<>(storageUsageRepository.findOwnerIds(ownerType));
+            ownerIds.addAll(ownerType == OwnerType.USER ? fileRepository.findOwnerIds()
+                    : fileRepository.findGroupIds());
+            for (Long ownerId : ownerIds) {
+                try {
+                    if (Boolean.TRUE.equals(transactionTemplate.execute(
+                            status -> reconcile(ownerType, ownerId)))) {
+                        corrected++;
+                    }
+                } catch (RuntimeException e) {
+                    // Typically a counter created concurrently; checked again next night
+                    logger.warn("Failed to reconcile the storage usage of {} {}.", ownerType, ownerId, e);
+                }
+            }
+        }
+        logger.info("Storage usage reconciliation finished: {} counters corrected.", corrected);
+        return corrected;
+    }
+
+    /**
+     * Compares one counter with the sum of the owner's files and versions while
+     * holding its lock, so no change of the owner commits in between.
+     */
+    private boolean reconcile(OwnerType ownerType, Long ownerId) {
+        Optional<Long> counted = storageUsageRepository.findUsedBytesForUpdate(ownerType.name(), ownerId);
+        long actual = usedBytes(ownerType, ownerId);
+        if (counted.isEmpty()) {
+            // Nothing can have drifted yet; create it for the owner's next charge
+            if (actual > 0) {
+                storageUsageRepository.save(new StorageUsage(ownerType, ownerId, actual));
+            }
+            return false;
+        }
+        if (actual == 0) {
+            // No files left (or the owner was deleted); created again when needed
+            storageUsageRepository.deleteByOwner(ownerType, ownerId);
+        } else if (counted.get() != actual) {
+            storageUsageRepository.setUsedBytes(ownerType, ownerId, actual);
+        }
+        if (counted.get() == actual) {
+            return false;
+        }
+        logger.warn("Storage usage of {} {} was {} bytes, corrected to {} bytes.", ownerType, ownerId,
+                counted.get(), actual);
+        correctedBytes.increment(Math.abs(counted.get() - actual));
+        return true;
+    }
+
+    private void checkAvailable(OwnerType ownerType, Long ownerId, long bytes) {
+        long limit = limit(ownerType);
+        if (limit < 0) {
+            return;
+        }
+        long used = storageUsageRepository.findUsedBytes(ownerType, ownerId)
+                .orElseGet(() -> usedBytes(ownerType, ownerId));
+        if (used + bytes > limit) {
+            throw exceeded(ownerType, used, limit);
+        }
+    }
+
+    private void add(OwnerType ownerType, Long ownerId, long bytes, long limit) {
+        if (bytes == 0) {
+            return;
+        }
+        // Releasing bytes always succeeds
+        long effectiveLimit = bytes < 0 ? -1 : limit;
+        if (storageUsageRepository.add(ownerType, ownerId, bytes, effectiveLimit) > 0) {
+            return;
+        }
+        Optional<Long> used = storageUsageRepository.findUsedBytes(ownerType, ownerId);
+        if (used.isPresent()) {
+            throw exceeded(ownerType, used.get(), effectiveLimit);
+        }
+        // No counter: the change is counted when one is created from the files
+        if (effectiveLimit >= 0) {
+            long filesBytes = usedBytes(ownerType, ownerId);
+            if (filesBytes + bytes > effectiveLimit) {
+                throw exceeded(ownerType, filesBytes, effectiveLimit);
+            }
+        }
+    }
+
+    /**
+     * Creates an owner's counter from the sum of their committed files, in a
+     * transaction of its own.
+     */
+    private void createCounter(OwnerType ownerType, Long ownerId) {
+        if (storageUsageRepository.findUsedBytes(ownerType, ownerId).isPresent()) {
+            return;
+        }
+        try {
+            counterTransactionTemplate.executeWithoutResult(status -> storageUsageRepository
+                    .saveAndFlush(new StorageUsage(ownerType, ownerId, usedBytes(ownerType, ownerId))));
+        } catch (DataIntegrityViolationException e) {
+            // Created by a concurrent request
+            logger.debug("Storage usage of {} {} was created concurrently.", ownerType, ownerId);
+        }
+    }
+
+    private void release(Collection<OwnerBytes> byOwner, Collection<OwnerBytes> byGroup) {
+        for (OwnerBytes owner : byOwner) {
+            add(OwnerType.USER, owner.getOwnerId(), -owner.getBytes(), -1);
+        }
+        for (OwnerBytes group : byGroup) {
+            add(OwnerType.GROUP, group.getOwnerId(), -group.getBytes(), -1);
+        }
+    }
+
+    private long usedBytes(OwnerType ownerType, Long ownerId) {
+        return ownerType == OwnerType.USER
+                ? fileRepository.sumSizeByOwnerId(ownerId) + fileHistoryRepository.sumSizeByOwnerId(ownerId)
+                : fileRepository.sumSizeByGroupId(ownerId) + fileHistoryRepository.sumSizeByGroupId(ownerId);
+    }
+
+    private long limit(OwnerType ownerType) {
+        return (ownerType == OwnerType.USER ? perUser : perGroup).toBytes();
+    }
+
+    private QuotaExceededException exceeded(OwnerType ownerType, long used, long limit) {
+        return new QuotaExceededException(String.format("The storage quota of the %s (%d bytes) is exceeded: "
+                + "%d bytes are already in use.", ownerType == OwnerType.USER ? "owner" : "group", limit, used));
+    }
+
+    private static long sum(Collection<Long> values) {
+        return values.stream().mapToLong(Long::longValue).sum();
+    }
+}
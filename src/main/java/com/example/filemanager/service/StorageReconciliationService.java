@@ -0,0 +1,356 @@
+package com.example.filemanager.service;
+
+import com.example.filemanager.domain.FileRendition;
+import com.example.filemanager.repository.FileHistoryRepository;
+import com.example.filemanager.repository.FileRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.lang.NonNull;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
+import software.amazon.awssdk.services.s3.model.S3Error;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+/**
+ * Compares the bucket with the storage keys in the database and reports (and
+ * optionally deletes) orphaned objects that no file or stored version
+ * references, as well as keys whose object is missing. Renditions under
+ * {@link FileRendition#KEY_PREFIX} are left to {@link RenditionService}.
+ * <p>
+ * Both sides are read in key order, page by page: the bucket with
+ * ListObjectsV2 (which returns keys in UTF-8 byte order) and the keys of
+ * {@code files} and {@code file_history} by keyset pagination on their
+ * storage key indexes (byte-order collation on PostgreSQL). The pages are
+ * merge-joined, so memory use does not depend on the size of the bucket.
+ * <p>
+ * Every finding is checked again before acting on it, so keys written while
+ * the scan runs are never treated as orphans: objects younger than
+ * {@code storage.reconcile.min-age} are skipped, orphans are looked up in the
+ * database once more right before they are deleted, and missing objects are
+ * confirmed with a HEAD request. S3 requests are throttled to
+ * {@code storage.reconcile.operations-per-second}.
+ */
+@Service
+public class StorageReconciliationService {
+
+    private static final Logger logger = LoggerFactory.getLogger(StorageReconciliationService.class);
+
+    static final String JOB_NAME = "storage-reconciliation";
+
+    /** Keys per listed page, database page and DeleteObjects request. */
+    static final int PAGE_SIZE = 1000;
+
+    /** Findings of each kind that are logged with their key; the rest are only counted. */
+    private static final int LOGGED_KEYS = 100;
+
+    private final FileRepository fileRepository;
+    private final FileHistoryRepository fileHistoryRepository;
+    private final S3Client s3Client;
+    private final JobLockService jobLockService;
+    private final Counter orphanedObjects;
+    private final Counter deletedObjects;
+    private final Counter missingObjects;
+
+    private final String bucketName;
+
+    // Report only unless enabled
+    @Value("${storage.reconcile.delete-orphans:false}")
+    private boolean deleteOrphans = false;
+
+    // Must exceed blob.outbox.upload-timeout so uploads in progress are never touched
+    @Value("${storage.reconcile.min-age:P1D}")
+    private Duration minAge = Duration.ofDays(1);
+
+    @Value("${storage.reconcile.operations-per-second:100}")
+    private double operationsPerSecond = 100;
+
+    @Value("${storage.reconcile.lock-at-most-for:PT12H}")
+    private Duration lockAtMostFor = Duration.ofHours(12);
+
+    public StorageReconciliationService(FileRepository fileRepository, FileHistoryRepository fileHistoryRepository,
+            S3Client s3Client, MeterRegistry meterRegistry, JobLockService jobLockService,
+            @Value("${S3_BUCKET_NAME}") @NonNull String bucketName) {
+        this.fileRepository = fileRepository;
+        this.fileHistoryRepository = fileHistoryRepository;
+        this.s3Client = s3Client;
+        this.jobLockService = jobLockService;
+        this.orphanedObjects = Counter.builder("storage.reconcile.orphans")
+                .description("Storage objects found without a file or version referencing them")
+                .register(meterRegistry);
+        this.deletedObjects = Counter.builder("storage.reconcile.deleted")
+                .description("Orphaned storage objects deleted by the reconciler")
+                .register(meterRegistry);
+        this.missingObjects = Counter.builder("storage.reconcile.missing")
+                .description("Storage keys in the database whose object does not exist")
+                .register(meterRegistry);
+        this.bucketName = bucketName;
+    }
+
+    @Scheduled(cron = "${storage.reconcile.cron:0 0 4 * * SUN}") // Defaults to 4 AM every Sunday
+    public void performReconciliation() {
+        jobLockService.runExclusively(JOB_NAME, lockAtMostFor, this::reconcile);
+    }
+
+    /**
+     * Runs one pass over the whole bucket.
+     */
+    Report reconcile() {
+        logger.info("Reconciling bucket {} with the database (deleting orphans: {}).", bucketName, deleteOrphans);
+        Pass pass = new Pass(Instant.now().minus(minAge), new Throttle(operationsPerSecond));
+        ReferencedKeys references = new ReferencedKeys(
+                new KeyCursor(after -> fileRepository.findStorageKeysAfter(after, PageRequest.of(0, PAGE_SIZE))),
+                new KeyCursor(after -> fileHistoryRepository.findStorageKeysAfter(after,
+                        PageRequest.of(0, PAGE_SIZE))));
+
+        String continuationToken = null;
+        ListObjectsV2Response page;
+        do {
+            pass.throttle.acquire(1);
+            String token = continuationToken;
+            page = s3Client.listObjectsV2(b -> b.bucket(bucketName).maxKeys(PAGE_SIZE).continuationToken(token));
+            for (S3Object object : page.contents()) {
+                // Referenced keys sorting before this object have none
+                while (references.peek() != null && compareKeys(references.peek(), object.key()) < 0) {
+                    pass.missing(references.next());
+                }
+                if (object.key().equals(references.peek())) {
+                    references.next();
+                } else if (!object.key().startsWith(FileRendition.KEY_PREFIX)) {
+                    // Renditions are deleted with their content version by RenditionService
+                    pass.orphan(object);
+                }
+                pass.objects++;
+            }
+            continuationToken = page.nextContinuationToken();
+        } while (Boolean.TRUE.equals(page.isTruncated()));
+        while (references.peek() != null) {
+            pass.missing(references.next());
+        }
+        pass.deletePendingOrphans();
+
+        Report report = new Report(pass.objects, pass.orphans, pass.deleted, pass.missing);
+        logger.info("Reconciliation finished: {} objects, {} orphaned ({} deleted), {} missing.", report.objects(),
+                report.orphans(), report.deleted(), report.missing());
+        return report;
+    }
+
+    /**
+     * Orders keys like S3 lists them: by Unicode code point, which is the order of
+     * their UTF-8 bytes.
+     */
+    static int compareKeys(String a, String b) {
+        int i = 0;
+        int j = 0;
+        while (i < a.length() && j < b.length()) {
+            int ca = a.codePointAt(i);
+            int cb = b.codePointAt(j);
+            if (ca != cb) {
+                return Integer.compare(ca, cb);
+            }
+            i += Character.charCount(ca);
+            j += Character.charCount(cb);
+        }
+        return Integer.compare(a.length() - i, b.length() - j);
+    }
+
+    /** Totals of one pass. */
+    record Report(long objects, long orphans, long deleted, long missing) {
+    }
+
+    /** State of one pass: counts and orphans waiting to be deleted. */
+    private final class Pass {
+
+        private final Instant createdBefore;
+        private final Throttle throttle;
+        private final List<String> pendingOrphans = new ArrayList<>();
+        private long objects;
+        private long orphans;
+        private long deleted;
+        private long missing;
+
+        Pass(Instant createdBefore, Throttle throttle) {
+            this.createdBefore = createdBefore;
+            this.throttle = throttle;
+        }
+
+        void orphan(S3Object object) {
+            if (object.lastModified() != null && object.lastModified().isAfter(createdBefore)) {
+                // Possibly an upload whose transaction has not committed yet
+                return;
+            }
+            orphans++;
+            orphanedObjects.increment();
+            if (orphans <= LOGGED_KEYS) {
+                logger.warn("Orphaned object {} ({} bytes, last modified {}).", object.key(), object.size(),
+                        object.lastModified());
+            }
+            if (deleteOrphans) {
+                pendingOrphans.add(object.key());
+                if (pendingOrphans.size() == PAGE_SIZE) {
+                    deletePendingOrphans();
+                }
+            }
+        }
+
+        void missing(String key) {
+            throttle.acquire(1);
+            try {
+                s3Client.headObject(b -> b.bucket(bucketName).key(key));
+                // Uploaded after the listing passed its key
+                return;
+            } catch (NoSuchKeyException e) {
+                missing++;
+            }
+            missingObjects.increment();
+            if (missing <= LOGGED_KEYS) {
+                logger.warn("Object {} is referenced in the database but does not exist.", key);
+            }
+        }
+
+        void deletePendingOrphans() {
+            if (pendingOrphans.isEmpty()) {
+                return;
+            }
+            // Keys may have been stored since they were compared (e.g. a restored version)
+            Set<String> referenced = new HashSet<>(fileRepository.findStorageKeysIn(pendingOrphans));
+            referenced.addAll(fileHistoryRepository.findStorageKeysIn(pendingOrphans));
+            List<ObjectIdentifier> batch = pendingOrphans.stream()
+                    .filter(key -> !referenced.contains(key))
+                    .map(key -> ObjectIdentifier.builder().key(key).build())
+                    .toList();
+            pendingOrphans.clear();
+            if (batch.isEmpty()) {
+                return;
+            }
+            throttle.acquire(batch.size());
+            try {
+                DeleteObjectsResponse response = s3Client.deleteObjects(
+                        b -> b.bucket(bucketName).delete(d -> d.objects(batch).quiet(true)));
+                for (S3Error error : response.errors()) {
+                    logger.warn("S3 could not delete orphaned key {}: {} {}", error.key(), error.code(),
+                            error.message());
+                }
+                int removed = batch.size() - response.errors().size();
+                deleted += removed;
+                deletedObjects.increment(removed);
+            } catch (Exception e) {
+                // Found again by the next pass
+                logger.error("Failed to delete {} orphaned objects.", batch.size(), e);
+            }
+        }
+    }
+
+    /**
+     * The distinct keys referenced by files or stored versions, in ascending order.
+     */
+    private static final class ReferencedKeys {
+
+        private final KeyCursor files;
+        private final KeyCursor versions;
+
+        ReferencedKeys(KeyCursor files, KeyCursor versions) {
+            this.files = files;
+            this.versions = versions;
+        }
+
+        String peek() {
+            String file = files.peek();
+            String version = versions.peek();
+            if (file == null || version == null) {
+                return file == null ? version : file;
+            }
+            return compareKeys(file, version) <= 0 ? file : version;
+        }
+
+        String next() {
+            String key = peek();
+            // A restored version shares its key with the file
+            if (key.equals(files.peek())) {
+                files.next();
+            }
+            if (key.equals(versions.peek())) {
+                versions.next();
+            }
+            return key;
+        }
+    }
+
+    /**
+     * Reads keys in ascending order, one page at a time, starting each page after
+     * the last key of the previous one.
+     */
+    private static final class KeyCursor {
+
+        private final Function<String, List<String>> pageAfter;
+        private List<String> page = List.of();
+        private int index;
+        private String lastKey = "";
+        private boolean exhausted;
+
+        KeyCursor(Function<String, List<String>> pageAfter) {
+            this.pageAfter = pageAfter;
+        }
+
+        String peek() {
+            if (index == page.size() && !exhausted) {
+                page = pageAfter.apply(lastKey);
+                index = 0;
+                exhausted = page.size() < PAGE_SIZE;
+            }
+            return index < page.size() ? page.get(index) : null;
+        }
+
+        String next() {
+            lastKey = peek();
+            index++;
+            return lastKey;
+        }
+    }
+
+    /**
+     * Spaces S3 operations out to a fixed rate; a request covering n keys counts
+     * as n operations.
+     */
+    private static final class Throttle {
+
+        private final long nanosPerOperation;
+        private long nextFree = System.nanoTime();
+
+        Throttle(double operationsPerSecond) {
+            this.nanosPerOperation = operationsPerSecond > 0 ? (long) (1e9 / operationsPerSecond) : 0;
+        }
+
+        void acquire(int operations) {
+            if (nanosPerOperation == 0) {
+                return;
+            }
+            long now = System.nanoTime();
+            if (nextFree > now) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(nextFree - now);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Storage reconciliation was interrupted", e);
+                }
+            }
+            nextFree = Math.max(nextFree, now) + operations * nanosPerOperation;
+        }
+    }
+}
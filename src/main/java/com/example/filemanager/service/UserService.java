@@ -5,6 +5,8 @@ import com.example.filemanager.domain.Group;
 import com.example.filemanager.domain.User;
 import com.example.filemanager.exception.GroupNotFoundException;
 import com.example.filemanager.exception.UserNotFoundException;
+import com.example.filemanager.repository.FileHistoryRepository;
+import com.example.filemanager.repository.FileLeaseRepository;
 import com.example.filemanager.repository.FileRepository;
 import com.example.filemanager.repository.GroupRepository;
 import com.example.filemanager.repository.UserRepository;
@@ -28,13 +30,21 @@ public class UserService implements UserDetailsService {
     private final GroupRepository groupRepository;
     private final PasswordEncoder passwordEncoder;
     private final FileRepository fileRepository;
+    private final FileHistoryRepository fileHistoryRepository;
+    private final FileLeaseRepository fileLeaseRepository;
+    private final CacheInvalidationBus cacheInvalidationBus;
 
     public UserService(UserRepository userRepository, GroupRepository groupRepository,
-            PasswordEncoder passwordEncoder, FileRepository fileRepository) {
+            PasswordEncoder passwordEncoder, FileRepository fileRepository,
+            FileHistoryRepository fileHistoryRepository, FileLeaseRepository fileLeaseRepository,
+            CacheInvalidationBus cacheInvalidationBus) {
         this.userRepository = userRepository;
         this.groupRepository = groupRepository;
         this.passwordEncoder = passwordEncoder;
         this.fileRepository = fileRepository;
+        this.fileHistoryRepository = fileHistoryRepository;
+        this.fileLeaseRepository = fileLeaseRepository;
+        this.cacheInvalidationBus = cacheInvalidationBus;
     }
 
     public User createUser(@NonNull User user, List<Long> groupIds) {
@@ -99,15 +109,15 @@ public class UserService implements UserDetailsService {
             throw new IllegalArgumentException("Cannot delete admin user");
         }
 
-        // Transfer ownership of all files/folders to admin user
+        // Transfer ownership and version authorship to the admin user; the user's locks are released
         User adminUser = userRepository.findByUsername("admin")
                 .orElseThrow(() -> new UserNotFoundException("Admin user not found"));
 
-        List<FileEntity> ownedFiles = fileRepository.findAllByOwner(user);
-        for (FileEntity file : ownedFiles) {
-            file.setOwner(adminUser);
-            fileRepository.save(file);
-        }
+        // Set-based updates, so the number of files does not matter
+        fileRepository.transferOwner(user, adminUser);
+        fileLeaseRepository.releaseAllHeldBy(user);
+        fileHistoryRepository.transferModifier(user, adminUser);
+        cacheInvalidationBus.allChanged(FileEntity.class);
 
         userRepository.deleteById(id);
     }
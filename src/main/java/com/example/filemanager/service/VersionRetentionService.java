@@ -0,0 +1,216 @@
+package com.example.filemanager.service;
+
+import com.example.filemanager.domain.FileEntity;
+import com.example.filemanager.domain.FileHistory;
+import com.example.filemanager.domain.VersionThinning;
+import com.example.filemanager.repository.FileHistoryRepository;
+import com.example.filemanager.repository.FileRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Prunes file versions according to the retention policy of their parent folder.
+ * Folders and files are scanned page by page and pruned versions are deleted in
+ * chunks, each chunk in its own short transaction. The history rows go first,
+ * releasing their bytes from the owners' quotas; their objects are handed to the {@link BlobOutboxService} in the same
+ * transaction, which deletes them in batches after the commit unless a restore
+ * made one current again in the meantime. With several nodes, only the node
+ * holding the job's {@link JobLockService} lock prunes.
+ */
+@Service
+public class VersionRetentionService {
+
+    private static final Logger logger = LoggerFactory.getLogger(VersionRetentionService.class);
+
+    static final String JOB_NAME = "version-retention";
+
+    private final FileRepository fileRepository;
+    private final FileHistoryRepository fileHistoryRepository;
+    private final BlobOutboxService blobOutboxService;
+    private final StorageQuotaService storageQuotaService;
+    private final TransactionTemplate transactionTemplate;
+    private final JobLockService jobLockService;
+    private final Counter prunedVersions;
+    private final Counter reclaimedBytes;
+
+    @Value("${file.version-retention.batch-size:500}")
+    private int batchSize = 500;
+
+    @Value("${file.version-retention.lock-at-most-for:PT6H}")
+    private Duration lockAtMostFor = Duration.ofHours(6);
+
+    public VersionRetentionService(FileRepository fileRepository, FileHistoryRepository fileHistoryRepository,
+            BlobOutboxService blobOutboxService, StorageQuotaService storageQuotaService,
+            PlatformTransactionManager transactionManager, MeterRegistry meterRegistry,
+            JobLockService jobLockService) {
+        this.fileRepository = fileRepository;
+        this.fileHistoryRepository = fileHistoryRepository;
+        this.blobOutboxService = blobOutboxService;
+        this.storageQuotaService = storageQuotaService;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.jobLockService = jobLockService;
+        this.prunedVersions = Counter.builder("file.versions.pruned")
+                .description("File versions removed by retention policies")
+                .register(meterRegistry);
+        this.reclaimedBytes = Counter.builder("file.versions.reclaimed")
+                .baseUnit("bytes")
+                .description("Storage reclaimed by pruning file versions")
+                .register(meterRegistry);
+    }
+
+    @Scheduled(cron = "${file.version-retention.cron:0 30 2 * * *}") // Defaults to 2:30 AM daily
+    public void pruneVersions() {
+        jobLockService.runExclusively(JOB_NAME, lockAtMostFor, this::pruneAllFolders);
+    }
+
+    private void pruneAllFolders() {
+        LocalDateTime now = LocalDateTime.now();
+        logger.info("Running version retention job.");
+
+        List<PrunedVersion> pending = new ArrayList<>();
+        long pruned = 0;
+        long lastFolderId = 0;
+        List<FileEntity> folders;
+        do {
+            folders = fileRepository.findFoldersWithRetentionPolicy(lastFolderId, PageRequest.of(0, batchSize));
+            for (FileEntity folder : folders) {
+                pruned += pruneFolder(folder, now, pending);
+                lastFolderId = folder.getId();
+            }
+        } while (folders.size() == batchSize);
+        pruned += deleteChunk(pending);
+
+        logger.info("Version retention job finished. Pruned {} versions.", pruned);
+    }
+
+    private long pruneFolder(FileEntity folder, LocalDateTime now, List<PrunedVersion> pending) {
+        long pruned = 0;
+        long lastFileId = 0;
+        List<Long> fileIds;
+        do {
+            fileIds = fileHistoryRepository.findVersionedFileIds(folder.getId(), lastFileId,
+                    PageRequest.of(0, batchSize));
+            for (Long fileId : fileIds) {
+                List<PrunedVersion> prunable = transactionTemplate.execute(status -> collectPrunable(
+                        fileHistoryRepository.findByFileEntityIdOrderByVersionDesc(fileId), folder, now));
+                pending.addAll(Objects.requireNonNull(prunable));
+                if (pending.size() >= batchSize) {
+                    pruned += deleteChunk(pending);
+                }
+                lastFileId = fileId;
+            }
+        } while (fileIds.size() == batchSize);
+        return pruned;
+    }
+
+    private List<PrunedVersion> collectPrunable(List<FileHistory> history, FileEntity folder, LocalDateTime now) {
+        List<FileHistory> prunable = selectPrunable(history, folder, now);
+        if (prunable.isEmpty()) {
+            return List.of();
+        }
+
+        // A restored version shares its storage key with the current file (and possibly
+        // with a newer history entry), so only keys nothing else references are deleted.
+        Set<FileHistory> prunableSet = new HashSet<>(prunable);
+        Set<String> retainedKeys = new HashSet<>();
+        retainedKeys.add(history.get(0).getFileEntity().getStorageKey());
+        for (FileHistory version : history) {
+            if (!prunableSet.contains(version)) {
+                retainedKeys.add(version.getStorageKey());
+            }
+        }
+
+        List<PrunedVersion> result = new ArrayList<>();
+        Set<String> claimedKeys = new HashSet<>();
+        for (FileHistory version : prunable) {
+            String key = version.getStorageKey();
+            boolean deleteObject = !retainedKeys.contains(key) && claimedKeys.add(key);
+            result.add(new PrunedVersion(version.getId(), deleteObject ? key : null, version.getSize()));
+        }
+        return result;
+    }
+
+    /**
+     * Selects the versions that no rule of the folder's retention policy keeps.
+     * The history must be ordered newest first.
+     */
+    static List<FileHistory> selectPrunable(List<FileHistory> history, FileEntity folder, LocalDateTime now) {
+        if (!folder.hasRetentionPolicy()) {
+            return List.of();
+        }
+
+        Integer keepLast = folder.getRetentionKeepLast();
+        Integer keepWithinDays = folder.getRetentionKeepWithinDays();
+        VersionThinning thinning = folder.getRetentionThinning();
+        LocalDateTime keepAfter = keepWithinDays != null ? now.minusDays(keepWithinDays) : null;
+
+        List<FileHistory> prunable = new ArrayList<>();
+        Set<LocalDateTime> keptPeriods = new HashSet<>();
+        for (int i = 0; i < history.size(); i++) {
+            FileHistory version = history.get(i);
+            boolean keep = keepLast != null && i < keepLast;
+            if (keepAfter != null && version.getCreatedAt().isAfter(keepAfter)) {
+                keep = true;
+            }
+            // Newest first, so the first version seen in a period is the one kept
+            if (thinning != null && keptPeriods.add(thinning.periodStart(version.getCreatedAt()))) {
+                keep = true;
+            }
+            if (!keep) {
+                prunable.add(version);
+            }
+        }
+        return prunable;
+    }
+
+    private long deleteChunk(List<PrunedVersion> pending) {
+        if (pending.isEmpty()) {
+            return 0;
+        }
+
+        List<Long> ids = new ArrayList<>();
+        List<String> keys = new ArrayList<>();
+        long bytes = 0;
+        for (PrunedVersion version : pending) {
+            ids.add(version.historyId());
+            if (version.storageKey() != null) {
+                keys.add(version.storageKey());
+                bytes += version.size() != null ? version.size() : 0;
+            }
+        }
+        pending.clear();
+
+        try {
+            transactionTemplate.executeWithoutResult(status -> {
+                storageQuotaService.releaseVersions(ids);
+                fileHistoryRepository.deleteAllByIdInBatch(ids);
+                blobOutboxService.deleteAllAfterCommit(keys);
+            });
+        } catch (Exception e) {
+            logger.error("Failed to delete {} pruned versions. They will be retried on the next run.", ids.size(), e);
+            return 0;
+        }
+        prunedVersions.increment(ids.size());
+        reclaimedBytes.increment(bytes);
+        logger.info("Pruned {} versions, reclaiming {} bytes.", ids.size(), bytes);
+        return ids.size();
+    }
+
+    private record PrunedVersion(Long historyId, String storageKey, Long size) {
+    }
+}
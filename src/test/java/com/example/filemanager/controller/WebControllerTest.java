@@ -1,17 +1,23 @@
 package com.example.filemanager.controller;
 
 import com.example.filemanager.controller.dto.FolderRequest;
+import com.example.filemanager.controller.dto.TrashSummaryResponse;
 import com.example.filemanager.domain.FileEntity;
+import com.example.filemanager.domain.FileListItem;
+import com.example.filemanager.domain.User;
 import com.example.filemanager.service.FileService;
+import com.example.filemanager.service.GroupService;
+import com.example.filemanager.service.StorageQuotaService;
+import com.example.filemanager.service.UserService;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
 import org.springframework.test.context.bean.override.mockito.MockitoBean;
 import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.security.test.context.support.WithMockUser;
 import org.springframework.test.web.servlet.MockMvc;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import org.springframework.http.MediaType;
 
 import java.util.Arrays;
 
@@ -20,6 +26,7 @@ import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors.csrf;
+import static org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors.user;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
 
@@ -30,22 +37,35 @@ class WebControllerTest {
     @Autowired
     private MockMvc mockMvc;
 
-    @Autowired
-    private ObjectMapper objectMapper;
-
     @MockitoBean
     private FileService fileService;
 
+    @MockitoBean
+    private UserService userService;
+
+    @MockitoBean
+    private GroupService groupService;
+
+    // Required by UploadQuotaFilter, which the slice picks up
+    @MockitoBean
+    private StorageQuotaService storageQuotaService;
+
+    // The home view compares file owners with the signed-in domain user
+    private static User currentUser() {
+        User user = new User();
+        user.setId(1L);
+        user.setUsername("user");
+        return user;
+    }
+
     @Test
-    @WithMockUser
     void shouldReturnHomeViewWithFiles() throws Exception {
-        FileEntity file1 = new FileEntity();
-        file1.setId(1L);
-        file1.setName("file1.txt");
+        FileListItem file1 = new FileListItem(1L, "file1.txt", false, 644, null, null, null, null, false,
+                null, 1L, "user", 1L, "group", null, null, null, null, 0L);
 
-        when(fileService.listFiles(null)).thenReturn(Arrays.asList(file1));
+        when(fileService.listFiles(eq(null), any(Pageable.class))).thenReturn(new PageImpl<>(Arrays.asList(file1)));
 
-        mockMvc.perform(get("/"))
+        mockMvc.perform(get("/").with(user(currentUser())))
                 .andExpect(status().isOk())
                 .andExpect(view().name("home"))
                 .andExpect(model().attributeExists("files"))
@@ -53,21 +73,22 @@ class WebControllerTest {
     }
 
     @Test
-    @WithMockUser
     void shouldReturnHomeViewWithFolderContent() throws Exception {
         Long folderId = 10L;
         FileEntity folder = new FileEntity();
         folder.setId(folderId);
         folder.setName("Docs");
+        folder.setDirectory(true);
+        folder.setVersioningEnabled(false);
 
-        FileEntity fileInFolder = new FileEntity();
-        fileInFolder.setId(2L);
-        fileInFolder.setName("doc.txt");
+        FileListItem fileInFolder = new FileListItem(2L, "doc.txt", false, 644, null, null, null, null, false,
+                null, 1L, "user", 1L, "group", null, null, null, null, 0L);
 
-        when(fileService.listFiles(folderId)).thenReturn(Arrays.asList(fileInFolder));
+        when(fileService.listFiles(eq(folderId), any(Pageable.class)))
+                .thenReturn(new PageImpl<>(Arrays.asList(fileInFolder)));
         when(fileService.findFileById(folderId)).thenReturn(folder);
 
-        mockMvc.perform(get("/").param("folderId", folderId.toString()))
+        mockMvc.perform(get("/").param("folderId", folderId.toString()).with(user(currentUser())))
                 .andExpect(status().isOk())
                 .andExpect(view().name("home"))
                 .andExpect(model().attribute("files", Arrays.asList(fileInFolder)))
@@ -93,13 +114,9 @@ class WebControllerTest {
     @Test
     @WithMockUser
     void shouldCreateFolder() throws Exception {
-        FolderRequest request = new FolderRequest();
-        request.setName("New Folder");
-        request.setPermissions("755");
-
         mockMvc.perform(post("/folders")
-                .contentType(MediaType.APPLICATION_JSON)
-                .content(objectMapper.writeValueAsString(request))
+                .param("name", "New Folder")
+                .param("permissions", "755")
                 .with(java.util.Objects.requireNonNull(csrf())))
                 .andExpect(status().is3xxRedirection())
                 .andExpect(redirectedUrl("/"));
@@ -117,7 +134,7 @@ class WebControllerTest {
                 .andExpect(status().is3xxRedirection())
                 .andExpect(redirectedUrl("/"));
 
-        verify(fileService).softDeleteFile(fileId);
+        verify(fileService).softDeleteFile(fileId, null);
     }
 
     @Test
@@ -127,7 +144,9 @@ class WebControllerTest {
         deletedFile.setId(1L);
         deletedFile.setName("deleted.txt");
 
-        when(fileService.listDeletedFiles()).thenReturn(Arrays.asList(deletedFile));
+        when(fileService.listDeletedFiles(any(Pageable.class)))
+                .thenReturn(new PageImpl<>(Arrays.asList(deletedFile)));
+        when(fileService.getTrashSummary()).thenReturn(new TrashSummaryResponse(1L, 0L));
 
         mockMvc.perform(get("/trash"))
                 .andExpect(status().isOk())
@@ -145,7 +164,7 @@ class WebControllerTest {
                 .andExpect(status().is3xxRedirection())
                 .andExpect(redirectedUrl("/trash"));
 
-        verify(fileService).restoreFile(fileId);
+        verify(fileService).restoreFile(fileId, null);
     }
 
     @Test
@@ -153,8 +172,8 @@ class WebControllerTest {
     void shouldSearchFiles() throws Exception {
         String query = "test";
         String tags = "work";
-        FileEntity result = new FileEntity();
-        result.setName("test-work.txt");
+        FileListItem result = new FileListItem(1L, "test-work.txt", false, 644, null, "work", null, null, false,
+                null, 1L, "user", 1L, "group", null, null, null, null, 0L);
 
         when(fileService.searchFiles(query, tags)).thenReturn(Arrays.asList(result));
 
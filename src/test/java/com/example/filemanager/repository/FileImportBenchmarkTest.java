@@ -0,0 +1,96 @@
+package com.example.filemanager.repository;
+
+import com.example.filemanager.domain.FileEntity;
+import com.example.filemanager.domain.Group;
+import com.example.filemanager.domain.User;
+import jakarta.persistence.EntityManager;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Measures how fast file records can be imported through JPA. Each batch is
+ * committed in its own transaction, as a bulk import would. Only runs when the
+ * number of rows is given, e.g.
+ * {@code mvn test -Dtest=FileImportBenchmarkTest -Dbenchmark.import.rows=1000000}.
+ */
+@DataJpaTest(showSql = false)
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+@EnabledIfSystemProperty(named = "benchmark.import.rows", matches = "\\d+")
+class FileImportBenchmarkTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileImportBenchmarkTest.class);
+
+    @Autowired
+    private FileRepository fileRepository;
+
+    @Autowired
+    private EntityManager entityManager;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Value("${spring.jpa.properties.hibernate.jdbc.batch_size:50}")
+    private int batchSize;
+
+    @Test
+    void importFiles() {
+        int rows = Integer.parseInt(System.getProperty("benchmark.import.rows"));
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+
+        FileEntity folder = transactionTemplate.execute(status -> {
+            Group group = new Group();
+            group.setName("benchmark-group");
+            entityManager.persist(group);
+            User owner = new User();
+            owner.setUsername("benchmark-owner");
+            owner.setPassword("password");
+            owner.setGroups(Set.of(group));
+            entityManager.persist(owner);
+            FileEntity root = new FileEntity();
+            root.setName("benchmark");
+            root.setDirectory(true);
+            root.setOwner(owner);
+            root.setGroup(group);
+            root.setPermissions(755);
+            entityManager.persist(root);
+            return root;
+        });
+
+        long started = System.nanoTime();
+        for (int from = 0; from < rows; from += batchSize) {
+            int to = Math.min(from + batchSize, rows);
+            int first = from;
+            transactionTemplate.executeWithoutResult(status -> {
+                for (int i = first; i < to; i++) {
+                    FileEntity file = new FileEntity();
+                    file.setName("file-" + i);
+                    file.setDirectory(false);
+                    file.setParent(folder);
+                    file.setOwner(folder.getOwner());
+                    file.setGroup(folder.getGroup());
+                    file.setPermissions(644);
+                    file.setStorageKey("benchmark/" + i);
+                    file.setSize(1024L);
+                    entityManager.persist(file);
+                }
+            });
+        }
+        double seconds = (System.nanoTime() - started) / 1e9;
+
+        logger.info("Imported {} file records in {} s ({} inserts/s, batch size {})", rows,
+                String.format("%.1f", seconds), Math.round(rows / seconds), batchSize);
+        assertEquals(rows + 1, fileRepository.count());
+    }
+}
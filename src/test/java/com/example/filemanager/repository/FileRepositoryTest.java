@@ -0,0 +1,285 @@
+package com.example.filemanager.repository;
+
+import com.example.filemanager.controller.dto.FileResponse;
+import com.example.filemanager.domain.FileEntity;
+import com.example.filemanager.domain.FileLease;
+import com.example.filemanager.domain.FileListItem;
+import com.example.filemanager.domain.Group;
+import com.example.filemanager.domain.User;
+import com.example.filemanager.service.PermissionService;
+import jakarta.persistence.EntityManagerFactory;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Supplier;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Verifies that building file lists does not issue one select per row, that
+ * inserts are batched, that ownership transfers are set-based, that stale
+ * copies of a row are rejected and that expired locks are ignored.
+ */
+@DataJpaTest(properties = "spring.jpa.properties.hibernate.generate_statistics=true")
+class FileRepositoryTest {
+
+    @Autowired
+    private FileRepository fileRepository;
+
+    @Autowired
+    private FileLeaseRepository fileLeaseRepository;
+
+    @Autowired
+    private TestEntityManager entityManager;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    private static final int USERS = 50;
+
+    private final PermissionService permissionService = new PermissionService();
+
+    private Statistics statistics;
+    private User owner;
+    private Group group;
+    private final List<User> users = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+
+        group = new Group();
+        group.setName("listing-group");
+        entityManager.persist(group);
+
+        owner = user("listing-owner");
+        users.add(owner);
+        for (int i = 1; i < USERS; i++) {
+            users.add(user("listing-user-" + i));
+        }
+    }
+
+    private User user(String username) {
+        User user = new User();
+        user.setUsername(username);
+        user.setPassword("password");
+        user.setGroups(Set.of(group));
+        return entityManager.persist(user);
+    }
+
+    private FileEntity folder(String name, FileEntity parent) {
+        FileEntity folder = new FileEntity();
+        folder.setName(name);
+        folder.setDirectory(true);
+        folder.setParent(parent);
+        folder.setOwner(owner);
+        folder.setGroup(group);
+        folder.setPermissions(755);
+        return entityManager.persist(folder);
+    }
+
+    /**
+     * Creates a folder with {@code count} locked files, half of them in the trash.
+     * Owners and lock holders rotate through the test users so rows do not share
+     * their associations.
+     */
+    private FileEntity folderWithFiles(String name, int count) {
+        FileEntity folder = folder(name, null);
+        for (int i = 0; i < count; i++) {
+            FileEntity file = new FileEntity();
+            file.setName(name + "-file-" + i);
+            file.setDirectory(false);
+            file.setParent(folder);
+            file.setOwner(users.get((i / 2) % USERS));
+            file.setGroup(group);
+            file.setPermissions(644);
+            file.setStorageKey(name + "/" + i);
+            if (i % 2 == 1) {
+                file.setDeletedAt(LocalDateTime.now());
+            }
+            entityManager.persist(file);
+            entityManager.persist(lease(file, users.get((i / 2 + 1) % USERS), 300));
+        }
+        entityManager.flush();
+        entityManager.clear();
+        return folder;
+    }
+
+    private FileLease lease(FileEntity file, User holder, long secondsLeft) {
+        Instant now = Instant.now();
+        return new FileLease(file.getId(), holder, now.minusSeconds(60), now.plusSeconds(secondsLeft));
+    }
+
+    /**
+     * Runs a listing query against a fresh persistence context and touches everything
+     * the list views render, returning the number of statements executed.
+     */
+    private long statementsFor(Supplier<List<FileEntity>> listing, int expectedRows) {
+        entityManager.clear();
+        statistics.clear();
+
+        List<FileEntity> files = listing.get();
+        for (FileEntity file : files) {
+            FileResponse response = new FileResponse(file);
+            assertNotNull(response.getOwnerId());
+            assertNotNull(file.getOwner().getUsername());
+            assertNotNull(file.getGroup().getName());
+            assertNotNull(file.getParent().getName());
+            permissionService.canRead(file, file.getOwner());
+        }
+
+        assertEquals(expectedRows, files.size());
+        return statistics.getPrepareStatementCount();
+    }
+
+    @Test
+    void trash_StatementCountDoesNotDependOnRowCount() {
+        folderWithFiles("large", 2000);
+        PageRequest firstTen = PageRequest.of(0, 10, Sort.by(Sort.Direction.DESC, "deletedAt"));
+        PageRequest firstThousand = PageRequest.of(0, 1000, Sort.by(Sort.Direction.DESC, "deletedAt"));
+
+        long smallCount = statementsFor(() -> fileRepository
+                .findTrashRoots(owner, Set.of(group), firstTen).getContent(), 10);
+        long largeCount = statementsFor(() -> fileRepository
+                .findTrashRoots(users.get(1), Set.of(group), firstThousand).getContent(), 1000);
+
+        assertEquals(smallCount, largeCount);
+    }
+
+    @Test
+    void listItems_SelectRowsWithoutLoadingEntities() {
+        FileEntity large = folderWithFiles("large", 2000);
+        entityManager.clear();
+        statistics.clear();
+
+        List<FileListItem> page = fileRepository
+                .findListItemsByParentId(large.getId(), Instant.now(), PageRequest.of(0, 1000)).getContent();
+        List<FileListItem> found = fileRepository.searchListItems("%large-file%", null, Instant.now());
+
+        assertEquals(1000, page.size());
+        assertEquals(1000, found.size());
+        FileListItem item = page.get(0);
+        assertNotNull(item.getOwnerUsername());
+        assertNotNull(item.getGroupName());
+        assertNotNull(item.getLockedByUsername());
+        assertEquals("large", item.getParentName());
+        // Page, count and search; no entity is loaded into the persistence context
+        assertEquals(3, statistics.getPrepareStatementCount());
+        assertEquals(0, statistics.getEntityLoadCount());
+    }
+
+    @Test
+    void insertFiles_AreSentInJdbcBatches() {
+        FileEntity folder = folder("import", null);
+        entityManager.flush();
+        statistics.clear();
+
+        for (int i = 0; i < 1000; i++) {
+            FileEntity file = new FileEntity();
+            file.setName("import-file-" + i);
+            file.setDirectory(false);
+            file.setParent(folder);
+            file.setOwner(owner);
+            file.setGroup(group);
+            file.setPermissions(644);
+            file.setStorageKey("import/" + i);
+            entityManager.persist(file);
+        }
+        entityManager.flush();
+
+        assertEquals(1000, statistics.getEntityInsertCount());
+        // One statement per batch of inserts plus one sequence call per block of ids
+        long statements = statistics.getPrepareStatementCount();
+        assertTrue(statements <= 50, "Expected batched inserts but got " + statements + " statements");
+    }
+
+    @Test
+    void transferOwnerAndReleaseLocks_UpdateAllRowsWithOneStatementEach() {
+        folderWithFiles("large", 2000);
+        User departing = users.get(1);
+        long owned = fileRepository.count((root, query, cb) -> cb.equal(root.get("owner"), departing));
+        long locked = leasesHeldBy(departing);
+        statistics.clear();
+
+        int transferred = fileRepository.transferOwner(departing, owner);
+        int released = fileLeaseRepository.releaseAllHeldBy(departing);
+
+        assertEquals(owned, transferred);
+        assertEquals(locked, released);
+        assertEquals(2, statistics.getPrepareStatementCount());
+        assertEquals(0, fileRepository.count((root, query, cb) -> cb.equal(root.get("owner"), departing)));
+        assertEquals(0, leasesHeldBy(departing));
+    }
+
+    private long leasesHeldBy(User holder) {
+        return entityManager.getEntityManager()
+                .createQuery("SELECT COUNT(l) FROM FileLease l WHERE l.holder = :holder", Long.class)
+                .setParameter("holder", holder)
+                .getSingleResult();
+    }
+
+    @Test
+    void expiredLease_IsIgnoredAndReaped() {
+        FileEntity folder = folder("leases", null);
+        FileEntity active = folder("active", folder);
+        FileEntity expired = folder("expired", folder);
+        entityManager.persist(lease(active, users.get(1), 300));
+        entityManager.persist(lease(expired, users.get(2), -1));
+        entityManager.flush();
+        entityManager.clear();
+
+        Instant now = Instant.now();
+        assertEquals(users.get(1).getId(), fileLeaseRepository.findActiveHolderId(active.getId(), now).orElseThrow());
+        assertTrue(fileLeaseRepository.findActiveHolderId(expired.getId(), now).isEmpty());
+        List<FileListItem> items = fileRepository.findListItemsByParentId(folder.getId(), now, PageRequest.of(0, 10))
+                .getContent();
+        assertTrue(items.get(0).isLocked());
+        assertEquals(users.get(1).getUsername(), items.get(0).getLockedByUsername());
+        assertFalse(items.get(1).isLocked());
+        assertNull(items.get(1).getLockedById());
+
+        assertEquals(1, fileLeaseRepository.deleteExpired(now));
+        assertEquals(List.of(active.getId()),
+                fileLeaseRepository.findAll().stream().map(FileLease::getFileId).toList());
+    }
+
+    @Test
+    void lockById_LocksExistingFilesOnly() {
+        FileEntity folder = folder("locked", null);
+
+        assertEquals(folder.getId(), fileRepository.lockById(folder.getId()).orElseThrow());
+        assertTrue(fileRepository.lockById(folder.getId() + 1000).isEmpty());
+    }
+
+    @Test
+    void staleCopy_ConflictsWithConcurrentUpdates() {
+        FileEntity folder = folderWithFiles("versioned", 2);
+        FileEntity stale = fileRepository.findById(folder.getId()).orElseThrow();
+        Long version = stale.getRowVersion();
+        entityManager.detach(stale);
+
+        // Another writer renames the folder, then a bulk update touches it again
+        FileEntity current = fileRepository.findById(folder.getId()).orElseThrow();
+        current.setName("renamed");
+        entityManager.flush();
+        fileRepository.transferOwner(owner, users.get(1));
+        entityManager.clear();
+
+        assertEquals(version + 2, fileRepository.findById(folder.getId()).orElseThrow().getRowVersion());
+        entityManager.clear();
+        stale.setName("stale");
+        assertThrows(OptimisticLockingFailureException.class, () -> fileRepository.saveAndFlush(stale));
+    }
+}
@@ -0,0 +1,160 @@
+package com.example.filemanager.repository;
+
+import com.example.filemanager.domain.FileEntity;
+import com.example.filemanager.domain.Group;
+import com.example.filemanager.domain.User;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import java.util.HashSet;
+import java.util.Set;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Verifies that users, groups, memberships and files are served from the
+ * second-level cache and that writes keep it current. Every step commits, since
+ * the cache is only updated when a transaction completes.
+ */
+@DataJpaTest
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class SecondLevelCacheTest {
+
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private GroupRepository groupRepository;
+
+    @Autowired
+    private FileRepository fileRepository;
+
+    @Autowired
+    private EntityManager entityManager;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private TransactionTemplate tx;
+    private Statistics statistics;
+    private Long userId;
+    private Long otherUserId;
+    private Long fileId;
+
+    @BeforeEach
+    void setUp() {
+        tx = new TransactionTemplate(transactionManager);
+        SessionFactory sessionFactory = entityManagerFactory.unwrap(SessionFactory.class);
+        statistics = sessionFactory.getStatistics();
+
+        tx.executeWithoutResult(status -> {
+            Group group = new Group();
+            group.setName("cache-group");
+            entityManager.persist(group);
+            Group extra = new Group();
+            extra.setName("cache-extra");
+            entityManager.persist(extra);
+
+            User user = newUser("cache-user", group, extra);
+            User other = newUser("cache-other", group);
+            userId = user.getId();
+            otherUserId = other.getId();
+
+            FileEntity file = new FileEntity();
+            file.setName("cache-file");
+            file.setDirectory(true);
+            file.setOwner(user);
+            file.setGroup(group);
+            file.setPermissions(755);
+            entityManager.persist(file);
+            fileId = file.getId();
+        });
+        sessionFactory.getCache().evictAllRegions();
+        statistics.clear();
+    }
+
+    private User newUser(String username, Group... groups) {
+        User user = new User();
+        user.setUsername(username);
+        user.setPassword("password");
+        user.setGroups(new HashSet<>(Set.of(groups)));
+        entityManager.persist(user);
+        return user;
+    }
+
+    @AfterEach
+    void tearDown() {
+        tx.executeWithoutResult(status -> {
+            entityManager.createQuery("DELETE FROM FileEntity").executeUpdate();
+            userRepository.deleteAll();
+            groupRepository.deleteAll();
+        });
+    }
+
+    private long statementsFor(Runnable work) {
+        statistics.clear();
+        tx.executeWithoutResult(status -> work.run());
+        return statistics.getPrepareStatementCount();
+    }
+
+    @Test
+    void userWithGroups_IsServedFromCacheAfterFirstLoad() {
+        statementsFor(() -> assertEquals(2, userRepository.findByUsername("cache-user").orElseThrow()
+                .getGroups().size()));
+
+        long statements = statementsFor(() -> assertEquals(2, userRepository.findByUsername("cache-user")
+                .orElseThrow().getGroups().size()));
+
+        assertEquals(0, statements);
+        assertTrue(statistics.getQueryCacheHitCount() > 0);
+        assertTrue(statistics.getDomainDataRegionStatistics("user-groups").getHitCount() > 0);
+    }
+
+    @Test
+    void membershipChange_EvictsCachedGroups() {
+        statementsFor(() -> userRepository.findById(userId).orElseThrow().getGroups().size());
+
+        tx.executeWithoutResult(status -> {
+            User user = userRepository.findById(userId).orElseThrow();
+            user.getGroups().removeIf(group -> "cache-extra".equals(group.getName()));
+        });
+
+        tx.executeWithoutResult(status -> assertEquals(1,
+                userRepository.findById(userId).orElseThrow().getGroups().size()));
+    }
+
+    @Test
+    void folder_IsServedFromCacheAfterFirstLoad() {
+        statementsFor(() -> assertTrue(fileRepository.findByIdAndDeletedAtIsNull(fileId).isPresent()));
+
+        long statements = statementsFor(() -> assertTrue(fileRepository.findByIdAndDeletedAtIsNull(fileId)
+                .isPresent()));
+
+        assertEquals(0, statements);
+        assertTrue(statistics.getDomainDataRegionStatistics("files").getHitCount() > 0);
+    }
+
+    @Test
+    void bulkUpdate_InvalidatesCachedFiles() {
+        statementsFor(() -> fileRepository.findByIdAndDeletedAtIsNull(fileId).orElseThrow());
+
+        tx.executeWithoutResult(status -> fileRepository.transferOwner(
+                userRepository.findById(userId).orElseThrow(), userRepository.findById(otherUserId).orElseThrow()));
+
+        tx.executeWithoutResult(status -> assertEquals(otherUserId,
+                fileRepository.findByIdAndDeletedAtIsNull(fileId).orElseThrow().getOwner().getId()));
+    }
+}
@@ -0,0 +1,289 @@
+package com.example.filemanager.service;
+
+import com.example.filemanager.domain.BackgroundJob;
+import com.example.filemanager.domain.BackgroundJob.Status;
+import com.example.filemanager.domain.Group;
+import com.example.filemanager.domain.User;
+import com.example.filemanager.repository.BackgroundJobRepository;
+import com.example.filemanager.repository.GroupRepository;
+import com.example.filemanager.repository.JobLockRepository;
+import com.example.filemanager.repository.UserRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the job queue against the database with a test handler. Jobs run in
+ * their own transactions on worker threads, so nothing here runs in a test
+ * transaction.
+ */
+// The scheduled dispatch must not run behind the tests' backs
+@DataJpaTest(properties = "jobs.poll-interval=PT1H")
+@Import({ BackgroundJobService.class, JobLockService.class, BackgroundJobServiceTest.Config.class })
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class BackgroundJobServiceTest {
+
+    @TestConfiguration
+    static class Config {
+        @Bean
+        CountdownHandler countdownHandler() {
+            return new CountdownHandler();
+        }
+
+        @Bean
+        MeterRegistry meterRegistry() {
+            return new SimpleMeterRegistry();
+        }
+    }
+
+    /** Counts the number in the job parameters down to zero, one per step. */
+    static class CountdownHandler implements JobHandler {
+
+        volatile RuntimeException failure;
+        volatile long stepMillis;
+
+        @Override
+        public BackgroundJob.Type getType() {
+            return BackgroundJob.Type.CHANGE_OWNER;
+        }
+
+        @Override
+        public boolean step(BackgroundJob job) {
+            if (failure != null) {
+                throw failure;
+            }
+            sleep(stepMillis);
+            long remaining = Long.parseLong(job.getCheckpoint() != null ? job.getCheckpoint() : job.getParameters());
+            job.setCheckpoint(Long.toString(remaining - 1));
+            job.addProcessedItems(1);
+            return remaining - 1 == 0;
+        }
+    }
+
+    @Autowired
+    private BackgroundJobService backgroundJobService;
+
+    @Autowired
+    private CountdownHandler handler;
+
+    @Autowired
+    private BackgroundJobRepository backgroundJobRepository;
+
+    @Autowired
+    private JobLockRepository jobLockRepository;
+
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private GroupRepository groupRepository;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private TransactionTemplate transactionTemplate;
+    private User user;
+
+    @BeforeEach
+    void setUp() {
+        transactionTemplate = new TransactionTemplate(transactionManager);
+        handler.failure = null;
+        handler.stepMillis = 0;
+
+        Group group = new Group();
+        group.setName("job-group");
+        group = groupRepository.save(group);
+        user = new User();
+        user.setUsername("job-user");
+        user.setPassword("password");
+        user.setGroups(Set.of(group));
+        user = userRepository.save(user);
+        SecurityContextHolder.getContext()
+                .setAuthentication(new UsernamePasswordAuthenticationToken(user, null, List.of()));
+    }
+
+    @AfterEach
+    void tearDown() {
+        SecurityContextHolder.clearContext();
+        awaitIdle();
+        backgroundJobRepository.deleteAll();
+        jobLockRepository.deleteAll();
+        userRepository.deleteAll();
+        groupRepository.deleteAll();
+    }
+
+    private Long enqueue(long steps) {
+        return transactionTemplate.execute(status -> backgroundJobService
+                .enqueue(BackgroundJob.Type.CHANGE_OWNER, user, null, steps, steps).getId());
+    }
+
+    private BackgroundJob awaitStatus(Long jobId, Status expected) {
+        long deadline = System.currentTimeMillis() + 10_000;
+        BackgroundJob job;
+        while ((job = backgroundJobRepository.findById(jobId).orElseThrow()).getStatus() != expected) {
+            assertTrue(System.currentTimeMillis() < deadline, "Job is " + job.getStatus() + ", not " + expected);
+            sleep(20);
+        }
+        return job;
+    }
+
+    private void awaitIdle() {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (backgroundJobRepository.findAll().stream().anyMatch(job -> job.getStatus() == Status.RUNNING)
+                && System.currentTimeMillis() < deadline) {
+            sleep(20);
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Test
+    void enqueue_RunsJobInStepsAfterCommit() {
+        Long jobId = enqueue(5);
+
+        BackgroundJob job = awaitStatus(jobId, Status.SUCCEEDED);
+        assertEquals(5, job.getProcessedItems());
+        assertEquals("0", job.getCheckpoint());
+        assertEquals(1, job.getAttempts());
+        assertNotNull(job.getStartedAt());
+        assertNotNull(job.getFinishedAt());
+        assertNull(job.getClaimToken());
+    }
+
+    @Test
+    void lockClaimable_SkipsJobsLockedByAnotherWorker() {
+        // Stored directly so that no worker picks them up
+        Long first = transactionTemplate.execute(status -> backgroundJobRepository
+                .save(new BackgroundJob(BackgroundJob.Type.CHANGE_OWNER, user.getId(), null, "1", 1L, Instant.now()))
+                .getId());
+        Long second = transactionTemplate.execute(status -> backgroundJobRepository
+                .save(new BackgroundJob(BackgroundJob.Type.CHANGE_OWNER, user.getId(), null, "1", 1L, Instant.now()))
+                .getId());
+
+        transactionTemplate.executeWithoutResult(status -> {
+            assertEquals(List.of(first), backgroundJobRepository.lockClaimable(Instant.now(), 1));
+            // Another worker does not wait for the locked row
+            List<Long> other = CompletableFuture
+                    .supplyAsync(() -> transactionTemplate
+                            .execute(s -> backgroundJobRepository.lockClaimable(Instant.now(), 2)))
+                    .orTimeout(5, TimeUnit.SECONDS)
+                    .join();
+            assertEquals(List.of(second), other);
+        });
+    }
+
+    @Test
+    void dispatch_ExpiredLease_ResumesFromCheckpoint() {
+        Long jobId = transactionTemplate.execute(status -> {
+            BackgroundJob job = new BackgroundJob(BackgroundJob.Type.CHANGE_OWNER, user.getId(), null, "5", 5L,
+                    Instant.now());
+            // A worker on a node that stopped after two steps
+            job.setStatus(Status.RUNNING);
+            job.setClaimToken("stopped-node");
+            job.setLeaseExpiresAt(Instant.now().minusSeconds(1));
+            job.setCheckpoint("3");
+            job.addProcessedItems(2);
+            return backgroundJobRepository.save(job).getId();
+        });
+
+        backgroundJobService.dispatch();
+
+        BackgroundJob job = awaitStatus(jobId, Status.SUCCEEDED);
+        assertEquals(5, job.getProcessedItems());
+    }
+
+    @Test
+    void step_Failure_IsRetriedThenFails() {
+        handler.failure = new IllegalStateException("Disk on fire");
+        Long jobId = enqueue(3);
+
+        // Each attempt is claimed by a dispatch
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (backgroundJobRepository.findById(jobId).orElseThrow().getStatus() != Status.FAILED) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            backgroundJobService.dispatch();
+            sleep(20);
+        }
+
+        BackgroundJob job = backgroundJobRepository.findById(jobId).orElseThrow();
+        assertEquals(3, job.getAttempts());
+        assertEquals("Disk on fire", job.getError());
+        assertEquals(0, job.getProcessedItems());
+        assertEquals(1, meterRegistry.counter("jobs.failed").count());
+    }
+
+    @Test
+    void cancelJob_Running_StopsBeforeNextStep() {
+        handler.stepMillis = 50;
+        Long jobId = enqueue(1000);
+        awaitStatus(jobId, Status.RUNNING);
+
+        BackgroundJob cancelled = backgroundJobService.cancelJob(jobId);
+        assertTrue(cancelled.isCancelRequested());
+
+        BackgroundJob job = awaitStatus(jobId, Status.CANCELLED);
+        assertTrue(job.getProcessedItems() < 1000);
+        assertNotNull(job.getFinishedAt());
+    }
+
+    @Test
+    void cancelJob_Queued_CancelsAtOnce() {
+        Long jobId = transactionTemplate.execute(status -> backgroundJobRepository
+                .save(new BackgroundJob(BackgroundJob.Type.CHANGE_OWNER, user.getId(), null, "1", 1L, Instant.now()))
+                .getId());
+
+        assertEquals(Status.CANCELLED, backgroundJobService.cancelJob(jobId).getStatus());
+        backgroundJobService.dispatch();
+        assertEquals(0, backgroundJobRepository.findById(jobId).orElseThrow().getProcessedItems());
+    }
+
+    @Test
+    void pruneJobs_DeletesOnlyOldFinishedJobs() {
+        Long jobId = enqueue(1);
+        awaitStatus(jobId, Status.SUCCEEDED);
+        Long queued = transactionTemplate.execute(status -> backgroundJobRepository
+                .save(new BackgroundJob(BackgroundJob.Type.CHANGE_OWNER, user.getId(), null, "1", 1L, Instant.now()))
+                .getId());
+
+        ReflectionTestUtils.setField(backgroundJobService, "retention", Duration.ofSeconds(-10));
+        try {
+            backgroundJobService.pruneJobs();
+        } finally {
+            ReflectionTestUtils.setField(backgroundJobService, "retention", Duration.ofDays(7));
+        }
+
+        assertFalse(backgroundJobRepository.existsById(jobId));
+        assertTrue(backgroundJobRepository.existsById(queued));
+    }
+}
@@ -0,0 +1,251 @@
+package com.example.filemanager.service;
+
+import com.example.filemanager.domain.BlobOutboxEntry;
+import com.example.filemanager.domain.FileEntity;
+import com.example.filemanager.domain.Group;
+import com.example.filemanager.domain.User;
+import com.example.filemanager.repository.BlobOutboxRepository;
+import com.example.filemanager.repository.FileRepository;
+import com.example.filemanager.repository.GroupRepository;
+import com.example.filemanager.repository.JobLockRepository;
+import com.example.filemanager.repository.UserRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.IllegalTransactionStateException;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsResponse;
+import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * Runs the outbox against the database with a mocked S3 client. The outbox
+ * works with its own transactions, so nothing here runs in a test transaction.
+ */
+// The scheduled sweep must not run behind the tests' backs
+@DataJpaTest(properties = { "S3_BUCKET_NAME=test-bucket", "blob.outbox.sweep-interval=PT1H" })
+@Import({ BlobOutboxService.class, JobLockService.class, BlobOutboxServiceTest.Config.class })
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+@SuppressWarnings({ "null", "unchecked" })
+class BlobOutboxServiceTest {
+
+    @TestConfiguration
+    static class Config {
+        @Bean
+        S3Client s3Client() {
+            return mock(S3Client.class);
+        }
+
+        @Bean
+        MeterRegistry meterRegistry() {
+            return new SimpleMeterRegistry();
+        }
+    }
+
+    @Autowired
+    private BlobOutboxService blobOutboxService;
+
+    @Autowired
+    private JobLockService jobLockService;
+
+    @Autowired
+    private BlobOutboxRepository blobOutboxRepository;
+
+    @Autowired
+    private JobLockRepository jobLockRepository;
+
+    @Autowired
+    private FileRepository fileRepository;
+
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private GroupRepository groupRepository;
+
+    @Autowired
+    private S3Client s3Client;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private TransactionTemplate transactionTemplate;
+
+    @BeforeEach
+    void setUp() {
+        transactionTemplate = new TransactionTemplate(transactionManager);
+        // Every entry is due for the sweep
+        ReflectionTestUtils.setField(blobOutboxService, "uploadTimeout", Duration.ZERO);
+        ReflectionTestUtils.setField(blobOutboxService, "retryDelay", Duration.ZERO);
+        ReflectionTestUtils.setField(jobLockService, "holdAtLeast", Duration.ZERO);
+    }
+
+    @AfterEach
+    void tearDown() {
+        reset(s3Client);
+        blobOutboxRepository.deleteAll();
+        jobLockRepository.deleteAll();
+        fileRepository.deleteAll();
+        userRepository.deleteAll();
+        groupRepository.deleteAll();
+    }
+
+    private String deletedKey() {
+        ArgumentCaptor<Consumer<DeleteObjectRequest.Builder>> captor = ArgumentCaptor.forClass(Consumer.class);
+        verify(s3Client, timeout(5000)).deleteObject(captor.capture());
+        DeleteObjectRequest.Builder builder = DeleteObjectRequest.builder();
+        captor.getValue().accept(builder);
+        return builder.build().key();
+    }
+
+    @Test
+    void completedUpload_IsKept() {
+        Long uploadId = blobOutboxService.beginUpload("uploaded-key");
+        transactionTemplate.executeWithoutResult(status -> blobOutboxService.completeUpload(uploadId));
+
+        blobOutboxService.sweep();
+
+        assertEquals(0, blobOutboxRepository.count());
+        verifyNoInteractions(s3Client);
+    }
+
+    @Test
+    void uploadOfRolledBackTransaction_IsDeletedBySweep() {
+        Long uploadId = blobOutboxService.beginUpload("orphaned-key");
+        transactionTemplate.executeWithoutResult(status -> {
+            blobOutboxService.completeUpload(uploadId);
+            status.setRollbackOnly();
+        });
+
+        // The announcement was committed before the transaction and survives the rollback
+        assertEquals(BlobOutboxEntry.Operation.UPLOAD,
+                blobOutboxRepository.findById(uploadId).orElseThrow().getOperation());
+        blobOutboxService.sweep();
+
+        assertEquals("orphaned-key", deletedKey());
+        assertEquals(0, blobOutboxRepository.count());
+    }
+
+    @Test
+    void beginUpload_InsideTransaction_IsRejected() {
+        // It would need a second connection while the transaction holds one
+        assertThrows(IllegalTransactionStateException.class, () -> transactionTemplate
+                .executeWithoutResult(status -> blobOutboxService.beginUpload("nested-key")));
+        assertEquals(0, blobOutboxRepository.count());
+    }
+
+    @Test
+    void discardUpload_DeletesObjectWithoutWaitingForTimeout() {
+        ReflectionTestUtils.setField(blobOutboxService, "uploadTimeout", Duration.ofHours(1));
+        Long uploadId = blobOutboxService.beginUpload("discarded-key");
+
+        blobOutboxService.discardUpload(uploadId, "discarded-key");
+
+        assertEquals("discarded-key", deletedKey());
+        // A late completion must not commit the key
+        assertThrows(IllegalStateException.class,
+                () -> transactionTemplate.executeWithoutResult(status -> blobOutboxService.completeUpload(uploadId)));
+    }
+
+    @Test
+    void uploadCompletingAfterTimeout_IsRejected() {
+        Long uploadId = blobOutboxService.beginUpload("slow-key");
+        doThrow(new IllegalStateException("S3 unavailable")).when(s3Client).deleteObject(any(Consumer.class));
+
+        blobOutboxService.sweep();
+
+        // The object is being deleted, so the request must not commit its key
+        assertThrows(IllegalStateException.class,
+                () -> transactionTemplate.executeWithoutResult(status -> blobOutboxService.completeUpload(uploadId)));
+        BlobOutboxEntry entry = blobOutboxRepository.findById(uploadId).orElseThrow();
+        assertEquals(BlobOutboxEntry.Operation.DELETE, entry.getOperation());
+        assertEquals(1, entry.getAttempts());
+    }
+
+    @Test
+    void deleteAfterCommit_RunsOnlyAfterCommit() {
+        transactionTemplate.executeWithoutResult(status -> {
+            blobOutboxService.deleteAfterCommit("rolled-back-key");
+            status.setRollbackOnly();
+        });
+        transactionTemplate.executeWithoutResult(status -> blobOutboxService.deleteAfterCommit("replaced-key"));
+
+        assertEquals("replaced-key", deletedKey());
+        verify(s3Client, after(200).times(1)).deleteObject(any(Consumer.class));
+    }
+
+    private void saveFileWithKey(String storageKey) {
+        transactionTemplate.executeWithoutResult(status -> {
+            Group group = new Group();
+            group.setName("outbox-group");
+            groupRepository.save(group);
+            User owner = new User();
+            owner.setUsername("outbox-owner");
+            owner.setPassword("password");
+            owner.setGroups(Set.of(group));
+            userRepository.save(owner);
+            FileEntity file = new FileEntity();
+            file.setName("restored.txt");
+            file.setOwner(owner);
+            file.setGroup(group);
+            file.setPermissions(644);
+            file.setStorageKey(storageKey);
+            fileRepository.save(file);
+        });
+    }
+
+    @Test
+    void deleteAfterCommit_ReferencedObject_IsKept() {
+        saveFileWithKey("shared-key");
+
+        transactionTemplate.executeWithoutResult(status -> blobOutboxService.deleteAfterCommit("shared-key"));
+        blobOutboxService.sweep();
+
+        verify(s3Client, after(200).never()).deleteObject(any(Consumer.class));
+        assertEquals(0, blobOutboxRepository.count());
+    }
+
+    @Test
+    void deleteAllAfterCommit_DeletesUnreferencedObjectsInOneRequest() {
+        saveFileWithKey("shared-key");
+        when(s3Client.deleteObjects(any(Consumer.class))).thenReturn(DeleteObjectsResponse.builder().build());
+
+        transactionTemplate.executeWithoutResult(status -> blobOutboxService.deleteAllAfterCommit(
+                List.of("pruned-1", "pruned-2", "shared-key")));
+
+        ArgumentCaptor<Consumer<DeleteObjectsRequest.Builder>> captor = ArgumentCaptor.forClass(Consumer.class);
+        verify(s3Client, timeout(5000)).deleteObjects(captor.capture());
+        DeleteObjectsRequest.Builder builder = DeleteObjectsRequest.builder();
+        captor.getValue().accept(builder);
+        assertEquals(List.of("pruned-1", "pruned-2"),
+                builder.build().delete().objects().stream().map(ObjectIdentifier::key).toList());
+        long deadline = System.currentTimeMillis() + 5000;
+        while (blobOutboxRepository.count() > 0) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.yield();
+        }
+        verify(s3Client, never()).deleteObject(any(Consumer.class));
+    }
+}
@@ -0,0 +1,113 @@
+package com.example.filemanager.service;
+
+import com.example.filemanager.domain.FileEntity;
+import com.example.filemanager.domain.Group;
+import com.example.filemanager.domain.User;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import org.hibernate.Cache;
+import org.hibernate.SessionFactory;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class CacheInvalidationBusTest {
+
+    private static final String OTHER_NODE = "other-node";
+
+    @Mock
+    private EntityManager entityManager;
+
+    @Mock
+    private EntityManagerFactory entityManagerFactory;
+
+    @Mock
+    private SessionFactory sessionFactory;
+
+    @Mock
+    private Cache cache;
+
+    private CacheInvalidationBus bus;
+
+    @BeforeEach
+    void setUp() {
+        bus = new CacheInvalidationBus(entityManager, entityManagerFactory, mock(JdbcTemplate.class),
+                new DataSourceProperties());
+    }
+
+    private void givenCache() {
+        when(entityManagerFactory.unwrap(SessionFactory.class)).thenReturn(sessionFactory);
+        when(sessionFactory.getCache()).thenReturn(cache);
+    }
+
+    @Test
+    void handle_FileIds_EvictsOnlyThoseFiles() {
+        givenCache();
+
+        bus.handle(OTHER_NODE + "|" + FileEntity.class.getName() + "|3,7");
+
+        verify(cache).evictEntityData(FileEntity.class.getName(), 3L);
+        verify(cache).evictEntityData(FileEntity.class.getName(), 7L);
+        verifyNoMoreInteractions(cache);
+    }
+
+    @Test
+    void handle_AllUsers_EvictsUsersMembershipsAndQueries() {
+        givenCache();
+
+        bus.handle(OTHER_NODE + "|" + User.class.getName() + "|*");
+
+        verify(cache).evictEntityData(User.class.getName());
+        verify(cache).evictCollectionData(User.class.getName() + ".groups");
+        verify(cache).evictQueryRegions();
+        verifyNoMoreInteractions(cache);
+    }
+
+    @Test
+    void handle_Group_EvictsGroupAndQueries() {
+        givenCache();
+
+        bus.handle(OTHER_NODE + "|" + Group.class.getName() + "|5");
+
+        verify(cache).evictEntityData(Group.class.getName(), 5L);
+        verify(cache).evictQueryRegions();
+        verifyNoMoreInteractions(cache);
+    }
+
+    @Test
+    void handle_OwnNotification_IsIgnored() {
+        String nodeId = (String) ReflectionTestUtils.getField(bus, "nodeId");
+
+        bus.handle(nodeId + "|" + FileEntity.class.getName() + "|*");
+
+        verifyNoInteractions(entityManagerFactory, cache);
+    }
+
+    @Test
+    void handle_MalformedPayload_IsIgnored() {
+        bus.handle("not a notification");
+
+        verifyNoInteractions(entityManagerFactory, cache);
+    }
+
+    @Test
+    void encode_ListsIdsOrAll() {
+        Set<Object> ids = new LinkedHashSet<>(Set.of(2L, 1L));
+
+        assertEquals("n|" + FileEntity.class.getName() + "|1,2",
+                CacheInvalidationBus.encode("n", FileEntity.class.getName(), ids));
+        assertEquals("n|" + FileEntity.class.getName() + "|*",
+                CacheInvalidationBus.encode("n", FileEntity.class.getName(), Set.of(CacheInvalidationBus.ALL)));
+    }
+}
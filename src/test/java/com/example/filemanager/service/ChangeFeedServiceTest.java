@@ -0,0 +1,187 @@
+package com.example.filemanager.service;
+
+import com.example.filemanager.controller.dto.ChangeFeedResponse;
+import com.example.filemanager.controller.dto.ChangeResponse;
+import com.example.filemanager.domain.FileChange;
+import com.example.filemanager.domain.FileEntity;
+import com.example.filemanager.domain.Group;
+import com.example.filemanager.domain.User;
+import com.example.filemanager.exception.ChangeCursorExpiredException;
+import com.example.filemanager.repository.ChangeSequenceRepository;
+import com.example.filemanager.repository.FileChangeRepository;
+import com.example.filemanager.repository.FileRepository;
+import com.example.filemanager.repository.GroupRepository;
+import com.example.filemanager.repository.JobLockRepository;
+import com.example.filemanager.repository.UserRepository;
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the change feed against the database. Sequence numbers are assigned
+ * when a transaction commits, so nothing here runs in a test transaction.
+ */
+@DataJpaTest
+@Import({ ChangeFeedService.class, PermissionService.class, JobLockService.class })
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class ChangeFeedServiceTest {
+
+    @Autowired
+    private ChangeFeedService changeFeedService;
+
+    @Autowired
+    private FileChangeRepository fileChangeRepository;
+
+    @Autowired
+    private ChangeSequenceRepository changeSequenceRepository;
+
+    @Autowired
+    private JobLockRepository jobLockRepository;
+
+    @Autowired
+    private FileRepository fileRepository;
+
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private GroupRepository groupRepository;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private TransactionTemplate transactionTemplate;
+    private User reader;
+    private Group group;
+
+    @BeforeEach
+    void setUp() {
+        transactionTemplate = new TransactionTemplate(transactionManager);
+
+        group = new Group();
+        group.setName("feed-group");
+        group = groupRepository.save(group);
+
+        reader = new User();
+        reader.setUsername("feed-reader");
+        reader.setPassword("password");
+        reader.setGroups(Set.of(group));
+        reader = userRepository.save(reader);
+        SecurityContextHolder.getContext()
+                .setAuthentication(new UsernamePasswordAuthenticationToken(reader, null, List.of()));
+    }
+
+    @AfterEach
+    void tearDown() {
+        SecurityContextHolder.clearContext();
+        fileChangeRepository.deleteAll();
+        changeSequenceRepository.deleteAll();
+        jobLockRepository.deleteAll();
+        fileRepository.deleteAll();
+        userRepository.deleteAll();
+        groupRepository.deleteAll();
+    }
+
+    private FileEntity file(String name, int permissions) {
+        FileEntity file = new FileEntity();
+        file.setName(name);
+        file.setOwner(reader);
+        file.setGroup(group);
+        file.setPermissions(permissions);
+        return fileRepository.save(file);
+    }
+
+    private void record(FileEntity file, FileChange.Type type) {
+        transactionTemplate.executeWithoutResult(status -> changeFeedService.record(file, type));
+    }
+
+    private List<Long> seqs(ChangeFeedResponse response) {
+        return response.getChanges().stream().map(ChangeResponse::getSeq).toList();
+    }
+
+    @Test
+    void record_NumbersChangesInCommitOrder() {
+        FileEntity first = file("first.txt", 644);
+        FileEntity second = file("second.txt", 644);
+
+        // The outer transaction records first but commits last
+        transactionTemplate.executeWithoutResult(status -> {
+            changeFeedService.record(first, FileChange.Type.CREATED);
+            TransactionTemplate inner = new TransactionTemplate(transactionManager);
+            inner.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+            inner.executeWithoutResult(innerStatus -> changeFeedService.record(second, FileChange.Type.CREATED));
+        });
+        // Rolled back changes take no number
+        transactionTemplate.executeWithoutResult(status -> {
+            changeFeedService.record(first, FileChange.Type.UPDATED);
+            status.setRollbackOnly();
+        });
+        record(first, FileChange.Type.DELETED);
+
+        List<ChangeResponse> changes = changeFeedService.getChanges(0, 100).getChanges();
+        assertEquals(List.of(1L, 2L, 3L), changes.stream().map(ChangeResponse::getSeq).toList());
+        assertEquals(List.of(second.getId(), first.getId(), first.getId()),
+                changes.stream().map(ChangeResponse::getFileId).toList());
+        assertNotNull(changes.get(0).getFile());
+    }
+
+    @Test
+    void getChanges_PagesWithCursorAndSkipsUnreadableFiles() {
+        FileEntity visible = file("visible.txt", 644);
+        // Neither the group nor others may read it, and the reader is not the owner
+        FileEntity hidden = file("hidden.txt", 600);
+        User owner = new User();
+        owner.setUsername("feed-owner");
+        owner.setPassword("password");
+        hidden.setOwner(userRepository.save(owner));
+        FileEntity hiddenFile = fileRepository.save(hidden);
+        record(visible, FileChange.Type.CREATED);
+        record(hiddenFile, FileChange.Type.CREATED);
+        record(visible, FileChange.Type.UPDATED);
+
+        ChangeFeedResponse firstPage = changeFeedService.getChanges(0, 2);
+        assertEquals(List.of(1L), seqs(firstPage));
+        assertEquals(2, firstPage.getCursor());
+        assertTrue(firstPage.isHasMore());
+
+        ChangeFeedResponse secondPage = changeFeedService.getChanges(firstPage.getCursor(), 2);
+        assertEquals(List.of(3L), seqs(secondPage));
+        assertFalse(secondPage.isHasMore());
+        assertEquals(3, changeFeedService.getChanges(secondPage.getCursor(), 2).getCursor());
+    }
+
+    @Test
+    void getChanges_CursorBeforePrunedChanges_IsRejected() {
+        FileEntity file = file("file.txt", 644);
+        record(file, FileChange.Type.CREATED);
+        record(file, FileChange.Type.UPDATED);
+        record(file, FileChange.Type.UPDATED);
+
+        ReflectionTestUtils.setField(changeFeedService, "retention", Duration.ofSeconds(-10));
+        changeFeedService.pruneChanges();
+        ReflectionTestUtils.setField(changeFeedService, "retention", Duration.ofDays(30));
+        record(file, FileChange.Type.DELETED);
+
+        assertThrows(ChangeCursorExpiredException.class, () -> changeFeedService.getChanges(1, 10));
+        // A cursor from another database
+        assertThrows(ChangeCursorExpiredException.class, () -> changeFeedService.getChanges(99, 10));
+        assertEquals(List.of(4L), seqs(changeFeedService.getChanges(3, 10)));
+        assertEquals(List.of(4L), seqs(changeFeedService.getChanges(0, 10)));
+    }
+}
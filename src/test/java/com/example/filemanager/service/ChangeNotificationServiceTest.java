@@ -0,0 +1,289 @@
+package com.example.filemanager.service;
+
+import com.example.filemanager.controller.dto.ChangeNotification;
+import com.example.filemanager.domain.FileChange;
+import com.example.filemanager.domain.FileEntity;
+import com.example.filemanager.domain.User;
+import com.example.filemanager.repository.ChangeSequenceRepository;
+import com.example.filemanager.repository.FileChangeRepository;
+import com.example.filemanager.repository.FileRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.security.access.AccessDeniedException;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter.DataWithMediaType;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class ChangeNotificationServiceTest {
+
+    @Mock
+    private FileChangeRepository fileChangeRepository;
+
+    @Mock
+    private ChangeSequenceRepository changeSequenceRepository;
+
+    @Mock
+    private FileRepository fileRepository;
+
+    @Mock
+    private PermissionService permissionService;
+
+    @Mock
+    private ChangeFeedService changeFeedService;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    // Sender tasks run only when a test says so, like a client that reads slowly
+    private final List<Runnable> pendingSends = new ArrayList<>();
+    private final List<RecordingEmitter> emitters = new ArrayList<>();
+
+    private ChangeNotificationService service;
+    private User user;
+
+    @BeforeEach
+    void setUp() {
+        service = new ChangeNotificationService(fileChangeRepository, changeSequenceRepository, fileRepository,
+                permissionService, changeFeedService, meterRegistry, pendingSends::add) {
+            @Override
+            SseEmitter newEmitter(Duration timeout) {
+                RecordingEmitter emitter = new RecordingEmitter();
+                emitters.add(emitter);
+                return emitter;
+            }
+        };
+        user = new User();
+        user.setId(1L);
+        user.setUsername("testuser");
+        SecurityContextHolder.getContext()
+                .setAuthentication(new UsernamePasswordAuthenticationToken(user, null, List.of()));
+    }
+
+    @AfterEach
+    void tearDown() {
+        SecurityContextHolder.clearContext();
+    }
+
+    private static FileChange change(long seq, long fileId, Long parentId, Long previousParentId,
+            FileChange.Type type) {
+        return new FileChange(seq, fileId, parentId, previousParentId, type, Instant.now());
+    }
+
+    private void runSends() {
+        while (!pendingSends.isEmpty()) {
+            pendingSends.remove(0).run();
+        }
+    }
+
+    @Test
+    void poll_SendsOneEventPerSubscriberForItsChangedFolders() {
+        FileEntity folder = new FileEntity();
+        folder.setId(5L);
+        folder.setDirectory(true);
+        when(fileRepository.findByIdAndDeletedAtIsNull(5L)).thenReturn(Optional.of(folder));
+        when(permissionService.canRead(folder, user)).thenReturn(true);
+        when(changeSequenceRepository.findLastValue()).thenReturn(Optional.of(10L));
+        service.subscribe(Set.of(ChangeNotificationService.ROOT, 5L));
+        when(fileChangeRepository.findAfter(eq(10L), any())).thenReturn(List.of(
+                change(11, 7, 5L, null, FileChange.Type.CREATED),
+                change(12, 8, null, null, FileChange.Type.UPDATED),
+                change(13, 9, 6L, null, FileChange.Type.CREATED)));
+
+        assertEquals(3, service.poll());
+        runSends();
+
+        List<String> events = emitters.get(0).events;
+        assertEquals(List.of("ready 10 []", "change 13 [0, 5]"), events);
+    }
+
+    @Test
+    void poll_MoveOutOfFolder_NotifiesPreviousParent() {
+        when(changeSequenceRepository.findLastValue()).thenReturn(Optional.of(0L));
+        service.subscribe(Set.of(ChangeNotificationService.ROOT));
+        when(fileChangeRepository.findAfter(eq(0L), any()))
+                .thenReturn(List.of(change(1, 7, 6L, null, FileChange.Type.MOVED)));
+
+        service.poll();
+        runSends();
+
+        assertEquals(List.of("ready 0 []", "change 1 [0]"), emitters.get(0).events);
+    }
+
+    @Test
+    void poll_SlowSubscriber_DropsBufferedEventsAndResyncs() {
+        ReflectionTestUtils.setField(service, "bufferSize", 3);
+        when(changeSequenceRepository.findLastValue()).thenReturn(Optional.of(0L));
+        service.subscribe(Set.of(ChangeNotificationService.ROOT));
+        when(fileChangeRepository.findAfter(anyLong(), any())).thenReturn(
+                List.of(change(1, 7, null, null, FileChange.Type.CREATED)),
+                List.of(change(2, 8, null, null, FileChange.Type.CREATED)),
+                List.of(change(3, 9, null, null, FileChange.Type.CREATED)),
+                List.of(change(4, 10, null, null, FileChange.Type.CREATED)));
+
+        // The client has not read anything yet: the fourth change overflows its buffer
+        for (int i = 0; i < 4; i++) {
+            service.poll();
+        }
+        runSends();
+
+        assertEquals(List.of("resync 3 []", "change 4 [0]"), emitters.get(0).events);
+        assertEquals(1, meterRegistry.counter("changes.push.resyncs").count());
+        assertEquals(1, service.subscriberCount());
+    }
+
+    @Test
+    void send_ClientGone_RemovesSubscription() {
+        when(changeSequenceRepository.findLastValue()).thenReturn(Optional.of(0L));
+        service.subscribe(Set.of(ChangeNotificationService.ROOT));
+        emitters.get(0).failing = true;
+
+        runSends();
+
+        assertEquals(0, service.subscriberCount());
+        // Nothing is read while nobody is subscribed
+        assertEquals(0, service.poll());
+        verifyNoInteractions(fileChangeRepository);
+    }
+
+    @Test
+    void dropStalledSubscribers_BlockedClient_DoesNotHoldUpOthers() throws Exception {
+        // One sender thread, which the first client's write blocks
+        ThreadPoolExecutor senders = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>());
+        BlockingEmitter blocked = new BlockingEmitter();
+        RecordingEmitter healthy = new RecordingEmitter();
+        Iterator<SseEmitter> newEmitters = List.<SseEmitter>of(blocked, healthy).iterator();
+        ChangeNotificationService service = new ChangeNotificationService(fileChangeRepository,
+                changeSequenceRepository, fileRepository, permissionService, changeFeedService, meterRegistry,
+                senders) {
+            @Override
+            SseEmitter newEmitter(Duration timeout) {
+                return newEmitters.next();
+            }
+        };
+        ReflectionTestUtils.setField(service, "writeTimeout", Duration.ofMillis(50));
+        when(changeSequenceRepository.findLastValue()).thenReturn(Optional.of(0L));
+        try {
+            service.subscribe(Set.of(ChangeNotificationService.ROOT));
+            assertTrue(blocked.writing.await(5, TimeUnit.SECONDS));
+            service.subscribe(Set.of(ChangeNotificationService.ROOT));
+            when(fileChangeRepository.findAfter(eq(0L), any()))
+                    .thenReturn(List.of(change(1, 7, null, null, FileChange.Type.CREATED)));
+            service.poll();
+
+            Thread.sleep(100);
+            service.dropStalledSubscribers();
+
+            // The blocked write never returns here, yet the other client gets its events
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (healthy.events.size() < 2 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(List.of("ready 0 []", "change 1 [0]"), healthy.events);
+            assertEquals(1, service.subscriberCount());
+            assertEquals(1, meterRegistry.counter("changes.push.stalled").count());
+
+            // Once the write fails, the blocked client's connection is closed
+            blocked.release.countDown();
+            assertTrue(blocked.completed.await(5, TimeUnit.SECONDS));
+        } finally {
+            blocked.release.countDown();
+            senders.shutdownNow();
+        }
+    }
+
+    @Test
+    void subscribe_UnreadableFolder_ThrowsAccessDenied() {
+        FileEntity folder = new FileEntity();
+        folder.setId(5L);
+        folder.setDirectory(true);
+        when(fileRepository.findByIdAndDeletedAtIsNull(5L)).thenReturn(Optional.of(folder));
+        when(permissionService.canRead(folder, user)).thenReturn(false);
+
+        assertThrows(AccessDeniedException.class, () -> service.subscribe(Set.of(5L)));
+        assertEquals(0, service.subscriberCount());
+    }
+
+    /** Records events as "name cursor [folders]" instead of writing them to a response. */
+    private static class RecordingEmitter extends SseEmitter {
+
+        private final List<String> events = new CopyOnWriteArrayList<>();
+        private boolean failing;
+
+        @Override
+        public void send(SseEventBuilder builder) throws IOException {
+            if (failing) {
+                throw new IOException("Broken pipe");
+            }
+            Set<DataWithMediaType> parts = builder.build();
+            String text = parts.stream()
+                    .map(DataWithMediaType::getData)
+                    .filter(String.class::isInstance)
+                    .map(String.class::cast)
+                    .collect(Collectors.joining());
+            String name = text.lines().filter(line -> line.startsWith("event:")).findFirst()
+                    .map(line -> line.substring("event:".length())).orElse("");
+            ChangeNotification notification = parts.stream()
+                    .map(DataWithMediaType::getData)
+                    .filter(ChangeNotification.class::isInstance)
+                    .map(ChangeNotification.class::cast)
+                    .findFirst().orElseThrow();
+            events.add(name + " " + notification.getCursor() + " " + notification.getFolderIds());
+        }
+    }
+
+    /** A client that stopped reading: writes block until the server gives up on them. */
+    private static class BlockingEmitter extends SseEmitter {
+
+        private final CountDownLatch writing = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final CountDownLatch completed = new CountDownLatch(1);
+
+        @Override
+        public void send(SseEventBuilder builder) throws IOException {
+            writing.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            throw new IOException("Write timed out");
+        }
+
+        @Override
+        public void completeWithError(Throwable ex) {
+            completed.countDown();
+            super.completeWithError(ex);
+        }
+
+        @Override
+        public void complete() {
+            completed.countDown();
+            super.complete();
+        }
+    }
+}
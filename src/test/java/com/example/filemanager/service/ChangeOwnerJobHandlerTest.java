@@ -0,0 +1,106 @@
+package com.example.filemanager.service;
+
+import com.example.filemanager.domain.BackgroundJob;
+import com.example.filemanager.domain.FileEntity;
+import com.example.filemanager.domain.Group;
+import com.example.filemanager.domain.User;
+import com.example.filemanager.exception.UserNotFoundException;
+import com.example.filemanager.repository.FileRepository;
+import com.example.filemanager.repository.GroupRepository;
+import com.example.filemanager.repository.UserRepository;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.domain.Pageable;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class ChangeOwnerJobHandlerTest {
+
+    @Mock
+    private FileService fileService;
+
+    @Mock
+    private FileRepository fileRepository;
+
+    @Mock
+    private UserRepository userRepository;
+
+    @Mock
+    private GroupRepository groupRepository;
+
+    @InjectMocks
+    private ChangeOwnerJobHandler handler;
+
+    private User owner;
+    private Group group;
+    private BackgroundJob job;
+
+    @BeforeEach
+    void setUp() {
+        ReflectionTestUtils.setField(handler, "chunkSize", 2);
+        owner = new User();
+        owner.setId(2L);
+        group = new Group();
+        group.setId(3L);
+        job = new BackgroundJob(BackgroundJob.Type.CHANGE_OWNER, 1L, 10L,
+                BackgroundJobService.toJson(new ChangeOwnerJobHandler.Parameters(2L, 3L)), null, Instant.now());
+    }
+
+    private static FileEntity item(long id, boolean directory) {
+        FileEntity item = new FileEntity();
+        item.setId(id);
+        item.setDirectory(directory);
+        return item;
+    }
+
+    @Test
+    void step_WalksTreeOnePageAtATime() {
+        when(userRepository.findById(2L)).thenReturn(Optional.of(owner));
+        when(groupRepository.findById(3L)).thenReturn(Optional.of(group));
+        // Folder 10 holds a file and folder 11 on its first page and a file on its second
+        when(fileService.changeOwnerOfChildren(10L, 0, 2, owner, group))
+                .thenReturn(List.of(item(20, false), item(11, true)));
+        when(fileService.changeOwnerOfChildren(10L, 11, 2, owner, group)).thenReturn(List.of(item(21, false)));
+        when(fileService.changeOwnerOfChildren(11L, 0, 2, owner, group)).thenReturn(List.of());
+        when(fileRepository.findLiveChildFolderIdsAfter(eq(10L), eq(0L), any(Pageable.class)))
+                .thenReturn(List.of(11L));
+        when(fileRepository.findLiveChildFolderIdsAfter(eq(10L), eq(11L), any(Pageable.class)))
+                .thenReturn(List.of());
+        when(fileRepository.findLiveChildFolderIdsAfter(eq(11L), eq(0L), any(Pageable.class)))
+                .thenReturn(List.of());
+
+        assertFalse(handler.step(job));
+        assertEquals("{\"path\":[{\"folderId\":10,\"afterId\":11,\"afterFolderId\":null}]}",
+                job.getCheckpoint());
+        assertFalse(handler.step(job));
+        assertEquals("{\"path\":[{\"folderId\":10,\"afterId\":21,\"afterFolderId\":0}]}",
+                job.getCheckpoint());
+        // Descends into folder 11; the checkpoint holds the path to it, not every folder found
+        assertFalse(handler.step(job));
+        assertEquals("{\"path\":[{\"folderId\":10,\"afterId\":21,\"afterFolderId\":11},"
+                + "{\"folderId\":11,\"afterId\":0,\"afterFolderId\":0}]}", job.getCheckpoint());
+        assertTrue(handler.step(job));
+        assertEquals("{\"path\":[]}", job.getCheckpoint());
+
+        assertEquals(3, job.getProcessedItems());
+    }
+
+    @Test
+    void step_OwnerDeleted_Fails() {
+        when(userRepository.findById(2L)).thenReturn(Optional.empty());
+
+        assertThrows(UserNotFoundException.class, () -> handler.step(job));
+        verifyNoInteractions(fileService);
+        assertNull(job.getCheckpoint());
+    }
+}
@@ -1,36 +1,60 @@
 package com.example.filemanager.service;
 
+import com.example.filemanager.config.DatabaseConstraintInitializer;
+import com.example.filemanager.domain.BackgroundJob;
 import com.example.filemanager.controller.dto.FolderRequest;
+import com.example.filemanager.controller.dto.TrashSummaryResponse;
 import com.example.filemanager.domain.FileEntity;
 import com.example.filemanager.domain.FileHistory;
+import com.example.filemanager.domain.FileLease;
+import com.example.filemanager.domain.FileListItem;
+import com.example.filemanager.domain.FolderStats;
 import com.example.filemanager.domain.Group;
 import com.example.filemanager.domain.User;
 import com.example.filemanager.exception.DuplicateFileException;
+import com.example.filemanager.exception.FileLockedException;
+import com.example.filemanager.exception.FileModifiedException;
+import com.example.filemanager.exception.LockNotHeldException;
+import com.example.filemanager.exception.ParentDeletedException;
+import com.example.filemanager.exception.QuotaExceededException;
 import com.example.filemanager.exception.ResourceNotFoundException;
 import com.example.filemanager.repository.FileHistoryRepository;
+import com.example.filemanager.repository.FileLeaseRepository;
 import com.example.filemanager.repository.FileRepository;
-import io.awspring.cloud.s3.S3Resource;
+import com.example.filemanager.repository.GroupRepository;
+import com.example.filemanager.repository.UserRepository;
 import io.awspring.cloud.s3.S3Template;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
+import org.hibernate.exception.ConstraintViolationException;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
-import org.springframework.data.jpa.domain.Specification;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
 import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContext;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
@@ -47,12 +71,51 @@ class FileServiceTest {
   @Mock
   private FileHistoryRepository fileHistoryRepository;
 
+  @Mock
+  private FileLeaseRepository fileLeaseRepository;
+
+  @Mock
+  private UserRepository userRepository;
+
+  @Mock
+  private GroupRepository groupRepository;
+
   @Mock
   private S3Template s3Template;
 
   @Mock
   private PermissionService permissionService;
 
+  @Mock
+  private PermissionEvaluator permissionEvaluator;
+
+  @Mock
+  private CacheInvalidationBus cacheInvalidationBus;
+
+  @Mock
+  private BlobOutboxService blobOutboxService;
+
+  @Mock
+  private FolderStatsService folderStatsService;
+
+  @Mock
+  private StorageQuotaService storageQuotaService;
+
+  @Mock
+  private ChangeFeedService changeFeedService;
+
+  @Mock
+  private BackgroundJobService backgroundJobService;
+
+  @Mock
+  private RenditionService renditionService;
+
+  @Mock
+  private StorageCodecService storageCodecService;
+
+  @Mock
+  private PlatformTransactionManager transactionManager;
+
   @InjectMocks
   private FileService fileService;
 
@@ -83,6 +146,12 @@ class FileServiceTest {
     SecurityContextHolder.setContext(securityContext);
   }
 
+  private DataIntegrityViolationException uniqueNameViolation() {
+    return new DataIntegrityViolationException("duplicate key",
+        new ConstraintViolationException("duplicate key", new SQLException("duplicate key", "23505"),
+            DatabaseConstraintInitializer.UNIQUE_LIVE_NAME_INDEX));
+  }
+
   @Test
   void createDirectory_Success_RootFolder() {
     setupAuthentication();
@@ -92,9 +161,7 @@ class FileServiceTest {
     request.setParentFolderId(null);
     request.setPermissions("755");
 
-    when(fileRepository.findByParentAndNameAndDeletedAtIsNull(null, "Documents"))
-        .thenReturn(Optional.empty());
-    when(fileRepository.save(any(FileEntity.class)))
+    when(fileRepository.saveAndFlush(any(FileEntity.class)))
         .thenAnswer(
             invocation -> {
               FileEntity entity = invocation.getArgument(0);
@@ -110,7 +177,7 @@ class FileServiceTest {
     assertEquals("Documents", result.getName());
     assertTrue(result.isDirectory());
     assertNull(result.getParent());
-    verify(fileRepository, times(1)).save(any(FileEntity.class));
+    verify(fileRepository, times(1)).saveAndFlush(any(FileEntity.class));
   }
 
   @Test
@@ -128,9 +195,7 @@ class FileServiceTest {
     request.setPermissions("750");
 
     when(fileRepository.findByIdAndDeletedAtIsNull(1L)).thenReturn(Optional.of(parentFolder));
-    when(fileRepository.findByParentAndNameAndDeletedAtIsNull(parentFolder, "Images"))
-        .thenReturn(Optional.empty());
-    when(fileRepository.save(any(FileEntity.class)))
+    when(fileRepository.saveAndFlush(any(FileEntity.class)))
         .thenAnswer(invocation -> invocation.getArgument(0));
 
     // When
@@ -156,27 +221,22 @@ class FileServiceTest {
 
     // When & Then
     assertThrows(ResourceNotFoundException.class, () -> fileService.createDirectory(request));
-    verify(fileRepository, never()).save(any());
+    verify(fileRepository, never()).saveAndFlush(any());
   }
 
   @Test
   void createDirectory_Failure_DuplicateName() {
     setupAuthentication();
     // Given
-    FileEntity existingFile = new FileEntity();
-    existingFile.setName("Documents");
-
     FolderRequest request = new FolderRequest();
     request.setName("Documents");
     request.setParentFolderId(null);
     request.setPermissions("755");
 
-    when(fileRepository.findByParentAndNameAndDeletedAtIsNull(null, "Documents"))
-        .thenReturn(Optional.of(existingFile));
+    when(fileRepository.saveAndFlush(any(FileEntity.class))).thenThrow(uniqueNameViolation());
 
     // When & Then
     assertThrows(DuplicateFileException.class, () -> fileService.createDirectory(request));
-    verify(fileRepository, never()).save(any());
   }
 
   @Test
@@ -187,9 +247,7 @@ class FileServiceTest {
     Long parentFolderId = null;
     String permissions = "644";
 
-    when(fileRepository.findByParentAndNameAndDeletedAtIsNull(null, "test.txt"))
-        .thenReturn(Optional.empty());
-    when(fileRepository.save(any(FileEntity.class)))
+    when(fileRepository.saveAndFlush(any(FileEntity.class)))
         .thenAnswer(invocation -> invocation.getArgument(0));
 
     // When
@@ -197,7 +255,7 @@ class FileServiceTest {
 
     // Then
     ArgumentCaptor<FileEntity> fileEntityCaptor = ArgumentCaptor.forClass(FileEntity.class);
-    verify(fileRepository, times(1)).save(fileEntityCaptor.capture());
+    verify(fileRepository, times(1)).saveAndFlush(fileEntityCaptor.capture());
     FileEntity savedEntity = fileEntityCaptor.getValue();
 
     assertEquals("test.txt", savedEntity.getName());
@@ -228,7 +286,7 @@ class FileServiceTest {
     assertThrows(
         ResourceNotFoundException.class,
         () -> fileService.uploadFile(file, parentFolderId, permissions));
-    verify(fileRepository, never()).save(any());
+    verify(fileRepository, never()).saveAndFlush(any());
     verify(s3Template, never()).upload(anyString(), anyString(), any());
   }
 
@@ -240,14 +298,29 @@ class FileServiceTest {
     Long parentFolderId = null;
     String permissions = "644";
 
-    when(fileRepository.findByParentAndNameAndDeletedAtIsNull(null, "test.txt"))
-        .thenReturn(Optional.of(new FileEntity()));
+    when(fileRepository.saveAndFlush(any(FileEntity.class))).thenThrow(uniqueNameViolation());
+    when(blobOutboxService.beginUpload(anyString())).thenReturn(42L);
 
-    // When & Then
+    // When & Then: the collision is found in the transaction after the upload, whose object is discarded
     assertThrows(
         DuplicateFileException.class,
         () -> fileService.uploadFile(file, parentFolderId, permissions));
-    verify(fileRepository, never()).save(any());
+    ArgumentCaptor<String> keyCaptor = ArgumentCaptor.forClass(String.class);
+    verify(blobOutboxService).beginUpload(keyCaptor.capture());
+    verify(blobOutboxService, never()).completeUpload(any());
+    verify(blobOutboxService).discardUpload(42L, keyCaptor.getValue());
+  }
+
+  @Test
+  void uploadFile_QuotaExceeded_NothingIsStored() {
+    setupAuthentication();
+    // Given
+    MockMultipartFile file = new MockMultipartFile("file", "test.txt", "text/plain", "test data".getBytes());
+    doThrow(new QuotaExceededException("quota")).when(storageQuotaService).checkAvailable(testUser, testGroup, 9L);
+
+    // When & Then
+    assertThrows(QuotaExceededException.class, () -> fileService.uploadFile(file, null, "644"));
+    verify(fileRepository, never()).saveAndFlush(any());
     verify(s3Template, never()).upload(anyString(), anyString(), any());
   }
 
@@ -261,12 +334,11 @@ class FileServiceTest {
     fileEntity.setStorageKey("some-key/test.txt");
 
     byte[] fileContent = "test data".getBytes();
-    S3Resource s3Resource = mock(S3Resource.class);
 
     // Note: We no longer need to mock findById for this test as the entity is
     // passed directly.
-    when(s3Template.download("test-bucket", "some-key/test.txt")).thenReturn(s3Resource);
-    when(s3Resource.getInputStream()).thenReturn(new ByteArrayInputStream(fileContent));
+    when(storageCodecService.read("some-key/test.txt", null))
+        .thenReturn(new StorageCodecService.StoredContent(fileContent, null));
 
     // When
     byte[] result = fileService.downloadFile(fileEntity);
@@ -310,7 +382,7 @@ class FileServiceTest {
     assertThrows(
         com.example.filemanager.exception.InvalidPermissionFormatException.class,
         () -> fileService.uploadFile(file, parentFolderId, permissions));
-    verify(fileRepository, never()).save(any());
+    verify(fileRepository, never()).saveAndFlush(any());
     verify(s3Template, never()).upload(anyString(), anyString(), any());
   }
 
@@ -356,12 +428,34 @@ class FileServiceTest {
     when(permissionService.canWrite(fileEntity, testUser)).thenReturn(true);
 
     // When
-    fileService.softDeleteFile(1L);
+    fileService.softDeleteFile(1L, null);
 
     // Then
     ArgumentCaptor<FileEntity> fileEntityCaptor = ArgumentCaptor.forClass(FileEntity.class);
     verify(fileRepository, times(1)).save(fileEntityCaptor.capture());
     assertNotNull(fileEntityCaptor.getValue().getDeletedAt());
+    assertNotNull(fileEntityCaptor.getValue().getDeletionBatchId());
+    verify(fileRepository, never()).markChildrenDeleted(any(), any());
+  }
+
+  @Test
+  void softDeleteFile_Folder_MarksSubtreeLevelByLevel() {
+    setupAuthentication();
+    // Given
+    FileEntity folder = new FileEntity();
+    folder.setId(1L);
+    folder.setDirectory(true);
+    when(fileRepository.findByIdAndDeletedAtIsNull(1L)).thenReturn(Optional.of(folder));
+    when(permissionService.canWrite(folder, testUser)).thenReturn(true);
+    // Two levels below the folder, then nothing left to mark
+    when(fileRepository.markChildrenDeleted(any(), any())).thenReturn(3, 1, 0);
+
+    // When
+    fileService.softDeleteFile(1L, null);
+
+    // Then
+    verify(fileRepository, times(3)).markChildrenDeleted(folder.getDeletionBatchId(), folder.getDeletedAt());
+    verify(cacheInvalidationBus).allChanged(FileEntity.class);
   }
 
   @Test
@@ -371,7 +465,7 @@ class FileServiceTest {
     when(fileRepository.findByIdAndDeletedAtIsNull(99L)).thenReturn(Optional.empty());
 
     // When & Then
-    assertThrows(ResourceNotFoundException.class, () -> fileService.softDeleteFile(99L));
+    assertThrows(ResourceNotFoundException.class, () -> fileService.softDeleteFile(99L, null));
     verify(fileRepository, never()).save(any());
   }
 
@@ -387,60 +481,53 @@ class FileServiceTest {
     // When & Then
     assertThrows(
         org.springframework.security.access.AccessDeniedException.class,
-        () -> fileService.softDeleteFile(1L));
+        () -> fileService.softDeleteFile(1L, null));
     verify(fileRepository, never()).save(any());
   }
 
+  private FileListItem listItem(Long id, String name, String tags) {
+    return new FileListItem(id, name, false, 644, null, tags, null, null, false, null,
+        testUser.getId(), testUser.getUsername(), testGroup.getId(), testGroup.getName(), null, null, null, null, 0L);
+  }
+
   @Test
   void searchFiles_Success_WithNameAndTags() {
     setupAuthentication();
     // Given
-    FileEntity file1 = new FileEntity();
-    file1.setId(1L);
-    file1.setName("document.pdf");
-    file1.setCustomTags("work, report");
+    FileListItem file1 = listItem(1L, "document.pdf", "work, report");
+    FileListItem file2 = listItem(2L, "another-document.pdf", "work");
 
-    FileEntity file2 = new FileEntity();
-    file2.setId(2L);
-    file2.setName("another-document.pdf");
-    file2.setCustomTags("personal");
+    List<FileListItem> foundFiles = Arrays.asList(file1, file2);
 
-    List<FileEntity> foundFiles = Arrays.asList(file1, file2);
-
-    when(fileRepository.findAll(org.mockito.ArgumentMatchers.<Specification<FileEntity>>any())).thenReturn(foundFiles);
-    when(permissionService.canRead(file1, testUser)).thenReturn(true);
-    when(permissionService.canRead(file2, testUser)).thenReturn(true);
+    when(fileRepository.searchListItems(eq("%document%"), eq("%work%"), any(Instant.class))).thenReturn(foundFiles);
+    when(permissionService.evaluatorFor(testUser)).thenReturn(permissionEvaluator);
+    when(permissionEvaluator.canRead(file1)).thenReturn(true);
+    when(permissionEvaluator.canRead(file2)).thenReturn(true);
 
     // When
-    List<FileEntity> results = fileService.searchFiles("document", "work");
+    List<FileListItem> results = fileService.searchFiles("Document", "work");
 
     // Then
-    assertEquals(
-        2,
-        results.size()); // Both files should be checked by the spec, let's assume it returns both
-    // for simplicity in mocking
+    assertEquals(2, results.size());
   }
 
   @Test
   void searchFiles_Success_PermissionFiltering() {
     setupAuthentication();
     // Given
-    FileEntity file1 = new FileEntity(); // has permission
-    file1.setId(1L);
-    file1.setName("report.docx");
+    FileListItem file1 = listItem(1L, "report.docx", null); // has permission
+    FileListItem file2 = listItem(2L, "secret-report.docx", null); // no permission
 
-    FileEntity file2 = new FileEntity(); // no permission
-    file2.setId(2L);
-    file2.setName("secret-report.docx");
-
-    List<FileEntity> foundFiles = Arrays.asList(file1, file2);
+    List<FileListItem> foundFiles = Arrays.asList(file1, file2);
 
-    when(fileRepository.findAll(org.mockito.ArgumentMatchers.<Specification<FileEntity>>any())).thenReturn(foundFiles);
-    when(permissionService.canRead(file1, testUser)).thenReturn(true);
-    when(permissionService.canRead(file2, testUser)).thenReturn(false);
+    // A blank filter is not applied
+    when(fileRepository.searchListItems(eq("%report%"), isNull(), any(Instant.class))).thenReturn(foundFiles);
+    when(permissionService.evaluatorFor(testUser)).thenReturn(permissionEvaluator);
+    when(permissionEvaluator.canRead(file1)).thenReturn(true);
+    when(permissionEvaluator.canRead(file2)).thenReturn(false);
 
     // When
-    List<FileEntity> results = fileService.searchFiles("report", null);
+    List<FileListItem> results = fileService.searchFiles("report", " ");
 
     // Then
     assertEquals(1, results.size());
@@ -451,11 +538,11 @@ class FileServiceTest {
   void searchFiles_Success_NoResults() {
     setupAuthentication();
     // Given
-    when(fileRepository.findAll(org.mockito.ArgumentMatchers.<Specification<FileEntity>>any()))
-        .thenReturn(Collections.emptyList());
+    when(fileRepository.searchListItems(eq("%nonexistent%"), eq("%whatever%"), any(Instant.class))).thenReturn(Collections.emptyList());
+    when(permissionService.evaluatorFor(testUser)).thenReturn(permissionEvaluator);
 
     // When
-    List<FileEntity> results = fileService.searchFiles("nonexistent", "whatever");
+    List<FileListItem> results = fileService.searchFiles("nonexistent", "whatever");
 
     // Then
     assertTrue(results.isEmpty());
@@ -474,16 +561,52 @@ class FileServiceTest {
 
     when(fileRepository.findByIdAndDeletedAtIsNull(fileId)).thenReturn(Optional.of(fileEntity));
     when(permissionService.canWrite(fileEntity, testUser)).thenReturn(true);
-    when(fileRepository.findByParentAndNameAndDeletedAtIsNull(null, newName)).thenReturn(Optional.empty());
-    when(fileRepository.save(any(FileEntity.class))).thenAnswer(invocation -> invocation.getArgument(0));
+    when(fileRepository.saveAndFlush(any(FileEntity.class))).thenAnswer(invocation -> invocation.getArgument(0));
 
     // When
-    FileEntity result = fileService.renameFile(fileId, newName);
+    FileEntity result = fileService.renameFile(fileId, newName, null);
 
     // Then
     assertNotNull(result);
     assertEquals(newName, result.getName());
-    verify(fileRepository, times(1)).save(fileEntity);
+    verify(fileRepository, times(1)).saveAndFlush(fileEntity);
+    InOrder inOrder = inOrder(fileRepository, fileLeaseRepository);
+    inOrder.verify(fileRepository).lockById(fileId);
+    inOrder.verify(fileLeaseRepository).findActiveHolderId(eq(fileId), any(Instant.class));
+    inOrder.verify(fileRepository).saveAndFlush(fileEntity);
+  }
+
+  @Test
+  void renameFile_WithMatchingVersion_Succeeds() {
+    setupAuthentication();
+    FileEntity fileEntity = new FileEntity();
+    fileEntity.setId(1L);
+    fileEntity.setName("original-document.txt");
+    fileEntity.setRowVersion(3L);
+
+    when(fileRepository.findByIdAndDeletedAtIsNull(1L)).thenReturn(Optional.of(fileEntity));
+    when(permissionService.canWrite(fileEntity, testUser)).thenReturn(true);
+    when(fileRepository.saveAndFlush(fileEntity)).thenReturn(fileEntity);
+
+    FileEntity result = fileService.renameFile(1L, "renamed-document.txt", 3L);
+
+    assertEquals("renamed-document.txt", result.getName());
+  }
+
+  @Test
+  void renameFile_Failure_StaleVersion() {
+    setupAuthentication();
+    FileEntity fileEntity = new FileEntity();
+    fileEntity.setId(1L);
+    fileEntity.setName("original-document.txt");
+    fileEntity.setRowVersion(4L);
+
+    when(fileRepository.findByIdAndDeletedAtIsNull(1L)).thenReturn(Optional.of(fileEntity));
+    when(permissionService.canWrite(fileEntity, testUser)).thenReturn(true);
+
+    assertThrows(FileModifiedException.class, () -> fileService.renameFile(1L, "renamed-document.txt", 3L));
+    assertEquals("original-document.txt", fileEntity.getName());
+    verify(fileRepository, never()).saveAndFlush(any());
   }
 
   @Test
@@ -495,8 +618,8 @@ class FileServiceTest {
     when(fileRepository.findByIdAndDeletedAtIsNull(fileId)).thenReturn(Optional.empty());
 
     // When & Then
-    assertThrows(ResourceNotFoundException.class, () -> fileService.renameFile(fileId, newName));
-    verify(fileRepository, never()).save(any());
+    assertThrows(ResourceNotFoundException.class, () -> fileService.renameFile(fileId, newName, null));
+    verify(fileRepository, never()).saveAndFlush(any());
   }
 
   @Test
@@ -513,8 +636,8 @@ class FileServiceTest {
 
     // When & Then
     assertThrows(org.springframework.security.access.AccessDeniedException.class,
-        () -> fileService.renameFile(fileId, newName));
-    verify(fileRepository, never()).save(any());
+        () -> fileService.renameFile(fileId, newName, null));
+    verify(fileRepository, never()).saveAndFlush(any());
   }
 
   @Test
@@ -527,17 +650,12 @@ class FileServiceTest {
     fileEntity.setId(fileId);
     fileEntity.setParent(null);
 
-    FileEntity existingFile = new FileEntity();
-    existingFile.setId(2L);
-    existingFile.setName(newName);
-
     when(fileRepository.findByIdAndDeletedAtIsNull(fileId)).thenReturn(Optional.of(fileEntity));
     when(permissionService.canWrite(fileEntity, testUser)).thenReturn(true);
-    when(fileRepository.findByParentAndNameAndDeletedAtIsNull(null, newName)).thenReturn(Optional.of(existingFile));
+    when(fileRepository.saveAndFlush(any(FileEntity.class))).thenThrow(uniqueNameViolation());
 
     // When & Then
-    assertThrows(DuplicateFileException.class, () -> fileService.renameFile(fileId, newName));
-    verify(fileRepository, never()).save(any());
+    assertThrows(DuplicateFileException.class, () -> fileService.renameFile(fileId, newName, null));
   }
 
   @Test
@@ -561,19 +679,17 @@ class FileServiceTest {
     when(fileRepository.findByIdAndDeletedAtIsNull(newParentId))
         .thenReturn(Optional.of(destinationFolder));
     when(permissionService.canWrite(destinationFolder, testUser)).thenReturn(true);
-    when(fileRepository.findByParentAndNameAndDeletedAtIsNull(
-        destinationFolder, fileToMove.getName()))
-        .thenReturn(Optional.empty());
-    when(fileRepository.save(any(FileEntity.class)))
+    when(fileRepository.saveAndFlush(any(FileEntity.class)))
         .thenAnswer(invocation -> invocation.getArgument(0));
 
     // When
-    FileEntity result = fileService.moveFile(fileId, newParentId);
+    FileEntity result = fileService.moveFile(fileId, newParentId, null);
 
     // Then
     assertNotNull(result);
     assertEquals(destinationFolder, result.getParent());
-    verify(fileRepository, times(1)).save(fileToMove);
+    verify(fileRepository, times(1)).saveAndFlush(fileToMove);
+    verify(changeFeedService).recordMove(fileToMove, null);
   }
 
   @Test
@@ -597,8 +713,8 @@ class FileServiceTest {
     // When & Then
     assertThrows(
         com.example.filemanager.exception.ParentNotDirectoryException.class,
-        () -> fileService.moveFile(fileId, newParentId));
-    verify(fileRepository, never()).save(any());
+        () -> fileService.moveFile(fileId, newParentId, null));
+    verify(fileRepository, never()).saveAndFlush(any());
   }
 
   @Test
@@ -617,7 +733,7 @@ class FileServiceTest {
     // When & Then
     assertThrows(
         org.springframework.security.access.AccessDeniedException.class,
-        () -> fileService.moveFile(fileId, newParentId));
+        () -> fileService.moveFile(fileId, newParentId, null));
   }
 
   @Test
@@ -643,7 +759,7 @@ class FileServiceTest {
     // When & Then
     assertThrows(
         org.springframework.security.access.AccessDeniedException.class,
-        () -> fileService.moveFile(fileId, newParentId));
+        () -> fileService.moveFile(fileId, newParentId, null));
   }
 
   @Test
@@ -661,19 +777,15 @@ class FileServiceTest {
     destinationFolder.setId(newParentId);
     destinationFolder.setDirectory(true);
 
-    FileEntity existingFile = new FileEntity();
-    existingFile.setName("file.txt");
-
     when(fileRepository.findByIdAndDeletedAtIsNull(fileId)).thenReturn(Optional.of(fileToMove));
     when(permissionService.canWrite(fileToMove, testUser)).thenReturn(true);
     when(fileRepository.findByIdAndDeletedAtIsNull(newParentId))
         .thenReturn(Optional.of(destinationFolder));
     when(permissionService.canWrite(destinationFolder, testUser)).thenReturn(true);
-    when(fileRepository.findByParentAndNameAndDeletedAtIsNull(destinationFolder, "file.txt"))
-        .thenReturn(Optional.of(existingFile));
+    when(fileRepository.saveAndFlush(any(FileEntity.class))).thenThrow(uniqueNameViolation());
 
     // When & Then
-    assertThrows(DuplicateFileException.class, () -> fileService.moveFile(fileId, newParentId));
+    assertThrows(DuplicateFileException.class, () -> fileService.moveFile(fileId, newParentId, null));
   }
 
   @Test
@@ -689,18 +801,37 @@ class FileServiceTest {
     deletedFileWithoutPermission.setName("deleted2.txt");
 
     List<FileEntity> allDeletedFiles = Arrays.asList(deletedFileWithPermission, deletedFileWithoutPermission);
+    Pageable pageable = PageRequest.of(0, 20, Sort.by(Sort.Direction.DESC, "deletedAt"));
 
-    when(fileRepository.findAllByDeletedAtIsNotNull()).thenReturn(allDeletedFiles);
-    when(permissionService.canRead(deletedFileWithPermission, testUser)).thenReturn(true);
-    when(permissionService.canRead(deletedFileWithoutPermission, testUser)).thenReturn(false);
+    when(fileRepository.findTrashRoots(testUser, testUser.getGroups(), pageable))
+        .thenReturn(new PageImpl<>(allDeletedFiles, pageable, 2));
+    when(permissionService.evaluatorFor(testUser)).thenReturn(permissionEvaluator);
+    when(permissionEvaluator.canRead(deletedFileWithPermission)).thenReturn(true);
+    when(permissionEvaluator.canRead(deletedFileWithoutPermission)).thenReturn(false);
 
     // When
-    List<FileEntity> result = fileService.listDeletedFiles();
+    Page<FileEntity> result = fileService.listDeletedFiles(pageable);
 
     // Then
-    assertEquals(1, result.size());
-    assertEquals("deleted1.txt", result.get(0).getName());
-    verify(fileRepository, times(1)).findAllByDeletedAtIsNotNull();
+    assertEquals(1, result.getContent().size());
+    assertEquals("deleted1.txt", result.getContent().get(0).getName());
+    verify(fileRepository, times(1)).findTrashRoots(testUser, testUser.getGroups(), pageable);
+  }
+
+  @Test
+  void getTrashSummary_AddsVersionBytesToContentBytes() {
+    setupAuthentication();
+    // Given
+    when(fileRepository.countTrashedItems(testUser, testUser.getGroups())).thenReturn(3L);
+    when(fileRepository.sumTrashedBytes(testUser, testUser.getGroups())).thenReturn(1000L);
+    when(fileHistoryRepository.sumTrashedVersionBytes(testUser, testUser.getGroups())).thenReturn(500L);
+
+    // When
+    TrashSummaryResponse summary = fileService.getTrashSummary();
+
+    // Then
+    assertEquals(3L, summary.getItemCount());
+    assertEquals(1500L, summary.getBytes());
   }
 
   @Test
@@ -715,15 +846,61 @@ class FileServiceTest {
     when(fileRepository.findByIdAndDeletedAtIsNotNull(fileId))
         .thenReturn(Optional.of(fileToRestore));
     when(permissionService.canWrite(fileToRestore, testUser)).thenReturn(true);
-    when(fileRepository.save(any(FileEntity.class))).thenAnswer(inv -> inv.getArgument(0));
+    when(fileRepository.saveAndFlush(any(FileEntity.class))).thenAnswer(inv -> inv.getArgument(0));
 
     // When
-    FileEntity result = fileService.restoreFile(fileId);
+    FileEntity result = fileService.restoreFile(fileId, null);
 
     // Then
     assertNotNull(result);
     assertNull(result.getDeletedAt());
-    verify(fileRepository, times(1)).save(fileToRestore);
+    verify(fileRepository, times(1)).saveAndFlush(fileToRestore);
+    verify(fileRepository, never()).restoreDeletionBatch(any());
+  }
+
+  @Test
+  void restoreFile_Folder_RestoresWholeDeletionBatch() {
+    setupAuthentication();
+    // Given
+    FileEntity folder = new FileEntity();
+    folder.setId(1L);
+    folder.setDirectory(true);
+    folder.setDeletedAt(java.time.LocalDateTime.now());
+    folder.setDeletionBatchId("batch-1");
+
+    when(fileRepository.findByIdAndDeletedAtIsNotNull(1L)).thenReturn(Optional.of(folder));
+    when(permissionService.canWrite(folder, testUser)).thenReturn(true);
+    when(fileRepository.saveAndFlush(any(FileEntity.class))).thenAnswer(inv -> inv.getArgument(0));
+
+    // When
+    FileEntity result = fileService.restoreFile(1L, null);
+
+    // Then
+    assertNull(result.getDeletionBatchId());
+    verify(fileRepository).restoreDeletionBatch("batch-1");
+  }
+
+  @Test
+  void restoreFile_Failure_ParentInTrash() {
+    setupAuthentication();
+    // Given
+    FileEntity parent = new FileEntity();
+    parent.setId(1L);
+    parent.setName("parent");
+    parent.setDirectory(true);
+    parent.setDeletedAt(java.time.LocalDateTime.now());
+
+    FileEntity child = new FileEntity();
+    child.setId(2L);
+    child.setParent(parent);
+    child.setDeletedAt(parent.getDeletedAt());
+
+    when(fileRepository.findByIdAndDeletedAtIsNotNull(2L)).thenReturn(Optional.of(child));
+    when(permissionService.canWrite(child, testUser)).thenReturn(true);
+
+    // When & Then
+    assertThrows(ParentDeletedException.class, () -> fileService.restoreFile(2L, null));
+    verify(fileRepository, never()).saveAndFlush(any());
   }
 
   @Test
@@ -734,8 +911,8 @@ class FileServiceTest {
     when(fileRepository.findByIdAndDeletedAtIsNotNull(fileId)).thenReturn(Optional.empty());
 
     // When & Then
-    assertThrows(ResourceNotFoundException.class, () -> fileService.restoreFile(fileId));
-    verify(fileRepository, never()).save(any());
+    assertThrows(ResourceNotFoundException.class, () -> fileService.restoreFile(fileId, null));
+    verify(fileRepository, never()).saveAndFlush(any());
   }
 
   @Test
@@ -754,8 +931,8 @@ class FileServiceTest {
     // When & Then
     assertThrows(
         org.springframework.security.access.AccessDeniedException.class,
-        () -> fileService.restoreFile(fileId));
-    verify(fileRepository, never()).save(any());
+        () -> fileService.restoreFile(fileId, null));
+    verify(fileRepository, never()).saveAndFlush(any());
   }
 
   @Test
@@ -773,7 +950,7 @@ class FileServiceTest {
     when(fileRepository.save(any(FileEntity.class))).thenAnswer(invocation -> invocation.getArgument(0));
 
     // When
-    FileEntity result = fileService.toggleVersioning(folderId, true);
+    FileEntity result = fileService.toggleVersioning(folderId, true, null);
 
     // Then
     assertTrue(result.getVersioningEnabled());
@@ -796,16 +973,16 @@ class FileServiceTest {
     when(fileRepository.findByIdAndDeletedAtIsNull(fileId)).thenReturn(Optional.of(fileEntity));
     when(permissionService.canRead(fileEntity, testUser)).thenReturn(true);
     when(permissionService.canWrite(fileEntity, testUser)).thenReturn(true);
-    when(fileHistoryRepository.findByFileEntityIdOrderByVersionDesc(fileId)).thenReturn(Collections.emptyList());
+    when(fileRepository.findLatestVersionById(fileId)).thenReturn(1);
 
     // When
-    fileService.updateFile(fileId, file);
+    fileService.updateFile(fileId, file, null);
 
     // Then
     // Then
     verify(fileHistoryRepository, times(1)).save(any(FileHistory.class));
     ArgumentCaptor<FileEntity> fileEntityCaptor = ArgumentCaptor.forClass(FileEntity.class);
-    verify(fileRepository, times(1)).save(fileEntityCaptor.capture());
+    verify(fileRepository, times(1)).saveAndFlush(fileEntityCaptor.capture());
     assertNotEquals("old-key", fileEntityCaptor.getValue().getStorageKey());
     assertEquals("update.txt", fileEntityCaptor.getValue().getName());
   }
@@ -827,8 +1004,9 @@ class FileServiceTest {
     List<FileEntity> allFiles = Arrays.asList(file1, file2);
 
     when(fileRepository.findAllByParentAndDeletedAtIsNull(null)).thenReturn(allFiles);
-    when(permissionService.canRead(file1, testUser)).thenReturn(true);
-    when(permissionService.canRead(file2, testUser)).thenReturn(true);
+    when(permissionService.evaluatorFor(testUser)).thenReturn(permissionEvaluator);
+    when(permissionEvaluator.canRead(file1)).thenReturn(true);
+    when(permissionEvaluator.canRead(file2)).thenReturn(true);
 
     // When
     List<FileEntity> result = fileService.listFiles(null);
@@ -857,7 +1035,8 @@ class FileServiceTest {
     when(fileRepository.findByIdAndDeletedAtIsNull(parentId)).thenReturn(Optional.of(parent));
     when(permissionService.canRead(parent, testUser)).thenReturn(true);
     when(fileRepository.findAllByParentAndDeletedAtIsNull(parent)).thenReturn(allFiles);
-    when(permissionService.canRead(file1, testUser)).thenReturn(true);
+    when(permissionService.evaluatorFor(testUser)).thenReturn(permissionEvaluator);
+    when(permissionEvaluator.canRead(file1)).thenReturn(true);
 
     // When
     List<FileEntity> result = fileService.listFiles(parentId);
@@ -912,13 +1091,153 @@ class FileServiceTest {
     when(permissionService.canWrite(fileEntity, testUser)).thenReturn(true);
 
     // When
-    fileService.updateFile(fileId, file);
+    fileService.updateFile(fileId, file, null);
 
     // Then
     verify(fileHistoryRepository, never()).save(any());
     ArgumentCaptor<FileEntity> fileEntityCaptor = ArgumentCaptor.forClass(FileEntity.class);
-    verify(fileRepository, times(1)).save(fileEntityCaptor.capture());
-    assertEquals("old-key", fileEntityCaptor.getValue().getStorageKey());
+    verify(fileRepository, times(1)).saveAndFlush(fileEntityCaptor.capture());
+    // The new content gets its own key; the old object is deleted once the update commits
+    assertNotEquals("old-key", fileEntityCaptor.getValue().getStorageKey());
+    verify(blobOutboxService).deleteAfterCommit("old-key");
+  }
+
+  @Test
+  void updateFile_ChargesSizeDifferenceToOwnerAfterUpload() throws IOException {
+    setupAuthentication();
+    // Given: 12 bytes replace 20
+    Long fileId = 1L;
+    MockMultipartFile file = new MockMultipartFile("file", "update.txt", "text/plain", "updated data".getBytes());
+    FileEntity fileEntity = new FileEntity();
+    fileEntity.setId(fileId);
+    fileEntity.setStorageKey("old-key");
+    fileEntity.setSize(20L);
+    fileEntity.setOwner(testUser);
+    fileEntity.setGroup(testGroup);
+
+    when(fileRepository.findByIdAndDeletedAtIsNull(fileId)).thenReturn(Optional.of(fileEntity));
+    when(permissionService.canRead(fileEntity, testUser)).thenReturn(true);
+    when(permissionService.canWrite(fileEntity, testUser)).thenReturn(true);
+
+    // When
+    fileService.updateFile(fileId, file, null);
+
+    // Then
+    InOrder inOrder = inOrder(storageQuotaService, s3Template);
+    inOrder.verify(storageQuotaService).checkAvailable(testUser, testGroup, -8L);
+    inOrder.verify(s3Template).upload(eq("test-bucket"), anyString(), any(java.io.InputStream.class));
+    inOrder.verify(storageQuotaService).charge(testUser, testGroup, -8L);
+  }
+
+  @Test
+  void updateFile_InVersionedFolder_ChargesNewContentInFull() throws IOException {
+    setupAuthentication();
+    // Given: 12 bytes replace 20, which stay stored as a version
+    Long fileId = 1L;
+    MockMultipartFile file = new MockMultipartFile("file", "update.txt", "text/plain", "updated data".getBytes());
+    FileEntity parent = new FileEntity();
+    parent.setVersioningEnabled(true);
+    FileEntity fileEntity = new FileEntity();
+    fileEntity.setId(fileId);
+    fileEntity.setParent(parent);
+    fileEntity.setStorageKey("old-key");
+    fileEntity.setSize(20L);
+    fileEntity.setOwner(testUser);
+    fileEntity.setGroup(testGroup);
+
+    when(fileRepository.findByIdAndDeletedAtIsNull(fileId)).thenReturn(Optional.of(fileEntity));
+    when(permissionService.canRead(fileEntity, testUser)).thenReturn(true);
+    when(permissionService.canWrite(fileEntity, testUser)).thenReturn(true);
+    when(fileRepository.findLatestVersionById(fileId)).thenReturn(1);
+
+    // When
+    fileService.updateFile(fileId, file, null);
+
+    // Then
+    verify(storageQuotaService, atLeastOnce()).checkAvailable(testUser, testGroup, 12L);
+    verify(storageQuotaService).charge(testUser, testGroup, 12L);
+    ArgumentCaptor<FileHistory> historyCaptor = ArgumentCaptor.forClass(FileHistory.class);
+    verify(fileHistoryRepository).save(historyCaptor.capture());
+    assertEquals(20L, historyCaptor.getValue().getSize());
+  }
+
+  @Test
+  void updateFile_UploadIsCompletedInTheUpdatingTransaction() throws IOException {
+    setupAuthentication();
+    // Given
+    Long fileId = 1L;
+    MockMultipartFile file = new MockMultipartFile("file", "update.txt", "text/plain", "updated data".getBytes());
+    FileEntity fileEntity = new FileEntity();
+    fileEntity.setId(fileId);
+    fileEntity.setStorageKey("old-key");
+
+    when(fileRepository.findByIdAndDeletedAtIsNull(fileId)).thenReturn(Optional.of(fileEntity));
+    when(permissionService.canRead(fileEntity, testUser)).thenReturn(true);
+    when(permissionService.canWrite(fileEntity, testUser)).thenReturn(true);
+    when(blobOutboxService.beginUpload(anyString())).thenReturn(42L);
+
+    // When
+    fileService.updateFile(fileId, file, null);
+
+    // Then
+    ArgumentCaptor<String> keyCaptor = ArgumentCaptor.forClass(String.class);
+    InOrder inOrder = inOrder(blobOutboxService, s3Template);
+    inOrder.verify(blobOutboxService).beginUpload(keyCaptor.capture());
+    inOrder.verify(s3Template).upload(eq("test-bucket"), eq(keyCaptor.getValue()), any(java.io.InputStream.class));
+    inOrder.verify(blobOutboxService).completeUpload(42L);
+    assertEquals(keyCaptor.getValue(), fileEntity.getStorageKey());
+  }
+
+  @Test
+  void updateFile_FailedUpload_KeepsOldObject() throws IOException {
+    setupAuthentication();
+    // Given
+    Long fileId = 1L;
+    MockMultipartFile file = new MockMultipartFile("file", "update.txt", "text/plain", "updated data".getBytes());
+    FileEntity fileEntity = new FileEntity();
+    fileEntity.setId(fileId);
+    fileEntity.setStorageKey("old-key");
+
+    when(fileRepository.findByIdAndDeletedAtIsNull(fileId)).thenReturn(Optional.of(fileEntity));
+    when(permissionService.canRead(fileEntity, testUser)).thenReturn(true);
+    when(permissionService.canWrite(fileEntity, testUser)).thenReturn(true);
+    when(blobOutboxService.beginUpload(anyString())).thenReturn(42L);
+    doThrow(new IllegalStateException("S3 unavailable")).when(s3Template)
+        .upload(anyString(), anyString(), any(java.io.InputStream.class));
+
+    // When & Then: the announced upload is left for the outbox to clean up
+    assertThrows(IllegalStateException.class, () -> fileService.updateFile(fileId, file, null));
+    verify(blobOutboxService, never()).completeUpload(any());
+    verify(blobOutboxService, never()).deleteAfterCommit(anyString());
+    verify(fileRepository, never()).saveAndFlush(any());
+  }
+
+  @Test
+  void updateFile_CompressibleContent_UploadsEncodedWithContentEncoding() throws IOException {
+    setupAuthentication();
+    // Given
+    Long fileId = 1L;
+    MockMultipartFile file = new MockMultipartFile("file", "update.log", "text/plain", "updated data".getBytes());
+    FileEntity fileEntity = new FileEntity();
+    fileEntity.setId(fileId);
+    fileEntity.setStorageKey("old-key");
+    java.io.InputStream encoded = new ByteArrayInputStream(new byte[] { 0x1F, (byte) 0x8B });
+
+    when(fileRepository.findByIdAndDeletedAtIsNull(fileId)).thenReturn(Optional.of(fileEntity));
+    when(permissionService.canRead(fileEntity, testUser)).thenReturn(true);
+    when(permissionService.canWrite(fileEntity, testUser)).thenReturn(true);
+    when(storageCodecService.codecFor(file)).thenReturn(StorageCodecService.Codec.GZIP);
+    when(storageCodecService.encode(eq(StorageCodecService.Codec.GZIP), any(java.io.InputStream.class)))
+        .thenReturn(encoded);
+
+    // When
+    fileService.updateFile(fileId, file, null);
+
+    // Then: the size stays that of the content as uploaded
+    verify(s3Template).upload(eq("test-bucket"), eq(fileEntity.getStorageKey()), same(encoded),
+        argThat(metadata -> "gzip".equals(metadata.getContentEncoding())));
+    verify(s3Template, never()).upload(anyString(), anyString(), any(java.io.InputStream.class));
+    assertEquals(12L, fileEntity.getSize());
   }
 
   @Test
@@ -965,10 +1284,10 @@ class FileServiceTest {
     when(permissionService.canRead(fileEntity, testUser)).thenReturn(true);
     when(permissionService.canWrite(fileEntity, testUser)).thenReturn(true);
     when(fileHistoryRepository.findById(versionId)).thenReturn(Optional.of(historyToRestore));
-    when(fileHistoryRepository.findByFileEntityIdOrderByVersionDesc(fileId)).thenReturn(Collections.emptyList());
+    when(fileRepository.findLatestVersionById(fileId)).thenReturn(1);
 
     // When
-    fileService.restoreFileVersion(fileId, versionId);
+    fileService.restoreFileVersion(fileId, versionId, null);
 
     // Then
     verify(fileHistoryRepository, times(1)).save(any(FileHistory.class));
@@ -996,15 +1315,15 @@ class FileServiceTest {
     fileEntity.setStorageKey("v1-key");
 
     when(fileRepository.findByIdAndDeletedAtIsNull(fileId)).thenReturn(Optional.of(fileEntity));
-    when(permissionService.canRead(any(), any())).thenReturn(true);
+    when(permissionService.canRead(any(FileEntity.class), any())).thenReturn(true);
     when(permissionService.canWrite(any(), any())).thenReturn(true);
 
     // Action 1: Enable versioning
     parent.setVersioningEnabled(true);
 
     // Action 2: Update the file
-    when(fileHistoryRepository.findByFileEntityIdOrderByVersionDesc(fileId)).thenReturn(Collections.emptyList());
-    fileService.updateFile(fileId, fileV2);
+    when(fileRepository.findLatestVersionById(fileId)).thenReturn(1);
+    fileService.updateFile(fileId, fileV2, null);
 
     // Then
     ArgumentCaptor<FileHistory> historyCaptor = ArgumentCaptor.forClass(FileHistory.class);
@@ -1015,7 +1334,7 @@ class FileServiceTest {
     assertEquals("v1-key", savedHistory.getStorageKey()); // The *previous* content is saved to history
 
     ArgumentCaptor<FileEntity> fileEntityCaptor = ArgumentCaptor.forClass(FileEntity.class);
-    verify(fileRepository).save(fileEntityCaptor.capture());
+    verify(fileRepository).saveAndFlush(fileEntityCaptor.capture());
     assertNotEquals("v1-key", fileEntityCaptor.getValue().getStorageKey()); // Current version has new key
   }
 
@@ -1039,7 +1358,7 @@ class FileServiceTest {
     List<FileHistory> existingHistory = List.of(v1);
 
     when(fileRepository.findByIdAndDeletedAtIsNull(fileId)).thenReturn(Optional.of(fileEntity));
-    when(permissionService.canRead(any(), any())).thenReturn(true);
+    when(permissionService.canRead(any(FileEntity.class), any())).thenReturn(true);
     when(permissionService.canWrite(any(), any())).thenReturn(true);
     when(fileHistoryRepository.findByFileEntityIdOrderByVersionDesc(fileId)).thenReturn(existingHistory);
 
@@ -1048,13 +1367,14 @@ class FileServiceTest {
 
     // Action 2: Update the file (v3)
     MockMultipartFile fileV3 = new MockMultipartFile("file", "update.txt", "text/plain", "version 3".getBytes());
-    fileService.updateFile(fileId, fileV3);
+    fileService.updateFile(fileId, fileV3, null);
 
     // Then 2: No new history should be created
     verify(fileHistoryRepository, never()).save(any(FileHistory.class));
     ArgumentCaptor<FileEntity> fileEntityCaptor = ArgumentCaptor.forClass(FileEntity.class);
-    verify(fileRepository).save(fileEntityCaptor.capture());
-    assertEquals("v2-key", fileEntityCaptor.getValue().getStorageKey()); // S3 object is overwritten
+    verify(fileRepository).saveAndFlush(fileEntityCaptor.capture());
+    assertNotEquals("v2-key", fileEntityCaptor.getValue().getStorageKey()); // Content is replaced
+    verify(blobOutboxService).deleteAfterCommit("v2-key");
 
     // Then 3: Existing history is still accessible
     List<FileHistory> retrievedHistory = fileService.getFileVersions(fileId);
@@ -1086,17 +1406,16 @@ class FileServiceTest {
     when(fileRepository.findByIdAndDeletedAtIsNull(1L)).thenReturn(Optional.of(file));
     when(fileRepository.findByIdAndDeletedAtIsNull(11L)).thenReturn(Optional.of(nonVersionedFolder));
     when(permissionService.canWrite(any(), any())).thenReturn(true);
-    when(permissionService.canRead(any(), any())).thenReturn(true);
-    when(fileRepository.findByParentAndNameAndDeletedAtIsNull(any(), any())).thenReturn(Optional.empty());
+    when(permissionService.canRead(any(FileEntity.class), any())).thenReturn(true);
     when(fileHistoryRepository.findByFileEntityIdOrderByVersionDesc(1L)).thenReturn(List.of(v1));
-    when(fileRepository.save(any(FileEntity.class))).thenReturn(file);
+    when(fileRepository.saveAndFlush(any(FileEntity.class))).thenReturn(file);
 
     // Action 1: Move the file
-    fileService.moveFile(1L, 11L);
+    fileService.moveFile(1L, 11L, null);
 
     // Action 2: Update the file in the new, non-versioned location
     MockMultipartFile update = new MockMultipartFile("file", "update.txt", "text/plain", "updated".getBytes());
-    fileService.updateFile(1L, update);
+    fileService.updateFile(1L, update, null);
 
     // Then: History is preserved, but no new history is created
     verify(fileHistoryRepository, never()).save(any(FileHistory.class));
@@ -1128,17 +1447,16 @@ class FileServiceTest {
     when(fileRepository.findByIdAndDeletedAtIsNull(1L)).thenReturn(Optional.of(file));
     when(fileRepository.findByIdAndDeletedAtIsNull(11L)).thenReturn(Optional.of(versionedFolder));
     when(permissionService.canWrite(any(), any())).thenReturn(true);
-    when(permissionService.canRead(any(), any())).thenReturn(true);
-    when(fileRepository.findByParentAndNameAndDeletedAtIsNull(any(), any())).thenReturn(Optional.empty());
-    when(fileHistoryRepository.findByFileEntityIdOrderByVersionDesc(1L)).thenReturn(Collections.emptyList());
-    when(fileRepository.save(any(FileEntity.class))).thenReturn(file);
+    when(permissionService.canRead(any(FileEntity.class), any())).thenReturn(true);
+    when(fileRepository.findLatestVersionById(1L)).thenReturn(1);
+    when(fileRepository.saveAndFlush(any(FileEntity.class))).thenReturn(file);
 
     // Action 1: Move the file
-    fileService.moveFile(1L, 11L);
+    fileService.moveFile(1L, 11L, null);
 
     // Action 2: Update the file in the new versioned location
     MockMultipartFile update = new MockMultipartFile("file", "update.txt", "text/plain", "updated".getBytes());
-    fileService.updateFile(1L, update);
+    fileService.updateFile(1L, update, null);
 
     // Then: First version history is created
     ArgumentCaptor<FileHistory> historyCaptor = ArgumentCaptor.forClass(FileHistory.class);
@@ -1165,16 +1483,15 @@ class FileServiceTest {
     when(fileRepository.findByIdAndDeletedAtIsNull(1L)).thenReturn(Optional.of(versionedFolder));
     when(fileRepository.findByIdAndDeletedAtIsNull(2L)).thenReturn(Optional.of(destinationFolder));
     when(permissionService.canWrite(any(), any())).thenReturn(true);
-    when(fileRepository.findByParentAndNameAndDeletedAtIsNull(any(), any())).thenReturn(Optional.empty());
-    when(fileRepository.save(any(FileEntity.class))).thenReturn(versionedFolder);
+    when(fileRepository.saveAndFlush(any(FileEntity.class))).thenReturn(versionedFolder);
 
     // When
-    FileEntity result = fileService.moveFile(1L, 2L);
+    FileEntity result = fileService.moveFile(1L, 2L, null);
 
     // Then
     assertTrue(result.getVersioningEnabled());
     assertEquals(destinationFolder, result.getParent());
-    verify(fileRepository).save(versionedFolder);
+    verify(fileRepository).saveAndFlush(versionedFolder);
   }
 
   // Test Case 3.1
@@ -1191,19 +1508,19 @@ class FileServiceTest {
 
     when(fileRepository.findByIdAndDeletedAtIsNotNull(fileId)).thenReturn(Optional.of(fileToRestore));
     when(permissionService.canWrite(fileToRestore, testUser)).thenReturn(true);
-    when(fileRepository.save(any(FileEntity.class))).thenAnswer(inv -> inv.getArgument(0));
+    when(fileRepository.saveAndFlush(any(FileEntity.class))).thenAnswer(inv -> inv.getArgument(0));
     when(fileHistoryRepository.findByFileEntityIdOrderByVersionDesc(fileId)).thenReturn(List.of(v1));
     when(fileRepository.findByIdAndDeletedAtIsNull(fileId)).thenReturn(Optional.of(fileToRestore));
     when(permissionService.canRead(fileToRestore, testUser)).thenReturn(true);
 
     // When
-    FileEntity result = fileService.restoreFile(fileId);
+    FileEntity result = fileService.restoreFile(fileId, null);
     List<FileHistory> history = fileService.getFileVersions(fileId);
 
     // Then
     assertNull(result.getDeletedAt());
     assertEquals(1, history.size());
-    verify(fileRepository).save(fileToRestore);
+    verify(fileRepository).saveAndFlush(fileToRestore);
   }
 
   // Test Case 4.2
@@ -1222,12 +1539,32 @@ class FileServiceTest {
 
     // When & Then
     assertThrows(org.springframework.security.access.AccessDeniedException.class,
-        () -> fileService.restoreFileVersion(fileId, versionId));
+        () -> fileService.restoreFileVersion(fileId, versionId, null));
 
     verify(fileHistoryRepository, never()).findById(any());
     verify(fileRepository, never()).save(any());
   }
 
+  @Test
+  void restoreFileVersion_Failure_LockedByOtherUser() {
+    setupAuthentication();
+    Long fileId = 1L;
+    FileEntity fileEntity = new FileEntity();
+    fileEntity.setId(fileId);
+    fileEntity.setStorageKey("current-key");
+
+    when(fileRepository.findByIdAndDeletedAtIsNull(fileId)).thenReturn(Optional.of(fileEntity));
+    when(permissionService.canRead(fileEntity, testUser)).thenReturn(true);
+    when(permissionService.canWrite(fileEntity, testUser)).thenReturn(true);
+    when(fileLeaseRepository.findActiveHolderId(eq(fileId), any(Instant.class))).thenReturn(Optional.of(2L));
+
+    assertThrows(FileLockedException.class, () -> fileService.restoreFileVersion(fileId, 2L, null));
+
+    assertEquals("current-key", fileEntity.getStorageKey());
+    verify(fileHistoryRepository, never()).save(any());
+    verify(fileRepository, never()).save(any());
+  }
+
   // Test Case 4.3
   @Test
   void toggleVersioning_Failure_NoWritePermission() {
@@ -1244,8 +1581,194 @@ class FileServiceTest {
 
     // When & Then
     assertThrows(org.springframework.security.access.AccessDeniedException.class,
-        () -> fileService.toggleVersioning(folderId, true));
+        () -> fileService.toggleVersioning(folderId, true, null));
+
+    verify(fileRepository, never()).save(any());
+  }
+
+  private FileEntity fileInVersionedFolder() {
+    FileEntity folder = new FileEntity();
+    folder.setId(10L);
+    folder.setDirectory(true);
+    folder.setVersioningEnabled(true);
+    FileEntity file = new FileEntity();
+    file.setId(1L);
+    file.setName("draft.txt");
+    file.setParent(folder);
+    return file;
+  }
+
+  private void givenLockableFile() {
+    setupAuthentication();
+    FileEntity file = fileInVersionedFolder();
+    when(userRepository.findByUsername("testuser")).thenReturn(Optional.of(testUser));
+    when(fileRepository.findByIdAndDeletedAtIsNull(1L)).thenReturn(Optional.of(file));
+    when(permissionService.canRead(file, testUser)).thenReturn(true);
+    when(permissionService.canWrite(file, testUser)).thenReturn(true);
+  }
+
+  private User otherUser() {
+    User other = new User();
+    other.setId(2L);
+    other.setUsername("other");
+    return other;
+  }
+
+  @Test
+  void updateLockStatus_Lock_CreatesLease() {
+    givenLockableFile();
+    when(fileLeaseRepository.findForUpdate(1L)).thenReturn(Optional.empty());
+    when(fileLeaseRepository.saveAndFlush(any(FileLease.class))).thenAnswer(invocation -> invocation.getArgument(0));
+
+    FileLease lease = fileService.updateLockStatus(1L, true, "testuser", null);
+
+    assertEquals(1L, lease.getFileId());
+    assertEquals(testUser, lease.getHolder());
+    assertEquals(Duration.ofMinutes(5), Duration.between(lease.getAcquiredAt(), lease.getExpiresAt()));
+    // The file row is locked before the lease, as writes lock it before checking the lease
+    InOrder inOrder = inOrder(fileRepository, fileLeaseRepository);
+    inOrder.verify(fileRepository).lockById(1L);
+    inOrder.verify(fileLeaseRepository).findForUpdate(1L);
+  }
+
+  @Test
+  void updateLockStatus_Lock_HeldByOtherUser_Fails() {
+    givenLockableFile();
+    Instant now = Instant.now();
+    FileLease lease = new FileLease(1L, otherUser(), now, now.plusSeconds(60));
+    when(fileLeaseRepository.findForUpdate(1L)).thenReturn(Optional.of(lease));
+
+    assertThrows(FileLockedException.class, () -> fileService.updateLockStatus(1L, true, "testuser", null));
+    assertEquals(2L, lease.getHolder().getId());
+  }
+
+  @Test
+  void updateLockStatus_Lock_TakesOverExpiredLease() {
+    givenLockableFile();
+    Instant past = Instant.now().minusSeconds(600);
+    FileLease lease = new FileLease(1L, otherUser(), past, past.plusSeconds(300));
+    when(fileLeaseRepository.findForUpdate(1L)).thenReturn(Optional.of(lease));
+
+    FileLease result = fileService.updateLockStatus(1L, true, "testuser", null);
+
+    assertSame(lease, result);
+    assertEquals(testUser, lease.getHolder());
+    assertTrue(lease.getExpiresAt().isAfter(Instant.now()));
+    verify(fileLeaseRepository, never()).saveAndFlush(any());
+  }
+
+  @Test
+  void updateLockStatus_Unlock_HeldByOtherUser_Fails() {
+    givenLockableFile();
+    when(fileLeaseRepository.release(1L, testUser)).thenReturn(0);
+    when(fileLeaseRepository.findActiveHolderId(eq(1L), any(Instant.class))).thenReturn(Optional.of(2L));
+
+    assertThrows(org.springframework.security.access.AccessDeniedException.class,
+        () -> fileService.updateLockStatus(1L, false, "testuser", null));
+  }
+
+  @Test
+  void renewLock_ExtendsOwnLease() {
+    when(userRepository.findByUsername("testuser")).thenReturn(Optional.of(testUser));
+    Instant now = Instant.now();
+    FileLease lease = new FileLease(1L, testUser, now.minusSeconds(200), now.plusSeconds(100));
+    when(fileLeaseRepository.findForUpdate(1L)).thenReturn(Optional.of(lease));
+
+    fileService.renewLock(1L, "testuser");
+
+    assertTrue(lease.getExpiresAt().isAfter(now.plusSeconds(290)));
+  }
 
+  @Test
+  void renewLock_Failure_LeaseExpired() {
+    when(userRepository.findByUsername("testuser")).thenReturn(Optional.of(testUser));
+    Instant past = Instant.now().minusSeconds(600);
+    when(fileLeaseRepository.findForUpdate(1L))
+        .thenReturn(Optional.of(new FileLease(1L, testUser, past, past.plusSeconds(300))));
+
+    assertThrows(LockNotHeldException.class, () -> fileService.renewLock(1L, "testuser"));
+  }
+
+  @Test
+  void renameFile_Failure_LockedByOtherUser() {
+    setupAuthentication();
+    FileEntity fileEntity = new FileEntity();
+    fileEntity.setId(1L);
+    fileEntity.setName("original-document.txt");
+
+    when(fileRepository.findByIdAndDeletedAtIsNull(1L)).thenReturn(Optional.of(fileEntity));
+    when(permissionService.canWrite(fileEntity, testUser)).thenReturn(true);
+    when(fileLeaseRepository.findActiveHolderId(eq(1L), any(Instant.class))).thenReturn(Optional.of(2L));
+
+    assertThrows(FileLockedException.class, () -> fileService.renameFile(1L, "renamed-document.txt", null));
+    verify(fileRepository, never()).saveAndFlush(any());
+  }
+
+  @Test
+  void changePermissions_Failure_StaleVersion() {
+    setupAuthentication();
+    FileEntity fileEntity = new FileEntity();
+    fileEntity.setId(1L);
+    fileEntity.setOwner(testUser);
+    fileEntity.setPermissions(644);
+    fileEntity.setRowVersion(4L);
+
+    when(fileRepository.findByIdAndDeletedAtIsNull(1L)).thenReturn(Optional.of(fileEntity));
+
+    assertThrows(FileModifiedException.class, () -> fileService.changePermissions(1L, "600", 3L));
+    assertEquals(644, fileEntity.getPermissions());
     verify(fileRepository, never()).save(any());
   }
+
+  @Test
+  void changePermissions_Failure_LockedByOtherUser() {
+    setupAuthentication();
+    FileEntity fileEntity = new FileEntity();
+    fileEntity.setId(1L);
+    fileEntity.setOwner(testUser);
+    fileEntity.setPermissions(644);
+
+    when(fileRepository.findByIdAndDeletedAtIsNull(1L)).thenReturn(Optional.of(fileEntity));
+    when(fileLeaseRepository.findActiveHolderId(eq(1L), any(Instant.class))).thenReturn(Optional.of(2L));
+
+    assertThrows(FileLockedException.class, () -> fileService.changePermissions(1L, "600", null));
+    assertEquals(644, fileEntity.getPermissions());
+    verify(fileRepository, never()).save(any());
+  }
+
+  @Test
+  void changeOwner_RecursiveFolder_ChangesFolderAndQueuesJobForContents() {
+    setupAuthentication();
+    Group admins = new Group();
+    admins.setId(2L);
+    admins.setName("admins");
+    testUser.setGroups(Set.of(admins));
+    User newOwner = otherUser();
+
+    FileEntity folder = new FileEntity();
+    folder.setId(5L);
+    folder.setDirectory(true);
+    folder.setOwner(testUser);
+    folder.setGroup(testGroup);
+    FolderStats stats = new FolderStats(5L);
+    ReflectionTestUtils.setField(stats, "files", 40L);
+    ReflectionTestUtils.setField(stats, "folders", 2L);
+    BackgroundJob job = new BackgroundJob(BackgroundJob.Type.CHANGE_OWNER, 1L, 5L, "{}", 42L, Instant.now());
+
+    when(fileRepository.findByIdAndDeletedAtIsNull(5L)).thenReturn(Optional.of(folder));
+    when(userRepository.findById(2L)).thenReturn(Optional.of(newOwner));
+    when(groupRepository.findById(2L)).thenReturn(Optional.of(admins));
+    when(fileRepository.save(folder)).thenReturn(folder);
+    when(folderStatsService.get(5L)).thenReturn(stats);
+    when(backgroundJobService.enqueue(BackgroundJob.Type.CHANGE_OWNER, testUser, 5L,
+        new ChangeOwnerJobHandler.Parameters(2L, 2L), 42L)).thenReturn(job);
+
+    FileService.OwnerChange change = fileService.changeOwner(5L, 2L, 2L, true, null);
+
+    assertSame(folder, change.file());
+    assertSame(job, change.job());
+    assertEquals(newOwner, folder.getOwner());
+    // The contents are left to the job instead of being loaded in the request
+    verify(fileRepository, never()).findLiveChildrenAfter(any(), anyLong(), any());
+  }
 }
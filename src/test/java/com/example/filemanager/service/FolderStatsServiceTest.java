@@ -0,0 +1,144 @@
+package com.example.filemanager.service;
+
+import com.example.filemanager.domain.FileEntity;
+import com.example.filemanager.domain.FolderStats;
+import com.example.filemanager.domain.Group;
+import com.example.filemanager.domain.User;
+import java.util.List;
+import java.util.Set;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.context.annotation.Import;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the folder totals against the database: every change below a folder
+ * must be reflected in the totals of all folders above it.
+ */
+@DataJpaTest
+@Import(FolderStatsService.class)
+class FolderStatsServiceTest {
+
+    @Autowired
+    private FolderStatsService folderStatsService;
+
+    @Autowired
+    private TestEntityManager entityManager;
+
+    private User owner;
+    private Group group;
+    private FileEntity root;
+    private FileEntity docs;
+    private FileEntity reports;
+
+    @BeforeEach
+    void setUp() {
+        group = new Group();
+        group.setName("stats-group");
+        entityManager.persist(group);
+
+        owner = new User();
+        owner.setUsername("stats-owner");
+        owner.setPassword("password");
+        owner.setGroups(Set.of(group));
+        entityManager.persist(owner);
+
+        // root/docs/reports
+        root = folder("root", null);
+        docs = folder("docs", root);
+        reports = folder("reports", docs);
+    }
+
+    private FileEntity item(String name, FileEntity parent, boolean directory, Long size) {
+        FileEntity item = new FileEntity();
+        item.setName(name);
+        item.setDirectory(directory);
+        item.setParent(parent);
+        item.setSize(size);
+        item.setOwner(owner);
+        item.setGroup(group);
+        item.setPermissions(755);
+        entityManager.persist(item);
+        folderStatsService.added(item);
+        return item;
+    }
+
+    private FileEntity folder(String name, FileEntity parent) {
+        return item(name, parent, true, null);
+    }
+
+    private FileEntity file(String name, FileEntity parent, long size) {
+        return item(name, parent, false, size);
+    }
+
+    private void assertStats(FileEntity folder, long bytes, long files, long folders) {
+        entityManager.flush();
+        entityManager.clear();
+        FolderStats stats = folderStatsService.get(folder.getId());
+        assertEquals(List.of(bytes, files, folders), List.of(stats.getBytes(), stats.getFiles(), stats.getFolders()),
+                "totals of " + folder.getName());
+    }
+
+    @Test
+    void added_CountsFileInAllAncestors() {
+        file("q1.pdf", reports, 100);
+        file("notes.txt", docs, 20);
+
+        assertStats(reports, 100, 1, 0);
+        assertStats(docs, 120, 2, 1);
+        assertStats(root, 120, 2, 2);
+    }
+
+    @Test
+    void resized_AppliesDifferenceToAllAncestors() {
+        FileEntity file = file("q1.pdf", reports, 100);
+
+        folderStatsService.resized(file, 100L, 40L);
+
+        assertStats(reports, 40, 1, 0);
+        assertStats(root, 40, 1, 2);
+    }
+
+    @Test
+    void moved_MovesFolderContentBetweenBranches() {
+        // Given: root/docs/reports/q1.pdf and root/archive
+        file("q1.pdf", reports, 100);
+        FileEntity archive = folder("archive", root);
+
+        // When: reports moves to root/archive
+        FileEntity oldParent = reports.getParent();
+        reports.setParent(archive);
+        folderStatsService.moved(reports, oldParent);
+
+        // Then: root, above both locations, is unchanged
+        assertStats(docs, 0, 0, 0);
+        assertStats(archive, 100, 1, 1);
+        assertStats(root, 100, 1, 3);
+    }
+
+    @Test
+    void removedAndAdded_TrashAndRestoreFolderWithContent() {
+        file("q1.pdf", reports, 100);
+
+        folderStatsService.removed(reports);
+        assertStats(docs, 0, 0, 0);
+        assertStats(root, 0, 0, 1);
+        // The folder keeps its own totals while it is in the trash
+        assertStats(reports, 100, 1, 0);
+
+        folderStatsService.added(entityManager.find(FileEntity.class, reports.getId()));
+        assertStats(docs, 100, 1, 1);
+        assertStats(root, 100, 1, 2);
+    }
+
+    @Test
+    void ancestorIds_CycleInParentChain_Throws() {
+        root.setParent(reports);
+
+        assertThrows(IllegalStateException.class, () -> folderStatsService.ancestorIds(reports));
+    }
+}
@@ -1,12 +1,15 @@
 package com.example.filemanager.service;
 
+import com.example.filemanager.domain.FileEntity;
 import com.example.filemanager.domain.Group;
 import com.example.filemanager.exception.GroupNotFoundException;
+import com.example.filemanager.repository.FileRepository;
 import com.example.filemanager.repository.GroupRepository;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import java.util.Optional;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InOrder;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
@@ -21,6 +24,12 @@ class GroupServiceTest {
     @Mock
     private GroupRepository groupRepository;
 
+    @Mock
+    private FileRepository fileRepository;
+
+    @Mock
+    private CacheInvalidationBus cacheInvalidationBus;
+
     @InjectMocks
     private GroupService groupService;
 
@@ -67,6 +76,22 @@ class GroupServiceTest {
         verify(groupRepository, times(1)).deleteById(1L);
     }
 
+    @Test
+    void deleteGroup_shouldTransferFilesToAdminsGroup() {
+        Group adminsGroup = new Group();
+        adminsGroup.setId(99L);
+        adminsGroup.setName("admins");
+        when(groupRepository.findById(1L)).thenReturn(Optional.of(group));
+        when(groupRepository.findByName("admins")).thenReturn(Optional.of(adminsGroup));
+
+        groupService.deleteGroup(1L);
+
+        InOrder inOrder = inOrder(fileRepository, groupRepository);
+        inOrder.verify(fileRepository).transferGroup(group, adminsGroup);
+        inOrder.verify(groupRepository).deleteById(1L);
+        verify(cacheInvalidationBus).allChanged(FileEntity.class);
+    }
+
     @Test
     void findAllGroups() {
         when(groupRepository.findAll()).thenReturn(java.util.List.of(group));
@@ -0,0 +1,94 @@
+package com.example.filemanager.service;
+
+import com.example.filemanager.domain.JobLock;
+import com.example.filemanager.repository.JobLockRepository;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the job lock against the database. Locks are taken in their own
+ * transactions, so nothing here runs in a test transaction.
+ */
+@DataJpaTest
+@Import(JobLockService.class)
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class JobLockServiceTest {
+
+    private static final String JOB = "test-job";
+
+    @Autowired
+    private JobLockService jobLockService;
+
+    @Autowired
+    private JobLockRepository jobLockRepository;
+
+    @AfterEach
+    void tearDown() {
+        jobLockRepository.deleteAll();
+    }
+
+    @Test
+    void runExclusively_SecondCallerWhileRunning_IsSkipped() {
+        AtomicInteger runs = new AtomicInteger();
+
+        boolean ran = jobLockService.runExclusively(JOB, Duration.ofMinutes(5), () -> {
+            runs.incrementAndGet();
+            // Another node fires the same trigger while the job is running
+            assertFalse(jobLockService.runExclusively(JOB, Duration.ofMinutes(5), runs::incrementAndGet));
+        });
+
+        assertTrue(ran);
+        assertEquals(1, runs.get());
+        JobLock lock = jobLockRepository.findById(JOB).orElseThrow();
+        assertNotNull(lock.getLockedBy());
+    }
+
+    @Test
+    void runExclusively_FinishedRun_HoldsLockForMinimumTime() {
+        AtomicInteger runs = new AtomicInteger();
+
+        assertTrue(jobLockService.runExclusively(JOB, Duration.ofMinutes(5), runs::incrementAndGet));
+        // A node whose clock lags a few seconds must not run the same trigger again
+        assertFalse(jobLockService.runExclusively(JOB, Duration.ofMinutes(5), runs::incrementAndGet));
+        assertTrue(jobLockRepository.findById(JOB).orElseThrow().getLockedUntil().isAfter(Instant.now()));
+
+        ReflectionTestUtils.setField(jobLockService, "holdAtLeast", Duration.ZERO);
+        assertTrue(jobLockService.runExclusively("other-job", Duration.ofMinutes(5), runs::incrementAndGet));
+        assertTrue(jobLockService.runExclusively("other-job", Duration.ofMinutes(5), runs::incrementAndGet));
+        assertEquals(3, runs.get());
+    }
+
+    @Test
+    void runExclusively_FailingJob_ReleasesLock() {
+        ReflectionTestUtils.setField(jobLockService, "holdAtLeast", Duration.ZERO);
+
+        assertThrows(IllegalStateException.class, () -> jobLockService.runExclusively(JOB, Duration.ofMinutes(5),
+                () -> {
+                    throw new IllegalStateException("S3 unavailable");
+                }));
+
+        assertTrue(jobLockService.runExclusively(JOB, Duration.ofMinutes(5), () -> {
+        }));
+    }
+
+    @Test
+    void runExclusively_LockOfCrashedNode_ExpiresAfterLockAtMostFor() {
+        Instant past = Instant.now().minusSeconds(120);
+        jobLockRepository.save(new JobLock(JOB, "crashed-node", past, past.plusSeconds(60)));
+
+        assertTrue(jobLockService.runExclusively(JOB, Duration.ofMinutes(5), () -> {
+        }));
+        assertNotEquals("crashed-node", jobLockRepository.findById(JOB).orElseThrow().getLockedBy());
+    }
+}
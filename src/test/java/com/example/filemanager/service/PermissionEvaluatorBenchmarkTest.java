@@ -0,0 +1,145 @@
+package com.example.filemanager.service;
+
+import com.example.filemanager.domain.FileListItem;
+import com.example.filemanager.domain.Group;
+import com.example.filemanager.domain.Permission;
+import com.example.filemanager.domain.User;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Compares filtering a 100,000-row file list with a prepared
+ * {@link PermissionEvaluator} against the per-file checks it replaced. Only
+ * runs on request, e.g.
+ * {@code mvn test -Dtest=PermissionEvaluatorBenchmarkTest -Dbenchmark.permissions=true}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@EnabledIfSystemProperty(named = "benchmark.permissions", matches = "true")
+public class PermissionEvaluatorBenchmarkTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(PermissionEvaluatorBenchmarkTest.class);
+
+    private static final int FILES = 100_000;
+    private static final int[] MODES = { 600, 640, 644, 700, 750, 755, 770, 775 };
+
+    private final PermissionService permissionService = new PermissionService();
+    private List<FileListItem> files;
+    private User user;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        user = new User();
+        user.setId(7L);
+        for (long id = 1; id <= 20; id++) {
+            Group group = new Group();
+            group.setId(id * 10);
+            user.getGroups().add(group);
+        }
+        files = new ArrayList<>(FILES);
+        for (long id = 1; id <= FILES; id++) {
+            files.add(new FileListItem(id, "file-" + id, false, MODES[random.nextInt(MODES.length)], null, null,
+                    null, null, false, null, (long) random.nextInt(1000), null, (long) random.nextInt(300), null,
+                    null, null, null, null, 0L));
+        }
+    }
+
+    /** The previous implementation: per-file digit division, group stream and debug calls. */
+    @Benchmark
+    public int perFileChecks() {
+        int readable = 0;
+        for (FileListItem file : files) {
+            if (legacyIsAllowed(file.getName(), file.getPermissions(), file.getOwnerId(), file.getGroupId(), user,
+                    Permission.READ)) {
+                readable++;
+            }
+        }
+        return readable;
+    }
+
+    @Benchmark
+    public int preparedEvaluator() {
+        PermissionEvaluator evaluator = permissionService.evaluatorFor(user);
+        int readable = 0;
+        for (FileListItem file : files) {
+            if (evaluator.canRead(file)) {
+                readable++;
+            }
+        }
+        return readable;
+    }
+
+    @Test
+    void preparedEvaluatorIsFaster() throws RunnerException {
+        setUp();
+        assertEquals(perFileChecks(), preparedEvaluator(), "Both implementations must agree");
+
+        Collection<RunResult> results = new Runner(new OptionsBuilder()
+                .include(PermissionEvaluatorBenchmarkTest.class.getName() + "\\.")
+                .build()).run();
+        Map<String, Double> scores = new HashMap<>();
+        for (RunResult result : results) {
+            String method = result.getParams().getBenchmark();
+            scores.put(method.substring(method.lastIndexOf('.') + 1), result.getPrimaryResult().getScore());
+        }
+        logger.info("Filtering {} files: per-file checks {} ms, prepared evaluator {} ms", FILES,
+                scores.get("perFileChecks"), scores.get("preparedEvaluator"));
+        assertTrue(scores.get("preparedEvaluator") < scores.get("perFileChecks"));
+    }
+
+    private static boolean legacyIsAllowed(String name, int permissions, Long ownerId, Long groupId, User user,
+            Permission requiredPermission) {
+        int ownerPerm = permissions / 100;
+        int groupPerm = (permissions / 10) % 10;
+        int otherPerm = permissions % 10;
+
+        if (ownerId.equals(user.getId())) {
+            boolean allowed = (ownerPerm & requiredPermission.value) == requiredPermission.value;
+            logger.debug("Owner check for file '{}' (permissions: {}): user={}, ownerPerm={}, required={}, allowed={}",
+                    name, permissions, user.getUsername(), ownerPerm, requiredPermission, allowed);
+            return allowed;
+        }
+        boolean inGroup = user.getGroups().stream()
+                .anyMatch(g -> g.getId().equals(groupId));
+        if (inGroup) {
+            boolean allowed = (groupPerm & requiredPermission.value) == requiredPermission.value;
+            logger.debug("Group check for file '{}' (permissions: {}): user={}, groupPerm={}, required={}, allowed={}",
+                    name, permissions, user.getUsername(), groupPerm, requiredPermission, allowed);
+            return allowed;
+        }
+        boolean allowed = (otherPerm & requiredPermission.value) == requiredPermission.value;
+        logger.debug("Others check for file '{}' (permissions: {}): user={}, otherPerm={}, required={}, allowed={}",
+                name, permissions, user.getUsername(), otherPerm, requiredPermission, allowed);
+        return allowed;
+    }
+}
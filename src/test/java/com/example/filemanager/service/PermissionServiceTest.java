@@ -1,11 +1,13 @@
 package com.example.filemanager.service;
 
 import com.example.filemanager.domain.FileEntity;
+import com.example.filemanager.domain.FileListItem;
 import com.example.filemanager.domain.Group;
 import com.example.filemanager.domain.Permission;
 import com.example.filemanager.domain.User;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
@@ -69,4 +71,48 @@ class PermissionServiceTest {
         assertFalse(permissionService.isAllowed(fileEntity, owner, Permission.WRITE));
         assertFalse(permissionService.isAllowed(fileEntity, owner, Permission.EXECUTE));
     }
+
+    @Test
+    void listItemShouldUseSameRulesAsEntity() {
+        FileListItem item = new FileListItem(1L, "file.txt", false, 750, null, null, null, null, false, null,
+                owner.getId(), null, group.getId(), null, null, null, null, null, 0L);
+        assertTrue(permissionService.canRead(item, owner));
+        assertTrue(permissionService.canRead(item, groupMember));
+        assertFalse(permissionService.canRead(item, otherUser));
+    }
+
+    @Test
+    void evaluatorShouldFindMembershipAmongManyGroups() {
+        for (long id = 100; id > 90; id--) {
+            Group other = new Group();
+            other.setId(id);
+            groupMember.getGroups().add(other);
+        }
+        fileEntity.setPermissions(740);
+        PermissionEvaluator evaluator = permissionService.evaluatorFor(groupMember);
+
+        assertTrue(evaluator.canRead(fileEntity));
+        assertFalse(evaluator.canWrite(fileEntity));
+        assertFalse(permissionService.evaluatorFor(otherUser).canRead(fileEntity));
+    }
+
+    @Test
+    void evaluatorShouldMatchDigitRulesForEveryPermissionValue() {
+        PermissionEvaluator[] evaluators = {
+                permissionService.evaluatorFor(owner),
+                permissionService.evaluatorFor(groupMember),
+                permissionService.evaluatorFor(otherUser) };
+        int[] divisors = { 100, 10, 1 };
+
+        for (int permissions = 0; permissions < 1000; permissions++) {
+            for (int i = 0; i < evaluators.length; i++) {
+                int digit = permissions / divisors[i] % 10;
+                for (Permission required : Permission.values()) {
+                    assertEquals((digit & required.value) == required.value,
+                            evaluators[i].isAllowed(permissions, owner.getId(), group.getId(), required),
+                            "permissions " + permissions + ", user " + i + ", " + required);
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,314 @@
+package com.example.filemanager.service;
+
+import com.example.filemanager.domain.FileEntity;
+import com.example.filemanager.domain.FileRendition;
+import com.example.filemanager.domain.FileRendition.Kind;
+import com.example.filemanager.domain.FileRendition.Status;
+import com.example.filemanager.domain.Group;
+import com.example.filemanager.domain.User;
+import com.example.filemanager.repository.FileRenditionRepository;
+import com.example.filemanager.repository.FileRepository;
+import com.example.filemanager.repository.GroupRepository;
+import com.example.filemanager.repository.JobLockRepository;
+import com.example.filemanager.repository.UserRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.zip.GZIPOutputStream;
+import javax.imageio.ImageIO;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * Runs the rendition pipeline against the database with a mocked S3 client.
+ * Renditions are generated after commit and outside of transactions, so
+ * nothing here runs in a test transaction.
+ */
+// The scheduled sweep must not run behind the tests' backs
+@DataJpaTest(properties = { "S3_BUCKET_NAME=test-bucket", "renditions.sweep-interval=PT1H" })
+@Import({ RenditionService.class, JobLockService.class, RenditionServiceTest.Config.class })
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+@SuppressWarnings({ "null", "unchecked" })
+class RenditionServiceTest {
+
+    @TestConfiguration
+    static class Config {
+        @Bean
+        S3Client s3Client() {
+            return mock(S3Client.class);
+        }
+
+        @Bean
+        MeterRegistry meterRegistry() {
+            return new SimpleMeterRegistry();
+        }
+    }
+
+    @Autowired
+    private RenditionService renditionService;
+
+    @Autowired
+    private JobLockService jobLockService;
+
+    @Autowired
+    private FileRenditionRepository fileRenditionRepository;
+
+    @Autowired
+    private JobLockRepository jobLockRepository;
+
+    @Autowired
+    private FileRepository fileRepository;
+
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private GroupRepository groupRepository;
+
+    @Autowired
+    private S3Client s3Client;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private TransactionTemplate transactionTemplate;
+
+    @BeforeEach
+    void setUp() {
+        transactionTemplate = new TransactionTemplate(transactionManager);
+        ReflectionTestUtils.setField(renditionService, "retryDelay", Duration.ZERO);
+        ReflectionTestUtils.setField(renditionService, "previewBytes", 4096);
+        ReflectionTestUtils.setField(jobLockService, "holdAtLeast", Duration.ZERO);
+    }
+
+    @AfterEach
+    void tearDown() {
+        reset(s3Client);
+        fileRenditionRepository.deleteAll();
+        jobLockRepository.deleteAll();
+        fileRepository.deleteAll();
+        userRepository.deleteAll();
+        groupRepository.deleteAll();
+    }
+
+    private static FileEntity file(String name, String storageKey, long size) {
+        FileEntity file = new FileEntity();
+        file.setName(name);
+        file.setStorageKey(storageKey);
+        file.setSize(size);
+        return file;
+    }
+
+    private static byte[] png(int width, int height) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB), "png", out);
+        return out.toByteArray();
+    }
+
+    private static ResponseInputStream<GetObjectResponse> object(byte[] content, String contentRange) {
+        return new ResponseInputStream<>(
+                GetObjectResponse.builder().contentLength((long) content.length).contentRange(contentRange).build(),
+                AbortableInputStream.create(new ByteArrayInputStream(content)));
+    }
+
+    private Long requestAndCommit(FileEntity file) {
+        transactionTemplate.executeWithoutResult(status -> renditionService.request(file));
+        return fileRenditionRepository.findByStorageKey(file.getStorageKey()).orElseThrow().getId();
+    }
+
+    private FileRendition awaitStatus(Long id, Status expected) {
+        long deadline = System.currentTimeMillis() + 5000;
+        FileRendition rendition;
+        while ((rendition = fileRenditionRepository.findById(id).orElseThrow()).getStatus() != expected) {
+            assertTrue(System.currentTimeMillis() < deadline, "Rendition is " + rendition.getStatus());
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return rendition;
+    }
+
+    @Test
+    void request_Image_StoresThumbnailAfterCommit() throws IOException {
+        when(s3Client.getObject(any(Consumer.class))).thenReturn(object(png(1000, 500), null));
+
+        Long id = requestAndCommit(file("photo.PNG", "k1/photo.PNG", 1000));
+
+        ArgumentCaptor<Consumer<PutObjectRequest.Builder>> request = ArgumentCaptor.forClass(Consumer.class);
+        ArgumentCaptor<RequestBody> body = ArgumentCaptor.forClass(RequestBody.class);
+        verify(s3Client, timeout(5000)).putObject(request.capture(), body.capture());
+        PutObjectRequest.Builder builder = PutObjectRequest.builder();
+        request.getValue().accept(builder);
+        assertEquals("renditions/k1/photo.PNG/thumbnail.jpg", builder.build().key());
+        assertEquals("image/jpeg", builder.build().contentType());
+        BufferedImage thumbnail = ImageIO.read(body.getValue().contentStreamProvider().newStream());
+        assertEquals(256, thumbnail.getWidth());
+        assertEquals(128, thumbnail.getHeight());
+
+        FileRendition rendition = awaitStatus(id, Status.READY);
+        assertEquals(Kind.THUMBNAIL, rendition.getKind());
+        assertTrue(rendition.getSize() > 0);
+    }
+
+    @Test
+    void request_RolledBackOrUnsupported_RequestsNothing() {
+        transactionTemplate.executeWithoutResult(status -> {
+            renditionService.request(file("photo.jpg", "k2/photo.jpg", 1000));
+            status.setRollbackOnly();
+        });
+        transactionTemplate.executeWithoutResult(status -> {
+            renditionService.request(file("archive.zip", "k3/archive.zip", 1000));
+            renditionService.request(file("empty.txt", "k4/empty.txt", 0));
+        });
+
+        assertEquals(0, fileRenditionRepository.count());
+        verifyNoInteractions(s3Client);
+    }
+
+    @Test
+    void request_TextFile_StoresBeginningAsPreview() {
+        ReflectionTestUtils.setField(renditionService, "previewBytes", 5);
+        // "abcdé" is 6 bytes in UTF-8; the range ends inside "é"
+        byte[] head = "abcdé".getBytes(StandardCharsets.UTF_8);
+        when(s3Client.getObject(any(Consumer.class))).thenReturn(object(head, "bytes 0-4/100"));
+
+        Long id = requestAndCommit(file("notes.md", "k5/notes.md", 100));
+
+        FileRendition rendition = awaitStatus(id, Status.READY);
+        ArgumentCaptor<Consumer<GetObjectRequest.Builder>> request = ArgumentCaptor.forClass(Consumer.class);
+        verify(s3Client).getObject(request.capture());
+        GetObjectRequest.Builder builder = GetObjectRequest.builder();
+        request.getValue().accept(builder);
+        assertEquals("bytes=0-4", builder.build().range());
+        assertEquals(Kind.PREVIEW, rendition.getKind());
+        assertEquals("text/plain;charset=UTF-8", rendition.getContentType());
+    }
+
+    @Test
+    void request_CompressedTextFile_DecodesBeginningOfWholeObject() throws IOException {
+        ReflectionTestUtils.setField(renditionService, "previewBytes", 5);
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(encoded)) {
+            gzip.write("hello, world".getBytes(StandardCharsets.UTF_8));
+        }
+        // The range is answered with compressed bytes, so the object is read again from its start
+        when(s3Client.getObject(any(Consumer.class))).thenAnswer(invocation -> new ResponseInputStream<>(
+                GetObjectResponse.builder().contentEncoding("gzip").build(),
+                AbortableInputStream.create(new ByteArrayInputStream(encoded.toByteArray()))));
+
+        Long id = requestAndCommit(file("server.log", "k8/server.log", 12));
+
+        awaitStatus(id, Status.READY);
+        ArgumentCaptor<RequestBody> body = ArgumentCaptor.forClass(RequestBody.class);
+        verify(s3Client).putObject(any(Consumer.class), body.capture());
+        assertEquals("hello", new String(body.getValue().contentStreamProvider().newStream().readAllBytes(),
+                StandardCharsets.UTF_8));
+        verify(s3Client, times(2)).getObject(any(Consumer.class));
+    }
+
+    @Test
+    void renderPreview_DropsOnlyCharacterCutOffByTruncation() {
+        byte[] text = "abé".getBytes(StandardCharsets.UTF_8);
+
+        assertEquals("ab", new String(RenditionService.renderPreview(text, 3, true), StandardCharsets.UTF_8));
+        assertEquals("abé", new String(RenditionService.renderPreview(text, 4, false), StandardCharsets.UTF_8));
+        // Not UTF-8 at all
+        assertEquals("a�", new String(RenditionService.renderPreview(new byte[] { 'a', (byte) 0xE9 }, 2, false),
+                StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void generate_UnreadableImage_FailsWithoutRetry() {
+        byte[] content = "not an image".getBytes(StandardCharsets.UTF_8);
+        when(s3Client.getObject(any(Consumer.class))).thenReturn(object(content, null));
+
+        Long id = requestAndCommit(file("broken.png", "k6/broken.png", content.length));
+
+        FileRendition rendition = awaitStatus(id, Status.FAILED);
+        assertEquals(1, rendition.getAttempts());
+        assertEquals("Unsupported image format", rendition.getError());
+        verify(s3Client, never()).putObject(any(Consumer.class), any(RequestBody.class));
+    }
+
+    @Test
+    void sweep_RetriesAfterS3Failure() throws IOException {
+        byte[] image = png(10, 10);
+        when(s3Client.getObject(any(Consumer.class)))
+                .thenThrow(SdkClientException.create("S3 unavailable"))
+                .thenReturn(object(image, null));
+
+        Long id = requestAndCommit(file("small.gif", "k7/small.gif", image.length));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (fileRenditionRepository.findById(id).orElseThrow().getAttempts() == 0) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.yield();
+        }
+        assertEquals(Status.PENDING, fileRenditionRepository.findById(id).orElseThrow().getStatus());
+
+        renditionService.sweep();
+
+        assertEquals(Status.READY, fileRenditionRepository.findById(id).orElseThrow().getStatus());
+    }
+
+    @Test
+    void pruneRenditions_DeletesOnlyRenditionsOfUnreferencedContent() {
+        transactionTemplate.executeWithoutResult(status -> {
+            Group group = new Group();
+            group.setName("rendition-group");
+            groupRepository.save(group);
+            User owner = new User();
+            owner.setUsername("rendition-owner");
+            owner.setPassword("password");
+            owner.setGroups(Set.of(group));
+            userRepository.save(owner);
+            FileEntity file = file("kept.png", "kept/kept.png", 10);
+            file.setOwner(owner);
+            file.setGroup(group);
+            file.setPermissions(644);
+            fileRepository.save(file);
+            fileRenditionRepository.save(new FileRendition("kept/kept.png", Kind.THUMBNAIL, Instant.now()));
+            fileRenditionRepository.save(new FileRendition("gone/gone.png", Kind.THUMBNAIL, Instant.now()));
+        });
+
+        renditionService.pruneRenditions();
+
+        assertEquals(List.of("kept/kept.png"),
+                fileRenditionRepository.findAll().stream().map(FileRendition::getStorageKey).toList());
+        verify(s3Client, times(1)).deleteObject(any(Consumer.class));
+    }
+}
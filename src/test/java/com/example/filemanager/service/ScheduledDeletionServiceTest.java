@@ -1,34 +1,69 @@
 package com.example.filemanager.service;
 
 import com.example.filemanager.domain.FileEntity;
+import com.example.filemanager.domain.FileHistory;
+import com.example.filemanager.repository.FileHistoryRepository;
 import com.example.filemanager.repository.FileRepository;
-import io.awspring.cloud.s3.S3Template;
+import com.example.filemanager.repository.FolderStatsRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.stream.LongStream;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.ArgumentCaptor;
-import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.Pageable;
 import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsResponse;
+import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
+import software.amazon.awssdk.services.s3.model.S3Error;
 
+import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
 
 @ExtendWith(MockitoExtension.class)
-@SuppressWarnings("null")
+@SuppressWarnings({ "null", "unchecked" })
 class ScheduledDeletionServiceTest {
 
     @Mock
     private FileRepository fileRepository;
 
     @Mock
-    private S3Template s3Template;
+    private FileHistoryRepository fileHistoryRepository;
 
-    @InjectMocks
+    @Mock
+    private FolderStatsRepository folderStatsRepository;
+
+    @Mock
+    private StorageQuotaService storageQuotaService;
+
+    @Mock
+    private S3Client s3Client;
+
+    @Mock
+    private PlatformTransactionManager transactionManager;
+
+    @Mock
+    private CacheInvalidationBus cacheInvalidationBus;
+
+    @Mock
+    private JobLockService jobLockService;
+
+    private SimpleMeterRegistry meterRegistry;
     private ScheduledDeletionService scheduledDeletionService;
 
     private final String BUCKET_NAME = "test-bucket";
@@ -36,19 +71,49 @@ class ScheduledDeletionServiceTest {
 
     @BeforeEach
     void setUp() {
-        ReflectionTestUtils.setField(scheduledDeletionService, "bucketName", BUCKET_NAME);
+        meterRegistry = new SimpleMeterRegistry();
+        scheduledDeletionService = new ScheduledDeletionService(fileRepository, fileHistoryRepository,
+                folderStatsRepository, storageQuotaService, s3Client,
+                transactionManager,
+                meterRegistry, cacheInvalidationBus, jobLockService, BUCKET_NAME);
         ReflectionTestUtils.setField(scheduledDeletionService, "retentionPeriodDays", RETENTION_DAYS);
+        // This node holds every lock unless a test says otherwise
+        lenient().when(jobLockService.runExclusively(anyString(), any(Duration.class), any(Runnable.class)))
+                .thenAnswer(invocation -> {
+                    invocation.<Runnable>getArgument(2).run();
+                    return true;
+                });
+    }
+
+    private FileEntity expiredFile(long id, String storageKey) {
+        FileEntity file = new FileEntity();
+        file.setId(id);
+        file.setName("file-" + id);
+        file.setDirectory(false);
+        file.setStorageKey(storageKey);
+        file.setDeletedAt(LocalDateTime.now().minusDays(RETENTION_DAYS + 1));
+        return file;
+    }
+
+    private List<String> requestedKeys(DeleteObjectsRequest request) {
+        return request.delete().objects().stream().map(ObjectIdentifier::key).sorted().toList();
+    }
+
+    /** Captures the DeleteObjects requests built by the service through the consumer overload. */
+    private List<DeleteObjectsRequest> capturedDeleteRequests() {
+        ArgumentCaptor<Consumer<DeleteObjectsRequest.Builder>> captor = ArgumentCaptor.forClass(Consumer.class);
+        verify(s3Client, atLeastOnce()).deleteObjects(captor.capture());
+        return captor.getAllValues().stream().map(consumer -> {
+            DeleteObjectsRequest.Builder builder = DeleteObjectsRequest.builder();
+            consumer.accept(builder);
+            return builder.build();
+        }).toList();
     }
 
     @Test
     void performScheduledDeletion_DeletesOldFiles() {
         // Given
-        FileEntity fileToDelete = new FileEntity();
-        fileToDelete.setId(1L);
-        fileToDelete.setName("old_file.txt");
-        fileToDelete.setDirectory(false);
-        fileToDelete.setStorageKey("s3-key-1");
-        fileToDelete.setDeletedAt(LocalDateTime.now().minusDays(RETENTION_DAYS + 1));
+        FileEntity fileToDelete = expiredFile(1L, "s3-key-1");
 
         FileEntity folderToDelete = new FileEntity();
         folderToDelete.setId(2L);
@@ -56,56 +121,72 @@ class ScheduledDeletionServiceTest {
         folderToDelete.setDirectory(true);
         folderToDelete.setDeletedAt(LocalDateTime.now().minusDays(RETENTION_DAYS + 1));
 
-        List<FileEntity> files = List.of(fileToDelete, folderToDelete);
-
         ArgumentCaptor<LocalDateTime> cutoffCaptor = ArgumentCaptor.forClass(LocalDateTime.class);
-        when(fileRepository.findAllByDeletedAtBefore(cutoffCaptor.capture())).thenReturn(files);
+        when(fileRepository.findExpiredInRange(cutoffCaptor.capture(), eq(0L), eq(Long.MAX_VALUE), any(Pageable.class)))
+                .thenReturn(List.of(fileToDelete, folderToDelete));
+        when(s3Client.deleteObjects(any(Consumer.class))).thenReturn(DeleteObjectsResponse.builder().build());
 
         // When
         scheduledDeletionService.performScheduledDeletion();
 
         // Then
-        // Verify S3 deletion was called for the file but not the folder
-        verify(s3Template, times(1)).deleteObject(BUCKET_NAME, "s3-key-1");
+        // Only the file has an object, and it is removed in one multi-object request
+        List<DeleteObjectsRequest> requests = capturedDeleteRequests();
+        assertEquals(1, requests.size());
+        assertEquals(BUCKET_NAME, requests.get(0).bucket());
+        assertEquals(List.of("s3-key-1"), requestedKeys(requests.get(0)));
 
-        // Verify repository deletion was called for both
-        verify(fileRepository, times(1)).delete(fileToDelete);
-        verify(fileRepository, times(1)).delete(folderToDelete);
-        verify(fileRepository, times(2)).delete(any(FileEntity.class));
+        // Both rows are deleted with one bulk statement once their bytes are released from the quotas
+        verify(storageQuotaService).releaseFiles(List.of(1L, 2L));
+        verify(fileRepository).deleteAllByIdInBatch(List.of(1L, 2L));
+        verify(cacheInvalidationBus).entitiesChanged(FileEntity.class, List.of(1L, 2L));
+        assertTrue(cutoffCaptor.getValue().isBefore(LocalDateTime.now().minusDays(RETENTION_DAYS - 1)));
+        assertEquals(2.0, meterRegistry.counter("file.purge.deleted").count());
+        assertEquals(1.0, meterRegistry.counter("file.purge.objects").count());
     }
 
     @Test
     void performScheduledDeletion_S3DeleteFails_SkipsDatabaseDelete() {
         // Given
-        FileEntity fileToDelete = new FileEntity();
-        fileToDelete.setId(1L);
-        fileToDelete.setName("failing_s3_file.txt");
-        fileToDelete.setDirectory(false);
-        fileToDelete.setStorageKey("s3-key-fail");
-        fileToDelete.setDeletedAt(LocalDateTime.now().minusDays(RETENTION_DAYS + 1));
-
-        when(fileRepository.findAllByDeletedAtBefore(any(LocalDateTime.class)))
+        FileEntity fileToDelete = expiredFile(1L, "s3-key-fail");
+
+        when(fileRepository.findExpiredInRange(any(LocalDateTime.class), eq(0L), eq(Long.MAX_VALUE), any(Pageable.class)))
                 .thenReturn(List.of(fileToDelete));
 
         // Simulate S3 deletion failure
-        doThrow(new RuntimeException("S3 is unavailable"))
-                .when(s3Template).deleteObject(BUCKET_NAME, "s3-key-fail");
+        when(s3Client.deleteObjects(any(Consumer.class))).thenThrow(new RuntimeException("S3 is unavailable"));
 
         // When
         scheduledDeletionService.performScheduledDeletion();
 
         // Then
-        // Verify S3 deletion was attempted
-        verify(s3Template, times(1)).deleteObject(BUCKET_NAME, "s3-key-fail");
-
         // IMPORTANT: Verify that the database delete was never called for this file
-        verify(fileRepository, never()).delete(fileToDelete);
+        verify(fileRepository, never()).deleteAllByIdInBatch(any());
+        assertEquals(1.0, meterRegistry.counter("file.purge.failures").count());
+    }
+
+    @Test
+    void performScheduledDeletion_PartialS3Failure_KeepsOnlyFailedRows() {
+        // Given
+        when(fileRepository.findExpiredInRange(any(LocalDateTime.class), eq(0L), eq(Long.MAX_VALUE), any(Pageable.class)))
+                .thenReturn(List.of(expiredFile(1L, "key-1"), expiredFile(2L, "key-2")));
+        when(s3Client.deleteObjects(any(Consumer.class))).thenReturn(DeleteObjectsResponse.builder()
+                .errors(S3Error.builder().key("key-2").code("AccessDenied").message("denied").build())
+                .build());
+
+        // When
+        scheduledDeletionService.performScheduledDeletion();
+
+        // Then
+        verify(fileRepository).deleteAllByIdInBatch(List.of(1L));
+        assertEquals(1.0, meterRegistry.counter("file.purge.objects").count());
+        assertEquals(1.0, meterRegistry.counter("file.purge.failures").count());
     }
 
     @Test
     void performScheduledDeletion_NoFilesToDelete() {
         // Given
-        when(fileRepository.findAllByDeletedAtBefore(any(LocalDateTime.class)))
+        when(fileRepository.findExpiredInRange(any(LocalDateTime.class), eq(0L), eq(Long.MAX_VALUE), any(Pageable.class)))
                 .thenReturn(Collections.emptyList());
 
         // When
@@ -113,21 +194,16 @@ class ScheduledDeletionServiceTest {
 
         // Then
         // Verify that no interactions with S3 or database deletion methods occurred
-        verify(s3Template, never()).deleteObject(anyString(), anyString());
-        verify(fileRepository, never()).delete(any(FileEntity.class));
+        verifyNoInteractions(s3Client);
+        verify(fileRepository, never()).deleteAllByIdInBatch(any());
     }
 
     @Test
     void performScheduledDeletion_FileHasNoStorageKey_SkipsS3Delete() {
         // Given
-        FileEntity fileWithoutKey = new FileEntity();
-        fileWithoutKey.setId(1L);
-        fileWithoutKey.setName("no_key.txt");
-        fileWithoutKey.setDirectory(false);
-        fileWithoutKey.setStorageKey(null); // No key
-        fileWithoutKey.setDeletedAt(LocalDateTime.now().minusDays(RETENTION_DAYS + 1));
-
-        when(fileRepository.findAllByDeletedAtBefore(any(LocalDateTime.class)))
+        FileEntity fileWithoutKey = expiredFile(1L, null); // No key
+
+        when(fileRepository.findExpiredInRange(any(LocalDateTime.class), eq(0L), eq(Long.MAX_VALUE), any(Pageable.class)))
                 .thenReturn(List.of(fileWithoutKey));
 
         // When
@@ -135,9 +211,142 @@ class ScheduledDeletionServiceTest {
 
         // Then
         // Verify S3 deletion was NOT called
-        verify(s3Template, never()).deleteObject(anyString(), anyString());
+        verifyNoInteractions(s3Client);
 
         // Verify repository deletion was still called
-        verify(fileRepository, times(1)).delete(fileWithoutKey);
+        verify(fileRepository).deleteAllByIdInBatch(List.of(1L));
+    }
+
+    @Test
+    void performScheduledDeletion_PagesThroughExpiredFilesInChunksOfAtMostThousandKeys() {
+        // Given
+        List<FileEntity> firstPage = LongStream.rangeClosed(1, 1000)
+                .mapToObj(id -> expiredFile(id, "key-" + id)).toList();
+        List<FileEntity> secondPage = List.of(expiredFile(1001L, "key-1001"));
+
+        when(fileRepository.findExpiredInRange(any(LocalDateTime.class), eq(0L), eq(Long.MAX_VALUE), any(Pageable.class)))
+                .thenReturn(firstPage);
+        when(fileRepository.findExpiredInRange(any(LocalDateTime.class), eq(1000L), eq(Long.MAX_VALUE), any(Pageable.class)))
+                .thenReturn(secondPage);
+        when(s3Client.deleteObjects(any(Consumer.class))).thenReturn(DeleteObjectsResponse.builder().build());
+
+        // When
+        scheduledDeletionService.performScheduledDeletion();
+
+        // Then
+        List<DeleteObjectsRequest> requests = capturedDeleteRequests();
+        assertEquals(2, requests.size());
+        assertTrue(requests.stream().allMatch(r -> r.delete().objects().size() <= 1000));
+        assertEquals(1001, requests.stream().mapToInt(r -> r.delete().objects().size()).sum());
+        verify(fileRepository, times(2)).deleteAllByIdInBatch(any());
+        assertEquals(1001.0, meterRegistry.counter("file.purge.deleted").count());
+    }
+
+    @Test
+    void performScheduledDeletion_BulkRowDeleteFails_FallsBackToSingleRows() {
+        // Given
+        FileEntity parentFolder = new FileEntity();
+        parentFolder.setId(1L);
+        parentFolder.setDirectory(true);
+        FileEntity file = expiredFile(2L, null);
+
+        when(fileRepository.findExpiredInRange(any(LocalDateTime.class), eq(0L), eq(Long.MAX_VALUE), any(Pageable.class)))
+                .thenReturn(List.of(parentFolder, file));
+        doThrow(new DataIntegrityViolationException("fk")).when(fileRepository).deleteAllByIdInBatch(List.of(1L, 2L));
+        doThrow(new DataIntegrityViolationException("fk")).when(fileRepository).deleteAllByIdInBatch(List.of(1L));
+
+        // When
+        scheduledDeletionService.performScheduledDeletion();
+
+        // Then
+        verify(fileRepository).deleteAllByIdInBatch(List.of(2L));
+        assertEquals(1.0, meterRegistry.counter("file.purge.deleted").count());
+    }
+
+    @Test
+    void performScheduledDeletion_DeletesVersionObjectsAndHistoryRows() {
+        // Given
+        FileEntity file = expiredFile(1L, "current-key");
+        FileHistory v1 = new FileHistory();
+        v1.setFileEntity(file);
+        v1.setStorageKey("v1-key");
+        FileHistory v2 = new FileHistory();
+        v2.setFileEntity(file);
+        v2.setStorageKey("current-key"); // restored version shares the current key
+
+        when(fileRepository.findExpiredInRange(any(LocalDateTime.class), eq(0L), eq(Long.MAX_VALUE), any(Pageable.class)))
+                .thenReturn(List.of(file));
+        when(fileHistoryRepository.findAllByFileEntityIdIn(Set.of(1L))).thenReturn(List.of(v1, v2));
+        when(s3Client.deleteObjects(any(Consumer.class))).thenReturn(DeleteObjectsResponse.builder().build());
+
+        // When
+        scheduledDeletionService.performScheduledDeletion();
+
+        // Then
+        assertEquals(List.of("current-key", "v1-key"), requestedKeys(capturedDeleteRequests().get(0)));
+        verify(fileHistoryRepository).deleteAllByFileEntityIds(List.of(1L));
+        verify(fileRepository).detachDeletedChildren(List.of(1L));
+        verify(fileRepository).deleteAllByIdInBatch(List.of(1L));
+    }
+
+    @Test
+    void performScheduledDeletion_VersionObjectDeleteFails_KeepsFile() {
+        // Given
+        FileEntity file = expiredFile(1L, "current-key");
+        FileHistory v1 = new FileHistory();
+        v1.setFileEntity(file);
+        v1.setStorageKey("v1-key");
+
+        when(fileRepository.findExpiredInRange(any(LocalDateTime.class), eq(0L), eq(Long.MAX_VALUE), any(Pageable.class)))
+                .thenReturn(List.of(file));
+        when(fileHistoryRepository.findAllByFileEntityIdIn(Set.of(1L))).thenReturn(List.of(v1));
+        when(s3Client.deleteObjects(any(Consumer.class))).thenReturn(DeleteObjectsResponse.builder()
+                .errors(S3Error.builder().key("v1-key").code("InternalError").message("retry").build())
+                .build());
+
+        // When
+        scheduledDeletionService.performScheduledDeletion();
+
+        // Then
+        verify(fileHistoryRepository, never()).deleteAllByFileEntityIds(any());
+        verify(fileRepository, never()).deleteAllByIdInBatch(any());
+    }
+
+    @Test
+    void performScheduledDeletion_AnotherNodeHoldsTheLock_DoesNothing() {
+        when(jobLockService.runExclusively(eq(ScheduledDeletionService.JOB_NAME), any(Duration.class),
+                any(Runnable.class))).thenReturn(false);
+
+        scheduledDeletionService.performScheduledDeletion();
+
+        verifyNoInteractions(fileRepository, s3Client);
+    }
+
+    @Test
+    void performScheduledDeletion_Partitioned_PurgesOnlyClaimedIdRanges() {
+        ReflectionTestUtils.setField(scheduledDeletionService, "partitionSize", 1000L);
+        when(fileRepository.findMaxExpiredId(any(LocalDateTime.class))).thenReturn(2500L);
+        // Another node has claimed the first and the last range
+        when(jobLockService.runExclusively(anyString(), any(Duration.class), any(Runnable.class)))
+                .thenAnswer(invocation -> {
+                    if (!invocation.getArgument(0).equals(ScheduledDeletionService.JOB_NAME + "#1")) {
+                        return false;
+                    }
+                    invocation.<Runnable>getArgument(2).run();
+                    return true;
+                });
+        when(fileRepository.findExpiredInRange(any(LocalDateTime.class), eq(1000L), eq(2000L), any(Pageable.class)))
+                .thenReturn(List.of(expiredFile(1500L, "s3-key-1500")));
+        when(s3Client.deleteObjects(any(Consumer.class))).thenReturn(DeleteObjectsResponse.builder().build());
+
+        scheduledDeletionService.performScheduledDeletion();
+
+        verify(jobLockService).runExclusively(eq(ScheduledDeletionService.JOB_NAME + "#0"), any(Duration.class),
+                any(Runnable.class));
+        verify(jobLockService).runExclusively(eq(ScheduledDeletionService.JOB_NAME + "#2"), any(Duration.class),
+                any(Runnable.class));
+        verify(fileRepository, times(1)).findExpiredInRange(any(LocalDateTime.class), anyLong(), anyLong(),
+                any(Pageable.class));
+        verify(fileRepository).deleteAllByIdInBatch(List.of(1500L));
     }
 }
@@ -0,0 +1,125 @@
+package com.example.filemanager.service;
+
+import com.example.filemanager.service.StorageCodecService.Codec;
+import com.example.filemanager.service.StorageCodecService.StoredContent;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.util.ReflectionTestUtils;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@SuppressWarnings("unchecked")
+class StorageCodecServiceTest {
+
+    private S3Client s3Client;
+    private StorageCodecService storageCodecService;
+
+    @BeforeEach
+    void setUp() {
+        s3Client = mock(S3Client.class);
+        storageCodecService = new StorageCodecService(s3Client, new SimpleMeterRegistry(), "test-bucket");
+        ReflectionTestUtils.setField(storageCodecService, "enabled", true);
+    }
+
+    private static byte[] csv(int rows) {
+        StringBuilder csv = new StringBuilder("id,name,size\n");
+        for (int i = 0; i < rows; i++) {
+            csv.append(i).append(",file-").append(i % 17).append(".txt,").append(i * 31 % 1000).append('\n');
+        }
+        return csv.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] gzip(byte[] content) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(content);
+        }
+        return out.toByteArray();
+    }
+
+    private static MockMultipartFile upload(byte[] content) {
+        return new MockMultipartFile("file", "data.csv", "text/csv", content);
+    }
+
+    @Test
+    void encode_ProducesGzipFormatWhileRead() throws IOException {
+        byte[] content = csv(20000);
+
+        byte[] encoded;
+        try (InputStream in = storageCodecService.encode(Codec.GZIP, new ByteArrayInputStream(content))) {
+            encoded = in.readAllBytes();
+        }
+
+        assertTrue(encoded.length < content.length / 3);
+        // GZIPInputStream checks the CRC-32 and length of the trailer
+        assertArrayEquals(content, new GZIPInputStream(new ByteArrayInputStream(encoded)).readAllBytes());
+        byte[] empty = storageCodecService.encode(Codec.GZIP, new ByteArrayInputStream(new byte[0])).readAllBytes();
+        assertEquals(0, new GZIPInputStream(new ByteArrayInputStream(empty)).readAllBytes().length);
+    }
+
+    @Test
+    void codecFor_CompressesOnlyContentThatShrinks() throws IOException {
+        byte[] random = new byte[100_000];
+        new Random(42).nextBytes(random);
+
+        assertEquals(Codec.GZIP, storageCodecService.codecFor(upload(csv(5000))));
+        assertNull(storageCodecService.codecFor(upload(random)));
+        // Sniffed as gzip without probing
+        assertNull(storageCodecService.codecFor(upload(gzip(csv(5000)))));
+        assertNull(storageCodecService.codecFor(upload(csv(5))));
+
+        ReflectionTestUtils.setField(storageCodecService, "enabled", false);
+        assertNull(storageCodecService.codecFor(upload(csv(5000))));
+    }
+
+    @Test
+    void read_CompressedObject_IsSentEncodedOnlyToClientsThatAcceptIt() throws IOException {
+        byte[] content = csv(100);
+        byte[] encoded = gzip(content);
+        when(s3Client.getObject(any(Consumer.class))).thenAnswer(invocation -> new ResponseInputStream<>(
+                GetObjectResponse.builder().contentEncoding("gzip").build(),
+                AbortableInputStream.create(new ByteArrayInputStream(encoded))));
+
+        StoredContent asStored = storageCodecService.read("key", "gzip, deflate, br");
+        StoredContent decoded = storageCodecService.read("key", "gzip;q=0, br");
+
+        assertArrayEquals(encoded, asStored.data());
+        assertEquals("gzip", asStored.contentEncoding());
+        assertArrayEquals(content, decoded.data());
+        assertNull(decoded.contentEncoding());
+    }
+
+    @Test
+    void codecOf_IgnoresUploadFraming() {
+        assertNull(Codec.of(null));
+        assertNull(Codec.of("aws-chunked"));
+        assertEquals(Codec.GZIP, Codec.of("gzip,aws-chunked"));
+        assertThrows(IllegalStateException.class, () -> Codec.of("br"));
+    }
+
+    @Test
+    void accepts_HonoursQualityAndWildcard() {
+        assertTrue(StorageCodecService.accepts("deflate, GZIP;q=0.5", "gzip"));
+        assertTrue(StorageCodecService.accepts("br, *", "gzip"));
+        assertFalse(StorageCodecService.accepts("*, gzip;q=0", "gzip"));
+        assertFalse(StorageCodecService.accepts("identity", "gzip"));
+        assertFalse(StorageCodecService.accepts(null, "gzip"));
+    }
+}
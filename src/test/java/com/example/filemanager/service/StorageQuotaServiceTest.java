@@ -0,0 +1,253 @@
+package com.example.filemanager.service;
+
+import com.example.filemanager.domain.FileEntity;
+import com.example.filemanager.domain.FileHistory;
+import com.example.filemanager.domain.Group;
+import com.example.filemanager.domain.StorageUsage.OwnerType;
+import com.example.filemanager.domain.User;
+import com.example.filemanager.exception.QuotaExceededException;
+import com.example.filemanager.repository.FileHistoryRepository;
+import com.example.filemanager.repository.FileRepository;
+import com.example.filemanager.repository.GroupRepository;
+import com.example.filemanager.repository.StorageUsageRepository;
+import com.example.filemanager.repository.UserRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.IllegalTransactionStateException;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.unit.DataSize;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the quota counters against the database. Counters are created in their
+ * own transactions, so nothing here runs in a test transaction.
+ */
+@DataJpaTest
+@Import({ StorageQuotaService.class, JobLockService.class, StorageQuotaServiceTest.Config.class })
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class StorageQuotaServiceTest {
+
+    @TestConfiguration
+    static class Config {
+        @Bean
+        MeterRegistry meterRegistry() {
+            return new SimpleMeterRegistry();
+        }
+    }
+
+    @Autowired
+    private StorageQuotaService storageQuotaService;
+
+    @Autowired
+    private StorageUsageRepository storageUsageRepository;
+
+    @Autowired
+    private FileRepository fileRepository;
+
+    @Autowired
+    private FileHistoryRepository fileHistoryRepository;
+
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private GroupRepository groupRepository;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private TransactionTemplate transactionTemplate;
+    private User owner;
+    private Group group;
+
+    @BeforeEach
+    void setUp() {
+        transactionTemplate = new TransactionTemplate(transactionManager);
+        ReflectionTestUtils.setField(storageQuotaService, "perUser", DataSize.ofBytes(100));
+        ReflectionTestUtils.setField(storageQuotaService, "perGroup", DataSize.ofBytes(-1));
+
+        group = new Group();
+        group.setName("quota-group");
+        group = groupRepository.save(group);
+
+        owner = new User();
+        owner.setUsername("quota-owner");
+        owner.setPassword("password");
+        owner.setGroups(Set.of(group));
+        owner = userRepository.save(owner);
+    }
+
+    @AfterEach
+    void tearDown() {
+        storageUsageRepository.deleteAll();
+        fileHistoryRepository.deleteAll();
+        fileRepository.deleteAll();
+        userRepository.deleteAll();
+        groupRepository.deleteAll();
+    }
+
+    private FileEntity file(String name, long size) {
+        FileEntity file = new FileEntity();
+        file.setName(name);
+        file.setSize(size);
+        file.setOwner(owner);
+        file.setGroup(group);
+        file.setPermissions(644);
+        return fileRepository.save(file);
+    }
+
+    private FileHistory version(FileEntity file, int version, long size) {
+        FileHistory history = new FileHistory();
+        history.setFileEntity(file);
+        history.setVersion(version);
+        history.setStorageKey(file.getName() + "-v" + version);
+        history.setSize(size);
+        history.setModifier(owner);
+        return fileHistoryRepository.save(history);
+    }
+
+    // As uploads do: counters first, then the charging transaction
+    private void charge(long bytes) {
+        storageQuotaService.createCounters(owner, group);
+        transactionTemplate.executeWithoutResult(status -> storageQuotaService.charge(owner, group, bytes));
+    }
+
+    private long used(OwnerType ownerType, Long ownerId) {
+        return storageUsageRepository.findUsedBytes(ownerType, ownerId).orElseThrow();
+    }
+
+    @Test
+    void charge_FirstCharge_CountsExistingFiles() {
+        // Given: files stored before the owner had a counter
+        file("old.bin", 30);
+
+        // When
+        charge(50);
+
+        // Then
+        assertEquals(80, used(OwnerType.USER, owner.getId()));
+        assertEquals(80, used(OwnerType.GROUP, group.getId()));
+    }
+
+    @Test
+    void charge_WithoutCounter_IsCheckedAgainstFilesAndCountedLater() {
+        file("old.bin", 30);
+
+        // Counters are never created inside a transaction
+        assertThrows(IllegalTransactionStateException.class, () -> transactionTemplate
+                .executeWithoutResult(status -> storageQuotaService.createCounters(owner, group)));
+        assertThrows(QuotaExceededException.class, () -> transactionTemplate
+                .executeWithoutResult(status -> storageQuotaService.charge(owner, group, 80)));
+        transactionTemplate.executeWithoutResult(status -> storageQuotaService.charge(owner, group, 70));
+        assertTrue(storageUsageRepository.findUsedBytes(OwnerType.USER, owner.getId()).isEmpty());
+
+        // The reconciliation creates the counters from the files
+        assertEquals(0, storageQuotaService.reconcile());
+        assertEquals(30, used(OwnerType.USER, owner.getId()));
+        assertEquals(30, used(OwnerType.GROUP, group.getId()));
+    }
+
+    @Test
+    void charge_BeyondQuota_IsRejectedAndRolledBack() {
+        charge(90);
+
+        assertThrows(QuotaExceededException.class, () -> charge(20));
+        assertThrows(QuotaExceededException.class, () -> storageQuotaService.checkAvailable(owner, group, 20));
+
+        // Releasing bytes is never limited
+        charge(-40);
+        charge(20);
+        assertEquals(70, used(OwnerType.USER, owner.getId()));
+        assertEquals(70, used(OwnerType.GROUP, group.getId()));
+    }
+
+    @Test
+    void transfer_MovesBytesWithoutQuota() {
+        User other = new User();
+        other.setUsername("quota-receiver");
+        other.setPassword("password");
+        other.setGroups(Set.of(group));
+        User receiver = userRepository.save(other);
+        charge(90);
+        storageQuotaService.createCounters(receiver, group);
+        transactionTemplate.executeWithoutResult(status -> storageQuotaService.charge(receiver, group, 90));
+
+        transactionTemplate.executeWithoutResult(status -> storageQuotaService.transfer(
+                Map.of(owner.getId(), 90L), Map.of(group.getId(), 90L), receiver, group));
+
+        assertEquals(0, used(OwnerType.USER, owner.getId()));
+        assertEquals(180, used(OwnerType.USER, receiver.getId()));
+        assertEquals(180, used(OwnerType.GROUP, group.getId()));
+    }
+
+    @Test
+    void reconcile_CorrectsDriftedCounters() {
+        // Given: the counters say 60, the files add up to 25
+        charge(60);
+        file("a.bin", 10);
+        file("b.bin", 15);
+
+        // When
+        int corrected = storageQuotaService.reconcile();
+
+        // Then
+        assertEquals(2, corrected);
+        assertEquals(25, used(OwnerType.USER, owner.getId()));
+        assertEquals(25, used(OwnerType.GROUP, group.getId()));
+        assertEquals(0, storageQuotaService.reconcile());
+    }
+
+    @Test
+    void reconcile_CountsStoredVersions() {
+        // Given: a file of 10 bytes with two versions the counters never saw
+        FileEntity file = file("a.bin", 10);
+        charge(10);
+        version(file, 1, 20);
+        version(file, 2, 30);
+
+        // When
+        int corrected = storageQuotaService.reconcile();
+
+        // Then
+        assertEquals(2, corrected);
+        assertEquals(60, used(OwnerType.USER, owner.getId()));
+        assertEquals(60, used(OwnerType.GROUP, group.getId()));
+    }
+
+    @Test
+    void releaseVersionsAndFiles_ReleaseStoredVersions() {
+        FileEntity file = file("a.bin", 10);
+        FileHistory first = version(file, 1, 20);
+        version(file, 2, 30);
+        storageQuotaService.createCounters(owner, group);
+        assertEquals(60, used(OwnerType.USER, owner.getId()));
+
+        // Pruning one version
+        transactionTemplate.executeWithoutResult(
+                status -> storageQuotaService.releaseVersions(List.of(first.getId())));
+        assertEquals(40, used(OwnerType.USER, owner.getId()));
+
+        // Purging the file with its remaining version (the prune deletes its row itself)
+        fileHistoryRepository.deleteById(first.getId());
+        transactionTemplate.executeWithoutResult(
+                status -> storageQuotaService.releaseFiles(List.of(file.getId())));
+        assertEquals(0, used(OwnerType.USER, owner.getId()));
+        assertEquals(0, used(OwnerType.GROUP, group.getId()));
+    }
+}
@@ -0,0 +1,166 @@
+package com.example.filemanager.service;
+
+import com.example.filemanager.repository.FileHistoryRepository;
+import com.example.filemanager.repository.FileRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.domain.Pageable;
+import org.springframework.test.util.ReflectionTestUtils;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+@SuppressWarnings({ "null", "unchecked" })
+class StorageReconciliationServiceTest {
+
+    @Mock
+    private FileRepository fileRepository;
+
+    @Mock
+    private FileHistoryRepository fileHistoryRepository;
+
+    @Mock
+    private S3Client s3Client;
+
+    @Mock
+    private JobLockService jobLockService;
+
+    private StorageReconciliationService reconciliationService;
+
+    private final Instant old = Instant.now().minus(30, ChronoUnit.DAYS);
+
+    @BeforeEach
+    void setUp() {
+        reconciliationService = new StorageReconciliationService(fileRepository, fileHistoryRepository, s3Client,
+                new SimpleMeterRegistry(), jobLockService, "test-bucket");
+        ReflectionTestUtils.setField(reconciliationService, "operationsPerSecond", 0);
+    }
+
+    private S3Object object(String key, Instant lastModified) {
+        return S3Object.builder().key(key).size(1L).lastModified(lastModified).build();
+    }
+
+    private ListObjectsV2Response listing(List<S3Object> objects, String nextToken) {
+        return ListObjectsV2Response.builder()
+                .contents(objects)
+                .isTruncated(nextToken != null)
+                .nextContinuationToken(nextToken)
+                .build();
+    }
+
+    private void database(List<String> fileKeys, List<String> versionKeys) {
+        when(fileRepository.findStorageKeysAfter(eq(""), any(Pageable.class))).thenReturn(fileKeys);
+        when(fileHistoryRepository.findStorageKeysAfter(eq(""), any(Pageable.class))).thenReturn(versionKeys);
+    }
+
+    @Test
+    void reconcile_ReportsOrphanedAndMissingObjects() {
+        // Given: "a" is orphaned, "c" is missing, "d" is too new to judge and "e" is a stored version
+        when(s3Client.listObjectsV2(any(Consumer.class))).thenReturn(listing(List.of(
+                object("a", old), object("b", old), object("d", Instant.now()), object("e", old)), null));
+        database(List.of("b", "c"), List.of("e"));
+        when(s3Client.headObject(any(Consumer.class))).thenThrow(NoSuchKeyException.builder().build());
+
+        // When
+        StorageReconciliationService.Report report = reconciliationService.reconcile();
+
+        // Then
+        assertEquals(new StorageReconciliationService.Report(4, 1, 0, 1), report);
+        verify(s3Client, times(1)).headObject(any(Consumer.class));
+        verify(s3Client, never()).deleteObjects(any(Consumer.class));
+    }
+
+    @Test
+    void reconcile_KeyUploadedAfterListing_IsNotMissing() {
+        when(s3Client.listObjectsV2(any(Consumer.class))).thenReturn(listing(List.of(), null));
+        database(List.of("new"), List.of());
+        when(s3Client.headObject(any(Consumer.class))).thenReturn(HeadObjectResponse.builder().build());
+
+        assertEquals(new StorageReconciliationService.Report(0, 0, 0, 0), reconciliationService.reconcile());
+    }
+
+    @Test
+    void reconcile_DeleteOrphans_SkipsKeysReferencedInTheMeantime() {
+        // Given
+        ReflectionTestUtils.setField(reconciliationService, "deleteOrphans", true);
+        when(s3Client.listObjectsV2(any(Consumer.class)))
+                .thenReturn(listing(List.of(object("orphan", old), object("restored", old)), null));
+        database(List.of(), List.of());
+        when(fileRepository.findStorageKeysIn(List.of("orphan", "restored"))).thenReturn(List.of("restored"));
+        when(s3Client.deleteObjects(any(Consumer.class))).thenReturn(DeleteObjectsResponse.builder().build());
+
+        // When
+        StorageReconciliationService.Report report = reconciliationService.reconcile();
+
+        // Then
+        assertEquals(new StorageReconciliationService.Report(2, 2, 1, 0), report);
+        ArgumentCaptor<Consumer<DeleteObjectsRequest.Builder>> captor = ArgumentCaptor.forClass(Consumer.class);
+        verify(s3Client).deleteObjects(captor.capture());
+        DeleteObjectsRequest.Builder builder = DeleteObjectsRequest.builder();
+        captor.getValue().accept(builder);
+        assertEquals(List.of("orphan"),
+                builder.build().delete().objects().stream().map(ObjectIdentifier::key).toList());
+    }
+
+    @Test
+    void reconcile_Renditions_AreNotOrphans() {
+        ReflectionTestUtils.setField(reconciliationService, "deleteOrphans", true);
+        when(s3Client.listObjectsV2(any(Consumer.class)))
+                .thenReturn(listing(List.of(object("k/a.png", old), object("renditions/k/a.png/thumbnail.jpg", old)),
+                        null));
+        database(List.of("k/a.png"), List.of());
+
+        assertEquals(new StorageReconciliationService.Report(2, 0, 0, 0), reconciliationService.reconcile());
+        verify(s3Client, never()).deleteObjects(any(Consumer.class));
+    }
+
+    @Test
+    void reconcile_PagesThroughListingAndDatabase() {
+        // Given: a full page of keys on both sides, then one more key
+        List<String> firstPage = IntStream.range(0, StorageReconciliationService.PAGE_SIZE)
+                .mapToObj(i -> String.format("k%04d", i))
+                .toList();
+        when(s3Client.listObjectsV2(any(Consumer.class))).thenReturn(
+                listing(firstPage.stream().map(key -> object(key, old)).toList(), "token"),
+                listing(List.of(object("k1000", old)), null));
+        database(firstPage, List.of());
+        when(fileRepository.findStorageKeysAfter(eq("k0999"), any(Pageable.class))).thenReturn(List.of("k1000"));
+
+        // When
+        StorageReconciliationService.Report report = reconciliationService.reconcile();
+
+        // Then: everything matched
+        assertEquals(new StorageReconciliationService.Report(1001, 0, 0, 0), report);
+        verify(s3Client, times(2)).listObjectsV2(any(Consumer.class));
+    }
+
+    @Test
+    void compareKeys_OrdersLikeS3() {
+        String[] keys = { "b", "a/x", "😀", "a", "�", "a-" };
+        Arrays.sort(keys, StorageReconciliationService::compareKeys);
+        // UTF-8 byte order puts characters outside the BMP after U+FFFD, unlike String.compareTo
+        assertArrayEquals(new String[] { "a", "a-", "a/x", "b", "�", "😀" }, keys);
+    }
+}
@@ -3,6 +3,8 @@ package com.example.filemanager.service;
 import com.example.filemanager.domain.FileEntity;
 import com.example.filemanager.domain.Group;
 import com.example.filemanager.domain.User;
+import com.example.filemanager.repository.FileHistoryRepository;
+import com.example.filemanager.repository.FileLeaseRepository;
 import com.example.filemanager.repository.FileRepository;
 import com.example.filemanager.repository.GroupRepository;
 import com.example.filemanager.exception.UserNotFoundException;
@@ -11,10 +13,10 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
-import java.util.List;
 import java.util.Optional;
 
 import static org.mockito.Mockito.*;
@@ -36,6 +38,15 @@ class UserServiceTest {
     @Mock
     private FileRepository fileRepository;
 
+    @Mock
+    private FileHistoryRepository fileHistoryRepository;
+
+    @Mock
+    private FileLeaseRepository fileLeaseRepository;
+
+    @Mock
+    private CacheInvalidationBus cacheInvalidationBus;
+
     private UserService userService;
 
     private User user;
@@ -43,7 +54,8 @@ class UserServiceTest {
 
     @BeforeEach
     void setUp() {
-        userService = new UserService(userRepository, groupRepository, passwordEncoder, fileRepository);
+        userService = new UserService(userRepository, groupRepository, passwordEncoder, fileRepository,
+                fileHistoryRepository, fileLeaseRepository, cacheInvalidationBus);
 
         user = new User();
         user.setId(1L);
@@ -142,35 +154,21 @@ class UserServiceTest {
         adminUser.setId(999L);
         adminUser.setUsername("admin");
 
-        FileEntity file1 = new FileEntity();
-        file1.setId(1L);
-        file1.setName("file1.txt");
-        file1.setOwner(user);
-
-        FileEntity file2 = new FileEntity();
-        file2.setId(2L);
-        file2.setName("file2.txt");
-        file2.setOwner(user);
-
-        List<FileEntity> ownedFiles = List.of(file1, file2);
-
         when(userRepository.findById(1L)).thenReturn(Optional.of(user));
         when(userRepository.findByUsername("admin")).thenReturn(Optional.of(adminUser));
-        when(fileRepository.findAllByOwner(user)).thenReturn(ownedFiles);
 
         // Execute
         userService.deleteUser(1L);
 
         // Verify
-        verify(userRepository, times(1)).findById(1L);
-        verify(userRepository, times(1)).findByUsername("admin");
-        verify(fileRepository, times(1)).findAllByOwner(user);
-        verify(fileRepository, times(2)).save(any(FileEntity.class));
-        verify(userRepository, times(1)).deleteById(1L);
-
-        // Verify ownership was transferred
-        assertEquals(adminUser, file1.getOwner());
-        assertEquals(adminUser, file2.getOwner());
+        InOrder inOrder = inOrder(fileRepository, fileLeaseRepository, fileHistoryRepository, cacheInvalidationBus,
+                userRepository);
+        inOrder.verify(fileRepository).transferOwner(user, adminUser);
+        inOrder.verify(fileLeaseRepository).releaseAllHeldBy(user);
+        inOrder.verify(fileHistoryRepository).transferModifier(user, adminUser);
+        inOrder.verify(cacheInvalidationBus).allChanged(FileEntity.class);
+        inOrder.verify(userRepository).deleteById(1L);
+        verify(fileRepository, never()).save(any(FileEntity.class));
     }
 
     @Test
@@ -0,0 +1,231 @@
+package com.example.filemanager.service;
+
+import com.example.filemanager.domain.FileEntity;
+import com.example.filemanager.domain.FileHistory;
+import com.example.filemanager.domain.VersionThinning;
+import com.example.filemanager.repository.FileHistoryRepository;
+import com.example.filemanager.repository.FileRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.domain.Pageable;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+@SuppressWarnings("null")
+class VersionRetentionServiceTest {
+
+    @Mock
+    private FileRepository fileRepository;
+
+    @Mock
+    private FileHistoryRepository fileHistoryRepository;
+
+    @Mock
+    private BlobOutboxService blobOutboxService;
+
+    @Mock
+    private StorageQuotaService storageQuotaService;
+
+    @Mock
+    private PlatformTransactionManager transactionManager;
+
+    @Mock
+    private JobLockService jobLockService;
+
+    private SimpleMeterRegistry meterRegistry;
+    private VersionRetentionService versionRetentionService;
+
+    private final LocalDateTime now = LocalDateTime.of(2024, 6, 15, 12, 0);
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        versionRetentionService = new VersionRetentionService(fileRepository, fileHistoryRepository,
+                blobOutboxService, storageQuotaService, transactionManager, meterRegistry, jobLockService);
+        lenient().when(jobLockService.runExclusively(anyString(), any(Duration.class), any(Runnable.class)))
+                .thenAnswer(invocation -> {
+                    invocation.<Runnable>getArgument(2).run();
+                    return true;
+                });
+    }
+
+    private FileHistory version(long id, int version, LocalDateTime createdAt, String key, FileEntity file) {
+        FileHistory history = new FileHistory();
+        history.setId(id);
+        history.setVersion(version);
+        history.setCreatedAt(createdAt);
+        history.setStorageKey(key);
+        history.setFileEntity(file);
+        return history;
+    }
+
+    @Test
+    void selectPrunable_NoPolicy_KeepsEverything() {
+        FileEntity folder = new FileEntity();
+        List<FileHistory> history = List.of(
+                version(2L, 2, now.minusDays(400), "k2", null),
+                version(1L, 1, now.minusDays(500), "k1", null));
+
+        assertTrue(VersionRetentionService.selectPrunable(history, folder, now).isEmpty());
+    }
+
+    @Test
+    void selectPrunable_KeepLast_PrunesOlderVersions() {
+        FileEntity folder = new FileEntity();
+        folder.setRetentionKeepLast(2);
+        FileHistory v3 = version(3L, 3, now.minusHours(1), "k3", null);
+        FileHistory v2 = version(2L, 2, now.minusHours(2), "k2", null);
+        FileHistory v1 = version(1L, 1, now.minusHours(3), "k1", null);
+
+        List<FileHistory> result = VersionRetentionService.selectPrunable(List.of(v3, v2, v1), folder, now);
+
+        assertEquals(List.of(v1), result);
+    }
+
+    @Test
+    void selectPrunable_KeepWithinDays_PrunesExpiredVersions() {
+        FileEntity folder = new FileEntity();
+        folder.setRetentionKeepWithinDays(30);
+        FileHistory recent = version(2L, 2, now.minusDays(10), "k2", null);
+        FileHistory old = version(1L, 1, now.minusDays(31), "k1", null);
+
+        List<FileHistory> result = VersionRetentionService.selectPrunable(List.of(recent, old), folder, now);
+
+        assertEquals(List.of(old), result);
+    }
+
+    @Test
+    void selectPrunable_DailyThinning_KeepsNewestVersionPerDay() {
+        FileEntity folder = new FileEntity();
+        folder.setRetentionThinning(VersionThinning.DAILY);
+        FileHistory todayLate = version(4L, 4, now.minusHours(1), "k4", null);
+        FileHistory todayEarly = version(3L, 3, now.minusHours(5), "k3", null);
+        FileHistory yesterdayLate = version(2L, 2, now.minusDays(1), "k2", null);
+        FileHistory yesterdayEarly = version(1L, 1, now.minusDays(1).minusHours(2), "k1", null);
+
+        List<FileHistory> result = VersionRetentionService.selectPrunable(
+                List.of(todayLate, todayEarly, yesterdayLate, yesterdayEarly), folder, now);
+
+        assertEquals(List.of(todayEarly, yesterdayEarly), result);
+    }
+
+    @Test
+    void selectPrunable_CombinedRules_KeepsVersionSelectedByAnyRule() {
+        FileEntity folder = new FileEntity();
+        folder.setRetentionKeepLast(1);
+        folder.setRetentionKeepWithinDays(7);
+        FileHistory newest = version(3L, 3, now.minusDays(20), "k3", null);
+        FileHistory withinDays = version(2L, 2, now.minusDays(3), "k2", null);
+        FileHistory expired = version(1L, 1, now.minusDays(30), "k1", null);
+
+        List<FileHistory> result = VersionRetentionService.selectPrunable(
+                List.of(newest, withinDays, expired), folder, now);
+
+        assertEquals(List.of(expired), result);
+    }
+
+    @Test
+    void pruneVersions_DeletesRowsThenHandsObjectsToOutbox() {
+        FileEntity folder = new FileEntity();
+        folder.setId(10L);
+        folder.setRetentionKeepLast(1);
+
+        FileEntity file = new FileEntity();
+        file.setId(1L);
+        file.setStorageKey("current-key");
+        FileHistory v2 = version(2L, 2, now.minusDays(1), "v2-key", file);
+        FileHistory v1 = version(1L, 1, now.minusDays(2), "v1-key", file);
+        v1.setSize(100L);
+
+        when(fileRepository.findFoldersWithRetentionPolicy(eq(0L), any(Pageable.class))).thenReturn(List.of(folder));
+        when(fileHistoryRepository.findVersionedFileIds(eq(10L), anyLong(), any(Pageable.class)))
+                .thenReturn(List.of(1L));
+        when(fileHistoryRepository.findByFileEntityIdOrderByVersionDesc(1L)).thenReturn(List.of(v2, v1));
+
+        versionRetentionService.pruneVersions();
+
+        // The outbox deletes the object after the commit, unless it is referenced again by then
+        InOrder inOrder = inOrder(storageQuotaService, fileHistoryRepository, blobOutboxService);
+        inOrder.verify(storageQuotaService).releaseVersions(List.of(1L));
+        inOrder.verify(fileHistoryRepository).deleteAllByIdInBatch(List.of(1L));
+        inOrder.verify(blobOutboxService).deleteAllAfterCommit(List.of("v1-key"));
+        assertEquals(1.0, meterRegistry.counter("file.versions.pruned").count());
+        assertEquals(100.0, meterRegistry.counter("file.versions.reclaimed").count());
+    }
+
+    @Test
+    void pruneVersions_RestoredVersionSharesCurrentKey_KeepsObject() {
+        FileEntity folder = new FileEntity();
+        folder.setId(10L);
+        folder.setRetentionKeepLast(1);
+
+        // v1 was restored, so the current file points at v1's object
+        FileEntity file = new FileEntity();
+        file.setId(1L);
+        file.setStorageKey("v1-key");
+        FileHistory v2 = version(2L, 2, now.minusDays(1), "v2-key", file);
+        FileHistory v1 = version(1L, 1, now.minusDays(2), "v1-key", file);
+
+        when(fileRepository.findFoldersWithRetentionPolicy(eq(0L), any(Pageable.class))).thenReturn(List.of(folder));
+        when(fileHistoryRepository.findVersionedFileIds(eq(10L), anyLong(), any(Pageable.class)))
+                .thenReturn(List.of(1L));
+        when(fileHistoryRepository.findByFileEntityIdOrderByVersionDesc(1L)).thenReturn(List.of(v2, v1));
+
+        versionRetentionService.pruneVersions();
+
+        verify(blobOutboxService).deleteAllAfterCommit(List.of());
+        verify(fileHistoryRepository).deleteAllByIdInBatch(List.of(1L));
+        // Every version is charged on its own, shared object or not
+        verify(storageQuotaService).releaseVersions(List.of(1L));
+    }
+
+    @Test
+    void pruneVersions_RowDeletionFails_KeepsObjects() {
+        FileEntity folder = new FileEntity();
+        folder.setId(10L);
+        folder.setRetentionKeepLast(1);
+
+        FileEntity file = new FileEntity();
+        file.setId(1L);
+        file.setStorageKey("current-key");
+        FileHistory v2 = version(2L, 2, now.minusDays(1), "v2-key", file);
+        FileHistory v1 = version(1L, 1, now.minusDays(2), "v1-key", file);
+
+        when(fileRepository.findFoldersWithRetentionPolicy(eq(0L), any(Pageable.class))).thenReturn(List.of(folder));
+        when(fileHistoryRepository.findVersionedFileIds(eq(10L), anyLong(), any(Pageable.class)))
+                .thenReturn(List.of(1L));
+        when(fileHistoryRepository.findByFileEntityIdOrderByVersionDesc(1L)).thenReturn(List.of(v2, v1));
+        doThrow(new RuntimeException("Database is unavailable")).when(fileHistoryRepository)
+                .deleteAllByIdInBatch(List.of(1L));
+
+        versionRetentionService.pruneVersions();
+
+        verify(blobOutboxService, never()).deleteAllAfterCommit(any());
+        assertEquals(0.0, meterRegistry.counter("file.versions.pruned").count());
+    }
+
+    @Test
+    void pruneVersions_NoFoldersWithPolicy_DoesNothing() {
+        when(fileRepository.findFoldersWithRetentionPolicy(eq(0L), any(Pageable.class)))
+                .thenReturn(Collections.emptyList());
+
+        versionRetentionService.pruneVersions();
+
+        verifyNoInteractions(fileHistoryRepository, blobOutboxService);
+    }
+}